@@ -0,0 +1,432 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Saves a game periodically (every some commands or seconds) while it is
+ * played, without making the player wait for the disk: the state of the game
+ * is copied in the session thread (see SaveCodec.Snapshot), and it is encoded
+ * and written by a pool of I/O threads shared by every session. Games that
+ * cannot be saved in the compact format (see SaveCodec.supports) are
+ * serialized whole in the session thread (see SaveCodec.writeSerialized) and
+ * written by the I/O threads.
+ * <p>
+ * Every save is put into a storage of saved games (see SessionStore), which
+ * keeps it complete: by default, a file written into a temporary file of the
+ * same directory, synced and renamed. If a session takes a
+ * new snapshot while the previous one is still waiting to be written, only
+ * the newest one is written: a slow disk never piles up work.
+ * <p>
+ * The periods are checked after every executed command; an idle game does
+ * not change, so it is not saved. If the game is journaled (see
+ * CommandJournal), the journal is compacted after every save written.
+ */
+public class Autosave {
+
+	/**
+	 * Default number of commands between saves
+	 */
+	public static final int DEFAULT_COMMANDS = 10;
+
+	/**
+	 * Default number of seconds between saves
+	 */
+	public static final int DEFAULT_SECONDS = 60;
+
+	/**
+	 * Number of I/O threads shared by every session
+	 */
+	public static final int IO_THREADS = 2;
+
+	/**
+	 * Shared pool of I/O threads, created on demand
+	 */
+	private static ExecutorService executor;
+
+	/**
+	 * The storage where the game is saved, and its key
+	 */
+	private SessionStore store;
+	private String key;
+
+	/**
+	 * Periods: commands and milliseconds (0 if not used)
+	 */
+	private int everyCommands;
+	private long everyMillis;
+
+	/**
+	 * Commands executed and time of the last snapshot
+	 */
+	private int commands;
+	private long last;
+
+	/**
+	 * The newest save not written yet, and whether a write is scheduled
+	 */
+	private Pending pending;
+	private boolean scheduled;
+
+	/**
+	 * The journal of the game, null if it is not journaled
+	 */
+	private CommandJournal journal;
+
+	/**
+	 * Statistics and the last failure
+	 */
+	private long saves;
+	private long skipped;
+	private long failures;
+	private IOException failure;
+
+	/**
+	 * Constructs an autosave with the default periods.
+	 *
+	 * @param file
+	 *            The file where the game is saved.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 */
+	public Autosave(File file) {
+		this(file, DEFAULT_COMMANDS, DEFAULT_SECONDS);
+	}
+
+	/**
+	 * Constructs an autosave into a file.
+	 *
+	 * @param file
+	 *            The file where the game is saved.
+	 * @param everyCommands
+	 *            The number of commands between saves, 0 for not saving by
+	 *            commands.
+	 * @param everySeconds
+	 *            The number of seconds between saves, 0 for not saving by
+	 *            time.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null and the periods cannot be
+	 *             negative.
+	 */
+	public Autosave(File file, int everyCommands, int everySeconds) {
+		this(new FileSessionStore(), (file == null) ? null : file.getPath(),
+				everyCommands, everySeconds);
+	}
+
+	/**
+	 * Constructs an autosave into a storage of saved games.
+	 *
+	 * @param store
+	 *            The storage where the game is saved.
+	 * @param key
+	 *            The key of the game in the storage.
+	 * @param everyCommands
+	 *            The number of commands between saves, 0 for not saving by
+	 *            commands.
+	 * @param everySeconds
+	 *            The number of seconds between saves, 0 for not saving by
+	 *            time.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'store' and 'key' cannot be null and the
+	 *             periods cannot be negative.
+	 */
+	public Autosave(SessionStore store, String key, int everyCommands,
+			int everySeconds) {
+		if ((store == null) || (key == null) || (everyCommands < 0)
+				|| (everySeconds < 0))
+			throw new IllegalArgumentException();
+		this.store = store;
+		this.key = key;
+		this.everyCommands = everyCommands;
+		this.everyMillis = everySeconds * 1000L;
+		last = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sets the journal of the game, which is compacted after every save
+	 * written.
+	 *
+	 * @param journal
+	 *            The journal, or null if the game is not journaled.
+	 */
+	public synchronized void setJournal(CommandJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Reports an executed command of a game, saving it if a period has
+	 * elapsed. It is called by the engine, in the session thread.
+	 *
+	 * @param game
+	 *            The game.
+	 * @return true if a save was started.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public boolean commandExecuted(Game game) {
+		if (game == null)
+			throw new IllegalArgumentException();
+
+		commands++;
+		long now = System.currentTimeMillis();
+		if (((everyCommands > 0) && (commands >= everyCommands))
+				|| ((everyMillis > 0) && (now - last >= everyMillis))) {
+			save(game);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Saves a game in the background: its state is copied now and written
+	 * later. Games that cannot be saved in the compact format (see
+	 * SaveCodec.supports) are serialized whole now; if they cannot be
+	 * serialized, the failure is counted.
+	 *
+	 * @param game
+	 *            The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public void save(Game game) {
+		if (game == null)
+			throw new IllegalArgumentException();
+
+		commands = 0;
+		last = System.currentTimeMillis();
+		Pending save;
+		if (SaveCodec.supports(game))
+			save = new Pending(SaveCodec.snapshot(game, true));
+		else {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				SaveCodec.writeSerialized(game, out);
+				save = new Pending(out.toByteArray(), game
+						.getTotalNumberOfExecutedCommands());
+			} catch (IOException e) {
+				failed(e);
+				return;
+			}
+		}
+
+		synchronized (this) {
+			if (pending != null)
+				skipped++;
+			pending = save;
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		executor().execute(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * Saves a game and waits until every save has been written, when the
+	 * session ends.
+	 *
+	 * @param game
+	 *            The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 * @throws InterruptedException
+	 *             The thread was interrupted while waiting.
+	 */
+	public void close(Game game) throws InterruptedException {
+		save(game);
+		flush();
+	}
+
+	/**
+	 * Waits until every save has been written, without saving the game
+	 * again, when the game is replaced by another one (like a loaded game).
+	 *
+	 * @throws InterruptedException
+	 *             The thread was interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (this) {
+			while (scheduled)
+				wait();
+		}
+	}
+
+	/**
+	 * Writes the pending saves, in an I/O thread. An unexpected exception is
+	 * counted as a failure too, and the waiting threads are always woken up
+	 * (see flush)
+	 */
+	private void drain() {
+		boolean drained = false;
+		try {
+			while (true) {
+				Pending save;
+				synchronized (this) {
+					save = pending;
+					pending = null;
+					if (save == null) {
+						scheduled = false;
+						notifyAll();
+						drained = true;
+						return;
+					}
+				}
+				try {
+					store.put(key, save.encode());
+					CommandJournal journal;
+					synchronized (this) {
+						saves++;
+						journal = this.journal;
+					}
+					if (journal != null)
+						journal.compact(save.commands);
+				} catch (IOException e) {
+					failed(e);
+				} catch (RuntimeException e) {
+					failed(new IOException("Autosave failed: " + e));
+				}
+			}
+		} finally {
+			if (!drained) {
+				synchronized (this) {
+					scheduled = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts a save that could not be written
+	 */
+	private synchronized void failed(IOException e) {
+		failures++;
+		failure = e;
+	}
+
+	/**
+	 * Returns the storage where the game is saved.
+	 *
+	 * @return The storage.
+	 */
+	public SessionStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the key of the game in the storage.
+	 *
+	 * @return The key.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the number of saves written.
+	 *
+	 * @return The number of saves.
+	 */
+	public synchronized long getSaves() {
+		return saves;
+	}
+
+	/**
+	 * Returns the number of snapshots replaced by a newer one before being
+	 * written.
+	 *
+	 * @return The number of skipped snapshots.
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Returns the number of saves that could not be written.
+	 *
+	 * @return The number of failures.
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the last failure writing a save.
+	 *
+	 * @return The failure, null if there has been none.
+	 */
+	public synchronized IOException getLastFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the shared pool of I/O threads
+	 */
+	private static synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(IO_THREADS,
+					new ThreadFactory() {
+						private int count;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "autosave-io-"
+									+ (++count));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Represents a save not written yet: a snapshot, encoded when it is
+	 * written, or a game serialized whole, and the number of commands
+	 * executed in the game when it was saved
+	 */
+	private static class Pending {
+
+		private SaveCodec.Snapshot snapshot;
+		private byte[] serialized;
+		private long commands;
+
+		private Pending(SaveCodec.Snapshot snapshot) {
+			this.snapshot = snapshot;
+			commands = snapshot.getSummary().getCommands();
+		}
+
+		private Pending(byte[] serialized, long commands) {
+			this.serialized = serialized;
+			this.commands = commands;
+		}
+
+		/**
+		 * Returns the contents of the save
+		 */
+		private byte[] encode() throws IOException {
+			if (snapshot == null)
+				return serialized;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			snapshot.write(out);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * Autosave[key:saves/failures]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + key + ":"
+				+ getSaves() + "/" + getFailures() + "]";
+	}
+}
@@ -0,0 +1,177 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a stream written in blocks (see BlockOutputStream), validating every
+ * block before returning its data: a corrupt block, a truncated stream or a
+ * missing end mark is reported with an IOException as soon as it is reached.
+ */
+public class BlockInputStream extends FilterInputStream {
+
+	private DataInputStream data;
+	private int blockSize;
+	private byte[] block;
+	private int length;
+	private int position;
+	private int blocks;
+	private boolean ended;
+
+	/**
+	 * Constructs a stream reading the blocks of another one, reading its
+	 * header.
+	 *
+	 * @param in
+	 *            The underlying stream.
+	 * @throws IllegalArgumentException
+	 *             The argument 'in' cannot be null.
+	 * @throws IOException
+	 *             The header cannot be read or it is not valid.
+	 */
+	public BlockInputStream(InputStream in) throws IOException {
+		super(in);
+		if (in == null)
+			throw new IllegalArgumentException();
+		data = new DataInputStream(in);
+		try {
+			if (data.readInt() != BlockOutputStream.MAGIC)
+				throw new IOException("Not a stream in blocks");
+			short version = data.readShort();
+			if (version != BlockOutputStream.VERSION)
+				throw new IOException("Unsupported version of blocks: "
+						+ version);
+			data.readShort();
+			blockSize = data.readInt();
+		} catch (EOFException e) {
+			throw new IOException("Truncated stream in blocks: no header");
+		}
+		if (blockSize <= 0)
+			throw new IOException("Invalid block size: " + blockSize);
+		// Grown on demand: a corrupt header cannot allocate much
+		block = new byte[Math.min(blockSize,
+				BlockOutputStream.DEFAULT_BLOCK_SIZE)];
+	}
+
+	/**
+	 * Checks whether some leading bytes are the header of a stream in blocks.
+	 *
+	 * @param head
+	 *            The leading bytes.
+	 * @param length
+	 *            The number of valid bytes.
+	 * @return true if they start with the magic number of the streams in
+	 *         blocks.
+	 */
+	public static boolean isBlocks(byte[] head, int length) {
+		if ((head == null) || (length < 4))
+			return false;
+		int magic = ((head[0] & 0xFF) << 24) | ((head[1] & 0xFF) << 16)
+				| ((head[2] & 0xFF) << 8) | (head[3] & 0xFF);
+		return magic == BlockOutputStream.MAGIC;
+	}
+
+	/**
+	 * @see FilterInputStream#read()
+	 */
+	public int read() throws IOException {
+		if ((position == length) && !nextBlock())
+			return -1;
+		return block[position++] & 0xFF;
+	}
+
+	/**
+	 * @see FilterInputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if ((position == length) && !nextBlock())
+			return -1;
+		int n = Math.min(len, length - position);
+		System.arraycopy(block, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * @see FilterInputStream#skip(long)
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while ((skipped < n) && ((position < length) || nextBlock())) {
+			int k = (int) Math.min(n - skipped, length - position);
+			position += k;
+			skipped += k;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @see FilterInputStream#available()
+	 */
+	public int available() {
+		return length - position;
+	}
+
+	/**
+	 * Marks are not supported: the data is validated block by block.
+	 *
+	 * @see FilterInputStream#markSupported()
+	 */
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Reads and validates the next block, false at the end mark
+	 */
+	private boolean nextBlock() throws IOException {
+		if (ended)
+			return false;
+		try {
+			int size = data.readInt();
+			int checksum = data.readInt();
+			if (size == 0) {
+				if (checksum != blocks)
+					throw new IOException("Corrupt stream in blocks: "
+							+ checksum + " blocks expected, " + blocks
+							+ " read");
+				ended = true;
+				return false;
+			}
+			if ((size < 0) || (size > blockSize))
+				throw new IOException("Corrupt block " + blocks
+						+ ": invalid length " + size);
+			if (size > block.length)
+				block = new byte[size];
+			data.readFully(block, 0, size);
+			CRC32 crc = new CRC32();
+			crc.update(block, 0, size);
+			if ((int) crc.getValue() != checksum)
+				throw new IOException("Corrupt block " + blocks
+						+ ": checksum mismatch");
+			length = size;
+			position = 0;
+			blocks++;
+			return true;
+		} catch (EOFException e) {
+			throw new IOException("Truncated stream in blocks: after block "
+					+ blocks);
+		}
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * BlockInputStream[blocks]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + blocks + "]";
+	}
+}
@@ -0,0 +1,160 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a stream in blocks, each one with its length and its CRC32, so a
+ * reader (see BlockInputStream) rejects a corrupt or truncated stream at the
+ * first bad block, while it is read, instead of after consuming it whole.
+ * <p>
+ * Format: a header (magic number "P5BK", version, reserved and block size),
+ * the blocks (length, CRC32 and data) and an end mark (length 0 and number
+ * of blocks). The end mark is written when the stream is closed.
+ */
+public class BlockOutputStream extends FilterOutputStream {
+
+	/**
+	 * Magic number of the streams in blocks ("P5BK")
+	 */
+	public static final int MAGIC = 0x5035424B;
+
+	/**
+	 * Current version of the format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Default size of the blocks
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private DataOutputStream data;
+	private byte[] block;
+	private int length;
+	private int blocks;
+	private boolean closed;
+
+	/**
+	 * Constructs a stream in blocks of the default size.
+	 *
+	 * @param out
+	 *            The underlying stream.
+	 * @throws IllegalArgumentException
+	 *             The argument 'out' cannot be null.
+	 * @throws IOException
+	 *             The header cannot be written.
+	 */
+	public BlockOutputStream(OutputStream out) throws IOException {
+		this(out, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructs a stream in blocks.
+	 *
+	 * @param out
+	 *            The underlying stream.
+	 * @param blockSize
+	 *            The size of the blocks.
+	 * @throws IllegalArgumentException
+	 *             The argument 'out' cannot be null and the block size must be
+	 *             positive.
+	 * @throws IOException
+	 *             The header cannot be written.
+	 */
+	public BlockOutputStream(OutputStream out, int blockSize)
+			throws IOException {
+		super(out);
+		if ((out == null) || (blockSize <= 0))
+			throw new IllegalArgumentException();
+		data = new DataOutputStream(out);
+		block = new byte[blockSize];
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeShort(0);
+		data.writeInt(blockSize);
+	}
+
+	/**
+	 * @see FilterOutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		if (length == block.length)
+			writeBlock();
+		block[length++] = (byte) b;
+	}
+
+	/**
+	 * @see FilterOutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == block.length)
+				writeBlock();
+			int n = Math.min(len, block.length - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes the pending data as a block (a partial one) and flushes the
+	 * underlying stream.
+	 *
+	 * @see FilterOutputStream#flush()
+	 */
+	public void flush() throws IOException {
+		if (length > 0)
+			writeBlock();
+		data.flush();
+	}
+
+	/**
+	 * Writes the pending data and the end mark, and closes the underlying
+	 * stream.
+	 *
+	 * @see FilterOutputStream#close()
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (length > 0)
+				writeBlock();
+			data.writeInt(0);
+			data.writeInt(blocks);
+			data.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the pending data as a block
+	 */
+	private void writeBlock() throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, length);
+		data.writeInt(length);
+		data.writeInt((int) crc.getValue());
+		data.write(block, 0, length);
+		length = 0;
+		blocks++;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * BlockOutputStream[blocks]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + blocks + "]";
+	}
+}
@@ -0,0 +1,554 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import es.ucm.fdi.lps.p5.command.CommandType;
+
+/**
+ * Journals the commands executed in a game (write-ahead), so a session that
+ * ends abruptly can be recovered: its last snapshot (see Autosave) is loaded
+ * and the commands executed after it are executed again (see Engine.step).
+ * <p>
+ * Every executed command is appended as a record: its sequence number (the
+ * number of commands executed in the game after it), its type and the line
+ * entered by the player. The records are written and synced by a thread
+ * shared by every journal, once per window (group commit): the player never
+ * waits for the disk, and an abrupt end loses at most the commands of the
+ * last window. Every record has its own length and CRC32, so a torn record at
+ * the end of the journal is detected and ignored.
+ * <p>
+ * The journal starts with a header holding the magic number "P5CJ", the
+ * format version and the fingerprint of the definition of the game. When a
+ * new snapshot is written, the records it already includes are removed
+ * (compaction), so the journal only holds the tail of the session.
+ */
+public class CommandJournal {
+
+	/**
+	 * Magic number of the journals ("P5CJ")
+	 */
+	public static final int MAGIC = 0x5035434A;
+
+	/**
+	 * Current version of the journal format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Default group commit window, in milliseconds
+	 */
+	public static final int DEFAULT_WINDOW = 50;
+
+	/**
+	 * Shared thread that writes and syncs the journals, created on demand
+	 */
+	private static ScheduledExecutorService executor;
+
+	/**
+	 * The file of the journal and the group commit window
+	 */
+	private File file;
+	private int windowMillis;
+
+	/**
+	 * The fingerprint of the definition of the game
+	 */
+	private String fingerprint;
+
+	/**
+	 * The records appended and not written yet, and whether a write is
+	 * scheduled (guarded by this)
+	 */
+	private ByteArrayOutputStream pending;
+	private boolean scheduled;
+
+	/**
+	 * The stream where the records are appended, null if the journal is
+	 * not open (guarded by io, which is held while writing)
+	 */
+	private FileOutputStream out;
+	private final Object io = new Object();
+
+	/**
+	 * Statistics and the last failure
+	 */
+	private long records;
+	private long syncs;
+	private long failures;
+	private IOException failure;
+
+	/**
+	 * Constructs a journal, which is not open until a game is recovered
+	 * from it (see open).
+	 *
+	 * @param file
+	 *            The file of the journal.
+	 * @param windowMillis
+	 *            The group commit window, in milliseconds (0 for syncing
+	 *            every record as soon as possible).
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null and the window cannot be
+	 *             negative.
+	 */
+	public CommandJournal(File file, int windowMillis) {
+		if ((file == null) || (windowMillis < 0))
+			throw new IllegalArgumentException();
+		this.file = file;
+		this.windowMillis = windowMillis;
+		pending = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Reads the records of the journal which are not included in a game yet:
+	 * those executed after the game was saved. A missing journal, a journal
+	 * of another definition or a journal that does not continue the game
+	 * (its records do not follow the commands executed in the game) has no
+	 * records to recover.
+	 *
+	 * @param game
+	 *            The game, just loaded from its last snapshot.
+	 * @return The records, in order.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 * @throws IOException
+	 *             The journal cannot be read.
+	 */
+	public List<Entry> recover(Game game) throws IOException {
+		if (game == null)
+			throw new IllegalArgumentException();
+
+		List<Entry> entries = read(file, game.getFingerprint());
+		long executed = game.getTotalNumberOfExecutedCommands();
+		List<Entry> tail = new ArrayList<Entry>();
+		for (Entry entry : entries)
+			if (entry.getSequence() > executed)
+				tail.add(entry);
+		if (!tail.isEmpty() && (tail.get(0).getSequence() != executed + 1))
+			return Collections.emptyList();
+		return tail;
+	}
+
+	/**
+	 * Opens the journal for appending the commands of a game, replacing it
+	 * with the records already executed again in the game.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param recovered
+	 *            The records recovered and executed again in the game, with
+	 *            their new sequence numbers.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The journal cannot be written.
+	 */
+	public void open(Game game, List<Entry> recovered) throws IOException {
+		if ((game == null) || (recovered == null))
+			throw new IllegalArgumentException();
+
+		synchronized (io) {
+			fingerprint = (game.getFingerprint() != null) ? game
+					.getFingerprint() : "";
+			rewrite(recovered);
+		}
+	}
+
+	/**
+	 * Appends an executed command. It is written later, in the shared
+	 * thread, within the group commit window.
+	 *
+	 * @param sequence
+	 *            The number of commands executed in the game after it.
+	 * @param type
+	 *            The type of the command.
+	 * @param line
+	 *            The line entered by the player.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'type' and 'line' cannot be null.
+	 */
+	public void append(long sequence, CommandType type, String line) {
+		if ((type == null) || (line == null))
+			throw new IllegalArgumentException();
+
+		byte[] record = encode(new Entry(sequence, type, line));
+		synchronized (this) {
+			pending.write(record, 0, record.length);
+			records++;
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		executor().schedule(new Runnable() {
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					// Recorded by sync
+				}
+			}
+		}, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes and syncs the records appended, waiting for the disk.
+	 *
+	 * @throws IOException
+	 *             The records cannot be written.
+	 */
+	public void sync() throws IOException {
+		synchronized (io) {
+			byte[] batch;
+			synchronized (this) {
+				batch = pending.toByteArray();
+				pending.reset();
+				scheduled = false;
+			}
+			if ((batch.length == 0) || (out == null))
+				return;
+			try {
+				out.write(batch);
+				out.getFD().sync();
+				synchronized (this) {
+					syncs++;
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failures++;
+					failure = e;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Removes the records included in a snapshot already written, so the
+	 * journal only holds the commands executed after it.
+	 *
+	 * @param sequence
+	 *            The number of commands executed in the game when the
+	 *            snapshot was taken.
+	 * @throws IOException
+	 *             The journal cannot be rewritten.
+	 */
+	public void compact(long sequence) throws IOException {
+		synchronized (io) {
+			if (out == null)
+				return;
+			sync();
+			List<Entry> tail = new ArrayList<Entry>();
+			for (Entry entry : read(file, fingerprint))
+				if (entry.getSequence() > sequence)
+					tail.add(entry);
+			rewrite(tail);
+		}
+	}
+
+	/**
+	 * Writes and syncs the records appended and closes the journal.
+	 *
+	 * @throws IOException
+	 *             The records cannot be written.
+	 */
+	public void close() throws IOException {
+		synchronized (io) {
+			try {
+				sync();
+			} finally {
+				if (out != null)
+					out.close();
+				out = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the journal again with some records, into a temporary file which
+	 * is synced and renamed, and reopens it for appending (holding io)
+	 */
+	private void rewrite(List<Entry> entries) throws IOException {
+		if (out != null)
+			out.close();
+		out = null;
+		try {
+			replace(entries);
+		} finally {
+			// If it could not be replaced, the old journal goes on
+			out = new FileOutputStream(file, true);
+		}
+	}
+
+	/**
+	 * Replaces the journal with some records
+	 */
+	private void replace(List<Entry> entries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeShort(0);
+		data.writeUTF(fingerprint);
+		for (Entry entry : entries)
+			data.write(encode(entry));
+		data.flush();
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			FileOutputStream tempOut = new FileOutputStream(temp);
+			try {
+				bytes.writeTo(tempOut);
+				tempOut.getFD().sync();
+			} finally {
+				tempOut.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot write " + file.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Encodes a record: length and CRC32 of the payload, and payload
+	 */
+	private static byte[] encode(Entry entry) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(payload);
+			data.writeLong(entry.getSequence());
+			data.writeByte(entry.getType().ordinal());
+			data.writeUTF(entry.getLine());
+			data.flush();
+			CRC32 crc = new CRC32();
+			crc.update(payload.toByteArray());
+
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			data = new DataOutputStream(record);
+			data.writeInt(payload.size());
+			data.writeInt((int) crc.getValue());
+			payload.writeTo(data);
+			data.flush();
+			return record.toByteArray();
+		} catch (IOException e) {
+			// A byte array stream cannot fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the valid records of a journal of a definition, until its end or
+	 * the first torn or corrupt record
+	 */
+	private static List<Entry> read(File file, String fingerprint)
+			throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		if (!file.isFile())
+			return entries;
+		InputStream in = new FileInputStream(file);
+		byte[] journal;
+		try {
+			journal = SaveCodec.readFully(in);
+		} finally {
+			in.close();
+		}
+
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+				journal));
+		CommandType[] types = CommandType.values();
+		try {
+			if ((data.readInt() != MAGIC) || (data.readShort() != VERSION))
+				return entries;
+			data.readShort();
+			String journalFingerprint = data.readUTF();
+			if (!journalFingerprint.equals((fingerprint != null) ? fingerprint
+					: ""))
+				return entries;
+			while (data.available() > 0) {
+				int length = data.readInt();
+				int checksum = data.readInt();
+				if ((length < 0) || (length > data.available()))
+					break;
+				byte[] payload = new byte[length];
+				data.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum)
+					break;
+				DataInputStream record = new DataInputStream(
+						new ByteArrayInputStream(payload));
+				long sequence = record.readLong();
+				int type = record.readUnsignedByte();
+				if (type >= types.length)
+					break;
+				entries.add(new Entry(sequence, types[type], record.readUTF()));
+			}
+		} catch (EOFException e) {
+			// Torn record at the end
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the file of the journal.
+	 *
+	 * @return The file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of records appended.
+	 *
+	 * @return The number of records.
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Returns the number of syncs, each one of a group of records.
+	 *
+	 * @return The number of syncs.
+	 */
+	public synchronized long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * Returns the number of groups of records that could not be written.
+	 *
+	 * @return The number of failures.
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the last failure writing the records.
+	 *
+	 * @return The failure, null if there has been none.
+	 */
+	public synchronized IOException getLastFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the shared thread that writes and syncs the journals
+	 */
+	private static synchronized ScheduledExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "journal-sync");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * CommandJournal[file:records/syncs]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + file + ":"
+				+ getRecords() + "/" + getSyncs() + "]";
+	}
+
+	/**
+	 * Represents a record of the journal: an executed command.
+	 */
+	public static class Entry {
+
+		private long sequence;
+		private CommandType type;
+		private String line;
+
+		/**
+		 * Constructs a record.
+		 *
+		 * @param sequence
+		 *            The number of commands executed in the game after it.
+		 * @param type
+		 *            The type of the command.
+		 * @param line
+		 *            The line entered by the player.
+		 * @throws IllegalArgumentException
+		 *             The arguments 'type' and 'line' cannot be null.
+		 */
+		public Entry(long sequence, CommandType type, String line) {
+			if ((type == null) || (line == null))
+				throw new IllegalArgumentException();
+			this.sequence = sequence;
+			this.type = type;
+			this.line = line;
+		}
+
+		/**
+		 * Returns the number of commands executed in the game after this
+		 * one.
+		 *
+		 * @return The sequence number.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns the type of the command.
+		 *
+		 * @return The type.
+		 */
+		public CommandType getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the line entered by the player.
+		 *
+		 * @return The line.
+		 */
+		public String getLine() {
+			return line;
+		}
+
+		/**
+		 * Returns a String representation for this object:
+		 * Entry[sequence:type:line]. This is useful for debugging purposes.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			return this.getClass().getSimpleName() + "[" + sequence + ":"
+					+ type + ":" + line + "]";
+		}
+	}
+}
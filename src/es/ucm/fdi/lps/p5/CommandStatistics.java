@@ -0,0 +1,323 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.Serializable;
+
+import es.ucm.fdi.lps.p5.command.CommandType;
+
+/**
+ * Represents the statistics of the commands executed during the game: the
+ * number of executions and a latency histogram for every type of command. The
+ * counters are plain arrays indexed by the ordinal of the command type, so
+ * recording an execution does not box nor look up anything.
+ */
+public class CommandStatistics implements Serializable {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of buckets of every latency histogram. Bucket 0 holds the
+	 * executions faster than one microsecond and bucket i (i > 0) holds the
+	 * executions between 2^(i-1) and 2^i microseconds. The last bucket holds
+	 * every slower execution.
+	 */
+	public static final int LATENCY_BUCKETS = 32;
+
+	/**
+	 * Number of executions for each command type
+	 */
+	private long[] executions;
+
+	/**
+	 * Accumulated execution time (in nanoseconds) for each command type
+	 */
+	private long[] totalLatency;
+
+	/**
+	 * Latency histogram for each command type
+	 */
+	private long[][] latencyHistogram;
+
+	/**
+	 * Total number of executions
+	 */
+	private long totalExecutions;
+
+	/**
+	 * Constructs a new, empty command statistics.
+	 */
+	public CommandStatistics() {
+		int types = CommandType.values().length;
+		executions = new long[types];
+		totalLatency = new long[types];
+		latencyHistogram = new long[types][LATENCY_BUCKETS];
+	}
+
+	/**
+	 * Records an execution of a command.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @param latency
+	 *            The execution time in nanoseconds.
+	 * @throws IllegalArgumentException
+	 *             The argument 'type' cannot be null.
+	 */
+	public void record(CommandType type, long latency) {
+		if (type == null)
+			throw new IllegalArgumentException();
+
+		int index = type.ordinal();
+		executions[index]++;
+		totalLatency[index] += latency;
+		latencyHistogram[index][bucketOf(latency)]++;
+		totalExecutions++;
+	}
+
+	/**
+	 * Reports the total number of recorded executions.
+	 * 
+	 * @return The total number of executions.
+	 */
+	public long getTotalExecutions() {
+		return totalExecutions;
+	}
+
+	/**
+	 * Reports the number of recorded executions of a type of command.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @return The number of executions.
+	 * @throws IllegalArgumentException
+	 *             The argument 'type' cannot be null.
+	 */
+	public long getExecutions(CommandType type) {
+		if (type == null)
+			throw new IllegalArgumentException();
+		return executions[type.ordinal()];
+	}
+
+	/**
+	 * Reports the accumulated execution time of a type of command.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @return The execution time in nanoseconds.
+	 */
+	long getTotalLatency(CommandType type) {
+		return totalLatency[type.ordinal()];
+	}
+
+	/**
+	 * Reports the latency histogram of a type of command.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @return A copy of the histogram.
+	 */
+	long[] getLatencyHistogram(CommandType type) {
+		return latencyHistogram[type.ordinal()].clone();
+	}
+
+	/**
+	 * Replaces the recorded executions of a type of command, when a saved
+	 * game is restored (see SaveCodec).
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @param count
+	 *            The number of executions.
+	 * @param latency
+	 *            The accumulated execution time in nanoseconds.
+	 * @param histogram
+	 *            The latency histogram (LATENCY_BUCKETS buckets).
+	 */
+	void restore(CommandType type, long count, long latency, long[] histogram) {
+		int index = type.ordinal();
+		totalExecutions += count - executions[index];
+		executions[index] = count;
+		totalLatency[index] = latency;
+		System.arraycopy(histogram, 0, latencyHistogram[index], 0,
+				LATENCY_BUCKETS);
+	}
+
+	/**
+	 * Clears all the recorded executions.
+	 */
+	public void clear() {
+		for (int i = 0; i < executions.length; i++) {
+			executions[i] = 0;
+			totalLatency[i] = 0;
+			for (int j = 0; j < LATENCY_BUCKETS; j++)
+				latencyHistogram[i][j] = 0;
+		}
+		totalExecutions = 0;
+	}
+
+	/**
+	 * Takes an immutable copy of the current statistics.
+	 * 
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Returns the histogram bucket of a given latency.
+	 * 
+	 * @param latency
+	 *            The latency in nanoseconds.
+	 * @return The bucket index.
+	 */
+	private static int bucketOf(long latency) {
+		long micros = latency / 1000;
+		if (micros <= 0)
+			return 0;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return (bucket < LATENCY_BUCKETS) ? bucket : LATENCY_BUCKETS - 1;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * CommandStatistics[total]. This is useful for debugging purposes.
+	 * 
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + totalExecutions + "]";
+	}
+
+	/**
+	 * Represents an immutable copy of the command statistics at a given moment.
+	 * It is safe to keep it and render it while the game goes on.
+	 */
+	public static class Snapshot implements Serializable {
+
+		/**
+		 * 
+		 */
+		private static final long serialVersionUID = 1L;
+
+		private final long[] executions;
+		private final long[] totalLatency;
+		private final long[][] latencyHistogram;
+		private final long totalExecutions;
+
+		/**
+		 * Copies the given statistics
+		 * 
+		 * @param statistics
+		 *            The statistics.
+		 */
+		private Snapshot(CommandStatistics statistics) {
+			executions = statistics.executions.clone();
+			totalLatency = statistics.totalLatency.clone();
+			latencyHistogram = new long[executions.length][];
+			for (int i = 0; i < executions.length; i++)
+				latencyHistogram[i] = statistics.latencyHistogram[i].clone();
+			totalExecutions = statistics.totalExecutions;
+		}
+
+		/**
+		 * Reports the total number of executions.
+		 * 
+		 * @return The total number of executions.
+		 */
+		public long getTotalExecutions() {
+			return totalExecutions;
+		}
+
+		/**
+		 * Reports the number of executions of a type of command.
+		 * 
+		 * @param type
+		 *            The command type.
+		 * @return The number of executions.
+		 */
+		public long getExecutions(CommandType type) {
+			if (type == null)
+				throw new IllegalArgumentException();
+			return executions[type.ordinal()];
+		}
+
+		/**
+		 * Calculates the execution percentage of a type of command.
+		 * 
+		 * @param type
+		 *            The command type.
+		 * @return The percentage, 0 if there are no executions.
+		 */
+		public int getPercentage(CommandType type) {
+			if (totalExecutions == 0)
+				return 0;
+			return (int) ((getExecutions(type) * 100) / totalExecutions);
+		}
+
+		/**
+		 * Calculates the mean execution time of a type of command.
+		 * 
+		 * @param type
+		 *            The command type.
+		 * @return The mean latency in microseconds, 0 if there are no
+		 *         executions.
+		 */
+		public long getMeanLatency(CommandType type) {
+			long count = getExecutions(type);
+			if (count == 0)
+				return 0;
+			return (totalLatency[type.ordinal()] / count) / 1000;
+		}
+
+		/**
+		 * Estimates a latency percentile of a type of command from its
+		 * histogram. The result is the upper bound of the bucket that contains
+		 * the percentile.
+		 * 
+		 * @param type
+		 *            The command type.
+		 * @param percentile
+		 *            The percentile, between 0 and 100.
+		 * @return The latency in microseconds, 0 if there are no executions.
+		 * @throws IllegalArgumentException
+		 *             The percentile must be between 0 and 100.
+		 */
+		public long getLatencyPercentile(CommandType type, int percentile) {
+			if ((percentile < 0) || (percentile > 100))
+				throw new IllegalArgumentException();
+			long count = getExecutions(type);
+			if (count == 0)
+				return 0;
+
+			long rank = (count * percentile + 99) / 100;
+			long seen = 0;
+			long[] histogram = latencyHistogram[type.ordinal()];
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if ((seen >= rank) && (seen > 0))
+					return 1L << i;
+			}
+			return 1L << (histogram.length - 1);
+		}
+
+		/**
+		 * Returns the number of executions in a bucket of the latency
+		 * histogram of a type of command.
+		 * 
+		 * @param type
+		 *            The command type.
+		 * @param bucket
+		 *            The bucket index.
+		 * @return The number of executions.
+		 * @see CommandStatistics#LATENCY_BUCKETS
+		 */
+		public long getLatencyBucket(CommandType type, int bucket) {
+			if ((bucket < 0) || (bucket >= LATENCY_BUCKETS))
+				throw new IllegalArgumentException();
+			return latencyHistogram[type.ordinal()][bucket];
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Represents the fingerprints of the XML game definitions that have already
+ * been validated against the game DTD without errors. The XML loader skips
+ * the DTD validation of trusted definitions. The fingerprints can be kept in
+ * a file (one per line), so they survive restarts; new fingerprints are
+ * appended to it.
+ */
+public class DefinitionTrustStore {
+
+	/**
+	 * The file of the store, null if it is only kept in memory
+	 */
+	private File file;
+
+	/**
+	 * The trusted fingerprints
+	 */
+	private Set<String> fingerprints;
+
+	/**
+	 * Constructs an empty store kept in memory.
+	 */
+	public DefinitionTrustStore() {
+		fingerprints = new HashSet<String>();
+	}
+
+	/**
+	 * Constructs a store kept in a file, reading the fingerprints already in
+	 * it. The file is created when the first fingerprint is added.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 * @throws IOException
+	 *             The file exists but cannot be read.
+	 */
+	public DefinitionTrustStore(File file) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException();
+		this.file = file;
+		fingerprints = new HashSet<String>();
+
+		if (file.exists()) {
+			BufferedReader r = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					line = line.trim();
+					if ((line.length() > 0) && !line.startsWith("#"))
+						fingerprints.add(line);
+				}
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a definition has already been validated.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 * @return true if it is trusted; false otherwise.
+	 */
+	public synchronized boolean isTrusted(String fingerprint) {
+		return (fingerprint != null) && fingerprints.contains(fingerprint);
+	}
+
+	/**
+	 * Trusts a definition that has been validated without errors.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 * @throws IllegalArgumentException
+	 *             The argument 'fingerprint' cannot be null.
+	 * @throws IOException
+	 *             The fingerprint cannot be written into the file.
+	 */
+	public synchronized void trust(String fingerprint) throws IOException {
+		if (fingerprint == null)
+			throw new IllegalArgumentException();
+
+		if (fingerprints.add(fingerprint) && (file != null)) {
+			Writer w = new FileWriter(file, true);
+			try {
+				w.write(fingerprint);
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of trusted definitions.
+	 *
+	 * @return The number of fingerprints.
+	 */
+	public synchronized int size() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * DefinitionTrustStore[size]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + size() + "]";
+	}
+}
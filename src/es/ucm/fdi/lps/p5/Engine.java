@@ -1,12 +1,19 @@
 package es.ucm.fdi.lps.p5;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
 
 import es.ucm.fdi.lps.p5.command.Command;
+import es.ucm.fdi.lps.p5.command.CommandType;
+import es.ucm.fdi.lps.p5.command.LoadCommand;
 
 /**
  * Represents the game engine that controls the execution of the game since the
@@ -173,6 +180,70 @@ public class Engine {
 	private static final String FLAG_SHOWCONNECTIONSSTATE = "flag.showConnectionsState";
 	private boolean flagShowConnectionsState;
 
+	/**
+	 * Limit of items shown for a location (the name of the property). Longer
+	 * lists are paginated: only the first page is shown, followed by a
+	 * "more..." line with the number of the items not shown (the next pages
+	 * are shown by the Look command, e.g. "look 2"). The events are always
+	 * shown in full.
+	 * <ul>
+	 * <li>This property is called "limit.listPageSize" and its default value
+	 * is "0" (no limit). Negative values mean no limit too.</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_LISTPAGESIZE = "limit.listPageSize";
+	private int limitListPageSize;
+
+	/**
+	 * Number of executed commands between autosaves (the name of the
+	 * property).
+	 * <ul>
+	 * <li>This property is called "limit.autosaveCommands" and its default
+	 * value is "10" (0 for not saving by commands).</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_AUTOSAVECOMMANDS = "limit.autosaveCommands";
+	private int limitAutosaveCommands;
+
+	/**
+	 * Number of seconds between autosaves (the name of the property).
+	 * <ul>
+	 * <li>This property is called "limit.autosaveSeconds" and its default
+	 * value is "60" (0 for not saving by time).</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_AUTOSAVESECONDS = "limit.autosaveSeconds";
+	private int limitAutosaveSeconds;
+
+	/**
+	 * Group commit window of the journal, in milliseconds (the name of the
+	 * property).
+	 * <ul>
+	 * <li>This property is called "limit.journalWindow" and its default value
+	 * is "50" (0 for syncing every command as soon as possible).</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_JOURNALWINDOW = "limit.journalWindow";
+	private int limitJournalWindow;
+
+	/**
+	 * The file where the game is autosaved, null if it is not autosaved
+	 */
+	private File autosaveFile;
+
+	/**
+	 * The file where the game is journaled, null if it is not journaled
+	 */
+	private File journalFile;
+
+
+	/**
+	 * The autosave and the journal of the running game, null if it is not
+	 * autosaved or journaled
+	 */
+	private Autosave autosave;
+	private CommandJournal journal;
+
 	/**
 	 * A reference to the game that created the Interpreter
 	 */
@@ -195,6 +266,11 @@ public class Engine {
 	 */
 	private PrintStream ps;
 
+	/**
+	 * Renderer for the lists written in the print stream
+	 */
+	private Renderer renderer;
+
 	/**
 	 * The parser
 	 */
@@ -419,6 +495,11 @@ public class Engine {
 		limitCommandHistorySize = 1;
 		flagShowConnections = true;
 		flagShowConnectionsState = true;
+		limitListPageSize = 0;
+		limitAutosaveCommands = Autosave.DEFAULT_COMMANDS;
+		limitAutosaveSeconds = Autosave.DEFAULT_SECONDS;
+		limitJournalWindow = CommandJournal.DEFAULT_WINDOW;
+		renderer = new Renderer(ps, limitListPageSize);
 	}
 
 	/**
@@ -478,7 +559,21 @@ public class Engine {
 			else if (obj.toString().equalsIgnoreCase(FLAG_SHOWCONNECTIONSSTATE))
 				flagShowConnectionsState = Boolean.parseBoolean(config
 						.getProperty(obj.toString()));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_LISTPAGESIZE))
+				// A negative size means no limit, like the default one
+				limitListPageSize = Math.max(0, Integer.parseInt(config
+						.getProperty(obj.toString())));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_AUTOSAVECOMMANDS))
+				limitAutosaveCommands = Integer.parseInt(config
+						.getProperty(obj.toString()));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_AUTOSAVESECONDS))
+				limitAutosaveSeconds = Integer.parseInt(config
+						.getProperty(obj.toString()));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_JOURNALWINDOW))
+				limitJournalWindow = Integer.parseInt(config
+						.getProperty(obj.toString()));
 		}
+		renderer = new Renderer(ps, limitListPageSize);
 	}
 
 	/**
@@ -511,10 +606,48 @@ public class Engine {
 					"Error: IllegalArgumentException");
 		}
 		ps = new PrintStream(output);
+		renderer = new Renderer(ps, limitListPageSize);
+	}
+
+	/**
+	 * Sets the file where the game is saved periodically while it runs (see
+	 * Autosave), in the background. Its path is the key of the game in the
+	 * storage of saved games (see GameLoader.getSessionStore).
+	 * 
+	 * @param file
+	 *            The file, or null for not autosaving the game.
+	 */
+	public void setAutosaveFile(File file) {
+		autosaveFile = file;
 	}
 
 	/**
-	 * Print the game events in the output
+	 * Sets the file where the commands executed are journaled while the game
+	 * runs (see CommandJournal). When the game starts to run, the commands
+	 * journaled after it was saved are executed again, without reporting
+	 * them, so a game that ended abruptly is recovered from its last
+	 * snapshot.
+	 * 
+	 * @param file
+	 *            The file, or null for not journaling the game.
+	 */
+	public void setJournalFile(File file) {
+		journalFile = file;
+	}
+
+	/**
+	 * Returns the running game, which is replaced by the games loaded by the
+	 * Load command.
+	 * 
+	 * @return The game.
+	 */
+	public Game getGame() {
+		return game;
+	}
+
+	/**
+	 * Print the player score and the game over message after the events that
+	 * have ended the game
 	 */
 	private void printEvents() {
 		if (flagShowItemsValue) {
@@ -541,14 +674,41 @@ public class Engine {
 	 * in the game after the command execution) to the output stream.</li>
 	 * </ol>
 	 * At the end of the game the player score can be shown (depending on the
-	 * configuration).
+	 * configuration). A journaled game is recovered from its journal before
+	 * anything is shown (see setJournalFile).
 	 */
 	public void run() {
-		Command command = null;
-		boolean executed = false;
 		game.clearExecutedCommands();
 		game.clearEvents();
+		autosave = (autosaveFile == null) ? null : new Autosave(
+				GameLoader.getSessionStore(), autosaveFile.getPath(),
+				limitAutosaveCommands, limitAutosaveSeconds);
+		if (journalFile != null)
+			recover();
+
+		introduce();
+
+		while (!game.isEnded()) {
+			ps.println(msgPrompt);
+			step(parser.nextLine());
+		}
+
+		if (autosave != null) {
+			try {
+				autosave.close(game);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeJournal();
+	}
 
+	/**
+	 * Shows the description of the engine, the description of the game and
+	 * the initial location (depending on the configuration), when the game
+	 * starts to run or it is loaded
+	 */
+	private void introduce() {
 		if (flagShowEngineInfo) {
 			ps.println(engineInfo);
 			ps.println();
@@ -559,51 +719,180 @@ public class Engine {
 			ps.println();
 		}
 
-		if (flagAutodescribeFirstLocation) {
-			ps.println(game.reportLocationName());
-			ps.println(game.reportLocationDescription());
-			ps.println();
+		ps.print(game.reportLocationView(new LocationView(true,
+				flagAutodescribeFirstLocation, flagShowLocationItems,
+				flagShowItemsValue, flagShowItemsWeight, flagShowConnections,
+				flagShowConnectionsState, limitListPageSize, msgLocationWithItems,
+				msgLocationWithoutItems)));
+	}
+
+	/**
+	 * Executes a line of the player input, as a step of the main loop: the
+	 * command is parsed, executed and recorded (in the history of the game,
+	 * its autosave and its journal), and its result and the events that have
+	 * ocurred are reported to the output stream.
+	 * 
+	 * @param line
+	 *            The line.
+	 * @return true if a command was executed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'line' cannot be null.
+	 */
+	public boolean step(String line) {
+		return execute(parser.parse(line), line);
+	}
+
+	/**
+	 * Executes a parsed command (null if the line was not a valid command)
+	 * and reports its result
+	 */
+	private boolean execute(Command command, String line) {
+		if (command == null) {
+			ps.println(msgUnknownCommand + LINE_SEPARATOR);
+			return false;
 		}
 
-		if ((game.reportAllLocationItems().isEmpty())
-				&& (flagShowLocationItems)) {
-			ps.println(msgLocationWithoutItems);
+		long start = System.nanoTime();
+		boolean executed = command.execute();
+		if (executed) {
+			record(command, System.nanoTime() - start);
+			if (command.getType() == CommandType.LOAD)
+				replace(((LoadCommand) command).getLoadedGame());
+			else {
+				if (journal != null)
+					journal.append(game.getTotalNumberOfExecutedCommands(),
+							command.getType(), line);
+				if (autosave != null)
+					autosave.commandExecuted(game);
+			}
+		}
+		if (command.hasResult())
+			ps.println(command.getResult());
+		if (game.hasEvents()) {
+			renderer.renderEvents(game.getEvents());
 			ps.println();
-		} else if ((!game.reportAllLocationItems().isEmpty())
-				&& (flagShowLocationItems)) {
-			ps.println(msgLocationWithItems
-					+ game.setToString(game.reportAllLocationItems(),
-							flagShowItemsValue, flagShowItemsWeight));
+			game.clearEvents();
+			if (game.isEnded())
+				printEvents();
 		}
+		return executed;
+	}
 
-		if (flagShowConnections) {
-			ps.println(game.getCurrentLocation().showConnections(
-					flagShowConnectionsState));
+	/**
+	 * Records an executed command in the statistics and the history of the
+	 * game
+	 */
+	private void record(Command command, long latency) {
+		game.commandCount(command, latency);
+		if (game.getNumberOfExecutedCommands() < limitCommandHistorySize) {
+			game.addExecutedCommand(command);
+		} else {
+			game.removeOldestExecutedCommand();
+			game.addExecutedCommand(command);
 		}
+	}
 
-		while (!game.isEnded()) {
-			ps.println(msgPrompt);
-			command = parser.parseNextCommand();
-
-			if (command != null) {
-				executed = command.execute();
-				if (executed) {
-					game.commandCount(command);
-					if (game.getNumberOfExecutedCommands() < limitCommandHistorySize) {
-						game.addExecutedCommand(command);
-					} else {
-						game.removeOldestExecutedCommand();
-						game.addExecutedCommand(command);
-					}
-				}
-				if (command.hasResult())
-					ps.println(command.getResult());
-				if (game.hasEvents()) {
-					ps.println(game.reportEvents());
-					printEvents();
-				}
-			} else
-				ps.println(msgUnknownCommand + LINE_SEPARATOR);
+	/**
+	 * Recovers the game from its journal, executing again (without reporting
+	 * them) the commands journaled after the game was saved, and opens the
+	 * journal for the new commands. Saved games are not written again (they
+	 * could replace newer ones), the Save commands are only recorded. The
+	 * game goes on without journal if it cannot be written.
+	 */
+	private void recover() {
+		CommandJournal recovering = new CommandJournal(journalFile,
+				limitJournalWindow);
+		List<CommandJournal.Entry> recovered = new ArrayList<CommandJournal.Entry>();
+		PrintStream output = ps;
+		Renderer outputRenderer = renderer;
+		Autosave gameAutosave = autosave;
+		ps = new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		});
+		renderer = new Renderer(ps, limitListPageSize);
+		autosave = null;
+		try {
+			for (CommandJournal.Entry entry : recovering.recover(game)) {
+				Command command = parser.parse(entry.getLine());
+				// A changed configuration parses the lines differently
+				if (game.isEnded() || (command == null)
+						|| (command.getType() != entry.getType()))
+					break;
+				if (command.getType() == CommandType.SAVE)
+					record(command, 0);
+				else if (!execute(command, entry.getLine()))
+					continue;
+				recovered.add(new CommandJournal.Entry(game
+						.getTotalNumberOfExecutedCommands(), entry.getType(),
+						entry.getLine()));
+			}
+			recovering.open(game, recovered);
+			journal = recovering;
+		} catch (IOException e) {
+			journal = null;
+		} finally {
+			ps = output;
+			renderer = outputRenderer;
+			autosave = gameAutosave;
+			game.clearEvents();
+		}
+		if (autosave != null)
+			autosave.setJournal(journal);
+	}
+
+	/**
+	 * Replaces the running game by a game loaded by the Load command, which
+	 * goes on reading the same input. The pending saves of the replaced game
+	 * are written first, the journal is rewritten without commands for the
+	 * loaded game and the loaded game is autosaved at once, so a recovery
+	 * starts from it and not from the game it replaced. The game goes on
+	 * without journal if it cannot be written.
+	 */
+	private void replace(Game loaded) {
+		if (autosave != null) {
+			autosave.setJournal(null);
+			try {
+				autosave.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeJournal();
+
+		game = loaded;
+		parser.setGame(loaded);
+		game.clearExecutedCommands();
+		game.clearEvents();
+		if (journalFile != null) {
+			CommandJournal rebased = new CommandJournal(journalFile,
+					limitJournalWindow);
+			try {
+				rebased.open(game, Collections
+						.<CommandJournal.Entry> emptyList());
+				journal = rebased;
+			} catch (IOException e) {
+				journal = null;
+			}
+		}
+		if (autosave != null) {
+			autosave.setJournal(journal);
+			autosave.save(game);
+		}
+		introduce();
+	}
+
+	/**
+	 * Writes the commands journaled and closes the journal
+	 */
+	private void closeJournal() {
+		if (journal == null)
+			return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			// Recorded by the journal
 		}
+		journal = null;
 	}
 }
@@ -0,0 +1,156 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Stores every value in its own file, named after its key: a file path
+ * (relative to the working directory) or a file name of a directory. Every
+ * value is written into a temporary file of the same directory, synced and
+ * renamed, so a stored file is always complete.
+ */
+public class FileSessionStore implements SessionStore {
+
+	/**
+	 * The directory of the files, null if the keys are file paths
+	 */
+	private File directory;
+
+	/**
+	 * Constructs a storage where the keys are file paths.
+	 */
+	public FileSessionStore() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a storage where the keys are file names of a directory.
+	 *
+	 * @param directory
+	 *            The directory, created if it does not exist, or null if the
+	 *            keys are file paths.
+	 */
+	public FileSessionStore(File directory) {
+		this.directory = directory;
+		if (directory != null)
+			directory.mkdirs();
+	}
+
+	/**
+	 * @see SessionStore#put(String, byte[])
+	 */
+	public void put(String key, byte[] value) throws IOException {
+		if ((key == null) || (value == null))
+			throw new IllegalArgumentException();
+
+		File file = file(key);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory())
+			throw new FileNotFoundException(file.getPath());
+		// The prefix of a temporary file has 3 characters at least
+		String prefix = file.getName();
+		while (prefix.length() < 3)
+			prefix += "_";
+		File temp = File.createTempFile(prefix, ".tmp", parent);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(value);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot write " + file.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @see SessionStore#get(String)
+	 */
+	public byte[] get(String key) throws IOException {
+		File file = file(key);
+		if (!file.isFile())
+			return null;
+		InputStream in = new FileInputStream(file);
+		try {
+			return SaveCodec.readFully(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see SessionStore#contains(String)
+	 */
+	public boolean contains(String key) {
+		return file(key).isFile();
+	}
+
+	/**
+	 * @see SessionStore#remove(String)
+	 */
+	public boolean remove(String key) throws IOException {
+		File file = file(key);
+		if (!file.isFile())
+			return false;
+		if (!file.delete())
+			throw new IOException("Cannot remove " + file.getPath());
+		return true;
+	}
+
+	/**
+	 * Returns the names of the files of the directory (none if the keys are
+	 * file paths).
+	 *
+	 * @see SessionStore#keys()
+	 */
+	public Set<String> keys() throws IOException {
+		Set<String> keys = new TreeSet<String>();
+		if (directory == null)
+			return keys;
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + directory.getPath());
+		for (File file : files)
+			if (file.isFile())
+				keys.add(file.getName());
+		return keys;
+	}
+
+	/**
+	 * @see SessionStore#close()
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Returns the file of a key
+	 */
+	private File file(String key) {
+		if (key == null)
+			throw new IllegalArgumentException();
+		return (directory == null) ? new File(key) : new File(directory, key);
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * FileSessionStore[directory]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + directory + "]";
+	}
+}
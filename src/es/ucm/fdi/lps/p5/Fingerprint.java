@@ -0,0 +1,71 @@
+package es.ucm.fdi.lps.p5;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the fingerprint of a game definition: the SHA-1 digest of its
+ * bytes, as a lowercase hexadecimal string. Two definitions with the same
+ * fingerprint are considered the same definition.
+ */
+public class Fingerprint {
+
+	/**
+	 * The digest algorithm
+	 */
+	public static final String ALGORITHM = "SHA-1";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private Fingerprint() {
+	}
+
+	/**
+	 * Computes the fingerprint of some bytes.
+	 *
+	 * @param data
+	 *            The bytes.
+	 * @return The fingerprint.
+	 * @throws IllegalArgumentException
+	 *             The argument 'data' cannot be null.
+	 */
+	public static String of(byte[] data) {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		return toHex(digest().digest(data));
+	}
+
+	/**
+	 * Returns a new digest of the fingerprint algorithm.
+	 *
+	 * @return The digest.
+	 */
+	public static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform implements SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Converts a digest into a fingerprint.
+	 *
+	 * @param digest
+	 *            The digest bytes.
+	 * @return The lowercase hexadecimal string.
+	 */
+	public static String toHex(byte[] digest) {
+		char[] out = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			out[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+			out[2 * i + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(out);
+	}
+}
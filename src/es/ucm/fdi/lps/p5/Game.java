@@ -1,42 +1,37 @@
 package es.ucm.fdi.lps.p5;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.io.Serializable;
-import java.io.StreamTokenizer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
-import es.ucm.fdi.lps.p5.command.CloseCommand;
 import es.ucm.fdi.lps.p5.command.Command;
-import es.ucm.fdi.lps.p5.command.DropCommand;
-import es.ucm.fdi.lps.p5.command.ExamineCommand;
-import es.ucm.fdi.lps.p5.command.GoCommand;
-import es.ucm.fdi.lps.p5.command.HelpCommand;
-import es.ucm.fdi.lps.p5.command.LookCommand;
-import es.ucm.fdi.lps.p5.command.OpenCommand;
-import es.ucm.fdi.lps.p5.command.QuitCommand;
-import es.ucm.fdi.lps.p5.command.TakeCommand;
-import es.ucm.fdi.lps.p5.command.UndoCommand;
-import es.ucm.fdi.lps.p5.exception.InvalidBoundedItemException;
+import es.ucm.fdi.lps.p5.command.CommandType;
 import es.ucm.fdi.lps.p5.exception.InvalidBoundedObstacleException;
 import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+import es.ucm.fdi.lps.p5.exception.InvalidTriggerException;
 import es.ucm.fdi.lps.p5.exception.ItemAlreadyInRepositoryException;
 import es.ucm.fdi.lps.p5.exception.ItemNotInRepositoryException;
 import es.ucm.fdi.lps.p5.exception.NoConnectedLocationException;
@@ -61,6 +56,19 @@ public class Game implements Serializable {
 	private static final String LINE_SEPARATOR = System
 			.getProperty("line.separator");
 
+	/**
+	 * Keywords of the text game definitions, compared by identity with the
+	 * words returned by the lexer
+	 */
+	private static final String KEYWORD_GAME = "game";
+	private static final String KEYWORD_LOCATION = "location";
+	private static final String KEYWORD_ITEM = "item";
+	private static final String KEYWORD_OBSTACLE = "obstacle";
+	private static final String KEYWORD_ITEM_REF = "itemRef";
+	private static final String KEYWORD_OBSTACLE_REF = "obsRef";
+	private static final String KEYWORD_TRIGGER = "trigger";
+	private static final String KEYWORD_HELP = "help";
+
 	/**
 	 * Game title
 	 */
@@ -142,9 +150,62 @@ public class Game implements Serializable {
 	private List<Obstacle> obstacleList;
 
 	/**
-	 * Maps the command name with the number of executions of that command
+	 * Number of executions and latencies of every type of command
+	 */
+	private CommandStatistics commandStatistics;
+
+	/**
+	 * The triggers of the game, indexed by the element they are subscribed to
+	 */
+	private TriggerEngine triggerEngine;
+
+	/**
+	 * The dependency graph of the obstacles
+	 */
+	private ObstacleGraph obstacleGraph;
+
+	/**
+	 * The locations and obstacles changed since the game was loaded (null
+	 * before it has been loaded, see markPristine)
+	 */
+	private GameChanges changes;
+
+	/**
+	 * Fingerprint of the definition the game was loaded from, null if it is
+	 * unknown
+	 */
+	private String fingerprint;
+
+	/**
+	 * File the game definition was loaded from, null if it is unknown
+	 */
+	private File source;
+
+	/**
+	 * Number of DTD validation errors of the XML definition
+	 */
+	private transient int validationErrors = -1;
+
+	/**
+	 * Connections of the definition to unknown locations, ignored when it was
+	 * loaded
+	 */
+	private transient List<String> danglingConnections;
+
+	/**
+	 * Parser factories of the XML definitions, with and without DTD
+	 * validation
 	 */
-	private Map<String, Integer> commandCount;
+	private static SAXParserFactory validatingFactory;
+	private static SAXParserFactory trustedFactory;
+
+	/**
+	 * Cache of the rendered location views in the state of the definition
+	 * (it may be shared by several games), and cache of the rendered views of
+	 * the changed locations (only of this game)
+	 */
+	private transient LocationViewCache locationViewCache;
+	private transient LocationViewCache changedViewCache;
 
 	private Hashtable<Obstacle, ArrayList<String>> boundedItemsList;
 	private Hashtable<Obstacle, ArrayList<String>> boundedObstaclesList;
@@ -289,7 +350,7 @@ public class Game implements Serializable {
 		this.description = description;
 		this.currentLocation = initialLocation;
 
-		locations = new Hashtable<String, Location>();
+		locations = new LinkedHashMap<String, Location>();
 		connections = new Hashtable<String, EnumMap<Direction, String>>();
 		commandHistory = new Vector<Command>();
 		playerInventory = new ItemRepository();
@@ -297,7 +358,8 @@ public class Game implements Serializable {
 
 		itemList = new ArrayList<Item>();
 		obstacleList = new ArrayList<Obstacle>();
-		commandCount = new Hashtable<String, Integer>();
+		commandStatistics = new CommandStatistics();
+		triggerEngine = new TriggerEngine();
 
 		boundedItemsList = new Hashtable<Obstacle, ArrayList<String>>();
 		boundedObstaclesList = new Hashtable<Obstacle, ArrayList<String>>();
@@ -329,6 +391,14 @@ public class Game implements Serializable {
 	 * <li>A direction keyword plus the id of the connected location.</li>
 	 * </ul>
 	 * </ul>
+	 * <li>Zero or more trigger definitions. A trigger definition consists on:
+	 * <ul>
+	 * <li>The keyword 'trigger' plus a unique id for the trigger, the kind of
+	 * trigger ('enter', 'hold', 'obstacle' or 'score'), the id of the location,
+	 * item or obstacle it is subscribed to (except for score triggers), the
+	 * minimum score (or the obstacle status for obstacle triggers), the string
+	 * of the message and whether the game ends when it fires.</li>
+	 * </ul>
 	 * </ul>
 	 * 
 	 * @param gameDefinition
@@ -344,11 +414,55 @@ public class Game implements Serializable {
 	 */
 	public Game(InputStream gameDefinition)
 			throws InvalidGameDefinitionException {
+		this(markable(gameDefinition), null);
+	}
+
+	/**
+	 * Constructs a game, based on a definition of it in a given format (XML or
+	 * text). Only the parser of that format is used.
+	 * 
+	 * @param gameDefinition
+	 *            The game definition.
+	 * @param format
+	 *            The format, or null for detecting it from the leading bytes
+	 *            of the definition (the stream must support mark).
+	 * @throws IllegalArgumentException
+	 *             The argument 'gameDefinition' cannot be null.
+	 * @throws InvalidGameDefinitionException
+	 *             The game definition is invalid or it is not a game
+	 *             definition.
+	 */
+	Game(InputStream gameDefinition, GameLoader.Format format)
+			throws InvalidGameDefinitionException {
+		this(gameDefinition, format, true);
+	}
+
+	/**
+	 * Constructs a game, based on a definition of it in a given format (XML or
+	 * text), optionally skipping the DTD validation of XML definitions that
+	 * have already been validated.
+	 * 
+	 * @param gameDefinition
+	 *            The game definition.
+	 * @param format
+	 *            The format, or null for detecting it from the leading bytes
+	 *            of the definition (the stream must support mark).
+	 * @param validate
+	 *            false for skipping the DTD validation of a trusted XML
+	 *            definition.
+	 * @throws IllegalArgumentException
+	 *             The argument 'gameDefinition' cannot be null.
+	 * @throws InvalidGameDefinitionException
+	 *             The game definition is invalid or it is not a game
+	 *             definition.
+	 */
+	Game(InputStream gameDefinition, GameLoader.Format format,
+			boolean validate) throws InvalidGameDefinitionException {
 		if (gameDefinition == null)
 			throw new IllegalArgumentException(
 					"Error: IllegalArgumentException");
 
-		locations = new Hashtable<String, Location>();
+		locations = new LinkedHashMap<String, Location>();
 		connections = new Hashtable<String, EnumMap<Direction, String>>();
 		commandHistory = new Vector<Command>();
 		playerInventory = new ItemRepository();
@@ -356,46 +470,211 @@ public class Game implements Serializable {
 
 		itemList = new ArrayList<Item>();
 		obstacleList = new ArrayList<Obstacle>();
-		commandCount = new Hashtable<String, Integer>();
+		commandStatistics = new CommandStatistics();
+		triggerEngine = new TriggerEngine();
 
 		boundedItemsList = new Hashtable<Obstacle, ArrayList<String>>();
 		boundedObstaclesList = new Hashtable<Obstacle, ArrayList<String>>();
 		boundedItems = new ArrayList<String>();
 		boundedObstacles = new ArrayList<String>();
 
-		// Try to parse as XML file, if not a valid XML -> then try to parse as
-		// plain text
-		try {
-			createXMLGameDefinition(gameDefinition);
-		} catch (ParserConfigurationException e) {
-			createGameDefinition(gameDefinition);
-		} catch (SAXException e) {
-			createGameDefinition(gameDefinition);
-		} catch (IOException e) {
-			createGameDefinition(gameDefinition);
+		if (format == null) {
+			try {
+				format = GameLoader.detect(gameDefinition);
+			} catch (IOException e) {
+				throw new InvalidGameDefinitionException(
+						"Error reading the game definition");
+			}
 		}
+		if (format == GameLoader.Format.COMPRESSED) {
+			try {
+				gameDefinition = markable(new GZIPInputStream(gameDefinition));
+				format = GameLoader.detect(gameDefinition);
+			} catch (IOException e) {
+				throw new InvalidGameDefinitionException(
+						"Error reading the game definition");
+			}
+		}
+
+		if (format == GameLoader.Format.XML) {
+			try {
+				validationErrors = createXMLGameDefinition(gameDefinition,
+						validate);
+			} catch (ParserConfigurationException e) {
+				throw new InvalidGameDefinitionException(
+						"Error in XML game definition: " + e.getMessage());
+			} catch (SAXException e) {
+				throw new InvalidGameDefinitionException(
+						"Error in XML game definition: " + e.getMessage());
+			} catch (IOException e) {
+				throw new InvalidGameDefinitionException(
+						"Error in XML game definition: " + e.getMessage());
+			}
+		} else if (format == GameLoader.Format.TEXT)
+			createGameDefinition(gameDefinition);
+		else
+			throw new InvalidGameDefinitionException(
+					"Error: not a game definition");
 	}
 
 	/**
-	 * Parses the game elements from a XML gameDefinition file
+	 * Returns a stream that supports mark, so its format can be detected
+	 * 
+	 * @param in
+	 *            The stream
+	 * @return The same stream, or a buffered stream over it
+	 */
+	private static InputStream markable(InputStream in) {
+		if (in == null)
+			throw new IllegalArgumentException(
+					"Error: IllegalArgumentException");
+		return in.markSupported() ? in : new BufferedInputStream(in);
+	}
+
+	/**
+	 * Parses the game elements from a XML gameDefinition file, with the parser
+	 * selected in the game loader. The game DTD is resolved from the
+	 * classpath.
 	 * 
 	 * @param gameDefinition
 	 *            The XML file
+	 * @param validate
+	 *            Validate the definition against the game DTD
+	 * @return The number of validation errors, -1 if it was not validated
 	 * @throws ParserConfigurationException
 	 * @throws SAXException
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void createXMLGameDefinition(InputStream gameDefinition)
-			throws ParserConfigurationException, SAXException, IOException {
+	private int createXMLGameDefinition(InputStream gameDefinition,
+			boolean validate) throws ParserConfigurationException,
+			SAXException, IOException {
 		if (gameDefinition == null)
 			throw new IllegalArgumentException();
 
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setValidating(true);
-		factory.setNamespaceAware(true);
-		SAXParser parser = factory.newSAXParser();
-		DefaultHandler oyente = new SAXHandler(this);
+		if (GameLoader.getXmlParser() == GameLoader.XmlParser.STAX) {
+			try {
+				new StAXGameReader(this).read(gameDefinition);
+			} catch (XMLStreamException e) {
+				throw new SAXException(e);
+			}
+			return -1;
+		}
+
+		SAXParser parser = newSAXParser(validate);
+		SAXHandler oyente = new SAXHandler(this);
 		parser.parse(gameDefinition, oyente);
+		return validate ? oyente.getValidationErrors() : -1;
+	}
+
+	/**
+	 * Creates a parser for the XML definitions. The factories are created
+	 * once and shared by every game.
+	 * 
+	 * @param validate
+	 *            Validate against the game DTD
+	 * @return The parser
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	private static synchronized SAXParser newSAXParser(boolean validate)
+			throws ParserConfigurationException, SAXException {
+		if (validate) {
+			if (validatingFactory == null) {
+				validatingFactory = SAXParserFactory.newInstance();
+				validatingFactory.setValidating(true);
+				validatingFactory.setNamespaceAware(true);
+			}
+			return validatingFactory.newSAXParser();
+		} else {
+			if (trustedFactory == null) {
+				trustedFactory = SAXParserFactory.newInstance();
+				trustedFactory.setValidating(false);
+				trustedFactory.setNamespaceAware(true);
+				try {
+					trustedFactory.setFeature("http://apache.org/xml/"
+							+ "features/nonvalidating/load-external-dtd",
+							false);
+				} catch (SAXException e) {
+					// The parser does not support it: the DTD is still read
+				}
+			}
+			return trustedFactory.newSAXParser();
+		}
+	}
+
+	/**
+	 * Returns the number of DTD validation errors of the XML definition the
+	 * game was loaded from
+	 * 
+	 * @return The number of errors, -1 if it was not validated
+	 */
+	int getValidationErrors() {
+		return validationErrors;
+	}
+
+	/**
+	 * Returns the connections of the definition to unknown locations, which
+	 * were ignored when the definition was loaded.
+	 * 
+	 * @return The connections (the id of the location and its connections to
+	 *         unknown locations), empty if there were none or the game was
+	 *         not loaded from a definition.
+	 */
+	public List<String> getDanglingConnections() {
+		if (danglingConnections == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(danglingConnections);
+	}
+
+	/**
+	 * Sets the connections of the definition to unknown locations. It is
+	 * called by the loaders.
+	 * 
+	 * @param dangling
+	 *            The connections.
+	 */
+	void setDanglingConnections(List<String> dangling) {
+		danglingConnections = dangling;
+	}
+
+	/**
+	 * Returns the fingerprint of the definition the game was loaded from
+	 * 
+	 * @return The fingerprint, null if it is unknown
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Sets the fingerprint of the definition the game was loaded from
+	 * 
+	 * @param fingerprint
+	 *            The fingerprint
+	 */
+	void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Returns the file the game definition was loaded from (a definition or
+	 * its world image), for loading it again.
+	 * 
+	 * @return The file, null if it is unknown
+	 */
+	public File getSource() {
+		return source;
+	}
+
+	/**
+	 * Sets the file the game definition was loaded from
+	 * 
+	 * @param source
+	 *            The file
+	 */
+	void setSource(File source) {
+		this.source = source;
 	}
 
 	/**
@@ -459,6 +738,79 @@ public class Game implements Serializable {
 		this.currentLocation = currentLocation;
 	}
 
+	/**
+	 * Returns the cache of rendered location views in the state of the
+	 * definition of this game
+	 * 
+	 * @return The cache
+	 */
+	public LocationViewCache getLocationViewCache() {
+		if (locationViewCache == null)
+			locationViewCache = new LocationViewCache();
+		return locationViewCache;
+	}
+
+	/**
+	 * Sets the cache of rendered location views in the state of the
+	 * definition, so several games of the same definition can share the same
+	 * cache (the views of the changed locations are kept by every game)
+	 * 
+	 * @param locationViewCache
+	 *            The cache
+	 */
+	public void setLocationViewCache(LocationViewCache locationViewCache) {
+		if (locationViewCache == null)
+			throw new IllegalArgumentException();
+
+		this.locationViewCache = locationViewCache;
+	}
+
+	/**
+	 * Reports the rendered view of the player location
+	 * 
+	 * @param view
+	 *            The view
+	 * @return The rendered text
+	 */
+	public String reportLocationView(LocationView view) {
+		if (view == null)
+			throw new IllegalArgumentException();
+
+		if ((fingerprint != null) && !currentLocation.isChanged())
+			return getLocationViewCache().render(fingerprint, currentLocation,
+					view);
+		if (changedViewCache == null)
+			changedViewCache = new LocationViewCache();
+		return changedViewCache.render(currentLocation, view);
+	}
+
+	/**
+	 * Returns the title of the game.
+	 * 
+	 * @return The title.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the author of the game.
+	 * 
+	 * @return The author.
+	 */
+	public String getAuthor() {
+		return author;
+	}
+
+	/**
+	 * Returns the description of the game.
+	 * 
+	 * @return The description.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
 	/**
 	 * Returns the game locations
 	 * 
@@ -480,114 +832,183 @@ public class Game implements Serializable {
 		if (gameDefinition == null)
 			throw new IllegalArgumentException();
 
-		Reader r = new BufferedReader(new InputStreamReader(gameDefinition));
-		StreamTokenizer st = new StreamTokenizer(r);
+		TextGameLexer lexer = new TextGameLexer(new InputStreamReader(
+				gameDefinition), keywords());
 		boolean firstLineParsed = false;
-		st.commentChar(35);
-		st.quoteChar(34);
 
 		try {
-			st.nextToken();
+			lexer.nextToken();
 
-			if (st.ttype == StreamTokenizer.TT_EOF)
+			if (lexer.getType() == TextGameLexer.TokenType.EOF)
 				throw new InvalidGameDefinitionException(
 						"Error in definitions game.");
 
-			while (st.ttype != StreamTokenizer.TT_EOF) {
-				if (st.ttype == StreamTokenizer.TT_WORD) {
-					if ((!firstLineParsed) && !(st.sval.equals("game"))) {
+			while (lexer.getType() != TextGameLexer.TokenType.EOF) {
+				if (lexer.getType() == TextGameLexer.TokenType.WORD) {
+					String keyword = lexer.getText();
+					if ((!firstLineParsed) && (keyword != KEYWORD_GAME)) {
 						throw new InvalidGameDefinitionException(
-								"Error in line: " + st.lineno()
-										+ " in definitions game"
-										+ LINE_SEPARATOR
+								errorAt(lexer) + LINE_SEPARATOR
 										+ "First token must be *game*");
 					}
 
-					if (st.sval.equals("game") && (!firstLineParsed)) {
-						createDescription(st);
+					if ((keyword == KEYWORD_GAME) && (!firstLineParsed)) {
+						createDescription(lexer);
 						firstLineParsed = true;
-					} else if (st.sval.equals("location")) {
-						createLocation(st);
-					} else if (st.sval.equals("help")) {
-						createSpecialHelp(st);
+					} else if (keyword == KEYWORD_LOCATION) {
+						createLocation(lexer);
+					} else if (keyword == KEYWORD_HELP) {
+						createSpecialHelp(lexer);
+					} else if (keyword == KEYWORD_TRIGGER) {
+						createTrigger(lexer);
 					} else
 						throw new InvalidGameDefinitionException(
-								"Error in line: "
-										+ st.lineno()
-										+ " in definitions game"
+								errorAt(lexer)
 										+ LINE_SEPARATOR
 										+ "Second token after *game* must be *location*");
 				} else
-					throw new InvalidGameDefinitionException("Error in line: "
-							+ st.lineno() + " in definitions game"
+					throw new InvalidGameDefinitionException(errorAt(lexer)
 							+ LINE_SEPARATOR + "Not a word");
 			}
-			linkLocations();
-			linkBoundedItemsToObstacles();
-			linkBoundedObstaclesToObstacles();
-			r.close();
+			link();
+			buildObstacleGraph(obstacleList);
+			checkTriggers();
+			lexer.close();
 		} catch (IOException e) {
-			throw new InvalidGameDefinitionException("Error in line: "
-					+ st.lineno() + " in definitions game");
+			throw new InvalidGameDefinitionException(errorAt(lexer));
 		} catch (NullPointerException e) {
-			throw new InvalidGameDefinitionException("Error in line: "
-					+ st.lineno() + " in definitions game");
+			throw new InvalidGameDefinitionException(errorAt(lexer));
 		}
 	}
 
+	/**
+	 * Returns the keywords of the text game definitions, including the
+	 * direction keywords
+	 */
+	private static String[] keywords() {
+		String[] keywords = { KEYWORD_GAME, KEYWORD_LOCATION, KEYWORD_ITEM,
+				KEYWORD_OBSTACLE, KEYWORD_ITEM_REF, KEYWORD_OBSTACLE_REF,
+				KEYWORD_TRIGGER, KEYWORD_HELP };
+		Direction[] directions = Direction.values();
+		String[] all = new String[keywords.length + directions.length];
+		System.arraycopy(keywords, 0, all, 0, keywords.length);
+		for (int i = 0; i < directions.length; i++)
+			all[keywords.length + i] = directions[i].getKeyword();
+		return all;
+	}
+
+	/**
+	 * Returns the position of the current token for the error messages
+	 */
+	private static String errorAt(TextGameLexer lexer) {
+		return "Error in line: " + lexer.getLine() + ", column "
+				+ lexer.getColumn() + " in definitions game";
+	}
+
 	/**
 	 * Parses the special help from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
+	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
+	 */
+	private void createSpecialHelp(TextGameLexer lexer) throws IOException,
+			InvalidGameDefinitionException {
+		if (lexer == null)
+			throw new IllegalArgumentException();
+
+		lexer.nextToken();
+		specialHelp = lexer.getText();
+		lexer.nextToken();
+	}
+
+	/**
+	 * Parses a trigger from the gameDefinition file: its id, its kind, the
+	 * target id (except for score triggers), the minimum score or the obstacle
+	 * status, the message and whether it ends the game
+	 * 
+	 * @param lexer
+	 *            The lexer of the file
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void createSpecialHelp(StreamTokenizer st) throws IOException {
-		if (st == null)
+	private void createTrigger(TextGameLexer lexer) throws IOException,
+			InvalidGameDefinitionException {
+		if (lexer == null)
 			throw new IllegalArgumentException();
 
-		st.nextToken();
-		specialHelp = st.sval;
-		st.nextToken();
+		lexer.nextToken();
+		String triggerId = lexer.getText();
+		lexer.nextToken();
+		Trigger.Kind kind = Trigger.Kind.fromKeyword(lexer.getText());
+		if (kind == null)
+			throw new InvalidGameDefinitionException("Error in line: "
+					+ lexer.getLine() + ", column " + lexer.getColumn()
+					+ " in definitions game" + LINE_SEPARATOR
+					+ "Unknown trigger kind");
+		String target = null;
+		if (kind != Trigger.Kind.SCORE) {
+			lexer.nextToken();
+			target = lexer.getText();
+		}
+		lexer.nextToken();
+		int value;
+		if (kind == Trigger.Kind.OBSTACLE)
+			value = Boolean.parseBoolean(lexer.getText()) ? 1 : 0;
+		else
+			value = (int) lexer.getNumber();
+		lexer.nextToken();
+		String message = lexer.getText();
+		lexer.nextToken();
+		boolean endsGame = Boolean.parseBoolean(lexer.getText());
+		lexer.nextToken();
+
+		defineTrigger(new Trigger(triggerId, kind, target, value, message,
+				endsGame));
 	}
 
 	/**
 	 * Parses the game description from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void createDescription(StreamTokenizer st) throws IOException {
-		if (st == null)
+	private void createDescription(TextGameLexer lexer) throws IOException,
+			InvalidGameDefinitionException {
+		if (lexer == null)
 			throw new IllegalArgumentException();
 
-		st.nextToken();
-		title = st.sval;
-		st.nextToken();
-		author = st.sval;
-		st.nextToken();
-		description = st.sval;
-		st.nextToken();
+		lexer.nextToken();
+		title = lexer.getText();
+		lexer.nextToken();
+		author = lexer.getText();
+		lexer.nextToken();
+		description = lexer.getText();
+		lexer.nextToken();
 
 	}
 
 	/**
 	 * Creates the locations parsing the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void createLocation(StreamTokenizer st) throws IOException {
-		if (st == null)
+	private void createLocation(TextGameLexer lexer) throws IOException,
+			InvalidGameDefinitionException {
+		if (lexer == null)
 			throw new IllegalArgumentException();
 
 		tempDirection = new EnumMap<Direction, String>(Direction.class);
 
-		Location tempLocation = readLocation(st);
-		readItems(st, tempLocation);
-		readConnections(st, tempLocation);
+		Location tempLocation = readLocation(lexer);
+		readItems(lexer, tempLocation);
+		readConnections(lexer, tempLocation);
 
 		connections.put(locationId, tempDirection);
 		locations.put(locationId, tempLocation);
@@ -596,28 +1017,30 @@ public class Game implements Serializable {
 	/**
 	 * Parses locations from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @return The parsed location
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private Location readLocation(StreamTokenizer st) throws IOException {
-		if (st == null)
+	private Location readLocation(TextGameLexer lexer) throws IOException,
+			InvalidGameDefinitionException {
+		if (lexer == null)
 			throw new IllegalArgumentException();
 
-		st.nextToken();
-		locationId = st.sval;
-		st.nextToken();
-		String locationName = st.sval;
-		st.nextToken();
-		String locationDescription = st.sval;
-
-		st.nextToken();
-		if (st.ttype == StreamTokenizer.TT_NUMBER) {
-			int threshold = (int) st.nval;
-			st.nextToken();
-			String endMsg = st.sval;
-			st.nextToken();
+		lexer.nextToken();
+		locationId = lexer.getText();
+		lexer.nextToken();
+		String locationName = lexer.getText();
+		lexer.nextToken();
+		String locationDescription = lexer.getText();
+
+		lexer.nextToken();
+		if (lexer.getType() == TextGameLexer.TokenType.NUMBER) {
+			int threshold = (int) lexer.getNumber();
+			lexer.nextToken();
+			String endMsg = lexer.getText();
+			lexer.nextToken();
 			Location tempLocation = new Location(locationId, locationName,
 					locationDescription, threshold, endMsg);
 			// Agregar localizacin inicial
@@ -637,30 +1060,31 @@ public class Game implements Serializable {
 	/**
 	 * Parses the items from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @param tempLocation
 	 *            The temporal location
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void readItems(StreamTokenizer st, Location tempLocation)
-			throws IOException {
-		if ((st == null) || (tempLocation == null))
+	private void readItems(TextGameLexer lexer, Location tempLocation)
+			throws IOException, InvalidGameDefinitionException {
+		if ((lexer == null) || (tempLocation == null))
 			throw new IllegalArgumentException();
 
-		if (st.sval.equals("item")) {
-			while (st.sval.equals("item")) {
-				st.nextToken();
-				String itemID = st.sval;
-				st.nextToken();
-				String itemName = st.sval;
-				st.nextToken();
-				String itemDescription = st.sval;
-				st.nextToken();
-				int itemValue = (int) st.nval;
-				st.nextToken();
-				int itemWeight = (int) st.nval;
-				st.nextToken();
+		if (lexer.getText() == KEYWORD_ITEM) {
+			while (lexer.getText() == KEYWORD_ITEM) {
+				lexer.nextToken();
+				String itemID = lexer.getText();
+				lexer.nextToken();
+				String itemName = lexer.getText();
+				lexer.nextToken();
+				String itemDescription = lexer.getText();
+				lexer.nextToken();
+				int itemValue = (int) lexer.getNumber();
+				lexer.nextToken();
+				int itemWeight = (int) lexer.getNumber();
+				lexer.nextToken();
 
 				Item newItem = new Item(itemID, itemName, itemDescription,
 						itemValue, itemWeight);
@@ -674,33 +1098,40 @@ public class Game implements Serializable {
 	/**
 	 * Parses the connections from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @param tempLocation
 	 *            The temporal location
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
-	private void readConnections(StreamTokenizer st, Location tempLocation)
-			throws IOException {
-		if ((st == null) || (tempLocation == null))
+	private void readConnections(TextGameLexer lexer, Location tempLocation)
+			throws IOException, InvalidGameDefinitionException {
+		if ((lexer == null) || (tempLocation == null))
 			throw new IllegalArgumentException();
 
 		Direction oldDir = null;
-		while (!st.sval.equals("location")) {
-			if (st.sval.equals("obstacle")) {
-				readObstacle(st, oldDir, tempLocation);
+		while (true) {
+			String keyword = lexer.getText();
+			if (keyword == null)
+				throw new InvalidGameDefinitionException(errorAt(lexer));
+			if ((keyword == KEYWORD_LOCATION) || (keyword == KEYWORD_TRIGGER)
+					|| (keyword == KEYWORD_HELP))
+				break;
+			if (keyword == KEYWORD_OBSTACLE) {
+				readObstacle(lexer, oldDir, tempLocation);
 			}
-			String shortDirection = st.sval;
-			st.nextToken();
-			String connectedLocationID = st.sval;
+			String shortDirection = lexer.getText();
+			lexer.nextToken();
+			String connectedLocationID = lexer.getText();
 			for (Direction dir : Direction.values()) {
-				if (dir.getKeyword().equals(shortDirection)) {
+				if (dir.getKeyword() == shortDirection) {
 					tempDirection.put(dir, connectedLocationID);
 					oldDir = dir;
 					break;
 				}
 			}
-			if (st.nextToken() == StreamTokenizer.TT_EOF) {
+			if (lexer.nextToken() == TextGameLexer.TokenType.EOF) {
 				break;
 			}
 		}
@@ -709,45 +1140,49 @@ public class Game implements Serializable {
 	/**
 	 * Parses the obstacles from the gameDefinition file
 	 * 
-	 * @param st
-	 *            The file stream
+	 * @param lexer
+	 *            The lexer of the file
 	 * @param dir
 	 *            The direction where the obstacle resides
 	 * @param tempLocation
 	 *            The temporal location
 	 * @throws IOException
+	 * @throws InvalidGameDefinitionException
 	 */
 
 	@SuppressWarnings("unchecked")
-	private void readObstacle(StreamTokenizer st, Direction dir,
-			Location tempLocation) throws IOException {
-		if ((st == null) || (tempLocation == null) || (dir == null))
+	private void readObstacle(TextGameLexer lexer, Direction dir,
+			Location tempLocation) throws IOException,
+			InvalidGameDefinitionException {
+		if ((lexer == null) || (tempLocation == null) || (dir == null))
 			throw new IllegalArgumentException();
 
-		st.nextToken();
-		String obstacleId = st.sval;
-		st.nextToken();
-		String obstacleName = st.sval;
-		st.nextToken();
-		String obstacleDescription = st.sval;
-		st.nextToken();
-		Boolean obstacleStatus = Boolean.parseBoolean(st.sval);
-		st.nextToken();
-		String obstacleErrorMsg = st.sval;
-		st.nextToken();
+		lexer.nextToken();
+		String obstacleId = lexer.getText();
+		lexer.nextToken();
+		String obstacleName = lexer.getText();
+		lexer.nextToken();
+		String obstacleDescription = lexer.getText();
+		lexer.nextToken();
+		Boolean obstacleStatus = Boolean.parseBoolean(lexer.getText());
+		lexer.nextToken();
+		String obstacleErrorMsg = lexer.getText();
+		lexer.nextToken();
 
 		Obstacle tempObstacle = new Obstacle(obstacleId, obstacleName,
 				obstacleDescription, obstacleStatus, obstacleErrorMsg, dir);
+		boundedItems.clear();
+		boundedObstacles.clear();
 
 		obstacleList.add(tempObstacle);
 		tempLocation.addObstacle(dir, tempObstacle);
 
-		if (st.sval.equals("itemRef")) {
-			while (st.sval.equals("itemRef")) {
-				st.nextToken();
-				String itemRefName = st.sval;
+		if (lexer.getText() == KEYWORD_ITEM_REF) {
+			while (lexer.getText() == KEYWORD_ITEM_REF) {
+				lexer.nextToken();
+				String itemRefName = lexer.getText();
 				boundedItems.add(itemRefName);
-				st.nextToken();
+				lexer.nextToken();
 			}
 			
 		}
@@ -757,12 +1192,12 @@ public class Game implements Serializable {
 					(ArrayList<String>) boundedItems.clone());
 		}
 
-		if (st.sval.equals("obsRef")) {
-			while (st.sval.equals("obsRef")) {
-				st.nextToken();
-				String obstacleRefName = st.sval;
+		if (lexer.getText() == KEYWORD_OBSTACLE_REF) {
+			while (lexer.getText() == KEYWORD_OBSTACLE_REF) {
+				lexer.nextToken();
+				String obstacleRefName = lexer.getText();
 				boundedObstacles.add(obstacleRefName);
-				st.nextToken();
+				lexer.nextToken();
 			}
 		}
 
@@ -773,84 +1208,34 @@ public class Game implements Serializable {
 	}
 
 	/**
-	 * Link the locations when the parse finishes
-	 */
-	private void linkLocations() {
-		Location connectedLocation;
-		String connectedLocationName;
-		tempDirection = new EnumMap<Direction, String>(Direction.class);
-
-		for (String name : locations.keySet()) {
-			tempDirection = connections.get(name);
-
-			for (Direction dir : Direction.values()) {
-				if (tempDirection.containsKey(dir)) {
-					connectedLocationName = tempDirection.get(dir);
-					if (locations.containsKey(connectedLocationName)) {
-						connectedLocation = locations
-								.get(connectedLocationName);
-						locations.get(name).setConnection(dir,
-								connectedLocation);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Links the boundedItems to the obstacles when the parse finishes
-	 */
-	private void linkBoundedItemsToObstacles() {
-		boolean founded;
-		for (Obstacle obs : boundedItemsList.keySet()) {
-			ArrayList<String> obsBoundedItems = boundedItemsList.get(obs);
-
-			Iterator<String> obsBoundedItemsItr = obsBoundedItems.iterator();
-			
-			while (obsBoundedItemsItr.hasNext()) {
-				String itemName = obsBoundedItemsItr.next();
-				Iterator<Item> itemItr = itemList.iterator();
-				founded = false;
-				while (itemItr.hasNext()) {
-					Item it = itemItr.next();
-					if (it.getId().equals(itemName)) {
-						founded = true;
-						obs.addBoundedItem(it);
-					}
-				}
-				if (!founded) throw new InvalidBoundedItemException("InvalidBoundedItemException");
-
-			}
-		}
-	}
-
-	/**
-	 * Links the boundedObstacles to the obstacles when the parse finishes
-	 */
-	private void linkBoundedObstaclesToObstacles() {
-		boolean founded;
-		for (Obstacle obs : boundedObstaclesList.keySet()) {
-			ArrayList<String> obsBoundedObstacles = boundedObstaclesList
-					.get(obs);
-
-			Iterator<String> obsBoundedObstaclesItr = obsBoundedObstacles
-					.iterator();
-			
-
-			while (obsBoundedObstaclesItr.hasNext()) {
-				String obstacleName = obsBoundedObstaclesItr.next();
-				Iterator<Obstacle> obstacleItr = obstacleList.iterator();
-				founded = false;
-				while (obstacleItr.hasNext()) {
-					Obstacle obstacle = obstacleItr.next();
-					if (obstacle.getId().equals(obstacleName)) {
-						founded = true;
-						obs.addBoundedObstacle(obstacle);
-					}
-				}
-				if (!founded) throw new InvalidBoundedObstacleException("InvalidBoundedObstacleException");
-			}
+	 * Links the locations and the bounded items and obstacles when the parse
+	 * finishes, resolving the references through id indexes
+	 */
+	private void link() {
+		Map<String, Item> itemIndex = new HashMap<String, Item>();
+		for (Item item : itemList)
+			itemIndex.put(item.getId(), item);
+		Map<String, Obstacle> obstacleIndex = new HashMap<String, Obstacle>();
+		for (Obstacle obstacle : obstacleList)
+			obstacleIndex.put(obstacle.getId(), obstacle);
+
+		WorldLinker linker = new WorldLinker(locations, itemIndex,
+				obstacleIndex);
+		List<Obstacle> none = Collections.emptyList();
+		for (Map.Entry<String, Location> location : locations.entrySet())
+			linker.addLocation(location.getValue(), connections.get(location
+					.getKey()), none);
+
+		List<String> noRefs = Collections.emptyList();
+		for (Obstacle obstacle : obstacleList) {
+			List<String> items = boundedItemsList.get(obstacle);
+			List<String> obstacles = boundedObstaclesList.get(obstacle);
+			if ((items != null) || (obstacles != null))
+				linker.addReferences(obstacle, (items != null) ? items
+						: noRefs, (obstacles != null) ? obstacles : noRefs);
 		}
+		linker.link();
+		setDanglingConnections(linker.getDanglingConnections());
 	}
 
 	/**
@@ -1016,14 +1401,8 @@ public class Game implements Serializable {
 
 		if (currentLocation.hasConnectedLocation(direction)) {
 			currentLocation = currentLocation.getConnectedLocation(direction);
-			if (currentLocation.hasExitThreshold()) {
-				if (playerInventory.getTotalValue() >= currentLocation
-						.getExitThreshold()) {
-					this.eventFlag = true;
-					gameEvents.add(currentLocation.getExitMessage());
-					end();
-				}
-			}
+			fire(getTriggerEngine().locationEntered(currentLocation,
+					playerInventory.getTotalValue()));
 			return true;
 		} else
 			throw new NoConnectedLocationException(
@@ -1052,17 +1431,23 @@ public class Game implements Serializable {
 	public String reportEvents() {
 		if (gameEvents.isEmpty())
 			throw new NoGameEventsException("Error: NoGameEventsException");
-		String temp = "";
-		boolean firstElementReaded = false;
-		for (String it : gameEvents) {
-			if (!firstElementReaded) {
-				temp += it;
-				firstElementReaded = true;
-			} else {
-				temp += LINE_SEPARATOR + it;
-			}
-		}
-		return temp;
+		StringBuilder temp = new StringBuilder();
+		new Renderer(temp).renderEvents(gameEvents);
+		return temp.toString();
+	}
+
+	/**
+	 * Gets the new events from the game, so they can be rendered directly into
+	 * an output stream.
+	 * 
+	 * @return The events.
+	 * @throws NoGameEventsException
+	 *             The game has no new events to report.
+	 */
+	public List<String> getEvents() {
+		if (gameEvents.isEmpty())
+			throw new NoGameEventsException("Error: NoGameEventsException");
+		return Collections.unmodifiableList(gameEvents);
 	}
 
 	/**
@@ -1070,6 +1455,177 @@ public class Game implements Serializable {
 	 */
 	public void clearEvents() {
 		gameEvents.clear();
+		eventFlag = false;
+	}
+
+	/**
+	 * Adds a trigger to the game.
+	 * 
+	 * @param trigger
+	 *            The trigger.
+	 * @return true if the trigger was added; false if there is already a
+	 *         trigger with the same id.
+	 * @throws IllegalArgumentException
+	 *             The argument 'trigger' cannot be null.
+	 */
+	public boolean addTrigger(Trigger trigger) {
+		if (trigger == null)
+			throw new IllegalArgumentException();
+
+		return getTriggerEngine().addTrigger(trigger);
+	}
+
+	/**
+	 * Adds a trigger of the game definition, while it is loaded.
+	 * 
+	 * @param trigger
+	 *            The trigger.
+	 * @throws IllegalArgumentException
+	 *             The argument 'trigger' cannot be null.
+	 * @throws InvalidTriggerException
+	 *             There is already a trigger with the same id.
+	 */
+	void defineTrigger(Trigger trigger) {
+		if (!addTrigger(trigger))
+			throw new InvalidTriggerException("Duplicate trigger id: "
+					+ trigger.getId());
+	}
+
+	/**
+	 * Checks that the targets of the triggers are locations, items and
+	 * obstacles of the game. It is called when the game definition has been
+	 * loaded and linked.
+	 * 
+	 * @throws InvalidTriggerException
+	 *             A trigger is subscribed to an inexistent location, item or
+	 *             obstacle (the first one in definition order).
+	 */
+	void checkTriggers() {
+		List<Trigger> triggers = getTriggerEngine().getTriggers();
+		if (triggers.isEmpty())
+			return;
+
+		Set<String> items = new HashSet<String>();
+		Set<String> obstacles = new HashSet<String>();
+		for (Location location : locations.values()) {
+			for (Item item : location.getAllItems())
+				items.add(item.getId());
+			for (Direction dir : Direction.values()) {
+				Obstacle obstacle = location.getObstacle(dir);
+				if (obstacle != null)
+					obstacles.add(obstacle.getId());
+			}
+		}
+		for (Trigger trigger : triggers) {
+			boolean found;
+			switch (trigger.getKind()) {
+			case ENTER:
+				found = locations.containsKey(trigger.getTarget());
+				break;
+			case HOLD:
+				found = items.contains(trigger.getTarget());
+				break;
+			case OBSTACLE:
+				found = obstacles.contains(trigger.getTarget());
+				break;
+			default:
+				found = true;
+			}
+			if (!found)
+				throw new InvalidTriggerException("Unknown target of trigger "
+						+ trigger.getId() + ": " + trigger.getTarget());
+		}
+	}
+
+	/**
+	 * Returns the triggers of the game, fired or not.
+	 * 
+	 * @return The triggers, in definition order.
+	 */
+	public List<Trigger> getTriggers() {
+		return getTriggerEngine().getTriggers();
+	}
+
+	/**
+	 * Changes the status of an obstacle (and the obstacles transitively
+	 * bounded to it), evaluating the triggers subscribed to every changed
+	 * obstacle.
+	 * 
+	 * @param obstacle
+	 *            The obstacle.
+	 * @throws IllegalArgumentException
+	 *             The argument 'obstacle' cannot be null.
+	 */
+	public void toggleObstacle(Obstacle obstacle) {
+		if (obstacle == null)
+			throw new IllegalArgumentException();
+
+		obstacle.changeStatus();
+		for (Obstacle changed : obstacle.getPropagationSet())
+			fire(getTriggerEngine().obstacleChanged(changed));
+	}
+
+	/**
+	 * Marks a trigger as fired without reporting it, when a saved game is
+	 * restored (see SaveCodec).
+	 * 
+	 * @param id
+	 *            The trigger id.
+	 * @return true if the trigger was pending.
+	 */
+	boolean markTriggerFired(String id) {
+		return getTriggerEngine().markFired(id);
+	}
+
+	/**
+	 * Builds the dependency graph of the obstacles of the game, precomputing
+	 * the propagation set of every obstacle. It is called when the game
+	 * definition has been loaded.
+	 * 
+	 * @param obstacles
+	 *            The obstacles.
+	 * @throws IllegalArgumentException
+	 *             The argument 'obstacles' cannot be null.
+	 * @throws InvalidBoundedObstacleException
+	 *             The obstacles are bounded in a cycle.
+	 */
+	public void buildObstacleGraph(Collection<Obstacle> obstacles) {
+		if (obstacles == null)
+			throw new IllegalArgumentException();
+
+		obstacleGraph = new ObstacleGraph(obstacles);
+	}
+
+	/**
+	 * Returns the dependency graph of the obstacles, null if it has not been
+	 * built
+	 * 
+	 * @return The obstacle graph
+	 */
+	public ObstacleGraph getObstacleGraph() {
+		return obstacleGraph;
+	}
+
+	/**
+	 * Returns the trigger engine, creating it for games saved without one
+	 */
+	private TriggerEngine getTriggerEngine() {
+		if (triggerEngine == null)
+			triggerEngine = new TriggerEngine();
+		return triggerEngine;
+	}
+
+	/**
+	 * Reports the messages of the fired triggers as game events, ending the
+	 * game if any of them requires it
+	 */
+	private void fire(List<Trigger> fired) {
+		for (Trigger trigger : fired) {
+			eventFlag = true;
+			gameEvents.add(trigger.getMessage());
+			if (trigger.endsGame())
+				end();
+		}
 	}
 
 	/**
@@ -1120,6 +1676,9 @@ public class Game implements Serializable {
 			if (currentLocation.hasItem(item)) {
 				playerInventory.addItem(item);
 				currentLocation.removeItem(item);
+				int score = playerInventory.getTotalValue();
+				fire(getTriggerEngine().itemHeld(item, score));
+				fire(getTriggerEngine().scoreChanged(score));
 				return true;
 			} else
 				throw new ItemNotInRepositoryException(
@@ -1159,6 +1718,45 @@ public class Game implements Serializable {
 					"Error: ItemNotInRepositoryException");
 	}
 
+	/**
+	 * Marks the current state of the locations and obstacles as their state
+	 * in the game definition, so later saves only record the differences (see
+	 * SaveCodec). It is called when the game has been loaded. From then on,
+	 * the locations and obstacles record their changes (see getChanges).
+	 */
+	void markPristine() {
+		changes = new GameChanges();
+		for (Location location : locations.values()) {
+			location.markPristine(changes);
+			for (Direction dir : Direction.values()) {
+				Obstacle obstacle = location.getObstacle(dir);
+				if (obstacle != null)
+					obstacle.markPristine(changes);
+			}
+		}
+	}
+
+	/**
+	 * Returns the locations and obstacles changed since the game was loaded,
+	 * for saving only them (see SaveCodec).
+	 * 
+	 * @return The changes, null if the game has not been marked as loaded
+	 *         (see markPristine).
+	 */
+	GameChanges getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Returns the player inventory, for saving and restoring it (see
+	 * SaveCodec).
+	 * 
+	 * @return The inventory.
+	 */
+	ItemRepository getInventory() {
+		return playerInventory;
+	}
+
 	/**
 	 * Checks whether an specific item is in the player inventory.
 	 * 
@@ -1275,34 +1873,9 @@ public class Game implements Serializable {
 		if (set == null)
 			throw new IllegalArgumentException();
 
-		boolean firstItemReaded = false;
-		Iterator<Item> itr = set.iterator();
-		String temp = "";
-		Item it;
-
-		while (itr.hasNext()) {
-			it = itr.next();
-			if (!firstItemReaded) {
-				temp += LINE_SEPARATOR + it.getName();
-				if (flagValue) {
-					temp += " [Value(" + it.getValue() + ")";
-				}
-				if (flagWeight) {
-					temp += " Weight(" + it.getWeight() + ")]";
-				}
-				firstItemReaded = true;
-			} else {
-				temp += it.getName();
-				if (flagValue) {
-					temp += " [Value(" + it.getValue() + ")";
-				}
-				if (flagWeight) {
-					temp += " Weight(" + it.getWeight() + ")]";
-				}
-			}
-			temp += LINE_SEPARATOR;
-		}
-		return temp;
+		StringBuilder temp = new StringBuilder();
+		new Renderer(temp).renderItems(set, flagValue, flagWeight);
+		return temp.toString();
 	}
 
 	/**
@@ -1328,94 +1901,18 @@ public class Game implements Serializable {
 	}
 
 	/**
-	 * Counts the number of executed Commands
+	 * Records an executed command for statistic purpose
 	 * 
 	 * @param command
 	 *            The executed command
+	 * @param latency
+	 *            The execution time of the command in nanoseconds
 	 */
-	public void commandCount(Command command) {
+	public void commandCount(Command command, long latency) {
 		if (command == null)
 			throw new IllegalArgumentException();
 
-		if (command instanceof CloseCommand) {
-			if (commandCount.get("CloseCommand") != null) {
-				int closeCommandCounter = commandCount.get("CloseCommand");
-				closeCommandCounter++;
-				commandCount.put("CloseCommand", closeCommandCounter);
-			} else
-				commandCount.put("CloseCommand", 1);
-		} else if (command instanceof DropCommand) {
-			if (commandCount.get("DropCommand") != null) {
-				int dropCommandCounter = commandCount.get("DropCommand");
-				dropCommandCounter++;
-				commandCount.put("DropCommand", dropCommandCounter);
-			} else
-				commandCount.put("DropCommand", 1);
-		} else if (command instanceof ExamineCommand) {
-			if (commandCount.get("ExamineCommand") != null) {
-				int examineCommandCounter = commandCount.get("ExamineCommand");
-				examineCommandCounter++;
-				commandCount.put("ExamineCommand", examineCommandCounter);
-			} else
-				commandCount.put("ExamineCommand", 1);
-		} else if (command instanceof GoCommand) {
-			if (commandCount.get("GoCommand") != null) {
-				int goCommandCounter = commandCount.get("GoCommand");
-				goCommandCounter++;
-				commandCount.put("GoCommand", goCommandCounter);
-			} else
-				commandCount.put("GoCommand", 1);
-		} else if (command instanceof HelpCommand) {
-			if (commandCount.get("HelpCommand") != null) {
-				int helpCommandCounter = commandCount.get("HelpCommand");
-				helpCommandCounter++;
-				commandCount.put("HelpCommand", helpCommandCounter);
-			} else
-				commandCount.put("HelpCommand", 1);
-		} else if (command instanceof LookCommand) {
-			if (commandCount.get("LookCommand") != null) {
-				int lookCommandCounter = commandCount.get("LookCommand");
-				lookCommandCounter++;
-				commandCount.put("LookCommand", lookCommandCounter);
-			} else
-				commandCount.put("LookCommand", 1);
-		} else if (command instanceof OpenCommand) {
-			if (commandCount.get("OpenCommand") != null) {
-				int openCommandCounter = commandCount.get("OpenCommand");
-				openCommandCounter++;
-				commandCount.put("OpenCommand", openCommandCounter);
-			} else
-				commandCount.put("OpenCommand", 1);
-		} else if (command instanceof QuitCommand) {
-			if (commandCount.get("QuitCommand") != null) {
-				int quitCommandCounter = commandCount.get("QuitCommand");
-				quitCommandCounter++;
-				commandCount.put("QuitCommand", quitCommandCounter);
-			} else
-				commandCount.put("QuitCommand", 1);
-		} else if (command instanceof TakeCommand) {
-			if (commandCount.get("TakeCommand") != null) {
-				int takeCommandCounter = commandCount.get("TakeCommand");
-				takeCommandCounter++;
-				commandCount.put("TakeCommand", takeCommandCounter);
-			} else
-				commandCount.put("TakeCommand", 1);
-		} else if (command instanceof UndoCommand) {
-			if (commandCount.get("UndoCommand") != null) {
-				int undoCommandCounter = commandCount.get("UndoCommand");
-				undoCommandCounter++;
-				commandCount.put("UndoCommand", undoCommandCounter);
-			} else
-				commandCount.put("UndoCommand", 1);
-		}
-
-		if (commandCount.get("Command") != null) {
-			int totalNumberOfCommands = commandCount.get("Command");
-			totalNumberOfCommands++;
-			commandCount.put("Command", totalNumberOfCommands);
-		} else
-			commandCount.put("Command", 1);
-
+		getStatistics().record(command.getType(), latency);
 	}
 
 	/**
@@ -1423,103 +1920,42 @@ public class Game implements Serializable {
 	 * 
 	 * @return The total number of executed commands
 	 */
-	public int getTotalNumberOfExecutedCommands() {
-		if (commandCount.get("Command") != null) {
-			return commandCount.get("Command");
-		} else
-			return 0;
+	public long getTotalNumberOfExecutedCommands() {
+		return getStatistics().getTotalExecutions();
 	}
 
 	/**
-	 * Return the number of executions for the command given
+	 * Return the number of executions for the command type given
 	 * 
-	 * @param command
-	 *            The command
+	 * @param type
+	 *            The command type
 	 * @return The number of executions
 	 */
-	public int getNumberOfExecutedCommands(String command) {
-		if (command == null)
+	public long getNumberOfExecutedCommands(CommandType type) {
+		if (type == null)
 			throw new IllegalArgumentException();
 
-		if (commandCount.get(command) != null) {
-			return commandCount.get(command);
-		} else
-			return 0;
+		return getStatistics().getExecutions(type);
 	}
 
 	/**
-	 * Calculates the command execution percentage
+	 * Returns an immutable snapshot of the command statistics
 	 * 
-	 * @param command
-	 *            The command
-	 * @return The percentage
+	 * @return The command statistics
 	 */
-	public int getCommandPercentage(String command) {
-		if (command == null)
-			throw new IllegalArgumentException();
-
-		if (getTotalNumberOfExecutedCommands() != 0) {
-			int temp = (getNumberOfExecutedCommands(command) * 100)
-					/ getTotalNumberOfExecutedCommands();
-			return temp;
-		} else
-			return 0;
+	public CommandStatistics.Snapshot getCommandStatistics() {
+		return getStatistics().snapshot();
 	}
 
 	/**
-	 * Returns the command Statistics
+	 * Returns the command statistics, for saving and restoring them (see
+	 * SaveCodec), creating them for games saved without them.
 	 * 
 	 * @return The command statistics
 	 */
-	public String getCommandStatistics() {
-		String temp = "";
-		if (getTotalNumberOfExecutedCommands() != 0) {
-			temp += "CloseCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("CloseCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("CloseCommand") + LINE_SEPARATOR;
-			temp += "DropCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("DropCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("DropCommand") + LINE_SEPARATOR;
-			temp += "ExamineCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("ExamineCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("ExamineCommand") + LINE_SEPARATOR;
-			temp += "GoCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("GoCommand") + LINE_SEPARATOR
-					+ "\t" + "Percentage: " + getCommandPercentage("GoCommand")
-					+ LINE_SEPARATOR;
-			temp += "HelpCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("HelpCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("HelpCommand") + LINE_SEPARATOR;
-			temp += "LookCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("LookCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("LookCommand") + LINE_SEPARATOR;
-			temp += "OpenCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("OpenCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("OpenCommand") + LINE_SEPARATOR;
-			temp += "QuitCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("QuitCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("QuitCommand") + LINE_SEPARATOR;
-			temp += "TakeCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("TakeCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("TakeCommand") + LINE_SEPARATOR;
-			temp += "UndoCommand: " + LINE_SEPARATOR + "\t" + "Executions: "
-					+ getNumberOfExecutedCommands("UndoCommand")
-					+ LINE_SEPARATOR + "\t" + "Percentage: "
-					+ getCommandPercentage("UndoCommand") + LINE_SEPARATOR;
-
-			temp += "TOTAL COMMAND NUMBER: "
-					+ getTotalNumberOfExecutedCommands() + LINE_SEPARATOR;
-
-			return temp;
-		} else
-			return "There is no executed commands yet";
+	CommandStatistics getStatistics() {
+		if (commandStatistics == null)
+			commandStatistics = new CommandStatistics();
+		return commandStatistics;
 	}
 }
@@ -0,0 +1,79 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Records the locations and obstacles of a game that have changed since the
+ * game was loaded (see Game.markPristine), so a delta save visits only them
+ * and not the whole world (see SaveCodec). The locations and the obstacles
+ * record themselves when they change; an obstacle changed twice is back to
+ * its status in the definition, so the recorded elements are checked again
+ * when they are saved.
+ */
+class GameChanges implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The changed locations and obstacles, in the order they changed first
+	 */
+	private Set<Location> locations = new LinkedHashSet<Location>();
+	private Set<Obstacle> obstacles = new LinkedHashSet<Obstacle>();
+
+	/**
+	 * Records a changed location.
+	 *
+	 * @param location
+	 *            The location.
+	 */
+	void add(Location location) {
+		locations.add(location);
+	}
+
+	/**
+	 * Records an obstacle which status has changed.
+	 *
+	 * @param obstacle
+	 *            The obstacle.
+	 */
+	void add(Obstacle obstacle) {
+		obstacles.add(obstacle);
+	}
+
+	/**
+	 * Returns the changed locations.
+	 *
+	 * @return The locations.
+	 */
+	Collection<Location> getLocations() {
+		return Collections.unmodifiableSet(locations);
+	}
+
+	/**
+	 * Returns the obstacles which status has changed.
+	 *
+	 * @return The obstacles.
+	 */
+	Collection<Obstacle> getObstacles() {
+		return Collections.unmodifiableSet(obstacles);
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * GameChanges[locations/obstacles]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + locations.size() + "/"
+				+ obstacles.size() + "]";
+	}
+}
@@ -0,0 +1,101 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+/**
+ * Resolves the game DTD ("game.dtd") of the XML game definitions from the
+ * classpath instead of the working directory. The DTD is read once and kept
+ * in memory, so loading many definitions does not read it again. Any other
+ * entity is resolved by the parser as usual.
+ */
+public class GameEntityResolver implements EntityResolver {
+
+	/**
+	 * The system id of the game DTD
+	 */
+	public static final String DTD_NAME = "game.dtd";
+
+	/**
+	 * The shared resolver
+	 */
+	private static final GameEntityResolver INSTANCE = new GameEntityResolver();
+
+	/**
+	 * The contents of the DTD, null until it is read
+	 */
+	private static byte[] dtd;
+
+	/**
+	 * Returns the shared resolver.
+	 *
+	 * @return The resolver.
+	 */
+	public static GameEntityResolver getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Resolves the game DTD from the classpath.
+	 *
+	 * @see EntityResolver#resolveEntity(String, String)
+	 */
+	public InputSource resolveEntity(String publicId, String systemId)
+			throws IOException {
+		if ((systemId == null) || !systemId.endsWith(DTD_NAME))
+			return null;
+
+		byte[] contents = getDTD();
+		if (contents == null)
+			return null;
+
+		InputSource source = new InputSource(new ByteArrayInputStream(
+				contents));
+		source.setPublicId(publicId);
+		source.setSystemId(systemId);
+		return source;
+	}
+
+	/**
+	 * Returns the contents of the game DTD, reading them from the classpath
+	 * the first time.
+	 *
+	 * @return The contents, or null if the DTD is not in the classpath.
+	 * @throws IOException
+	 *             The DTD cannot be read.
+	 */
+	public static synchronized byte[] getDTD() throws IOException {
+		if (dtd == null) {
+			InputStream in = GameEntityResolver.class
+					.getResourceAsStream(DTD_NAME);
+			if (in == null)
+				return null;
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+				byte[] buf = new byte[2048];
+				int n;
+				while ((n = in.read(buf)) > 0)
+					out.write(buf, 0, n);
+				dtd = out.toByteArray();
+			} finally {
+				in.close();
+			}
+		}
+		return dtd;
+	}
+
+	/**
+	 * Returns a String representation for this object: GameEntityResolver[].
+	 * This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + DTD_NAME + "]";
+	}
+}
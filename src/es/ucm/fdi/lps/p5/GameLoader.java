@@ -0,0 +1,583 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Loads a game from a file, whatever its format is. The file is read only
+ * once and its format is detected from its leading bytes, so exactly one
+ * parser is used:
+ * <ul>
+ * <li>An XML prolog or element ('&lt;' as first non blank character): XML
+ * game definition.</li>
+ * <li>The Java serialization magic number (0xACED): serialized saved game.</li>
+ * <li>The magic number of the saved games ("P5SG"): saved game (see
+ * SaveCodec), restored into its definition, which is taken from the cache of
+ * parsed definitions by its fingerprint.</li>
+ * <li>The keyword 'game' as first word (after blanks and comments): text game
+ * definition.</li>
+ * <li>The magic number of the world images ("P5WI"): compiled game definition
+ * (see WorldImage), memory-mapped instead of read.</li>
+ * <li>The gzip magic number: any of the other formats (but world images)
+ * compressed, which is uncompressed in memory and detected again.</li>
+ * <li>The magic number of the streams in blocks ("P5BK"): serialized saved
+ * game (compressed or not), which blocks are validated while it is read (see
+ * SaveCodec.openSerialized).</li>
+ * </ul>
+ * The games can also be loaded from a storage of saved games (see
+ * SessionStore), where the Save and Load commands keep them.
+ */
+public class GameLoader {
+
+	/**
+	 * Number of leading bytes examined for detecting the format of a stream
+	 */
+	public static final int SNIFF_LENGTH = 512;
+
+	/**
+	 * Represents the formats of the game files.
+	 */
+	public enum Format {
+		/**
+		 * XML game definition
+		 */
+		XML,
+		/**
+		 * Serialized saved game
+		 */
+		SERIALIZED,
+		/**
+		 * Text game definition
+		 */
+		TEXT,
+		/**
+		 * Compiled game definition (world image)
+		 */
+		IMAGE,
+		/**
+		 * Saved game (see SaveCodec)
+		 */
+		SAVE,
+		/**
+		 * Compressed file (gzip), holding any other format
+		 */
+		COMPRESSED,
+		/**
+		 * Serialized saved game written in blocks with checksums (see
+		 * BlockOutputStream)
+		 */
+		BLOCKS
+	}
+
+	/**
+	 * Represents the parsers available for the XML game definitions.
+	 */
+	public enum XmlParser {
+		/**
+		 * SAX push parser (SAXHandler), with DTD validation
+		 */
+		SAX,
+		/**
+		 * StAX pull parser (StAXGameReader), without DTD validation
+		 */
+		STAX
+	}
+
+	/**
+	 * Name of the system property that selects the default XML parser ("sax"
+	 * or "stax")
+	 */
+	public static final String XML_PARSER_PROPERTY = "p5.xmlParser";
+
+	/**
+	 * The parser used for the XML game definitions
+	 */
+	private static XmlParser xmlParser = "stax".equalsIgnoreCase(System
+			.getProperty(XML_PARSER_PROPERTY)) ? XmlParser.STAX : XmlParser.SAX;
+
+	/**
+	 * Fingerprints of the XML definitions already validated, null if every
+	 * definition is validated
+	 */
+	private static DefinitionTrustStore trustStore;
+
+	/**
+	 * Cache of the parsed definitions, null if every definition is parsed
+	 */
+	private static WorldCache cache;
+
+	/**
+	 * Memory budget of the world images loaded lazily (see LazyWorld), 0 if
+	 * they are loaded whole
+	 */
+	private static long lazyBudget;
+
+	/**
+	 * Storage of the saved games
+	 */
+	private static SessionStore sessionStore = new FileSessionStore();
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private GameLoader() {
+	}
+
+	/**
+	 * Sets the store of trusted definitions (trusted-content mode): XML
+	 * definitions which fingerprint is in the store are not validated against
+	 * the game DTD, and definitions validated without errors are added to it.
+	 *
+	 * @param store
+	 *            The store, or null for validating every definition.
+	 */
+	public static synchronized void setTrustStore(DefinitionTrustStore store) {
+		trustStore = store;
+	}
+
+	/**
+	 * Sets the cache of parsed definitions: a definition already cached (with
+	 * the same content) is not parsed again, and parsed definitions are added
+	 * to it.
+	 *
+	 * @param worldCache
+	 *            The cache, or null for parsing every definition.
+	 */
+	public static synchronized void setCache(WorldCache worldCache) {
+		cache = worldCache;
+	}
+
+	/**
+	 * Sets whether world images are loaded lazily: their locations are loaded
+	 * on demand, within a memory budget (see LazyWorld).
+	 *
+	 * @param budget
+	 *            The memory budget in bytes, or 0 for loading images whole.
+	 * @throws IllegalArgumentException
+	 *             The argument 'budget' cannot be negative.
+	 */
+	public static synchronized void setLazyBudget(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException();
+		lazyBudget = budget;
+	}
+
+	/**
+	 * Sets the storage of the saved games, where the Save and Load commands
+	 * and the autosaves keep them (by default, a file per saved game).
+	 *
+	 * @param store
+	 *            The storage.
+	 * @throws IllegalArgumentException
+	 *             The argument 'store' cannot be null.
+	 */
+	public static synchronized void setSessionStore(SessionStore store) {
+		if (store == null)
+			throw new IllegalArgumentException();
+		sessionStore = store;
+	}
+
+	/**
+	 * Returns the storage of the saved games.
+	 *
+	 * @return The storage.
+	 */
+	public static synchronized SessionStore getSessionStore() {
+		return sessionStore;
+	}
+
+	/**
+	 * Selects the parser used for the XML game definitions. The StAX parser
+	 * does not validate, so the definitions it loads are never added to the
+	 * store of trusted definitions.
+	 *
+	 * @param parser
+	 *            The parser.
+	 * @throws IllegalArgumentException
+	 *             The argument 'parser' cannot be null.
+	 */
+	public static synchronized void setXmlParser(XmlParser parser) {
+		if (parser == null)
+			throw new IllegalArgumentException();
+		xmlParser = parser;
+	}
+
+	/**
+	 * Returns the parser used for the XML game definitions.
+	 *
+	 * @return The parser.
+	 */
+	public static synchronized XmlParser getXmlParser() {
+		return xmlParser;
+	}
+
+	/**
+	 * Loads a game from a file: a game definition (XML or text) or a saved
+	 * game.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 * @throws IOException
+	 *             The file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The format of the file is unknown or its content is invalid.
+	 */
+	public static Game load(File file) throws IOException,
+			InvalidGameDefinitionException {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		long budget;
+		synchronized (GameLoader.class) {
+			budget = lazyBudget;
+		}
+		return load(file, budget);
+	}
+
+	/**
+	 * Loads a game from a storage of saved games: a saved game or, as from a
+	 * file, any other format but world images.
+	 *
+	 * @param store
+	 *            The storage.
+	 * @param key
+	 *            The key of the game in the storage.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The key is not stored or its value cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The format of the value is unknown or its content is
+	 *             invalid.
+	 */
+	public static Game load(SessionStore store, String key)
+			throws IOException, InvalidGameDefinitionException {
+		if ((store == null) || (key == null))
+			throw new IllegalArgumentException();
+
+		byte[] data = store.get(key);
+		if (data == null)
+			throw new FileNotFoundException("Not stored: " + key);
+		return load(data, null, key);
+	}
+
+	/**
+	 * Loads again the definition of a game, for restoring a saved game into
+	 * it: from the cache of parsed definitions or from the file it was loaded
+	 * from, if it has not changed. The world is loaded whole.
+	 *
+	 * @param game
+	 *            The game.
+	 * @return A new game, just loaded from the definition of the game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 * @throws IOException
+	 *             The file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The definition of the game is unknown or it has changed.
+	 */
+	public static Game reload(Game game) throws IOException,
+			InvalidGameDefinitionException {
+		if (game == null)
+			throw new IllegalArgumentException();
+		return reload(game.getFingerprint(), game.getSource());
+	}
+
+	/**
+	 * Loads again a game definition, by its fingerprint: from the cache of
+	 * parsed definitions or from the file it was loaded from, if it has not
+	 * changed. The world is loaded whole.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition, or null if it is unknown.
+	 * @param source
+	 *            The file of the definition, or null if it is unknown.
+	 * @return A new game, just loaded from the definition.
+	 * @throws IOException
+	 *             The file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The definition is unknown or it has changed.
+	 */
+	public static Game reload(String fingerprint, File source)
+			throws IOException, InvalidGameDefinitionException {
+		Game definition = cached(fingerprint);
+		if ((definition == null) && (source != null)) {
+			definition = load(source, 0);
+			if ((fingerprint != null)
+					&& !fingerprint.equals(definition.getFingerprint()))
+				throw new InvalidGameDefinitionException(
+						"The game definition has changed: " + source.getPath());
+		}
+		if (definition == null)
+			throw new InvalidGameDefinitionException(
+					"Unknown game definition");
+		definition.setSource(source);
+		return definition;
+	}
+
+	/**
+	 * Loads a game from a file, loading the world images lazily within a
+	 * memory budget (0 for loading them whole)
+	 */
+	private static Game load(File file, long budget) throws IOException,
+			InvalidGameDefinitionException {
+		if (isImage(file)) {
+			Game game;
+			if (budget > 0)
+				game = LazyWorld.open(file, budget);
+			else {
+				game = WorldImage.load(file);
+				game.markPristine();
+			}
+			game.setSource(file);
+			return game;
+		}
+
+		return load(readFully(file), file, file.getPath());
+	}
+
+	/**
+	 * Loads a game from the content of a file (null if it was not read from
+	 * a file), but world images
+	 */
+	private static Game load(byte[] data, File file, String name)
+			throws IOException, InvalidGameDefinitionException {
+		Format format = detect(data, data.length);
+		if (format == Format.COMPRESSED) {
+			data = SaveCodec.uncompress(data);
+			format = detect(data, data.length);
+		}
+		if (format == Format.BLOCKS)
+			return readSavedGame(data);
+		if ((format == null) || (format == Format.COMPRESSED)
+				|| (format == Format.IMAGE))
+			throw new InvalidGameDefinitionException("Unknown game format: "
+					+ name);
+
+		InputStream in = new ByteArrayInputStream(data);
+		if (format == Format.SERIALIZED)
+			return readSavedGame(data);
+		if (format == Format.SAVE)
+			return restoreSavedGame(data);
+
+		String fingerprint = Fingerprint.of(data);
+		DefinitionTrustStore store;
+		WorldCache worldCache;
+		synchronized (GameLoader.class) {
+			store = trustStore;
+			worldCache = cache;
+		}
+		if (worldCache != null) {
+			Game game = worldCache.get(fingerprint);
+			if (game != null) {
+				game.markPristine();
+				game.setSource(file);
+				return game;
+			}
+		}
+
+		boolean validate = (format != Format.XML) || (store == null)
+				|| !store.isTrusted(fingerprint);
+
+		Game game = new Game(in, format, validate);
+		game.setFingerprint(fingerprint);
+		game.setSource(file);
+		game.markPristine();
+		if ((format == Format.XML) && validate && (store != null)
+				&& (game.getValidationErrors() == 0))
+			store.trust(fingerprint);
+		if (worldCache != null) {
+			try {
+				worldCache.put(fingerprint, game);
+			} catch (IOException e) {
+				// The cache is an optimization: the game is loaded anyway
+			}
+		}
+		return game;
+	}
+
+	/**
+	 * Detects the format of a stream, examining its leading bytes. The stream
+	 * must support mark and reset; it is reset to its initial position.
+	 *
+	 * @param in
+	 *            The stream.
+	 * @return The format, or null if it is unknown.
+	 * @throws IllegalArgumentException
+	 *             The argument 'in' cannot be null and must support mark.
+	 * @throws IOException
+	 *             The stream cannot be read.
+	 */
+	public static Format detect(InputStream in) throws IOException {
+		if ((in == null) || !in.markSupported())
+			throw new IllegalArgumentException();
+
+		byte[] head = new byte[SNIFF_LENGTH];
+		in.mark(SNIFF_LENGTH);
+		int length = 0;
+		int n;
+		while ((length < head.length)
+				&& ((n = in.read(head, length, head.length - length)) > 0))
+			length += n;
+		in.reset();
+		return detect(head, length);
+	}
+
+	/**
+	 * Detects the format of a game file from its leading bytes.
+	 *
+	 * @param head
+	 *            The leading bytes.
+	 * @param length
+	 *            The number of valid bytes.
+	 * @return The format, or null if it is unknown.
+	 * @throws IllegalArgumentException
+	 *             The argument 'head' cannot be null.
+	 */
+	public static Format detect(byte[] head, int length) {
+		if (head == null)
+			throw new IllegalArgumentException();
+
+		if (WorldImage.isImage(head, length))
+			return Format.IMAGE;
+		if (SaveCodec.isSave(head, length))
+			return Format.SAVE;
+		if (SaveCodec.isCompressed(head, length))
+			return Format.COMPRESSED;
+		if (BlockInputStream.isBlocks(head, length))
+			return Format.BLOCKS;
+		if ((length >= 2) && ((head[0] & 0xFF) == 0xAC)
+				&& ((head[1] & 0xFF) == 0xED))
+			return Format.SERIALIZED;
+
+		int i = 0;
+		// UTF-8 byte order mark
+		if ((length >= 3) && ((head[0] & 0xFF) == 0xEF)
+				&& ((head[1] & 0xFF) == 0xBB) && ((head[2] & 0xFF) == 0xBF))
+			i = 3;
+
+		while (i < length) {
+			byte b = head[i];
+			if ((b == ' ') || (b == '\t') || (b == '\r') || (b == '\n'))
+				i++;
+			else if (b == '#') {
+				// Comment of the text format, until the end of the line
+				while ((i < length) && (head[i] != '\n'))
+					i++;
+			} else if (b == '<')
+				return Format.XML;
+			else if (startsWithKeyword(head, i, length, "game"))
+				return Format.TEXT;
+			else
+				return null;
+		}
+		// Only blanks and comments in the examined bytes
+		return (i > 0) ? Format.TEXT : null;
+	}
+
+	/**
+	 * Reads a serialized saved game (in blocks or not, compressed or not)
+	 */
+	private static Game readSavedGame(byte[] data)
+			throws InvalidGameDefinitionException {
+		try {
+			return SaveCodec.readSerialized(data);
+		} catch (IOException e) {
+			throw new InvalidGameDefinitionException("Invalid saved game: "
+					+ e.getMessage());
+		} catch (ClassNotFoundException e) {
+			throw new InvalidGameDefinitionException("Invalid saved game: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Restores a saved game (see SaveCodec) into its definition, taken from
+	 * the cache of parsed definitions or loaded again from the file recorded
+	 * in the saved game (see reload)
+	 */
+	private static Game restoreSavedGame(byte[] save)
+			throws InvalidGameDefinitionException {
+		try {
+			Game game = reload(SaveCodec.getFingerprint(save), SaveCodec
+					.getSource(save));
+			return SaveCodec.restore(save, game);
+		} catch (IOException e) {
+			throw new InvalidGameDefinitionException("Invalid saved game: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns a new game from the cache of parsed definitions, null if there
+	 * is no cache or the definition is not cached
+	 */
+	private static Game cached(String fingerprint) {
+		WorldCache worldCache;
+		synchronized (GameLoader.class) {
+			worldCache = cache;
+		}
+		if ((worldCache == null) || (fingerprint == null))
+			return null;
+		Game game = worldCache.get(fingerprint);
+		if (game != null)
+			game.markPristine();
+		return game;
+	}
+
+	/**
+	 * Checks whether a keyword starts at a position, followed by a blank, a
+	 * quote or the end of the bytes
+	 */
+	private static boolean startsWithKeyword(byte[] head, int offset,
+			int length, String keyword) {
+		if (offset + keyword.length() > length)
+			return false;
+		for (int j = 0; j < keyword.length(); j++)
+			if (head[offset + j] != keyword.charAt(j))
+				return false;
+		int end = offset + keyword.length();
+		return (end == length) || (head[end] == ' ') || (head[end] == '\t')
+				|| (head[end] == '\r') || (head[end] == '\n')
+				|| (head[end] == '"');
+	}
+
+	/**
+	 * Checks whether a file is a world image, reading only its magic number
+	 */
+	private static boolean isImage(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return (raf.length() >= 4) && (raf.readInt() == WorldImage.MAGIC);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a whole file with a single read
+	 */
+	private static byte[] readFully(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large: " + file.getPath());
+			byte[] data = new byte[(int) size];
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+}
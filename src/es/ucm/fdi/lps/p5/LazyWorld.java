@@ -0,0 +1,737 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Plays a world image (see WorldImage) without loading it into the heap: the
+ * image is memory-mapped and only an index of its tables is built when it is
+ * opened. A location (its description, items and obstacles) is created the
+ * first time it is reached through Location.getConnectedLocation, and the
+ * records of the locations around it are decoded in the background, so the
+ * next move does not wait for the image. The locations are only created,
+ * evicted and checked for changes on the thread that plays the game: the
+ * background thread never touches a location nor an obstacle.
+ * <p>
+ * The locations loaded are kept within a memory budget (an estimate of the
+ * bytes they use), evicting the least recently used ones. A location is never
+ * evicted once it has changed (an item taken or dropped, an obstacle opened
+ * or closed), nor while it is the last location reached. An evicted location
+ * which is still referenced is reused when it is reached again, so there is
+ * never more than one instance of a location.
+ * <p>
+ * The obstacles, the items bound to them and the triggers are few and link
+ * distant locations, so they are created when the image is opened and shared
+ * by the locations loaded later.
+ */
+public class LazyWorld implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default memory budget for the locations loaded, in bytes
+	 */
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	/**
+	 * Estimated bytes of a location and an item, besides their strings
+	 */
+	private static final int LOCATION_OVERHEAD = 256;
+	private static final int ITEM_OVERHEAD = 96;
+
+	/**
+	 * Sizes of the records of the image tables, in bytes
+	 */
+	private static final int LOCATION_RECORD = 5 * 4;
+	private static final int ITEM_RECORD = 6 * 4;
+	private static final int OBSTACLE_RECORD = 7 * 4;
+	private static final int TRIGGER_RECORD = 6 * 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Shared thread that loads the neighbours of the locations reached
+	 */
+	private static ExecutorService prefetcher;
+
+	/**
+	 * The image file and the memory budget
+	 */
+	private File file;
+	private long budget;
+
+	/**
+	 * The index of the image: the payload and the positions of its tables,
+	 * rebuilt when the world is deserialized
+	 */
+	private transient ByteBuffer payload;
+	private transient int stringCount;
+	private transient int stringOffsets;
+	private transient int stringBytes;
+	private transient int stringData;
+	private transient int gameRecord;
+	private transient int locationCount;
+	private transient int locationTable;
+	private transient int itemTable;
+	private transient int connectionRows;
+	private transient int connections;
+	private transient int obstacleTable;
+	private transient int triggerCount;
+	private transient int triggerTable;
+
+	/**
+	 * First item and first obstacle of every location (plus the end of the
+	 * last location)
+	 */
+	private transient int[] firstItem;
+	private transient int[] firstObstacle;
+
+	/**
+	 * The obstacles and the items bound to them (by item number)
+	 */
+	private Obstacle[] obstacles;
+	private Map<Integer, Item> boundItems;
+
+	/**
+	 * The locations loaded, by number, in access order
+	 */
+	private LinkedHashMap<Integer, Entry> loaded;
+
+	/**
+	 * The records of the neighbours of the last location reached, decoded in
+	 * the background, of locations not created yet
+	 */
+	private transient Map<Integer, Record> decoded;
+
+	/**
+	 * The locations evicted, which may still be referenced
+	 */
+	private transient Map<Integer, LocationReference> evicted;
+	private transient ReferenceQueue<Location> collected;
+
+	/**
+	 * Estimated bytes of the locations loaded
+	 */
+	private long used;
+
+	/**
+	 * The last location reached, never evicted
+	 */
+	private int current = -1;
+
+	/**
+	 * Statistics
+	 */
+	private long loads;
+	private long evictions;
+	private long prefetches;
+
+	/**
+	 * A location loaded: its modification stamp when it was loaded and its
+	 * estimated bytes
+	 */
+	private static class Entry implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private Location location;
+		private long version;
+		private long weight;
+
+		private Entry(Location location, long weight) {
+			this.location = location;
+			this.version = location.getVersion();
+			this.weight = weight;
+		}
+
+		private boolean isChanged() {
+			return location.getVersion() != version;
+		}
+	}
+
+	/**
+	 * The record of a location decoded from the image: its strings and its
+	 * items
+	 */
+	private static class Record {
+
+		private String id;
+		private String name;
+		private String description;
+		private String exitMessage;
+		private int threshold;
+		private Item[] items;
+	}
+
+	/**
+	 * A weak reference to an evicted location, with its number
+	 */
+	private static class LocationReference extends WeakReference<Location> {
+
+		private int number;
+
+		private LocationReference(Location location, int number,
+				ReferenceQueue<Location> queue) {
+			super(location, queue);
+			this.number = number;
+		}
+	}
+
+	/**
+	 * Opens a world image, creating a game that loads its locations on
+	 * demand.
+	 *
+	 * @param image
+	 *            The image file.
+	 * @param budget
+	 *            The memory budget for the locations loaded, in bytes.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'image' cannot be null and 'budget' must be
+	 *             positive.
+	 * @throws IOException
+	 *             The file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The file is not a valid image.
+	 */
+	public static Game open(File image, long budget) throws IOException,
+			InvalidGameDefinitionException {
+		if ((image == null) || (budget <= 0))
+			throw new IllegalArgumentException();
+
+		LazyWorld world = new LazyWorld(image, budget);
+		try {
+			world.index();
+			return world.createGame();
+		} catch (RuntimeException e) {
+			throw new InvalidGameDefinitionException("Invalid world image: "
+					+ e);
+		}
+	}
+
+	private LazyWorld(File file, long budget) {
+		this.file = file;
+		this.budget = budget;
+		loaded = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+		decoded = new HashMap<Integer, Record>();
+		evicted = new HashMap<Integer, LocationReference>();
+		collected = new ReferenceQueue<Location>();
+	}
+
+	/**
+	 * Maps the image and finds its tables. Only the item and obstacle tables
+	 * are scanned (their location column), for grouping them by location.
+	 * The checksum is not verified: it would read the whole image.
+	 */
+	private void index() throws IOException, InvalidGameDefinitionException {
+		payload = WorldImage.payload(WorldImage.map(file), false);
+
+		stringCount = payload.getInt(0);
+		stringOffsets = 4;
+		stringBytes = payload.getInt(stringOffsets + 4 * stringCount);
+		stringData = stringOffsets + 4 * stringCount + 4;
+		int p = stringData + stringBytes;
+
+		gameRecord = p;
+		p += 6 * 4;
+		locationCount = payload.getInt(p);
+		locationTable = p + 4;
+		p = locationTable + LOCATION_RECORD * locationCount;
+		int itemCount = payload.getInt(p);
+		itemTable = p + 4;
+		p = itemTable + ITEM_RECORD * itemCount;
+		connectionRows = p + 4;
+		p = connectionRows + 4 * payload.getInt(p);
+		connections = p + 4;
+		p = connections + 4 * payload.getInt(p);
+		int obstacleCount = payload.getInt(p);
+		obstacleTable = p + 4;
+		p = obstacleTable + OBSTACLE_RECORD * obstacleCount;
+
+		firstItem = group(itemTable, ITEM_RECORD, itemCount, 5);
+		firstObstacle = group(obstacleTable, OBSTACLE_RECORD, obstacleCount,
+				6);
+
+		if (obstacles == null)
+			p = createObstacles(p, obstacleCount);
+		else
+			p = skipBindings(p);
+		triggerCount = payload.getInt(p);
+		triggerTable = p + 4;
+	}
+
+	/**
+	 * Returns the first record of every location in a table grouped by
+	 * location (records without location go at the end)
+	 */
+	private int[] group(int table, int record, int count, int column) {
+		int[] first = new int[locationCount + 1];
+		int last = 0;
+		int located = 0;
+		for (int i = 0; i < count; i++) {
+			int location = payload.getInt(table + record * i + 4 * column);
+			if (location < 0)
+				continue;
+			if (location < last)
+				throw new IllegalStateException("Records not grouped by location");
+			last = location;
+			first[location + 1]++;
+			located++;
+		}
+		for (int l = 0; l < locationCount; l++)
+			first[l + 1] += first[l];
+		if (first[locationCount] != located)
+			throw new IllegalStateException("Invalid location column");
+		return first;
+	}
+
+	/**
+	 * Creates every obstacle with its bound items and obstacles, returning the
+	 * position after the bindings
+	 */
+	private int createObstacles(int p, int count) {
+		Direction[] directions = Direction.values();
+		obstacles = new Obstacle[count];
+		for (int i = 0; i < count; i++) {
+			int record = obstacleTable + OBSTACLE_RECORD * i;
+			obstacles[i] = new Obstacle(string(record), string(record + 4),
+					string(record + 8), payload.getInt(record + 16) != 0,
+					string(record + 12), directions[payload
+							.getInt(record + 20)]);
+		}
+
+		boundItems = new HashMap<Integer, Item>();
+		int rows = p + 4;
+		p = rows + 4 * payload.getInt(p);
+		int bound = p + 4;
+		p = bound + 4 * payload.getInt(p);
+		for (int i = 0; i < count; i++)
+			for (int b = payload.getInt(rows + 4 * i); b < payload
+					.getInt(rows + 4 * (i + 1)); b++) {
+				int number = payload.getInt(bound + 4 * b);
+				Item item = boundItems.get(number);
+				if (item == null) {
+					item = createItem(number);
+					boundItems.put(number, item);
+				}
+				obstacles[i].addBoundedItem(item);
+			}
+
+		rows = p + 4;
+		p = rows + 4 * payload.getInt(p);
+		bound = p + 4;
+		p = bound + 4 * payload.getInt(p);
+		for (int i = 0; i < count; i++)
+			for (int b = payload.getInt(rows + 4 * i); b < payload
+					.getInt(rows + 4 * (i + 1)); b++)
+				obstacles[i].addBoundedObstacle(obstacles[payload.getInt(bound
+						+ 4 * b)]);
+		return p;
+	}
+
+	/**
+	 * Skips the obstacle bindings (already created), returning the position
+	 * after them
+	 */
+	private int skipBindings(int p) {
+		for (int i = 0; i < 4; i++)
+			p += 4 + 4 * payload.getInt(p);
+		return p;
+	}
+
+	/**
+	 * Creates the game: its initial location and its triggers
+	 */
+	private Game createGame() throws InvalidGameDefinitionException {
+		int initial = payload.getInt(gameRecord + 20);
+		if ((initial < 0) || (initial >= locationCount))
+			throw new InvalidGameDefinitionException(
+					"World image without initial location");
+		Location location = get(initial);
+		current = initial;
+
+		Game game = new Game(string(gameRecord), string(gameRecord + 4),
+				string(gameRecord + 8), location);
+		game.getLocations().put(location.getId(), location);
+		String specialHelp = string(gameRecord + 12);
+		if (specialHelp != null)
+			game.setSpecialHelp(specialHelp);
+		game.setFingerprint(string(gameRecord + 16));
+		game.buildObstacleGraph(Arrays.asList(obstacles));
+
+		Trigger.Kind[] kinds = Trigger.Kind.values();
+		for (int i = 0; i < triggerCount; i++) {
+			int record = triggerTable + TRIGGER_RECORD * i;
+			game.addTrigger(new Trigger(string(record), kinds[payload
+					.getInt(record + 4)], string(record + 8), payload
+					.getInt(record + 12), string(record + 16), payload
+					.getInt(record + 20) != 0));
+		}
+		prefetch(initial);
+		return game;
+	}
+
+	/**
+	 * Checks whether a location has a connection in a direction.
+	 *
+	 * @param number
+	 *            The number of the location.
+	 * @param direction
+	 *            The direction.
+	 * @return true if it has a connection in that direction.
+	 */
+	boolean hasConnection(int number, Direction direction) {
+		return target(number, direction) >= 0;
+	}
+
+	/**
+	 * Returns the location connected to another one in a direction, loading
+	 * it if needed. It becomes the last location reached, and its neighbours
+	 * are loaded in the background.
+	 *
+	 * @param number
+	 *            The number of the location.
+	 * @param direction
+	 *            The direction.
+	 * @return The connected location, or null if there is no connection.
+	 */
+	Location getConnectedLocation(int number, Direction direction) {
+		int target = target(number, direction);
+		if (target < 0)
+			return null;
+		Location location;
+		synchronized (this) {
+			current = target;
+			location = get(target);
+		}
+		prefetch(target);
+		return location;
+	}
+
+	/**
+	 * Returns the number of the location connected to another one in a
+	 * direction, or -1
+	 */
+	private int target(int number, Direction direction) {
+		int end = payload.getInt(connectionRows + 4 * (number + 1));
+		for (int e = payload.getInt(connectionRows + 4 * number); e < end; e++)
+			if (payload.getInt(connections + 8 * e) == direction.ordinal())
+				return payload.getInt(connections + 8 * e + 4);
+		return -1;
+	}
+
+	/**
+	 * Returns a location, loading it if needed. It is only called on the
+	 * thread that plays the game.
+	 */
+	private synchronized Location get(int number) {
+		Entry entry = loaded.get(number);
+		if (entry != null)
+			return entry.location;
+
+		expunge();
+		Record record = decoded.remove(number);
+		Location location = null;
+		LocationReference reference = evicted.remove(number);
+		if (reference != null)
+			location = reference.get();
+		if (location != null)
+			entry = new Entry(location, weight(location));
+		else
+			entry = create(number, (record != null) ? record : decode(number));
+		loaded.put(number, entry);
+		used += entry.weight;
+		evict();
+		return entry.location;
+	}
+
+	/**
+	 * Decodes the record of a location. It only reads the image (and the
+	 * items bound to obstacles), so it may be called on any thread.
+	 */
+	private Record decode(int number) {
+		int position = locationTable + LOCATION_RECORD * number;
+		Record record = new Record();
+		record.id = string(position);
+		record.name = string(position + 4);
+		record.description = string(position + 8);
+		record.exitMessage = string(position + 12);
+		record.threshold = payload.getInt(position + 16);
+
+		record.items = new Item[firstItem[number + 1] - firstItem[number]];
+		for (int i = firstItem[number]; i < firstItem[number + 1]; i++) {
+			Item item = boundItems.get(i);
+			record.items[i - firstItem[number]] = (item != null) ? item
+					: createItem(i);
+		}
+		return record;
+	}
+
+	/**
+	 * Creates a location from its record, adding its obstacles
+	 */
+	private Entry create(int number, Record record) {
+		Location location = (record.exitMessage != null) ? new Location(
+				record.id, record.name, record.description, record.threshold,
+				record.exitMessage) : new Location(record.id, record.name,
+				record.description);
+
+		for (Item item : record.items)
+			location.addItem(item);
+		for (int i = firstObstacle[number]; i < firstObstacle[number + 1]; i++)
+			location.addObstacle(obstacles[i].getDirection(), obstacles[i]);
+		location.attach(this, number);
+		loads++;
+		return new Entry(location, weight(location));
+	}
+
+	private Item createItem(int number) {
+		int record = itemTable + ITEM_RECORD * number;
+		return new Item(string(record), string(record + 4),
+				string(record + 8), payload.getInt(record + 12), payload
+						.getInt(record + 16));
+	}
+
+	/**
+	 * Estimates the bytes used by a location and its items
+	 */
+	private static long weight(Location location) {
+		long weight = LOCATION_OVERHEAD
+				+ 2L
+				* (location.getId().length() + location.getName().length() + location
+						.getDescription().length());
+		for (Item item : location.getAllItems())
+			weight += ITEM_OVERHEAD
+					+ 2L
+					* (item.getId().length() + item.getName().length() + item
+							.getDescription().length());
+		return weight;
+	}
+
+	/**
+	 * Evicts the least recently used locations until the budget is met.
+	 * Changed locations and the last location reached are kept.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Integer, Entry>> i = loaded.entrySet().iterator();
+		while ((used > budget) && i.hasNext()) {
+			Map.Entry<Integer, Entry> e = i.next();
+			Entry entry = e.getValue();
+			if ((e.getKey() == current) || entry.isChanged())
+				continue;
+			i.remove();
+			used -= entry.weight;
+			evicted.put(e.getKey(), new LocationReference(entry.location, e
+					.getKey(), collected));
+			evictions++;
+		}
+	}
+
+	/**
+	 * Forgets the evicted locations that have been collected
+	 */
+	private void expunge() {
+		Reference<? extends Location> r;
+		while ((r = collected.poll()) != null) {
+			LocationReference reference = (LocationReference) r;
+			if (evicted.get(reference.number) == reference)
+				evicted.remove(reference.number);
+		}
+	}
+
+	/**
+	 * Decodes the records of the neighbours of a location in the background,
+	 * forgetting the records of the other locations
+	 */
+	private void prefetch(final int number) {
+		final List<Integer> pending = new ArrayList<Integer>();
+		synchronized (this) {
+			List<Integer> neighbours = new ArrayList<Integer>();
+			for (Direction dir : Direction.values()) {
+				int target = target(number, dir);
+				if (target >= 0) {
+					neighbours.add(target);
+					if (!loaded.containsKey(target)
+							&& !decoded.containsKey(target))
+						pending.add(target);
+				}
+			}
+			decoded.keySet().retainAll(neighbours);
+		}
+		if (pending.isEmpty())
+			return;
+		prefetcher().execute(new Runnable() {
+			public void run() {
+				for (int target : pending) {
+					Record record = decode(target);
+					synchronized (LazyWorld.this) {
+						if (!loaded.containsKey(target)
+								&& !decoded.containsKey(target)) {
+							decoded.put(target, record);
+							prefetches++;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the shared prefetch thread
+	 */
+	private static synchronized ExecutorService prefetcher() {
+		if (prefetcher == null)
+			prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "world-prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return prefetcher;
+	}
+
+	/**
+	 * Reads a string referenced from a position of the image
+	 */
+	private String string(int position) {
+		int index = payload.getInt(position);
+		if (index < 0)
+			return null;
+		int start = payload.getInt(stringOffsets + 4 * index);
+		int end = (index + 1 < stringCount) ? payload.getInt(stringOffsets + 4
+				* (index + 1)) : stringBytes;
+		byte[] utf8 = new byte[end - start];
+		ByteBuffer view = payload.duplicate();
+		view.position(stringData + start);
+		view.get(utf8);
+		return new String(utf8, UTF8);
+	}
+
+	/**
+	 * Returns the number of locations of the world.
+	 *
+	 * @return The number of locations.
+	 */
+	public int getLocationCount() {
+		return locationCount;
+	}
+
+	/**
+	 * Returns the number of locations loaded.
+	 *
+	 * @return The number of locations in memory (evicted ones excluded).
+	 */
+	public synchronized int getLoadedLocations() {
+		return loaded.size();
+	}
+
+	/**
+	 * Returns the estimated bytes of the locations loaded.
+	 *
+	 * @return The bytes.
+	 */
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	/**
+	 * Returns the number of locations created from the image.
+	 *
+	 * @return The number of loads.
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Returns the number of locations evicted.
+	 *
+	 * @return The number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of location records decoded in the background.
+	 *
+	 * @return The number of prefetches.
+	 */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	/**
+	 * Writes the world, with the evicted locations still referenced
+	 */
+	private synchronized void writeObject(ObjectOutputStream out)
+			throws IOException {
+		out.defaultWriteObject();
+		Map<Integer, Location> alive = new HashMap<Integer, Location>();
+		for (Map.Entry<Integer, LocationReference> e : evicted.entrySet()) {
+			Location location = e.getValue().get();
+			if (location != null)
+				alive.put(e.getKey(), location);
+		}
+		out.writeObject(alive);
+	}
+
+	/**
+	 * Reads the world, mapping its image again
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		decoded = new HashMap<Integer, Record>();
+		evicted = new HashMap<Integer, LocationReference>();
+		collected = new ReferenceQueue<Location>();
+		Map<Integer, Location> alive = (Map<Integer, Location>) in
+				.readObject();
+		for (Map.Entry<Integer, Location> e : alive.entrySet())
+			evicted.put(e.getKey(), new LocationReference(e.getValue(), e
+					.getKey(), collected));
+		try {
+			index();
+		} catch (InvalidGameDefinitionException e) {
+			throw new IOException("Invalid world image: " + file.getPath());
+		}
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * LazyWorld[file:loaded/locations]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + file + ":"
+				+ getLoadedLocations() + "/" + locationCount + "]";
+	}
+}
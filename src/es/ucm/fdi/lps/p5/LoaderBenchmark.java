@@ -0,0 +1,191 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Compares the XML parsers of the game definitions (SAX and StAX) on a
+ * synthetic world: a square grid of locations, every one with some items and
+ * connected to its neighbours, and a chain of obstacles with keys. For every
+ * parser it reports the mean load time and the peak heap used while loading.
+ * <p>
+ * Usage: LoaderBenchmark [locations] [itemsPerLocation] [rounds]
+ */
+public class LoaderBenchmark {
+
+	/**
+	 * Platform-independent line separator
+	 */
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            Number of locations, items per location and rounds.
+	 * @throws InvalidGameDefinitionException
+	 *             The synthetic world cannot be loaded.
+	 */
+	public static void main(String[] args)
+			throws InvalidGameDefinitionException {
+		int locations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int items = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+		byte[] world = syntheticWorld(locations, items).getBytes();
+		System.out.println("Synthetic world: " + locations + " locations, "
+				+ (locations * items) + " items, " + (world.length / 1024)
+				+ " KB");
+
+		GameLoader.XmlParser previous = GameLoader.getXmlParser();
+		try {
+			for (GameLoader.XmlParser parser : GameLoader.XmlParser.values()) {
+				GameLoader.setXmlParser(parser);
+				// Warm up
+				load(world);
+
+				long total = 0;
+				long peak = 0;
+				for (int i = 0; i < rounds; i++) {
+					System.gc();
+					long base = heapUsed();
+					resetPeaks();
+					long start = System.nanoTime();
+					load(world);
+					total += System.nanoTime() - start;
+					peak = Math.max(peak, peakHeap() - base);
+				}
+				System.out.println(parser + ": mean "
+						+ (total / rounds / 1000000) + " ms, peak heap "
+						+ (Math.max(peak, 0) / 1024) + " KB");
+			}
+		} finally {
+			GameLoader.setXmlParser(previous);
+		}
+	}
+
+	/**
+	 * Generates the XML definition of a synthetic world.
+	 *
+	 * @param locations
+	 *            The number of locations.
+	 * @param items
+	 *            The number of items of every location.
+	 * @return The definition.
+	 */
+	public static String syntheticWorld(int locations, int items) {
+		int side = Math.max(1, (int) Math.ceil(Math.sqrt(locations)));
+		StringBuilder xml = new StringBuilder(locations * (200 + items * 100));
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>").append(
+				LINE_SEPARATOR);
+		xml.append("<!DOCTYPE game SYSTEM \"game.dtd\">")
+				.append(LINE_SEPARATOR);
+		xml.append("<game title=\"Synthetic\" author=\"LoaderBenchmark\">")
+				.append(LINE_SEPARATOR);
+		xml.append("\tA synthetic world.").append(LINE_SEPARATOR);
+
+		for (int i = 0; i < locations; i++) {
+			xml.append("\t<location id=\"l").append(i).append(
+					"\" name=\"Room ").append(i).append("\">").append(
+					LINE_SEPARATOR);
+			xml.append("\t\tRoom number ").append(i).append(LINE_SEPARATOR);
+			for (int j = 0; j < items; j++) {
+				xml.append("\t\t<item id=\"i").append(i).append('_').append(j)
+						.append("\" name=\"Item").append(j).append(
+								"\" value=\"").append(j).append(
+								"\" weight=\"1\">").append(LINE_SEPARATOR);
+				xml.append("\t\t\tItem ").append(j).append(" of room ")
+						.append(i).append(LINE_SEPARATOR);
+				xml.append("\t\t</item>").append(LINE_SEPARATOR);
+			}
+			int row = i / side;
+			int col = i % side;
+			if (col + 1 < side && i + 1 < locations)
+				connection(xml, "e", i + 1, hasObstacle(i, side, locations) ? i
+						: -1, hasObstacle(i - 10, side, locations) ? i - 10
+						: -1);
+			if (col > 0)
+				connection(xml, "w", i - 1, -1, -1);
+			if (i + side < locations)
+				connection(xml, "s", i + side, -1, -1);
+			if (row > 0)
+				connection(xml, "n", i - side, -1, -1);
+			xml.append("\t</location>").append(LINE_SEPARATOR);
+		}
+		xml.append("</game>").append(LINE_SEPARATOR);
+		return xml.toString();
+	}
+
+	/**
+	 * Checks whether a room of the synthetic world has an obstacle: every
+	 * tenth room with a connection to the east
+	 */
+	private static boolean hasObstacle(int i, int side, int locations) {
+		return (i >= 0) && (i % 10 == 0) && (i % side + 1 < side)
+				&& (i + 1 < locations);
+	}
+
+	/**
+	 * Appends a connection, with an obstacle if 'obstacle' is not negative.
+	 * Every obstacle is unlocked by the first item of its room and it is
+	 * bounded to the obstacle 'previous' if it is not negative.
+	 */
+	private static void connection(StringBuilder xml, String dir, int target,
+			int obstacle, int previous) {
+		xml.append("\t\t<connection dir=\"").append(dir).append(
+				"\" target=\"l").append(target).append("\">").append(
+				LINE_SEPARATOR);
+		if (obstacle >= 0) {
+			xml.append("\t\t\t<obstacle id=\"o").append(obstacle).append(
+					"\" name=\"Door\" status=\"true\" errorMsg=\"Closed\">")
+					.append(LINE_SEPARATOR);
+			xml.append("\t\t\t\tA door").append(LINE_SEPARATOR);
+			xml.append("\t\t\t\t<item-ref id=\"i").append(obstacle).append(
+					"_0\"/>").append(LINE_SEPARATOR);
+			if (previous >= 0)
+				xml.append("\t\t\t\t<obstacle-ref id=\"o").append(previous)
+						.append("\"/>").append(LINE_SEPARATOR);
+			xml.append("\t\t\t</obstacle>").append(LINE_SEPARATOR);
+		}
+		xml.append("\t\t</connection>").append(LINE_SEPARATOR);
+	}
+
+	private static Game load(byte[] world)
+			throws InvalidGameDefinitionException {
+		return new Game(new ByteArrayInputStream(world), GameLoader.Format.XML);
+	}
+
+	private static long heapUsed() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools())
+			used += pool.getUsage().getUsed();
+		return used;
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools())
+			peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static void resetPeaks() {
+		for (MemoryPoolMXBean pool : heapPools())
+			pool.resetPeakUsage();
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = ManagementFactory
+				.getMemoryPoolMXBeans();
+		for (int i = pools.size() - 1; i >= 0; i--)
+			if (pools.get(i).getType() != MemoryType.HEAP)
+				pools.remove(i);
+		return pools;
+	}
+}
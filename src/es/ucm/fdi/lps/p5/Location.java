@@ -75,6 +75,32 @@ public class Location implements Serializable {
 	 */
 	private ItemRepository items;
 
+	/**
+	 * Modification stamp of the location. It changes every time the rendered
+	 * view of the location may change (items added or removed, connections
+	 * set or obstacles added, removed or flipped).
+	 */
+	private long version;
+
+	/**
+	 * Modification stamp of the location as defined, when the game was
+	 * loaded
+	 */
+	private long pristineVersion;
+
+	/**
+	 * The changes of the game, where this location records itself when it
+	 * changes (null before the game has been loaded)
+	 */
+	private GameChanges changes;
+
+	/**
+	 * The lazy world of the location and its index in it, if its connections
+	 * are resolved on demand (see LazyWorld); null otherwise
+	 */
+	private LazyWorld world;
+	private int index;
+
 	/**
 	 * Constructs a location with a given id, a given name and a given
 	 * description. By default, it is not an exit location (it has no exit
@@ -143,8 +169,10 @@ public class Location implements Serializable {
 		if (items.hasItem(item)) {
 			throw new ItemAlreadyInRepositoryException(
 					"Error: ItemAlreadyInRepositoryException");
-		} else
+		} else {
 			items.addItem(item);
+			touch();
+		}
 	}
 
 	/**
@@ -212,6 +240,8 @@ public class Location implements Serializable {
 	public boolean hasConnectedLocation(Direction direction) {
 		if (direction == null)
 			throw new IllegalArgumentException();
+		if ((world != null) && !adjacentLocations.containsKey(direction))
+			return world.hasConnection(index, direction);
 		return (adjacentLocations.get(direction) != null);
 	}
 
@@ -270,10 +300,13 @@ public class Location implements Serializable {
 	public Location getConnectedLocation(Direction direction) {
 		if (direction == null)
 			throw new IllegalArgumentException();
-		if (adjacentLocations.get(direction) == null)
+		Location location = adjacentLocations.get(direction);
+		if ((location == null) && (world != null))
+			location = world.getConnectedLocation(index, direction);
+		if (location == null)
 			throw new NoConnectedLocationException(
 					"Error: NoConnectedLocationException");
-		return adjacentLocations.get(direction);
+		return location;
 	}
 
 	/**
@@ -287,6 +320,7 @@ public class Location implements Serializable {
 	public void removeItem(Item item) {
 		if (items.hasItem(item)) {
 			items.removeItem(item);
+			touch();
 		} else
 			throw new ItemNotInRepositoryException(
 					"Error: ItemNotInRepositoryException");
@@ -318,6 +352,7 @@ public class Location implements Serializable {
 		if ((direction == null) || (location == null))
 			throw new IllegalArgumentException();
 		adjacentLocations.put(direction, location);
+		touch();
 	}
 
 	/**
@@ -328,24 +363,9 @@ public class Location implements Serializable {
 	 * @return The string with the availabe connections
 	 */
 	public String showConnections(boolean statusFlag) {
-		String temp = "The available directions from this location are: "
-				+ LINE_SEPARATOR;
-		for (Direction direction : Direction.values()) {
-			if (hasConnectedLocation(direction)) {
-				temp += direction.name();
-				if (statusFlag) {
-					if (hasObstacle(direction)) {
-						if (getObstacleStatus(direction)) {
-							temp += " " + "[CLOSED]";
-						} else
-							temp += " " + "[OPEN]";
-					} else
-						temp += " " + "[CLEAR]";
-				}
-				temp += LINE_SEPARATOR;
-			}
-		}
-		return temp;
+		StringBuilder temp = new StringBuilder();
+		new Renderer(temp).renderConnections(this, statusFlag);
+		return temp.toString();
 	}
 
 	/**
@@ -363,6 +383,8 @@ public class Location implements Serializable {
 			throw new IllegalArgumentException();
 		} else {
 			obstacles.put(direction, obstacle);
+			obstacle.setLocation(this);
+			touch();
 		}
 	}
 
@@ -379,6 +401,7 @@ public class Location implements Serializable {
 			throw new IllegalArgumentException();
 		} else {
 			obstacles.remove(direction);
+			touch();
 		}
 	}
 
@@ -434,6 +457,72 @@ public class Location implements Serializable {
 			return null;
 	}
 
+	/**
+	 * Returns the modification stamp of this location. Two renders of the
+	 * location with the same stamp are identical.
+	 * 
+	 * @return The modification stamp.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Attaches this location to a lazy world, which resolves its connections
+	 * on demand.
+	 * 
+	 * @param world
+	 *            The world.
+	 * @param index
+	 *            The index of this location in the world.
+	 */
+	void attach(LazyWorld world, int index) {
+		this.world = world;
+		this.index = index;
+	}
+
+	/**
+	 * Marks the current state of this location as its state in the game
+	 * definition, when the game has been loaded.
+	 * 
+	 * @param changes
+	 *            The changes of the game, where this location records itself
+	 *            when it changes.
+	 */
+	void markPristine(GameChanges changes) {
+		pristineVersion = version;
+		this.changes = changes;
+	}
+
+	/**
+	 * Checks whether this location may have changed since the game was
+	 * loaded (see markPristine).
+	 * 
+	 * @return true if it may have changed.
+	 */
+	boolean isChanged() {
+		return version != pristineVersion;
+	}
+
+	/**
+	 * Checks whether this location belongs to a lazy world.
+	 * 
+	 * @return true if its connections are resolved on demand.
+	 */
+	boolean isLazy() {
+		return world != null;
+	}
+
+	/**
+	 * Changes the modification stamp of this location, so any cached render
+	 * of it becomes stale.
+	 */
+	void touch() {
+		version++;
+		if (changes != null)
+			changes.add(this);
+	}
+
 	/**
 	 * Returns a String representation for this object: Location[]. This is
 	 * useful for debugging purposes.
@@ -0,0 +1,256 @@
+package es.ucm.fdi.lps.p5;
+
+/**
+ * Represents the way a location is rendered for the player: which parts of it
+ * are shown (description, items, connections), the messages used and the
+ * layout (the engine start banner or the result of a command). It is
+ * immutable, so two equal views always produce the same text for the same
+ * location version and can be used as cache keys.
+ */
+public class LocationView {
+
+	/**
+	 * Platform-independent line separator
+	 */
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	private final boolean banner;
+	private final boolean showDescription;
+	private final boolean showItems;
+	private final boolean showItemsValue;
+	private final boolean showItemsWeight;
+	private final boolean showConnections;
+	private final boolean showConnectionsState;
+	private final int pageSize;
+	private final int page;
+	private final String msgWithItems;
+	private final String msgWithoutItems;
+
+	/**
+	 * Constructs a location view.
+	 * 
+	 * @param banner
+	 *            true for the layout of the engine start banner (every part
+	 *            followed by a blank line); false for the layout of a command
+	 *            result.
+	 * @param showDescription
+	 *            Show the name and the description of the location.
+	 * @param showItems
+	 *            Show the items of the location.
+	 * @param showItemsValue
+	 *            Show the value of the items.
+	 * @param showItemsWeight
+	 *            Show the weight of the items.
+	 * @param showConnections
+	 *            Show the available connections.
+	 * @param showConnectionsState
+	 *            Show the status of the connections.
+	 * @param pageSize
+	 *            Maximum number of items shown (0 means no limit).
+	 * @param msgWithItems
+	 *            Message of location with items.
+	 * @param msgWithoutItems
+	 *            Message of location without items.
+	 * @throws IllegalArgumentException
+	 *             The messages cannot be null.
+	 */
+	public LocationView(boolean banner, boolean showDescription,
+			boolean showItems, boolean showItemsValue, boolean showItemsWeight,
+			boolean showConnections, boolean showConnectionsState,
+			int pageSize, String msgWithItems, String msgWithoutItems) {
+		this(banner, showDescription, showItems, showItemsValue,
+				showItemsWeight, showConnections, showConnectionsState,
+				pageSize, 1, msgWithItems, msgWithoutItems);
+	}
+
+	/**
+	 * Constructs a location view that shows a given page of the items.
+	 * 
+	 * @param banner
+	 *            true for the layout of the engine start banner (every part
+	 *            followed by a blank line); false for the layout of a command
+	 *            result.
+	 * @param showDescription
+	 *            Show the name and the description of the location.
+	 * @param showItems
+	 *            Show the items of the location.
+	 * @param showItemsValue
+	 *            Show the value of the items.
+	 * @param showItemsWeight
+	 *            Show the weight of the items.
+	 * @param showConnections
+	 *            Show the available connections.
+	 * @param showConnectionsState
+	 *            Show the status of the connections.
+	 * @param pageSize
+	 *            Maximum number of items shown (0 means no limit).
+	 * @param page
+	 *            The page of the items shown, from 1.
+	 * @param msgWithItems
+	 *            Message of location with items.
+	 * @param msgWithoutItems
+	 *            Message of location without items.
+	 * @throws IllegalArgumentException
+	 *             The messages cannot be null and the page must be positive.
+	 */
+	public LocationView(boolean banner, boolean showDescription,
+			boolean showItems, boolean showItemsValue, boolean showItemsWeight,
+			boolean showConnections, boolean showConnectionsState,
+			int pageSize, int page, String msgWithItems,
+			String msgWithoutItems) {
+		if ((msgWithItems == null) || (msgWithoutItems == null) || (page < 1))
+			throw new IllegalArgumentException();
+		this.banner = banner;
+		this.showDescription = showDescription;
+		this.showItems = showItems;
+		this.showItemsValue = showItemsValue;
+		this.showItemsWeight = showItemsWeight;
+		this.showConnections = showConnections;
+		this.showConnectionsState = showConnectionsState;
+		this.pageSize = pageSize;
+		this.page = page;
+		this.msgWithItems = msgWithItems;
+		this.msgWithoutItems = msgWithoutItems;
+	}
+
+	/**
+	 * Returns the maximum number of items shown (0 means no limit).
+	 * 
+	 * @return The page size.
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Returns the page of the items shown, from 1.
+	 * 
+	 * @return The page.
+	 */
+	public int getPage() {
+		return page;
+	}
+
+	/**
+	 * Renders a location following this view.
+	 * 
+	 * @param location
+	 *            The location.
+	 * @param renderer
+	 *            The renderer of the output sink.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'location' and 'renderer' cannot be null.
+	 */
+	public void render(Location location, Renderer renderer) {
+		if ((location == null) || (renderer == null))
+			throw new IllegalArgumentException();
+
+		if (banner)
+			renderBanner(location, renderer);
+		else
+			renderResult(location, renderer);
+	}
+
+	/**
+	 * Renders the location with the layout of the engine start banner
+	 */
+	private void renderBanner(Location location, Renderer renderer) {
+		if (showDescription) {
+			renderer.write(location.getName()).write(LINE_SEPARATOR);
+			renderer.write(location.getDescription()).write(LINE_SEPARATOR);
+			renderer.write(LINE_SEPARATOR);
+		}
+
+		if (showItems) {
+			if (location.getAllItems().isEmpty()) {
+				renderer.write(msgWithoutItems).write(LINE_SEPARATOR);
+				renderer.write(LINE_SEPARATOR);
+			} else {
+				renderer.write(msgWithItems);
+				renderer.renderItems(location.getAllItems(), page,
+						showItemsValue, showItemsWeight);
+				renderer.write(LINE_SEPARATOR);
+			}
+		}
+
+		if (showConnections) {
+			renderer.renderConnections(location, showConnectionsState);
+			renderer.write(LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * Renders the location with the layout of a command result
+	 */
+	private void renderResult(Location location, Renderer renderer) {
+		if (showDescription) {
+			renderer.write(location.getName()).write(LINE_SEPARATOR);
+			renderer.write(location.getDescription()).write(LINE_SEPARATOR);
+		}
+
+		if (showItems) {
+			if (location.getAllItems().isEmpty()) {
+				renderer.write(LINE_SEPARATOR).write(msgWithoutItems)
+						.write(LINE_SEPARATOR);
+			} else {
+				renderer.write(LINE_SEPARATOR).write(msgWithItems);
+				renderer.renderItems(location.getAllItems(), page,
+						showItemsValue, showItemsWeight);
+				renderer.write(LINE_SEPARATOR);
+			}
+		}
+
+		if (showConnections)
+			renderer.renderConnections(location, showConnectionsState);
+	}
+
+	/**
+	 * Two views are equal when they render every location the same way.
+	 * 
+	 * @see Object#equals(Object)
+	 */
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof LocationView))
+			return false;
+		LocationView other = (LocationView) obj;
+		return (banner == other.banner)
+				&& (showDescription == other.showDescription)
+				&& (showItems == other.showItems)
+				&& (showItemsValue == other.showItemsValue)
+				&& (showItemsWeight == other.showItemsWeight)
+				&& (showConnections == other.showConnections)
+				&& (showConnectionsState == other.showConnectionsState)
+				&& (pageSize == other.pageSize) && (page == other.page)
+				&& msgWithItems.equals(other.msgWithItems)
+				&& msgWithoutItems.equals(other.msgWithoutItems);
+	}
+
+	/**
+	 * @see Object#hashCode()
+	 */
+	public int hashCode() {
+		int flags = (banner ? 1 : 0) | (showDescription ? 2 : 0)
+				| (showItems ? 4 : 0) | (showItemsValue ? 8 : 0)
+				| (showItemsWeight ? 16 : 0) | (showConnections ? 32 : 0)
+				| (showConnectionsState ? 64 : 0);
+		int hash = flags;
+		hash = 31 * hash + pageSize;
+		hash = 31 * hash + page;
+		hash = 31 * hash + msgWithItems.hashCode();
+		hash = 31 * hash + msgWithoutItems.hashCode();
+		return hash;
+	}
+
+	/**
+	 * Returns a String representation for this object: LocationView[]. This is
+	 * useful for debugging purposes.
+	 * 
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + hashCode() + "]";
+	}
+}
@@ -0,0 +1,217 @@
+package es.ucm.fdi.lps.p5;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Represents a cache of rendered location views, shared by every game that
+ * uses it: all its methods are synchronized. The renders of the locations
+ * still in the state of their definition (see Location.isChanged) are keyed
+ * by the fingerprint of the definition, the id of the location and the view,
+ * so they are reused across the games of the same definition. The renders of
+ * the changed locations belong to their game, and they are kept by the game
+ * itself (see Game.reportLocationView) in a cache of its own, keyed by the id
+ * of the location and the view and validated by the modification stamp of
+ * the location. The least recently used entries are discarded when the cache
+ * is full.
+ */
+public class LocationViewCache {
+
+	/**
+	 * Default maximum number of entries
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * The cached renders
+	 */
+	private Map<Key, CachedView> entries;
+
+	/**
+	 * Number of renders served from the cache
+	 */
+	private long hits;
+
+	/**
+	 * Number of renders that had to be built
+	 */
+	private long misses;
+
+	/**
+	 * Constructs an empty cache with the default capacity.
+	 */
+	public LocationViewCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs an empty cache with a given capacity.
+	 * 
+	 * @param capacity
+	 *            The maximum number of entries.
+	 * @throws IllegalArgumentException
+	 *             The capacity must be positive.
+	 */
+	public LocationViewCache(final int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		entries = new LinkedHashMap<Key, CachedView>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CachedView> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Renders a location in the state of its definition following a view,
+	 * reusing the render of the same location of any game of the same
+	 * definition.
+	 * 
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 * @param location
+	 *            The location, not changed since the game was loaded.
+	 * @param view
+	 *            The view.
+	 * @return The rendered text.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 */
+	public String render(String fingerprint, Location location,
+			LocationView view) {
+		if ((fingerprint == null) || (location == null) || (view == null))
+			throw new IllegalArgumentException();
+
+		return render(new Key(fingerprint, location.getId(), view), 0,
+				location, view);
+	}
+
+	/**
+	 * Renders a location of a single game following a view, reusing the
+	 * previous render if the location has not changed since then. The cache
+	 * must not be shared by other games.
+	 * 
+	 * @param location
+	 *            The location.
+	 * @param view
+	 *            The view.
+	 * @return The rendered text.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'location' and 'view' cannot be null.
+	 */
+	public String render(Location location, LocationView view) {
+		if ((location == null) || (view == null))
+			throw new IllegalArgumentException();
+
+		return render(new Key(null, location.getId(), view), location
+				.getVersion(), location, view);
+	}
+
+	/**
+	 * Renders a location, reusing the render of a key with the same stamp.
+	 * The location is rendered out of the lock.
+	 */
+	private String render(Key key, long version, Location location,
+			LocationView view) {
+		synchronized (this) {
+			CachedView cached = entries.get(key);
+			if ((cached != null) && (cached.version == version)) {
+				hits++;
+				return cached.text;
+			}
+			misses++;
+		}
+
+		StringBuilder temp = new StringBuilder();
+		view.render(location, new Renderer(temp, view.getPageSize()));
+		String text = temp.toString();
+		synchronized (this) {
+			entries.put(key, new CachedView(version, text));
+		}
+		return text;
+	}
+
+	/**
+	 * Discards every cached render.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of renders served from the cache.
+	 * 
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of renders that had to be built.
+	 * 
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * LocationViewCache[hits/misses]. This is useful for debugging purposes.
+	 * 
+	 * @see Object#toString()
+	 */
+	public synchronized String toString() {
+		return this.getClass().getSimpleName() + "[" + hits + "/" + misses
+				+ "]";
+	}
+
+	/**
+	 * Cache key: the fingerprint of the definition (null for the renders of
+	 * a single game), the id of the location and the view (by value)
+	 */
+	private static class Key {
+		private final String fingerprint;
+		private final String id;
+		private final LocationView view;
+
+		private Key(String fingerprint, String id, LocationView view) {
+			this.fingerprint = fingerprint;
+			this.id = id;
+			this.view = view;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return ((fingerprint == null) ? (other.fingerprint == null)
+					: fingerprint.equals(other.fingerprint))
+					&& id.equals(other.id) && view.equals(other.view);
+		}
+
+		public int hashCode() {
+			int hash = (fingerprint == null) ? 0 : fingerprint.hashCode();
+			hash = 31 * hash + id.hashCode();
+			return 31 * hash + view.hashCode();
+		}
+	}
+
+	/**
+	 * Cached render: the rendered text and the location stamp it belongs to
+	 * (0 for the renders of a definition)
+	 */
+	private static class CachedView {
+		private final long version;
+		private final String text;
+
+		private CachedView(long version, String text) {
+			this.version = version;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,763 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the values in a few large segment files of a directory, appending
+ * them (log-structured), instead of a file per key: storing a value costs a
+ * write and a sync of the segment being appended, and no file is created.
+ * <p>
+ * Every record holds its length and the CRC32 of its contents (whether it
+ * stores or removes a key, the key and the value). The index of the records
+ * of the keys stored is kept in memory, and it is rebuilt when the storage
+ * is opened, reading the segments in order; a torn record at the end of a
+ * segment (an abrupt end while it was appended) is cut off. The segment
+ * being appended is sealed when it reaches its maximum length, and a new
+ * one is started.
+ * <p>
+ * The records replaced or removed are garbage. A sealed segment which is
+ * mostly garbage is compacted in the background, in a thread shared by every
+ * storage: its live records are appended again and it is deleted. The
+ * records that remove a key are kept while an older segment may hold the
+ * key.
+ * <p>
+ * Syncs are shared (group commit): a value is durable when put returns, but
+ * the values put concurrently are synced together. The values read are kept
+ * in a cache of bounded size, the least recently used are evicted.
+ */
+public class LogSessionStore implements SessionStore {
+
+	/**
+	 * Magic number of the segments ("P5SS")
+	 */
+	public static final int MAGIC = 0x50355353;
+
+	/**
+	 * Current version of the segment format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Default maximum length of the segments
+	 */
+	public static final long DEFAULT_SEGMENT_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Default size of the cache of values read
+	 */
+	public static final long DEFAULT_CACHE_LENGTH = 4 * 1024 * 1024;
+
+	/**
+	 * Fraction of garbage above which a sealed segment is compacted
+	 */
+	public static final double COMPACTION_THRESHOLD = 0.5;
+
+	/**
+	 * Extension of the segment files
+	 */
+	public static final String EXTENSION = ".seg";
+
+	/**
+	 * Length of the header of the segments: magic, version and reserved
+	 */
+	private static final int HEADER_LENGTH = 8;
+
+	/**
+	 * Length of the header of the records: length and CRC32 of the contents
+	 */
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	/**
+	 * Kinds of records
+	 */
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	/**
+	 * Shared compaction thread, created on demand
+	 */
+	private static ExecutorService executor;
+
+	private File directory;
+	private long segmentLength;
+	private long cacheLength;
+
+	/**
+	 * The segments by number, and the one being appended
+	 */
+	private TreeMap<Integer, Segment> segments;
+	private Segment active;
+
+	/**
+	 * The records of the keys stored
+	 */
+	private Map<String, Pointer> index;
+
+	/**
+	 * The values read, in access order, and their total length
+	 */
+	private LinkedHashMap<String, byte[]> cache;
+	private long cached;
+
+	private boolean compacting;
+	private boolean closed;
+
+	/**
+	 * Statistics
+	 */
+	private long hits;
+	private long misses;
+	private long compactions;
+	private long truncated;
+
+	/**
+	 * Opens the storage of a directory, with the default segment length and
+	 * cache size.
+	 *
+	 * @param directory
+	 *            The directory, created if it does not exist.
+	 * @throws IllegalArgumentException
+	 *             The argument 'directory' cannot be null.
+	 * @throws IOException
+	 *             The segments cannot be read.
+	 */
+	public LogSessionStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_LENGTH, DEFAULT_CACHE_LENGTH);
+	}
+
+	/**
+	 * Opens the storage of a directory, rebuilding its index from the
+	 * segments.
+	 *
+	 * @param directory
+	 *            The directory, created if it does not exist.
+	 * @param segmentLength
+	 *            The maximum length of the segments.
+	 * @param cacheLength
+	 *            The size of the cache of values read (0 for no cache).
+	 * @throws IllegalArgumentException
+	 *             The argument 'directory' cannot be null, the segment length
+	 *             must be positive and the cache size cannot be negative.
+	 * @throws IOException
+	 *             The segments cannot be read.
+	 */
+	public LogSessionStore(File directory, long segmentLength, long cacheLength)
+			throws IOException {
+		if ((directory == null) || (segmentLength <= 0) || (cacheLength < 0))
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		this.segmentLength = segmentLength;
+		this.cacheLength = cacheLength;
+		directory.mkdirs();
+
+		segments = new TreeMap<Integer, Segment>();
+		index = new HashMap<String, Pointer>();
+		cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + directory.getPath());
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(EXTENSION))
+				continue;
+			try {
+				int number = Integer.parseInt(name.substring(0, name.length()
+						- EXTENSION.length()));
+				segments.put(number, new Segment(number, file));
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		for (Segment segment : segments.values())
+			recover(segment);
+		for (Pointer pointer : index.values())
+			pointer.segment.live += pointer.length;
+
+		if (segments.isEmpty())
+			active = create(1);
+		else
+			active = segments.lastEntry().getValue();
+		if (active.length >= segmentLength)
+			active = create(active.number + 1);
+	}
+
+	/**
+	 * Reads the records of a segment into the index, cutting off a torn or
+	 * corrupt tail
+	 */
+	private void recover(Segment segment) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate((int) segment.channel.size());
+		while (data.hasRemaining()
+				&& (segment.channel.read(data, data.position()) > 0))
+			;
+		data.flip();
+		if ((data.remaining() < HEADER_LENGTH) || (data.getInt() != MAGIC)
+				|| (data.getShort() != VERSION)) {
+			// Not even a complete header: started again
+			segment.channel.truncate(0);
+			segment.writeHeader();
+			return;
+		}
+		data.getShort();
+
+		long offset = HEADER_LENGTH;
+		while (data.remaining() >= RECORD_HEADER_LENGTH) {
+			int length = data.getInt();
+			int checksum = data.getInt();
+			if ((length <= 0) || (length > data.remaining()))
+				break;
+			byte[] contents = new byte[length];
+			data.get(contents);
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			if ((int) crc.getValue() != checksum)
+				break;
+			Record record = Record.decode(contents);
+			if (record == null)
+				break;
+			int recordLength = RECORD_HEADER_LENGTH + length;
+			if (record.kind == PUT)
+				index.put(record.key, new Pointer(segment, offset,
+						recordLength));
+			else
+				index.remove(record.key);
+			offset += recordLength;
+		}
+		if (offset < segment.channel.size()) {
+			segment.channel.truncate(offset);
+			segment.channel.force(true);
+			truncated++;
+		}
+		segment.length = offset;
+		segment.synced = offset;
+	}
+
+	/**
+	 * @see SessionStore#put(String, byte[])
+	 */
+	public void put(String key, byte[] value) throws IOException {
+		if ((key == null) || (value == null))
+			throw new IllegalArgumentException();
+
+		Segment segment;
+		long end;
+		synchronized (this) {
+			checkOpen();
+			Pointer pointer = append(new Record(PUT, key, value));
+			forget(index.put(key, pointer));
+			pointer.segment.live += pointer.length;
+			uncache(key);
+			segment = pointer.segment;
+			end = pointer.offset + pointer.length;
+			afterAppend();
+		}
+		segment.sync(end);
+	}
+
+	/**
+	 * @see SessionStore#get(String)
+	 */
+	public synchronized byte[] get(String key) throws IOException {
+		if (key == null)
+			throw new IllegalArgumentException();
+		checkOpen();
+
+		byte[] value = cache.get(key);
+		if (value != null) {
+			hits++;
+			return value.clone();
+		}
+		Pointer pointer = index.get(key);
+		if (pointer == null)
+			return null;
+		misses++;
+		value = read(pointer).value;
+		if (value.length <= cacheLength) {
+			cache.put(key, value);
+			cached += value.length;
+			Iterator<byte[]> i = cache.values().iterator();
+			while (cached > cacheLength) {
+				cached -= i.next().length;
+				i.remove();
+			}
+		}
+		return value.clone();
+	}
+
+	/**
+	 * @see SessionStore#contains(String)
+	 */
+	public synchronized boolean contains(String key) {
+		if (key == null)
+			throw new IllegalArgumentException();
+		return index.containsKey(key);
+	}
+
+	/**
+	 * @see SessionStore#remove(String)
+	 */
+	public boolean remove(String key) throws IOException {
+		if (key == null)
+			throw new IllegalArgumentException();
+
+		Segment segment;
+		long end;
+		synchronized (this) {
+			checkOpen();
+			if (!index.containsKey(key))
+				return false;
+			Pointer pointer = append(new Record(REMOVE, key, new byte[0]));
+			forget(index.remove(key));
+			uncache(key);
+			segment = pointer.segment;
+			end = pointer.offset + pointer.length;
+			afterAppend();
+		}
+		segment.sync(end);
+		return true;
+	}
+
+	/**
+	 * @see SessionStore#keys()
+	 */
+	public synchronized Set<String> keys() {
+		return new TreeSet<String>(index.keySet());
+	}
+
+	/**
+	 * Syncs and closes the segments. A compaction in progress is abandoned
+	 * (it is done again when the storage is opened).
+	 *
+	 * @see SessionStore#close()
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		IOException failure = null;
+		for (Segment segment : segments.values()) {
+			try {
+				segment.channel.force(true);
+				segment.file.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		cache.clear();
+		cached = 0;
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Appends a record to the active segment (holding the lock)
+	 */
+	private Pointer append(Record record) throws IOException {
+		byte[] bytes = record.encode();
+		Segment segment = active;
+		long offset = segment.length;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+			segment.channel.write(buffer, offset + buffer.position());
+		segment.length += bytes.length;
+		return new Pointer(segment, offset, bytes.length);
+	}
+
+	/**
+	 * Seals the active segment if it is full and schedules a compaction if a
+	 * sealed segment is mostly garbage (holding the lock)
+	 */
+	private void afterAppend() throws IOException {
+		if (active.length >= segmentLength)
+			active = create(active.number + 1);
+		if (!compacting && (victim() != null)) {
+			compacting = true;
+			executor().execute(new Runnable() {
+				public void run() {
+					compact();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the oldest sealed segment which is mostly garbage, null if
+	 * there is none (holding the lock)
+	 */
+	private Segment victim() {
+		for (Segment segment : segments.values())
+			if ((segment != active)
+					&& (segment.live < (segment.length - HEADER_LENGTH)
+							* (1 - COMPACTION_THRESHOLD)))
+				return segment;
+		return null;
+	}
+
+	/**
+	 * Compacts the sealed segments which are mostly garbage, in the
+	 * compaction thread: their live records are appended again, one by one
+	 * (so the storage is not blocked), and they are deleted
+	 */
+	private void compact() {
+		while (true) {
+			Segment segment;
+			synchronized (this) {
+				segment = closed ? null : victim();
+				if (segment == null) {
+					compacting = false;
+					return;
+				}
+			}
+			try {
+				compact(segment);
+			} catch (IOException e) {
+				synchronized (this) {
+					// Tried again after the next append
+					compacting = false;
+					return;
+				}
+			}
+		}
+	}
+
+	private void compact(Segment segment) throws IOException {
+		// A sealed segment is not appended any more: it is read unlocked
+		ByteBuffer data = ByteBuffer.allocate((int) segment.length);
+		while (data.hasRemaining()
+				&& (segment.channel.read(data, data.position()) > 0))
+			;
+		data.position(HEADER_LENGTH);
+
+		long end = 0;
+		while (data.remaining() >= RECORD_HEADER_LENGTH) {
+			long offset = data.position();
+			int length = data.getInt();
+			data.getInt();
+			byte[] contents = new byte[length];
+			data.get(contents);
+			Record record = Record.decode(contents);
+			synchronized (this) {
+				if (closed)
+					return;
+				Pointer pointer = index.get(record.key);
+				if ((record.kind == PUT) && (pointer != null)
+						&& (pointer.segment == segment)
+						&& (pointer.offset == offset)) {
+					Pointer moved = append(record);
+					index.put(record.key, moved);
+					moved.segment.live += moved.length;
+					end = moved.offset + moved.length;
+				} else if ((record.kind == REMOVE) && (pointer == null)
+						&& (segments.firstKey() < segment.number)) {
+					// An older segment may still hold the key
+					Pointer moved = append(record);
+					end = moved.offset + moved.length;
+				}
+				if (active.length >= segmentLength) {
+					active.sync(active.length);
+					active = create(active.number + 1);
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (closed)
+				return;
+			active.sync(Math.max(end, active.synced));
+			segments.remove(segment.number);
+			segment.file.close();
+			segment.path.delete();
+			compactions++;
+		}
+	}
+
+	/**
+	 * Reads a record, validating its checksum (holding the lock)
+	 */
+	private Record read(Pointer pointer) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(pointer.length);
+		while (data.hasRemaining()
+				&& (pointer.segment.channel.read(data, pointer.offset
+						+ data.position()) > 0))
+			;
+		data.flip();
+		int length = data.getInt();
+		int checksum = data.getInt();
+		byte[] contents = new byte[length];
+		data.get(contents);
+		CRC32 crc = new CRC32();
+		crc.update(contents);
+		Record record = Record.decode(contents);
+		if (((int) crc.getValue() != checksum) || (record == null))
+			throw new IOException("Corrupt record in "
+					+ pointer.segment.path.getPath());
+		return record;
+	}
+
+	/**
+	 * Accounts a replaced or removed record as garbage (holding the lock)
+	 */
+	private void forget(Pointer pointer) {
+		if (pointer != null)
+			pointer.segment.live -= pointer.length;
+	}
+
+	private void uncache(String key) {
+		byte[] value = cache.remove(key);
+		if (value != null)
+			cached -= value.length;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed)
+			throw new IOException("Closed storage: " + directory.getPath());
+	}
+
+	/**
+	 * Creates a new segment (holding the lock)
+	 */
+	private Segment create(int number) throws IOException {
+		File file = new File(directory, String.format("%08d", number)
+				+ EXTENSION);
+		Segment segment = new Segment(number, file);
+		segment.channel.truncate(0);
+		segment.writeHeader();
+		segments.put(number, segment);
+		return segment;
+	}
+
+	/**
+	 * Returns the number of values read from the cache.
+	 *
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of values read from the segments.
+	 *
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of segments compacted.
+	 *
+	 * @return The number of compactions.
+	 */
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 * Returns the number of segments with a torn tail cut off when the
+	 * storage was opened.
+	 *
+	 * @return The number of segments.
+	 */
+	public synchronized long getTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return The number of segments.
+	 */
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the shared compaction thread
+	 */
+	private static synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "store-compaction");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * LogSessionStore[directory:keys/segments]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public synchronized String toString() {
+		return this.getClass().getSimpleName() + "[" + directory + ":"
+				+ index.size() + "/" + segments.size() + "]";
+	}
+
+	/**
+	 * Represents a segment file
+	 */
+	private static class Segment {
+
+		private int number;
+		private File path;
+		private RandomAccessFile file;
+		private FileChannel channel;
+
+		/**
+		 * Length (appended, guarded by the storage) and length synced
+		 * (guarded by the segment)
+		 */
+		private volatile long length;
+		private long synced;
+
+		/**
+		 * Length of the live records (guarded by the storage)
+		 */
+		private long live;
+
+		private Segment(int number, File path) throws IOException {
+			this.number = number;
+			this.path = path;
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+		}
+
+		private void writeHeader() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC);
+			header.putShort(VERSION);
+			header.putShort((short) 0);
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+			channel.force(true);
+			length = HEADER_LENGTH;
+			synced = HEADER_LENGTH;
+		}
+
+		/**
+		 * Syncs the segment up to a length at least: a sync covers every
+		 * record appended before it, so the threads waiting for it do not
+		 * sync again
+		 */
+		private synchronized void sync(long end) throws IOException {
+			if (synced >= end)
+				return;
+			long target = length;
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Compacted: its live records were synced elsewhere
+				return;
+			}
+			synced = target;
+		}
+	}
+
+	/**
+	 * Represents the position of a record in a segment
+	 */
+	private static class Pointer {
+
+		private Segment segment;
+		private long offset;
+		private int length;
+
+		private Pointer(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Represents a record: it stores or removes a key
+	 */
+	private static class Record {
+
+		private byte kind;
+		private String key;
+		private byte[] value;
+
+		private Record(byte kind, String key, byte[] value) {
+			this.kind = kind;
+			this.key = key;
+			this.value = value;
+		}
+
+		/**
+		 * Encodes the record, with its length and checksum
+		 */
+		private byte[] encode() {
+			try {
+				ByteArrayOutputStream contents = new ByteArrayOutputStream(
+						value.length + key.length() + 8);
+				DataOutputStream out = new DataOutputStream(contents);
+				out.writeByte(kind);
+				out.writeUTF(key);
+				out.write(value);
+				out.flush();
+				CRC32 crc = new CRC32();
+				crc.update(contents.toByteArray());
+
+				ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH
+						+ contents.size());
+				record.putInt(contents.size());
+				record.putInt((int) crc.getValue());
+				record.put(contents.toByteArray());
+				return record.array();
+			} catch (IOException e) {
+				// A byte array stream cannot fail
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Decodes the contents of a record, null if they are not valid
+		 */
+		private static Record decode(byte[] contents) {
+			try {
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(contents));
+				byte kind = in.readByte();
+				if ((kind != PUT) && (kind != REMOVE))
+					return null;
+				String key = in.readUTF();
+				byte[] value = new byte[in.available()];
+				in.readFully(value);
+				return new Record(kind, key, value);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -10,7 +10,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.Properties;
 
 import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
@@ -37,12 +36,21 @@ public class Main {
 	private static String inputFilePath;
 	private static String outputFilePath;
 	private static String gameDefinitionPath;
+	private static String trustFilePath;
+	private static String cacheDirectoryPath;
+	private static String autosaveFilePath;
+	private static String journalFilePath;
+	private static String storeDirectoryPath;
+
+	/**
+	 * Compression level of the saves, null for the default one
+	 */
+	private static Integer compressionLevel;
 
 	/**
 	 * File streams
 	 */
-	private static FileInputStream gameDefinition;
-	private static FileInputStream gameSavedDefinition;
+	private static File gameDefinition;
 	private static FileInputStream config;
 	private static FileInputStream inputStream;
 	private static FileOutputStream outputStream;
@@ -52,9 +60,21 @@ public class Main {
 
 	/**
 	 * Main method. Usage: run [{-c,--config} configFilePath] gameFilePath
-	 * [{-i,--input} inputFilePath] [{-o,--output} outputFilePath]. <br>
+	 * [{-i,--input} inputFilePath] [{-o,--output} outputFilePath]
+	 * [{-t,--trust} trustFilePath] [{-k,--cache} cacheDirectoryPath]
+	 * [{-a,--autosave} autosaveFilePath] [{-j,--journal} journalFilePath]
+	 * [{-z,--compression} level] [{-s,--store} storeDirectoryPath]. <br>
 	 * (config, game, input and output file paths should include their file
-	 * extensions)
+	 * extensions; the trust file keeps the fingerprints of the XML game
+	 * definitions already validated, which are not validated again; the cache
+	 * directory keeps the compiled images of the definitions already parsed,
+	 * which are not parsed again; the autosave file keeps the game saved
+	 * periodically in the background; the journal file keeps the commands
+	 * executed after the last autosave, which are executed again when the
+	 * game is run again from the autosave file; the compression level of the
+	 * saves goes from 1 to 9, or 0 for not compressing them; the store
+	 * directory keeps the saved games in a few segment files instead of a file
+	 * per game, and the game file path can be a saved game of the store)
 	 * 
 	 * @param args
 	 *            Execution arguments read from console.
@@ -63,7 +83,7 @@ public class Main {
 	 *             The argument 'args' cannot be null.
 	 */
 	public static void main(String[] args) {
-		if ((args.length < 1) || (args.length > 7) || !parseArgs(args))
+		if ((args.length < 1) || (args.length > 19) || !parseArgs(args))
 			throw new IllegalArgumentException("Error: Wrong arguments number");
 
 		try {
@@ -72,37 +92,36 @@ public class Main {
 			e.printStackTrace();
 		}
 
+		loadGame();
+
 		try {
-			normalParse();
-		} catch (InvalidGameDefinitionException e1) {
-			System.out
-					.println("No se ha podido cargar el archivo como XML o Texto Plano"
-							+ LINE_SEPARATOR
-							+ "Intentandolo como juego guardado...");
-			savedGameParse();
+			GameLoader.getSessionStore().close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-
-	}
-
-	private static void normalParse() throws InvalidGameDefinitionException {
-		Game game = new Game(gameDefinition);
-		setEngine(game);
 	}
 
-	private static void savedGameParse() {
+	/**
+	 * Loads the game file (a game definition or a saved game, of the store if
+	 * it is there), reading it once and detecting its format, and runs the
+	 * engine
+	 */
+	private static void loadGame() {
 		try {
-			ObjectInputStream ois = new ObjectInputStream(gameSavedDefinition);
-			Game game = (Game) ois.readObject();
-			ois.close();
+			SessionStore store = GameLoader.getSessionStore();
+			Game game;
+			if ((storeDirectoryPath != null)
+					&& store.contains(gameDefinitionPath))
+				game = GameLoader.load(store, gameDefinitionPath);
+			else
+				game = GameLoader.load(gameDefinition);
 			setEngine(game);
+		} catch (InvalidGameDefinitionException e) {
+			System.out.println("No se ha podido cargar el archivo."
+					+ LINE_SEPARATOR + "Saliendo del programa...");
 		} catch (IOException e) {
-			System.out
-					.println("No se ha podido cargar el archivo como juego guardado."
-							+ LINE_SEPARATOR + "Saliendo del programa...");
-		} catch (ClassNotFoundException e) {
-			System.out
-					.println("No se ha podido cargar el archivo como juego guardado."
-							+ LINE_SEPARATOR + "Saliendo del programa...");
+			System.out.println("No se ha podido leer el archivo."
+					+ LINE_SEPARATOR + "Saliendo del programa...");
 		}
 	}
 
@@ -128,6 +147,10 @@ public class Main {
 			else
 				engine = new Engine(game, properties, inputStream, outputStream);
 
+			if (autosaveFilePath != null)
+				engine.setAutosaveFile(new File(autosaveFilePath));
+			if (journalFilePath != null)
+				engine.setJournalFile(new File(journalFilePath));
 			engine.run();
 		}
 	}
@@ -148,6 +171,18 @@ public class Main {
 				"input");
 		CmdLineParser.Option outputFilePathArg = parser.addStringOption('o',
 				"output");
+		CmdLineParser.Option trustFilePathArg = parser.addStringOption('t',
+				"trust");
+		CmdLineParser.Option cacheDirectoryPathArg = parser.addStringOption(
+				'k', "cache");
+		CmdLineParser.Option autosaveFilePathArg = parser.addStringOption('a',
+				"autosave");
+		CmdLineParser.Option journalFilePathArg = parser.addStringOption('j',
+				"journal");
+		CmdLineParser.Option compressionLevelArg = parser.addStringOption('z',
+				"compression");
+		CmdLineParser.Option storeDirectoryPathArg = parser.addStringOption(
+				's', "store");
 		String[] remainingArgs = parser.getRemainingArgs();
 
 		try {
@@ -161,6 +196,23 @@ public class Main {
 		configFilePath = (String) parser.getOptionValue(configFilePathArg);
 		inputFilePath = (String) parser.getOptionValue(inputFilePathArg);
 		outputFilePath = (String) parser.getOptionValue(outputFilePathArg);
+		trustFilePath = (String) parser.getOptionValue(trustFilePathArg);
+		cacheDirectoryPath = (String) parser
+				.getOptionValue(cacheDirectoryPathArg);
+		autosaveFilePath = (String) parser.getOptionValue(autosaveFilePathArg);
+		journalFilePath = (String) parser.getOptionValue(journalFilePathArg);
+		storeDirectoryPath = (String) parser
+				.getOptionValue(storeDirectoryPathArg);
+		String level = (String) parser.getOptionValue(compressionLevelArg);
+		if (level != null) {
+			try {
+				compressionLevel = Integer.valueOf(level);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if ((compressionLevel < 0) || (compressionLevel > 9))
+				return false;
+		}
 		remainingArgs = parser.getRemainingArgs();
 
 		if (remainingArgs.length > 0) {
@@ -176,9 +228,7 @@ public class Main {
 	private static void assignFiles() throws IOException {
 
 		if (gameDefinitionPath != null) {
-			File gameDefinitionFile = new File(gameDefinitionPath);
-			gameDefinition = new FileInputStream(gameDefinitionFile);
-			gameSavedDefinition = new FileInputStream(gameDefinitionFile);
+			gameDefinition = new File(gameDefinitionPath);
 		}
 
 		if (configFilePath != null) {
@@ -199,5 +249,20 @@ public class Main {
 			properties = new Properties();
 			properties.load(config);
 		}
+
+		if (trustFilePath != null)
+			GameLoader.setTrustStore(new DefinitionTrustStore(new File(
+					trustFilePath)));
+
+		if (cacheDirectoryPath != null)
+			GameLoader.setCache(new WorldCache(new File(cacheDirectoryPath),
+					WorldCache.DEFAULT_MEMORY_ENTRIES));
+
+		if (compressionLevel != null)
+			SaveCodec.setCompressionLevel(compressionLevel);
+
+		if (storeDirectoryPath != null)
+			GameLoader.setSessionStore(new LogSessionStore(new File(
+					storeDirectoryPath)));
 	}
 }
\ No newline at end of file
@@ -2,8 +2,11 @@ package es.ucm.fdi.lps.p5;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import es.ucm.fdi.lps.p5.Game.Direction;
 
@@ -54,6 +57,29 @@ public class Obstacle implements Serializable {
 	 */
 	private List<Obstacle> boundedObstacles;
 
+	/**
+	 * The location where the obstacle resides
+	 */
+	private Location location;
+
+	/**
+	 * The obstacle status as defined, when the game was loaded
+	 */
+	private boolean pristineStatus;
+
+	/**
+	 * The changes of the game, where this obstacle records itself when its
+	 * status changes (null before the game has been loaded)
+	 */
+	private GameChanges changes;
+
+	/**
+	 * The obstacles whose status changes with this one (itself plus all the
+	 * obstacles transitively bounded to it), in topological order. It is set
+	 * by the obstacle graph of the game, or computed on demand.
+	 */
+	private Obstacle[] propagation;
+
 	/**
 	 * Constructs a obstacle using a given name, a given description and a given
 	 * status
@@ -206,7 +232,9 @@ public class Obstacle implements Serializable {
 	}
 
 	/**
-	 * Add a bounded obstacle to the obstacle
+	 * Add a bounded obstacle to the obstacle. The propagation set of this
+	 * obstacle is computed again on demand; the game obstacle graph must be
+	 * built again if other obstacles are bounded to this one.
 	 * 
 	 * @param obstacle
 	 *            The obstacle to be added
@@ -215,6 +243,7 @@ public class Obstacle implements Serializable {
 	public boolean addBoundedObstacle(Obstacle obstacle) {
 		if ((obstacle == null))
 			throw new IllegalArgumentException();
+		propagation = null;
 		return (boundedObstacles.add(obstacle));
 	}
 
@@ -228,23 +257,119 @@ public class Obstacle implements Serializable {
 	public boolean removeBoundedObstacle(Obstacle obstacle) {
 		if ((obstacle == null))
 			throw new IllegalArgumentException();
+		propagation = null;
 		return (boundedObstacles.remove(obstacle));
 	}
 
 	/**
-	 * Change the obstacle Status. If true to false, if false to true.
+	 * Change the obstacle Status. If true to false, if false to true. The
+	 * status of every obstacle of the propagation set changes too, and the
+	 * modification stamp of every affected location changes once.
 	 */
 	public void changeStatus() {
-		status = !status;
-		if (!boundedObstacles.isEmpty()) {
-			Iterator<Obstacle> itr = boundedObstacles.iterator();
-			Obstacle obstacle;
-
-			while (itr.hasNext()) {
-				obstacle = itr.next();
-				obstacle.status = !obstacle.status;
-			}
+		Obstacle[] affected = propagation();
+		Set<Location> touched = Collections
+				.newSetFromMap(new IdentityHashMap<Location, Boolean>());
+		for (Obstacle obstacle : affected) {
+			obstacle.status = !obstacle.status;
+			if (obstacle.changes != null)
+				obstacle.changes.add(obstacle);
+			if (obstacle.location != null)
+				touched.add(obstacle.location);
 		}
+		for (Location loc : touched)
+			loc.touch();
+	}
+
+	/**
+	 * Sets the obstacle status, without propagating it, when a saved game is
+	 * restored (see SaveCodec).
+	 * 
+	 * @param status
+	 *            The status.
+	 */
+	void setStatus(boolean status) {
+		if (this.status != status) {
+			this.status = status;
+			if (changes != null)
+				changes.add(this);
+			if (location != null)
+				location.touch();
+		}
+	}
+
+	/**
+	 * Marks the current status of the obstacle as its status in the game
+	 * definition, when the game has been loaded.
+	 * 
+	 * @param changes
+	 *            The changes of the game, where this obstacle records itself
+	 *            when its status changes.
+	 */
+	void markPristine(GameChanges changes) {
+		pristineStatus = status;
+		this.changes = changes;
+	}
+
+	/**
+	 * Checks whether the obstacle status has changed since the game was
+	 * loaded (see markPristine).
+	 * 
+	 * @return true if it has changed.
+	 */
+	boolean isChanged() {
+		return status != pristineStatus;
+	}
+
+	/**
+	 * Returns the obstacles whose status changes with this one: itself plus
+	 * all the obstacles transitively bounded to it, in topological order.
+	 * 
+	 * @return The propagation set.
+	 */
+	public List<Obstacle> getPropagationSet() {
+		return Collections.unmodifiableList(Arrays.asList(propagation()));
+	}
+
+	/**
+	 * Sets the precomputed propagation set. It is called by the obstacle
+	 * graph of the game.
+	 * 
+	 * @param propagation
+	 *            The propagation set, this obstacle first.
+	 */
+	void setPropagationSet(Obstacle[] propagation) {
+		this.propagation = propagation;
+	}
+
+	/**
+	 * Returns the propagation set, computing it if it is not precomputed
+	 */
+	private Obstacle[] propagation() {
+		if (propagation == null)
+			propagation = ObstacleGraph.propagationSetOf(this);
+		return propagation;
+	}
+
+	/**
+	 * Returns the location where the obstacle resides, null if it has not been
+	 * added to any location.
+	 * 
+	 * @return The location.
+	 */
+	public Location getLocation() {
+		return location;
+	}
+
+	/**
+	 * Sets the location where the obstacle resides. It is called by the
+	 * location when the obstacle is added to it.
+	 * 
+	 * @param location
+	 *            The location.
+	 */
+	void setLocation(Location location) {
+		this.location = location;
 	}
 
 	/**
@@ -0,0 +1,194 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import es.ucm.fdi.lps.p5.exception.InvalidBoundedObstacleException;
+
+/**
+ * Represents the dependency graph of the obstacles of a game: there is an edge
+ * from an obstacle to every obstacle bounded to it. It is built once, when the
+ * game definition has been loaded, and it precomputes for every obstacle its
+ * propagation set (the obstacle itself plus all the obstacles transitively
+ * bounded to it) in topological order, so changing the status of an obstacle
+ * costs the size of its propagation set. Cyclic definitions are rejected.
+ */
+public class ObstacleGraph implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The obstacles in topological order (every obstacle before the obstacles
+	 * bounded to it)
+	 */
+	private List<Obstacle> order;
+
+	/**
+	 * Constructs the dependency graph of a set of obstacles and sets the
+	 * propagation set of every obstacle. Bounded obstacles that are not in
+	 * the given collection are added to the graph too.
+	 *
+	 * @param obstacles
+	 *            The obstacles.
+	 * @throws IllegalArgumentException
+	 *             The argument 'obstacles' cannot be null.
+	 * @throws InvalidBoundedObstacleException
+	 *             The obstacles are bounded in a cycle.
+	 */
+	public ObstacleGraph(Collection<Obstacle> obstacles) {
+		if (obstacles == null)
+			throw new IllegalArgumentException();
+
+		// Collect every reachable obstacle, numbering them
+		Map<Obstacle, Integer> index = new IdentityHashMap<Obstacle, Integer>();
+		List<Obstacle> nodes = new ArrayList<Obstacle>();
+		for (Obstacle obstacle : obstacles)
+			collect(obstacle, index, nodes);
+
+		// Kahn's algorithm: number of unprocessed obstacles bounding each one
+		int[] pending = new int[nodes.size()];
+		for (Obstacle obstacle : nodes)
+			for (Obstacle bounded : obstacle.getBoundedObstacles())
+				pending[index.get(bounded)]++;
+
+		order = new ArrayList<Obstacle>(nodes.size());
+		for (int i = 0; i < nodes.size(); i++)
+			if (pending[i] == 0)
+				order.add(nodes.get(i));
+		for (int next = 0; next < order.size(); next++) {
+			for (Obstacle bounded : order.get(next).getBoundedObstacles()) {
+				if (--pending[index.get(bounded)] == 0)
+					order.add(bounded);
+			}
+		}
+
+		if (order.size() < nodes.size()) {
+			StringBuilder cycle = new StringBuilder();
+			for (int i = 0; i < nodes.size(); i++)
+				if (pending[i] > 0)
+					cycle.append(' ').append(nodes.get(i).getId());
+			throw new InvalidBoundedObstacleException(
+					"Bounded obstacles in a cycle:" + cycle);
+		}
+
+		// Position of every obstacle in the topological order
+		int[] position = new int[nodes.size()];
+		for (int i = 0; i < order.size(); i++)
+			position[index.get(order.get(i))] = i;
+
+		// Bounded obstacles of every obstacle, by position
+		int[][] edges = new int[order.size()][];
+		for (int i = 0; i < order.size(); i++) {
+			List<Obstacle> bounded = order.get(i).getBoundedObstacles();
+			edges[i] = new int[bounded.size()];
+			for (int k = 0; k < edges[i].length; k++)
+				edges[i][k] = position[index.get(bounded.get(k))];
+		}
+
+		// Propagation sets: a depth-first search from every obstacle with
+		// bounded obstacles, marking the visited ones with the number of the
+		// search, so the cost is the size of the sets and not the size of the
+		// graph; the positions reached are sorted into topological order
+		int[] visited = new int[order.size()];
+		int[] reached = new int[order.size()];
+		int[] stack = new int[order.size()];
+		for (int i = 0; i < order.size(); i++) {
+			if (edges[i].length == 0) {
+				order.get(i).setPropagationSet(
+						new Obstacle[] { order.get(i) });
+				continue;
+			}
+			int mark = i + 1;
+			int n = 0;
+			int top = 0;
+			visited[i] = mark;
+			stack[top++] = i;
+			while (top > 0) {
+				int next = stack[--top];
+				reached[n++] = next;
+				for (int bounded : edges[next])
+					if (visited[bounded] != mark) {
+						visited[bounded] = mark;
+						stack[top++] = bounded;
+					}
+			}
+			Arrays.sort(reached, 0, n);
+			Obstacle[] propagation = new Obstacle[n];
+			for (int k = 0; k < n; k++)
+				propagation[k] = order.get(reached[k]);
+			order.get(i).setPropagationSet(propagation);
+		}
+	}
+
+	/**
+	 * Computes the propagation set of a single obstacle, for obstacles that
+	 * are not in any graph (i.e. created after the game was loaded).
+	 *
+	 * @param obstacle
+	 *            The obstacle.
+	 * @return The propagation set, the obstacle first.
+	 * @throws IllegalArgumentException
+	 *             The argument 'obstacle' cannot be null.
+	 */
+	public static Obstacle[] propagationSetOf(Obstacle obstacle) {
+		if (obstacle == null)
+			throw new IllegalArgumentException();
+
+		Set<Obstacle> visited = new LinkedHashSet<Obstacle>();
+		List<Obstacle> stack = new ArrayList<Obstacle>();
+		stack.add(obstacle);
+		while (!stack.isEmpty()) {
+			Obstacle next = stack.remove(stack.size() - 1);
+			if (visited.add(next))
+				stack.addAll(next.getBoundedObstacles());
+		}
+		return visited.toArray(new Obstacle[visited.size()]);
+	}
+
+	/**
+	 * Returns the obstacles of the graph in topological order.
+	 *
+	 * @return The obstacles.
+	 */
+	public List<Obstacle> getObstacles() {
+		return Collections.unmodifiableList(order);
+	}
+
+	/**
+	 * Adds an obstacle and the obstacles bounded to it to the numbering
+	 */
+	private void collect(Obstacle obstacle, Map<Obstacle, Integer> index,
+			List<Obstacle> nodes) {
+		List<Obstacle> stack = new ArrayList<Obstacle>();
+		stack.add(obstacle);
+		while (!stack.isEmpty()) {
+			Obstacle next = stack.remove(stack.size() - 1);
+			if (!index.containsKey(next)) {
+				index.put(next, nodes.size());
+				nodes.add(next);
+				stack.addAll(next.getBoundedObstacles());
+			}
+		}
+	}
+
+	/**
+	 * Returns a String representation for this object: ObstacleGraph[size].
+	 * This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + order.size() + "]";
+	}
+}
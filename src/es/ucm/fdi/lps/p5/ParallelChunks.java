@@ -0,0 +1,138 @@
+package es.ucm.fdi.lps.p5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a task over the indexes [0, size), split in ordered chunks that run on
+ * a shared pool of daemon threads (one per processor). Small ranges run in
+ * the calling thread. The chunks are numbered in index order, so callers can
+ * keep one result per chunk and merge them in order, independently of the
+ * number of threads.
+ */
+class ParallelChunks {
+
+	/**
+	 * Number of chunks per thread, for balancing the work
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Shared pool of threads, created on demand
+	 */
+	private static ExecutorService executor;
+
+	/**
+	 * A task applied to a chunk of indexes
+	 */
+	interface Chunk {
+		/**
+		 * Runs the task over the indexes [from, to).
+		 *
+		 * @param chunk
+		 *            The number of the chunk.
+		 * @param from
+		 *            The first index.
+		 * @param to
+		 *            The index after the last one.
+		 */
+		void run(int chunk, int from, int to);
+	}
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private ParallelChunks() {
+	}
+
+	/**
+	 * Returns the number of chunks for a range: 1 if it is smaller than the
+	 * threshold or there is only one processor.
+	 *
+	 * @param size
+	 *            The size of the range.
+	 * @param threshold
+	 *            The minimum size for running in parallel.
+	 * @return The number of chunks.
+	 */
+	static int count(int size, int threshold) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if ((size < threshold) || (threads < 2))
+			return 1;
+		return Math.max(1, Math.min(size, threads * CHUNKS_PER_THREAD));
+	}
+
+	/**
+	 * Runs a task over a range, waiting for every chunk. If several chunks
+	 * fail, the failure of the lowest chunk is rethrown.
+	 *
+	 * @param size
+	 *            The size of the range.
+	 * @param chunks
+	 *            The number of chunks (see count).
+	 * @param task
+	 *            The task.
+	 */
+	static void run(int size, int chunks, final Chunk task) {
+		if (chunks <= 1) {
+			task.run(0, 0, size);
+			return;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+		final RuntimeException[] failures = new RuntimeException[chunks];
+		for (int c = 0; c < chunks; c++) {
+			final int chunk = c;
+			final int from = (int) ((long) size * c / chunks);
+			final int to = (int) ((long) size * (c + 1) / chunks);
+			futures.add(executor().submit(new Runnable() {
+				public void run() {
+					try {
+						task.run(chunk, from, to);
+					} catch (RuntimeException e) {
+						failures[chunk] = e;
+					}
+				}
+			}));
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		for (int c = 0; c < chunks; c++)
+			if (failures[c] != null)
+				throw failures[c];
+	}
+
+	/**
+	 * Returns the shared pool of threads
+	 */
+	private static synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				private int count;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "world-worker-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+}
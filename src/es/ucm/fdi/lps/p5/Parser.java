@@ -122,6 +122,30 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * Sets the game the commands are constructed for, like a game loaded by
+	 * the Load command that replaces the running one. The input stream and
+	 * the configuration are kept.
+	 * 
+	 * @param game
+	 *            The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public void setGame(Game game) {
+		if (game == null) {
+			throw new IllegalArgumentException(
+					"Error: IllegalArgumentException");
+		}
+		this.game = game;
+		if (config == null)
+			createPrototype();
+		else {
+			createConfigPrototype();
+			setConfig(config);
+		}
+	}
+
 	/**
 	 * Sets the input stream for the parser.
 	 * 
@@ -172,16 +196,43 @@ public class Parser {
 	 *             There is no next command to parse.
 	 */
 	public Command parseNextCommand() {
+		return parse(nextLine());
+	}
+
+	/**
+	 * Consumes the next line of the player input, without parsing it.
+	 * 
+	 * @return The line.
+	 * @throws NoNextCommandException
+	 *             There is no next command to parse.
+	 */
+	public String nextLine() {
 		if (!hasNextCommand())
 			throw new NoNextCommandException("Error: NoNextCommandException");
 
-		String line = reader.nextLine();
+		return reader.nextLine();
+	}
+
+	/**
+	 * Parses a line, returning the command that has been identified.
+	 * 
+	 * @param line
+	 *            The line.
+	 * @return The parsed command. It can be null, meaning an invalid command
+	 *         was parsed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'line' cannot be null.
+	 */
+	public Command parse(String line) {
+		if (line == null)
+			throw new IllegalArgumentException(
+					"Error: IllegalArgumentException");
+
 		for (Command com : commandPrototypes) {
 			if (com.parse(line))
 				return (Command) com.clone();
 		}
 		return null;
-
 	}
 
 	/**
@@ -0,0 +1,267 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+
+/**
+ * Renders the lists of the game (items, events and connections) directly into
+ * an output sink (the engine print stream or the buffer of a command result),
+ * so no intermediate strings are built for every element of the list. Long
+ * item lists are paginated: only the elements of the page asked for are
+ * written, followed by a "more..." line with the number of elements not shown
+ * and the number of the page, so the player can ask for the next one (see
+ * LookCommand). The events are always written in full, as they cannot be
+ * asked for again.
+ */
+public class Renderer {
+
+	/**
+	 * Platform-independent line separator
+	 */
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	/**
+	 * The output sink
+	 */
+	private Appendable out;
+
+	/**
+	 * Maximum number of elements written for a page of a list. 0 means no
+	 * limit.
+	 */
+	private int pageSize;
+
+	/**
+	 * Constructs a renderer that writes into the given output sink without
+	 * truncating the lists.
+	 * 
+	 * @param out
+	 *            The output sink.
+	 * @throws IllegalArgumentException
+	 *             The argument 'out' cannot be null.
+	 */
+	public Renderer(Appendable out) {
+		this(out, 0);
+	}
+
+	/**
+	 * Constructs a renderer that writes into the given output sink, paginating
+	 * the item lists longer than the given page size.
+	 * 
+	 * @param out
+	 *            The output sink.
+	 * @param pageSize
+	 *            The maximum number of elements written for a page of a list
+	 *            (0 means no limit).
+	 * @throws IllegalArgumentException
+	 *             The argument 'out' cannot be null and 'pageSize' cannot be
+	 *             negative.
+	 */
+	public Renderer(Appendable out, int pageSize) {
+		if ((out == null) || (pageSize < 0))
+			throw new IllegalArgumentException();
+		this.out = out;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Renders an item list: a line separator and then one line for every item
+	 * with its name and (optionally) its value and its weight. Only the first
+	 * page is written if the list is longer than the page size.
+	 * 
+	 * @param items
+	 *            The items.
+	 * @param flagValue
+	 *            The value flag, used to show item value or not
+	 * @param flagWeight
+	 *            The weight flag, used to show item weight or not
+	 * @throws IllegalArgumentException
+	 *             The argument 'items' cannot be null.
+	 */
+	public void renderItems(Collection<Item> items, boolean flagValue,
+			boolean flagWeight) {
+		renderItems(items, 1, flagValue, flagWeight);
+	}
+
+	/**
+	 * Renders a page of an item list: a line separator and then one line for
+	 * every item of the page with its name and (optionally) its value and its
+	 * weight. A page after the last one is taken as the last one.
+	 * 
+	 * @param items
+	 *            The items.
+	 * @param page
+	 *            The number of the page, from 1.
+	 * @param flagValue
+	 *            The value flag, used to show item value or not
+	 * @param flagWeight
+	 *            The weight flag, used to show item weight or not
+	 * @throws IllegalArgumentException
+	 *             The argument 'items' cannot be null and 'page' must be
+	 *             positive.
+	 */
+	public void renderItems(Collection<Item> items, int page,
+			boolean flagValue, boolean flagWeight) {
+		if ((items == null) || (page < 1))
+			throw new IllegalArgumentException();
+
+		if (!items.isEmpty())
+			write(LINE_SEPARATOR);
+
+		int pages = pages(items.size());
+		page = Math.min(page, pages);
+		int skipped = 0;
+		int written = 0;
+		Iterator<Item> itr = items.iterator();
+		while (itr.hasNext() && !pageFull(written)) {
+			Item it = itr.next();
+			if (skipped < (page - 1) * pageSize) {
+				skipped++;
+				continue;
+			}
+			write(it.getName());
+			if (flagValue)
+				write(" [Value(").write(String.valueOf(it.getValue())).write(
+						")");
+			if (flagWeight)
+				write(" Weight(").write(String.valueOf(it.getWeight())).write(
+						")]");
+			write(LINE_SEPARATOR);
+			written++;
+		}
+		renderMore(items.size() - skipped - written, page, pages);
+	}
+
+	/**
+	 * Renders the game events, one per line (without a final line separator).
+	 * 
+	 * @param events
+	 *            The events.
+	 * @throws IllegalArgumentException
+	 *             The argument 'events' cannot be null.
+	 */
+	public void renderEvents(Collection<String> events) {
+		if (events == null)
+			throw new IllegalArgumentException();
+
+		boolean first = true;
+		for (String event : events) {
+			if (!first)
+				write(LINE_SEPARATOR);
+			write(event);
+			first = false;
+		}
+	}
+
+	/**
+	 * Renders the available connections from a location, one direction per
+	 * line.
+	 * 
+	 * @param location
+	 *            The location.
+	 * @param statusFlag
+	 *            If turned on it will show the connections status
+	 * @throws IllegalArgumentException
+	 *             The argument 'location' cannot be null.
+	 */
+	public void renderConnections(Location location, boolean statusFlag) {
+		if (location == null)
+			throw new IllegalArgumentException();
+
+		write("The available directions from this location are: ");
+		write(LINE_SEPARATOR);
+		for (Direction direction : Direction.values()) {
+			if (location.hasConnectedLocation(direction)) {
+				write(direction.name());
+				if (statusFlag) {
+					if (location.hasObstacle(direction)) {
+						if (location.getObstacleStatus(direction))
+							write(" [CLOSED]");
+						else
+							write(" [OPEN]");
+					} else
+						write(" [CLEAR]");
+				}
+				write(LINE_SEPARATOR);
+			}
+		}
+	}
+
+	/**
+	 * Writes a text into the output sink.
+	 * 
+	 * @param text
+	 *            The text.
+	 * @return This renderer, so writes can be chained.
+	 * @throws IllegalStateException
+	 *             The output sink failed.
+	 */
+	public Renderer write(CharSequence text) {
+		try {
+			out.append(text);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Checks whether a list has already written a full page.
+	 * 
+	 * @param written
+	 *            The number of elements written.
+	 * @return true if no more elements should be written; false otherwise.
+	 */
+	private boolean pageFull(int written) {
+		return (pageSize > 0) && (written >= pageSize);
+	}
+
+	/**
+	 * Returns the number of pages of a list (at least 1).
+	 * 
+	 * @param size
+	 *            The number of elements of the list.
+	 * @return The number of pages.
+	 */
+	private int pages(int size) {
+		if ((pageSize == 0) || (size == 0))
+			return 1;
+		return (size + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * Writes the "more..." line of a page that is not the last one, or the
+	 * number of the page for the last page of a paginated list.
+	 * 
+	 * @param remaining
+	 *            The number of elements after the page.
+	 * @param page
+	 *            The number of the page.
+	 * @param pages
+	 *            The number of pages.
+	 */
+	private void renderMore(int remaining, int page, int pages) {
+		if (remaining > 0)
+			write("more... (").write(String.valueOf(remaining)).write(
+					" not shown, page ").write(String.valueOf(page)).write(
+					" of ").write(String.valueOf(pages)).write(")").write(
+					LINE_SEPARATOR);
+		else if (pages > 1)
+			write("(page ").write(String.valueOf(page)).write(" of ").write(
+					String.valueOf(pages)).write(")").write(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Returns a String representation for this object: Renderer[pageSize].
+	 * This is useful for debugging purposes.
+	 * 
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + pageSize + "]";
+	}
+}
@@ -1,18 +1,21 @@
 package es.ucm.fdi.lps.p5;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumMap;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import es.ucm.fdi.lps.p5.Game.Direction;
-import es.ucm.fdi.lps.p5.exception.InvalidBoundedItemException;
-import es.ucm.fdi.lps.p5.exception.InvalidBoundedObstacleException;
 
 public class SAXHandler extends DefaultHandler {
 
@@ -43,16 +46,42 @@ public class SAXHandler extends DefaultHandler {
 	private String itemRefId;
 	private String obstacleRefId;
 
-	private String tagText;
-	private String actualTag;
+	private String triggerId;
+	private Trigger.Kind triggerKind;
+	private String triggerTarget;
+	private int triggerValue;
+	private boolean triggerEnd;
+
 	private Direction actualConnectionDir;
 
+	/**
+	 * Text of the open elements. The text of an element starts at the offset
+	 * pushed when it was opened, and it is removed when it is closed.
+	 */
+	private StringBuilder text;
+	private int[] textStart;
+	private int depth;
+
+	/**
+	 * Items of the location being parsed, added to it when it is closed
+	 */
+	private ArrayList<Item> tempLocationItems;
+
+	/**
+	 * Number of validation errors reported by the parser
+	 */
+	private int validationErrors;
+
+	/**
+	 * Id indexes of the parsed elements, and the pending references
+	 */
 	private Map<String, Location> tempLocationList;
 	private Map<String, EnumMap<Direction, String>> tempConnectionList;
 	private Map<String, Item> tempItemList;
 	private Map<String, Obstacle> tempObstacleList;
-	private Hashtable<Obstacle, ArrayList<String>> tempItemRefList;
-	private Hashtable<Obstacle, ArrayList<String>> tempObstacleRefList;
+	private Map<String, List<Obstacle>> tempLocationObstacles;
+	private Map<Obstacle, ArrayList<String>> tempItemRefList;
+	private Map<Obstacle, ArrayList<String>> tempObstacleRefList;
 
 	private ArrayList<String> tempItemRefs;
 	private ArrayList<String> tempObstacleRefs;
@@ -66,14 +95,19 @@ public class SAXHandler extends DefaultHandler {
 	public SAXHandler(Game game) {
 		this.game = game;
 		tempDirection = new EnumMap<Direction, String>(Direction.class);
-		tempConnectionList = new Hashtable<String, EnumMap<Direction, String>>();
+		tempConnectionList = new HashMap<String, EnumMap<Direction, String>>();
 		tempLocationList = game.getLocations();
-		tempItemList = new Hashtable<String, Item>();
-		tempObstacleList = new Hashtable<String, Obstacle>();
-		tempItemRefList = new Hashtable<Obstacle, ArrayList<String>>();
-		tempObstacleRefList = new Hashtable<Obstacle, ArrayList<String>>();
+		tempItemList = new HashMap<String, Item>();
+		tempObstacleList = new LinkedHashMap<String, Obstacle>();
+		tempLocationObstacles = new HashMap<String, List<Obstacle>>();
+		tempItemRefList = new HashMap<Obstacle, ArrayList<String>>();
+		tempObstacleRefList = new HashMap<Obstacle, ArrayList<String>>();
 		tempItemRefs = new ArrayList<String>();
 		tempObstacleRefs = new ArrayList<String>();
+		tempLocationItems = new ArrayList<Item>();
+		text = new StringBuilder(256);
+		textStart = new int[8];
+		depth = 0;
 	}
 
 	/**
@@ -81,7 +115,13 @@ public class SAXHandler extends DefaultHandler {
 	 */
 	public void startElement(String namespace, String sName, String qName,
 			Attributes atrs) throws SAXException {
-		actualTag = qName;
+		if (depth == textStart.length) {
+			int[] temp = new int[depth * 2];
+			System.arraycopy(textStart, 0, temp, 0, depth);
+			textStart = temp;
+		}
+		textStart[depth++] = text.length();
+
 		if (qName.equalsIgnoreCase("game")) {
 			if (atrs != null) {
 				game.setTitle(atrs.getValue(0));
@@ -134,6 +174,22 @@ public class SAXHandler extends DefaultHandler {
 			}
 		}
 
+		if (qName.equalsIgnoreCase("trigger")) {
+			if (atrs != null) {
+				triggerId = atrs.getValue("id");
+				triggerKind = Trigger.Kind.fromKeyword(atrs.getValue("on"));
+				triggerTarget = atrs.getValue("target");
+				if (triggerKind == Trigger.Kind.OBSTACLE)
+					triggerValue = Boolean.parseBoolean(atrs
+							.getValue("status")) ? 1 : 0;
+				else if (atrs.getValue("score") != null)
+					triggerValue = Integer.parseInt(atrs.getValue("score"));
+				else
+					triggerValue = 0;
+				triggerEnd = Boolean.parseBoolean(atrs.getValue("end"));
+			}
+		}
+
 		if (qName.equalsIgnoreCase("item-ref")) {
 			if (atrs != null) {
 				itemRefId = atrs.getValue(0);
@@ -148,41 +204,93 @@ public class SAXHandler extends DefaultHandler {
 	}
 
 	/**
-	 * Method called between start and end tag
+	 * Method called between start and end tag. The text can arrive in several
+	 * chunks, so it is only accumulated.
 	 */
 	public void characters(char buf[], int offset, int len) {
-		tagText = new String(buf, offset, len);
-		tagText = tagText.replaceAll("\\t", "");
-		tagText = tagText.replaceAll("\\n", "");
+		text.append(buf, offset, len);
+	}
 
-		if (actualTag.equals("location")) {
-			locationDescription = tagText;
-			if (locationExitThresholdFlag) {
-				tempLocation = new Location(locationId, locationName,
-						locationDescription, locationThreshold, locationExitMsg);
+	/**
+	 * Returns the text of the element being closed, with its blanks
+	 * normalized, and removes it from the buffer
+	 * 
+	 * @return The text
+	 */
+	private String closeText() {
+		int start = textStart[--depth];
+		String result = normalize(text, start);
+		text.setLength(start);
+		return result;
+	}
+
+	/**
+	 * Normalizes the blanks of a text in a single pass: every sequence of
+	 * spaces, tabs and line breaks becomes a single space, and the leading
+	 * and trailing blanks are removed
+	 * 
+	 * @param buf
+	 *            The buffer with the text
+	 * @param start
+	 *            The offset of the text in the buffer
+	 * @return The normalized text
+	 */
+	static String normalize(StringBuilder buf, int start) {
+		int end = buf.length();
+		while ((start < end) && isBlank(buf.charAt(start)))
+			start++;
+		while ((end > start) && isBlank(buf.charAt(end - 1)))
+			end--;
+
+		char[] out = new char[end - start];
+		int n = 0;
+		boolean blank = false;
+		for (int i = start; i < end; i++) {
+			char c = buf.charAt(i);
+			if (isBlank(c)) {
+				blank = true;
 			} else {
-				tempLocation = new Location(locationId, locationName,
-						locationDescription);
+				if (blank)
+					out[n++] = ' ';
+				out[n++] = c;
+				blank = false;
 			}
 		}
+		return new String(out, 0, n);
+	}
+
+	private static boolean isBlank(char c) {
+		return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\r');
 	}
 
 	/**
 	 * Method called when a finish tag is detected
 	 */
 	@SuppressWarnings("unchecked")
-	public void endElement(String uri, String localName, String qName) {
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+		String tagText = closeText();
+
 		if (qName.equals("game")) {
 			game.setDescription(tagText);
 
-			linkItemsToLocation();
-			linkConnectionsToLocation();
-			linkObstaclesToLocation();
-			linkBoundItemsToObstacle();
-			linkBoundObstaclesToObstacle();
+			link();
+			game.buildObstacleGraph(tempObstacleList.values());
+			game.checkTriggers();
 		}
 
 		if (qName.equals("location")) {
+			locationDescription = tagText;
+			if (locationExitThresholdFlag) {
+				tempLocation = new Location(locationId, locationName,
+						locationDescription, locationThreshold, locationExitMsg);
+			} else {
+				tempLocation = new Location(locationId, locationName,
+						locationDescription);
+			}
+			for (Item item : tempLocationItems)
+				tempLocation.addItem(item);
+			tempLocationItems.clear();
 
 			if (game.getCurrentLocation() == null)
 				game.setCurrentLocation(tempLocation);
@@ -198,7 +306,7 @@ public class SAXHandler extends DefaultHandler {
 			itemDescription = tagText;
 			tempItem = new Item(itemID, itemName, itemDescription, itemValue,
 					itemWeight);
-			tempLocation.addItem(tempItem);
+			tempLocationItems.add(tempItem);
 
 			tempItemList.put(tempItem.getId(), tempItem);
 		}
@@ -213,7 +321,14 @@ public class SAXHandler extends DefaultHandler {
 					obstacleDescription, obstacleStatus, obstacleErrorMsg,
 					actualConnectionDir);
 
-			tempObstacleList.put(tempLocation.getId(), tempObstacle);
+			tempObstacleList.put(obstacleId, tempObstacle);
+			List<Obstacle> locationObstacles = tempLocationObstacles
+					.get(locationId);
+			if (locationObstacles == null) {
+				locationObstacles = new ArrayList<Obstacle>(1);
+				tempLocationObstacles.put(locationId, locationObstacles);
+			}
+			locationObstacles.add(tempObstacle);
 
 			if (!tempItemRefs.isEmpty()) {
 				tempItemRefList.put(tempObstacle,
@@ -228,6 +343,13 @@ public class SAXHandler extends DefaultHandler {
 			tempObstacleRefs.clear();
 		}
 
+		if (qName.equals("trigger")) {
+			if (triggerKind == null)
+				throw new SAXException("Unknown trigger kind: " + triggerId);
+			game.defineTrigger(new Trigger(triggerId, triggerKind,
+					triggerTarget, triggerValue, tagText, triggerEnd));
+		}
+
 		if (qName.equals("item-ref")) {
 			tempItemRefs.add(itemRefId);
 		}
@@ -242,96 +364,59 @@ public class SAXHandler extends DefaultHandler {
 	}
 
 	/**
-	 * Links Items to Locations when the parse is finished
+	 * Resolves the game DTD from the classpath
 	 */
-	private void linkItemsToLocation() {
-		for (Location loc : tempLocationList.values()) {
-			if (tempItemList.containsKey(loc.getId())) {
-				loc.addItem(tempItemList.get(loc.getId()));
-			}
-		}
+	public InputSource resolveEntity(String publicId, String systemId)
+			throws IOException, SAXException {
+		InputSource source = GameEntityResolver.getInstance().resolveEntity(
+				publicId, systemId);
+		if (source != null)
+			return source;
+		return super.resolveEntity(publicId, systemId);
 	}
-	
+
 	/**
-	 * Links Obstacle to Locations when the parse is finished
+	 * Method called when the definition does not follow the DTD. The errors
+	 * are not fatal, they are only counted.
 	 */
-	private void linkObstaclesToLocation() {
-		for (Location loc : tempLocationList.values()) {
-			if (tempObstacleList.containsKey(loc.getId())) {
-				Obstacle obstacle = tempObstacleList.get(loc.getId());
-				Direction direction = obstacle.getDirection();
-				loc.addObstacle(direction, obstacle);
-			}
-		}
+	public void error(SAXParseException e) {
+		validationErrors++;
 	}
 
 	/**
-	 * Links the locations when the parse is finished
+	 * Returns the number of validation errors reported by the parser
+	 * 
+	 * @return The number of errors
 	 */
-	private void linkConnectionsToLocation() {
-		for (Location loc : tempLocationList.values()) {
-			if (tempConnectionList.containsKey(loc.getId())) {
-				EnumMap<Direction, String> connection = tempConnectionList
-						.get(loc.getId());
-
-				for (Direction dir : connection.keySet()) {
-					String targetLocationName = connection.get(dir);
-					if (tempLocationList.containsKey(targetLocationName)) {
-						Location targetLocation = tempLocationList
-								.get(targetLocationName);
-						loc.setConnection(dir, targetLocation);
-					}
-				}
-			}
-		}
+	public int getValidationErrors() {
+		return validationErrors;
 	}
 
 	/**
-	 * Links bounded items to Obstacles when the parse is finished
+	 * Links the locations, their obstacles and the bounded items and
+	 * obstacles when the parse is finished, resolving the references through
+	 * the id indexes
 	 */
-	private void linkBoundItemsToObstacle() {
-		boolean founded = false;
-		for (Obstacle obs : tempItemRefList.keySet()) {
-			ArrayList<String> items = tempItemRefList.get(obs);
-
-			Iterator<String> itr = items.iterator();
-			String itemName;
-			
-			while (itr.hasNext()) {
-				founded = false;
-				itemName = itr.next();
-				if (tempItemList.containsKey(itemName)) {
-					Item it = tempItemList.get(itemName);
-					tempObstacle.addBoundedItem(it);
-					founded = true;
-				}
-			}
-			if (!founded) throw new InvalidBoundedItemException("InvalidBoundedItemException");
+	private void link() {
+		WorldLinker linker = new WorldLinker(tempLocationList, tempItemList,
+				tempObstacleList);
+		List<Obstacle> none = Collections.emptyList();
+		for (Location loc : tempLocationList.values()) {
+			List<Obstacle> locationObstacles = tempLocationObstacles.get(loc
+					.getId());
+			linker.addLocation(loc, tempConnectionList.get(loc.getId()),
+					(locationObstacles != null) ? locationObstacles : none);
 		}
-	}
-	
-	/**
-	 * Links bounded obstacles to Obstacles when the parse is finished
-	 */
-	private void linkBoundObstaclesToObstacle() {
-		boolean founded = false;
-		for (Obstacle obs : tempObstacleRefList.keySet()) {
-			ArrayList<String> obstacles = tempObstacleRefList.get(obs);
-
-			Iterator<String> itr = obstacles.iterator();
-			String obstacleName;
-
-			while (itr.hasNext()) {
-				obstacleName = itr.next();
-				founded = false;
-				for (Obstacle obstacle : tempObstacleList.values()) {
-					if (obstacle.getId().equals(obstacleName)) {
-						tempObstacle.addBoundedObstacle(obstacle);
-						founded = true;
-					}
-				}
-			}
-			if (!founded) throw new InvalidBoundedObstacleException("InvalidBoundedObstacleException");
+
+		List<String> noRefs = Collections.emptyList();
+		for (Obstacle obs : tempObstacleList.values()) {
+			List<String> items = tempItemRefList.get(obs);
+			List<String> obstacles = tempObstacleRefList.get(obs);
+			if ((items != null) || (obstacles != null))
+				linker.addReferences(obs, (items != null) ? items : noRefs,
+						(obstacles != null) ? obstacles : noRefs);
 		}
+		linker.link();
+		game.setDanglingConnections(linker.getDanglingConnections());
 	}
 }
@@ -0,0 +1,379 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the saved games of a directory from their summaries (see
+ * SaveSummary), without restoring them, most recent first.
+ * <p>
+ * The summaries are kept in an index file of the directory (INDEX_NAME),
+ * with a record of fixed length per file: its name, length and modification
+ * time, and its summary if it is a saved game. The index is read whole when
+ * the saves are listed, so only the files added or changed since the last
+ * listing are read (only their header), and it is written again (into a
+ * temporary file, which is renamed) only if something has changed. Files
+ * which are not saved games are also recorded, so they are not read again
+ * (saves of the first version, without summary, are not listed).
+ * <p>
+ * Usage: SaveCatalog directory
+ */
+public class SaveCatalog {
+
+	/**
+	 * Name of the index file
+	 */
+	public static final String INDEX_NAME = "saves.idx";
+
+	/**
+	 * Magic number of the index files ("P5SI")
+	 */
+	public static final int MAGIC = 0x50355349;
+
+	/**
+	 * Current version of the index format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Length of the header of the index: magic, version, reserved and number
+	 * of records
+	 */
+	private static final int HEADER_LENGTH = 12;
+
+	/**
+	 * Width of the file names in the records, length included (longer names
+	 * are not indexed)
+	 */
+	private static final int NAME_WIDTH = 256;
+
+	/**
+	 * Length of the records: name, length, modification time, whether it is
+	 * a saved game and summary
+	 */
+	private static final int RECORD_LENGTH = NAME_WIDTH + 8 + 8 + 4
+			+ SaveSummary.LENGTH;
+
+	/**
+	 * Extension of the temporary files (like those of Autosave), which are
+	 * not listed
+	 */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	/**
+	 * The directory and its index file
+	 */
+	private File directory;
+	private File index;
+
+	/**
+	 * Headers read in the last listing
+	 */
+	private int headersRead;
+
+	/**
+	 * Constructs the catalog of a directory.
+	 *
+	 * @param directory
+	 *            The directory of the saved games.
+	 * @throws IllegalArgumentException
+	 *             The argument 'directory' cannot be null.
+	 */
+	public SaveCatalog(File directory) {
+		if (directory == null)
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		index = new File(directory, INDEX_NAME);
+	}
+
+	/**
+	 * Lists the saved games of the directory, updating its index.
+	 *
+	 * @return The saved games, most recent first.
+	 * @throws IOException
+	 *             The directory cannot be read.
+	 */
+	public synchronized List<Entry> list() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + directory.getPath());
+
+		Map<String, Record> indexed = readIndex();
+		List<Record> records = new ArrayList<Record>();
+		boolean changed = false;
+		headersRead = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || name.equals(INDEX_NAME)
+					|| name.endsWith(TEMPORARY_EXTENSION))
+				continue;
+			Record record = indexed.remove(name);
+			if ((record == null) || (record.length != file.length())
+					|| (record.modified != file.lastModified())) {
+				record = new Record(file);
+				changed = true;
+			}
+			records.add(record);
+		}
+		if (changed || !indexed.isEmpty()) {
+			try {
+				writeIndex(records);
+			} catch (IOException e) {
+				// The index is an optimization: the saves are listed anyway
+			}
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Record record : records)
+			if (record.summary != null)
+				entries.add(new Entry(new File(directory, record.name),
+						record.summary));
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				long t1 = e1.getSummary().getTimestamp();
+				long t2 = e2.getSummary().getTimestamp();
+				return (t1 > t2) ? -1 : ((t1 < t2) ? 1 : 0);
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Returns the number of files which header was read in the last listing
+	 * (those not taken from the index).
+	 *
+	 * @return The number of headers read.
+	 */
+	public synchronized int getHeadersRead() {
+		return headersRead;
+	}
+
+	/**
+	 * Returns the directory of the saved games.
+	 *
+	 * @return The directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Reads the records of the index, by file name. A missing or invalid
+	 * index is empty. It is read whole into the heap, not memory-mapped: a
+	 * mapping would hold the file until it is collected, and the index could
+	 * not be replaced (renamed or deleted) on every platform.
+	 */
+	private Map<String, Record> readIndex() {
+		Map<String, Record> records = new HashMap<String, Record>();
+		if (!index.isFile())
+			return records;
+		try {
+			ByteBuffer buffer;
+			RandomAccessFile raf = new RandomAccessFile(index, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE)
+					return records;
+				buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer) < 0)
+						return records;
+				buffer.flip();
+			} finally {
+				raf.close();
+			}
+			if ((buffer.remaining() < HEADER_LENGTH)
+					|| (buffer.getInt() != MAGIC)
+					|| (buffer.getShort() != VERSION))
+				return records;
+			buffer.getShort();
+			int count = buffer.getInt();
+			if ((count < 0)
+					|| ((long) count * RECORD_LENGTH > buffer.remaining()))
+				return records;
+			for (int i = 0; i < count; i++) {
+				Record record = new Record(buffer);
+				records.put(record.name, record);
+			}
+		} catch (IOException e) {
+			records.clear();
+		}
+		return records;
+	}
+
+	/**
+	 * Writes the index into a temporary file and renames it
+	 */
+	private void writeIndex(List<Record> records) throws IOException {
+		List<Record> indexable = new ArrayList<Record>();
+		for (Record record : records)
+			if (record.name.getBytes("UTF-8").length <= NAME_WIDTH - 2)
+				indexable.add(record);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH
+				+ indexable.size() * RECORD_LENGTH);
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) 0);
+		buffer.putInt(indexable.size());
+		for (Record record : indexable)
+			record.write(buffer);
+
+		File temp = File.createTempFile(INDEX_NAME, TEMPORARY_EXTENSION,
+				directory);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(buffer.array());
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(index)) {
+				index.delete();
+				if (!temp.renameTo(index))
+					throw new IOException("Cannot write " + index.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Represents the record of a file in the index
+	 */
+	private class Record {
+
+		private String name;
+		private long length;
+		private long modified;
+
+		/**
+		 * The summary, null if it is not a saved game
+		 */
+		private SaveSummary summary;
+
+		/**
+		 * Reads the header of a file
+		 */
+		private Record(File file) {
+			name = file.getName();
+			length = file.length();
+			modified = file.lastModified();
+			headersRead++;
+			try {
+				summary = SaveSummary.read(file);
+			} catch (IOException e) {
+				// Not a saved game (or a corrupt one)
+			}
+		}
+
+		/**
+		 * Reads a record of the index, from the current position
+		 */
+		private Record(ByteBuffer buffer) throws IOException {
+			name = SaveSummary.getString(buffer, NAME_WIDTH);
+			length = buffer.getLong();
+			modified = buffer.getLong();
+			boolean save = buffer.getInt() != 0;
+			if (save)
+				summary = SaveSummary.read(buffer);
+			else
+				buffer.position(buffer.position() + SaveSummary.LENGTH);
+		}
+
+		/**
+		 * Writes the record, from the current position
+		 */
+		private void write(ByteBuffer buffer) {
+			SaveSummary.putString(buffer, name, NAME_WIDTH);
+			buffer.putLong(length);
+			buffer.putLong(modified);
+			buffer.putInt((summary != null) ? 1 : 0);
+			if (summary != null)
+				buffer.put(summary.toBytes());
+			else
+				buffer.position(buffer.position() + SaveSummary.LENGTH);
+		}
+	}
+
+	/**
+	 * Represents a saved game of the catalog.
+	 */
+	public static class Entry {
+
+		private File file;
+		private SaveSummary summary;
+
+		private Entry(File file, SaveSummary summary) {
+			this.file = file;
+			this.summary = summary;
+		}
+
+		/**
+		 * Returns the file of the saved game.
+		 *
+		 * @return The file.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Returns the summary of the saved game.
+		 *
+		 * @return The summary.
+		 */
+		public SaveSummary getSummary() {
+			return summary;
+		}
+
+		/**
+		 * Returns a String representation for this object:
+		 * Entry[file:summary]. This is useful for debugging purposes.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			return this.getClass().getSimpleName() + "[" + file.getName()
+					+ ":" + summary + "]";
+		}
+	}
+
+	/**
+	 * Lists the saved games of a directory.
+	 *
+	 * @param args
+	 *            The directory.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1)
+			throw new IllegalArgumentException("Usage: SaveCatalog directory");
+
+		try {
+			DateFormat format = DateFormat.getDateTimeInstance();
+			for (Entry entry : new SaveCatalog(new File(args[0])).list()) {
+				SaveSummary summary = entry.getSummary();
+				System.out.println(entry.getFile().getName() + "\t"
+						+ format.format(new Date(summary.getTimestamp()))
+						+ "\t" + summary.getTitle() + "\t"
+						+ summary.getLocationName() + "\t"
+						+ summary.getScore() + "\t" + summary.getCommands());
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
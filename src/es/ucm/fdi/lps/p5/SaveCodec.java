@@ -0,0 +1,1154 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.command.CommandType;
+
+/**
+ * Saves and restores games in a compact binary format that records only the
+ * mutable state of a game, not its definition: a saved game is restored into
+ * a game loaded again from the same definition (checked by its fingerprint).
+ * <p>
+ * A saved game is a header followed by a payload. The header holds the magic
+ * number "P5SG", the format version, the payload length and the CRC32 of the
+ * payload, so a corrupt or truncated save is rejected before it is applied,
+ * and a summary of fixed length for listing the saves without reading their
+ * payload (see SaveSummary and SaveCatalog). Saves of the first version,
+ * without summary, and of the second one, without the file of the
+ * definition, can still be restored. The payload holds (counts as variable-length ints, ids as UTF strings):
+ * <ul>
+ * <li>The fingerprint of the definition (empty if it is unknown).</li>
+ * <li>The path of the file of the definition (empty if it is unknown), so
+ * a saved game can be restored when its definition is not cached.</li>
+ * <li>The id of the current location.</li>
+ * <li>The items of every location with items and of the player inventory,
+ * in order. A delta save holds instead the items of every location changed
+ * since the game was loaded (empty or not).</li>
+ * <li>The status of every obstacle. A delta save holds only the obstacles
+ * which status differs from the definition.</li>
+ * <li>The ids of the fired triggers.</li>
+ * <li>The command statistics: executions, accumulated latency and non empty
+ * histogram buckets of every command type executed.</li>
+ * </ul>
+ * The history of executed commands is not saved: it is cleared whenever a
+ * game starts to run, so a restored game starts without it.
+ * <p>
+ * Delta saves (the default) are much smaller for large worlds, where most
+ * of the state is the definition: the rest of the world is taken from the
+ * definition the game is restored into, which is loaded again (usually from
+ * the cache of parsed definitions, see GameLoader.reload).
+ * <p>
+ * The payload is compressed by default (see setCompressionLevel): everything
+ * after the path of the definition is deflated with a preset dictionary made of the ids
+ * of the definition, which are most of what a saved game holds, so even
+ * small saves shrink. The dictionary is built from the definition on both
+ * sides, so it is never stored. Other files (like the games serialized whole
+ * by the Save command) are compressed with gzip instead, and recognized by
+ * isCompressed; the games serialized whole are also written in blocks with
+ * their own checksums (see BlockOutputStream), which are validated while
+ * they are read (see openSerialized).
+ */
+public class SaveCodec {
+
+	/**
+	 * Magic number of the saved games ("P5SG")
+	 */
+	public static final int MAGIC = 0x50355347;
+
+	/**
+	 * Current version of the save format
+	 */
+	public static final short VERSION = 3;
+
+	/**
+	 * Length of the header: magic, version, flags, payload length, CRC32 and
+	 * summary
+	 */
+	public static final int HEADER_LENGTH = 16 + SaveSummary.LENGTH;
+
+	/**
+	 * Length of the header of the first version, without summary
+	 */
+	private static final int HEADER_LENGTH_V1 = 16;
+
+	/**
+	 * Flag of the header of the delta saves
+	 */
+	public static final short FLAG_DELTA = 1;
+
+	/**
+	 * Flag of the header of the saves which payload is compressed
+	 */
+	public static final short FLAG_COMPRESSED = 2;
+
+	/**
+	 * Maximum length of the preset dictionaries (the window of deflate)
+	 */
+	private static final int DICTIONARY_LENGTH = 32 * 1024;
+
+	/**
+	 * Number of preset dictionaries kept, by fingerprint
+	 */
+	private static final int DICTIONARIES = 16;
+
+	/**
+	 * Compression level of the saves, 0 for not compressing them
+	 */
+	private static int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * The preset dictionaries of the last definitions used, by fingerprint
+	 */
+	private static Map<String, byte[]> dictionaries = new LinkedHashMap<String, byte[]>(
+			DICTIONARIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > DICTIONARIES;
+		}
+	};
+
+	/**
+	 * The directions, by ordinal
+	 */
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private SaveCodec() {
+	}
+
+	/**
+	 * Sets the compression level of the saves written from now on. Saves of
+	 * any level (or not compressed) can always be restored.
+	 *
+	 * @param level
+	 *            The level: from 1 (fastest) to 9 (smallest),
+	 *            Deflater.DEFAULT_COMPRESSION, or 0 for not compressing.
+	 * @throws IllegalArgumentException
+	 *             The level is not valid.
+	 */
+	public static synchronized void setCompressionLevel(int level) {
+		if ((level < Deflater.DEFAULT_COMPRESSION)
+				|| (level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException();
+		compressionLevel = level;
+	}
+
+	/**
+	 * Returns the compression level of the saves.
+	 *
+	 * @return The level, 0 if they are not compressed.
+	 */
+	public static synchronized int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Returns a stream which compresses with gzip what is written into
+	 * another stream, at the compression level of the saves, for saving what
+	 * cannot be saved in this format. Closing or finishing it finishes the
+	 * compression.
+	 *
+	 * @param out
+	 *            The stream.
+	 * @return The compressing stream, or the same stream if the saves are not
+	 *         compressed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'out' cannot be null.
+	 * @throws IOException
+	 *             The stream cannot be written.
+	 */
+	public static OutputStream compress(OutputStream out) throws IOException {
+		if (out == null)
+			throw new IllegalArgumentException();
+		final int level = getCompressionLevel();
+		if (level == 0)
+			return out;
+		return new GZIPOutputStream(out) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	/**
+	 * Checks whether some leading bytes are the header of a file compressed
+	 * with gzip.
+	 *
+	 * @param head
+	 *            The leading bytes.
+	 * @param length
+	 *            The number of valid bytes.
+	 * @return true if they start with the gzip magic number.
+	 */
+	public static boolean isCompressed(byte[] head, int length) {
+		return (head != null) && (length >= 2)
+				&& ((head[0] & 0xFF) == (GZIPInputStream.GZIP_MAGIC & 0xFF))
+				&& ((head[1] & 0xFF) == (GZIPInputStream.GZIP_MAGIC >>> 8));
+	}
+
+	/**
+	 * Uncompresses a file compressed with gzip.
+	 *
+	 * @param data
+	 *            The file contents.
+	 * @return The uncompressed contents, or the same contents if they are not
+	 *         compressed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'data' cannot be null.
+	 * @throws IOException
+	 *             The compressed contents are corrupt.
+	 */
+	public static byte[] uncompress(byte[] data) throws IOException {
+		if (data == null)
+			throw new IllegalArgumentException();
+		if (!isCompressed(data, data.length))
+			return data;
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		try {
+			return readFully(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens a game serialized whole (see SaveCommand) for reading it: if it
+	 * was written in blocks (see BlockOutputStream), every block is validated
+	 * before it is read, so a corrupt or truncated file fails at its first bad
+	 * block; if it is compressed, it is uncompressed while it is read.
+	 *
+	 * @param data
+	 *            The file contents.
+	 * @return The stream of the serialized game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'data' cannot be null.
+	 * @throws IOException
+	 *             The header of the blocks or of the compressed contents is
+	 *             not valid.
+	 */
+	public static InputStream openSerialized(byte[] data) throws IOException {
+		if (data == null)
+			throw new IllegalArgumentException();
+		if (!BlockInputStream.isBlocks(data, data.length)) {
+			InputStream in = new ByteArrayInputStream(data);
+			return isCompressed(data, data.length) ? new GZIPInputStream(in)
+					: in;
+		}
+
+		InputStream in = new BufferedInputStream(new BlockInputStream(
+				new ByteArrayInputStream(data)));
+		byte[] head = new byte[2];
+		in.mark(head.length);
+		int length = 0;
+		int n;
+		while ((length < head.length)
+				&& ((n = in.read(head, length, head.length - length)) > 0))
+			length += n;
+		in.reset();
+		return isCompressed(head, length) ? new GZIPInputStream(in) : in;
+	}
+
+	/**
+	 * Reads a game serialized whole (see openSerialized), up to the end of
+	 * the file, so a missing end of the blocks or a wrong gzip checksum is
+	 * detected too.
+	 *
+	 * @param data
+	 *            The file contents.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'data' cannot be null.
+	 * @throws IOException
+	 *             The file is corrupt or truncated, or it is not a serialized
+	 *             game.
+	 * @throws ClassNotFoundException
+	 *             The class of a serialized object is unknown.
+	 */
+	public static Game readSerialized(byte[] data) throws IOException,
+			ClassNotFoundException {
+		InputStream in = openSerialized(data);
+		try {
+			ObjectInputStream ois = new ObjectInputStream(in);
+			Object game = ois.readObject();
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) >= 0)
+				;
+			if (!(game instanceof Game))
+				throw new IOException("Not a serialized game");
+			return (Game) game;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a game serialized whole, for the games that cannot be saved in
+	 * this format (see supports): compressed as the saves are and written in
+	 * blocks with checksums (see BlockOutputStream). It is read by
+	 * readSerialized.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param out
+	 *            The stream where the game is written, which is closed.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The game cannot be written.
+	 */
+	public static void writeSerialized(Game game, OutputStream out)
+			throws IOException {
+		if ((game == null) || (out == null))
+			throw new IllegalArgumentException();
+
+		ObjectOutputStream oos = new ObjectOutputStream(
+				compress(new BlockOutputStream(out)));
+		oos.writeObject(game);
+		oos.close();
+	}
+
+	/**
+	 * Checks whether a game can be saved in this format: its world must be
+	 * loaded whole (not lazily) and its definition must be known, so the game
+	 * can be restored.
+	 *
+	 * @param game
+	 *            The game.
+	 * @return true if it can be saved.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public static boolean supports(Game game) {
+		if (game == null)
+			throw new IllegalArgumentException();
+		return (game.getFingerprint() != null)
+				&& !game.getCurrentLocation().isLazy();
+	}
+
+	/**
+	 * Writes the state of a game as a delta save.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param out
+	 *            The stream where the saved game is written.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null and the game must be supported.
+	 * @throws IOException
+	 *             The saved game cannot be written.
+	 */
+	public static void write(Game game, OutputStream out) throws IOException {
+		write(game, out, true);
+	}
+
+	/**
+	 * Writes the state of a game.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param out
+	 *            The stream where the saved game is written.
+	 * @param delta
+	 *            true for saving only the differences from the definition.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null and the game must be supported.
+	 * @throws IOException
+	 *             The saved game cannot be written.
+	 */
+	public static void write(Game game, OutputStream out, boolean delta)
+			throws IOException {
+		if ((game == null) || (out == null) || !supports(game))
+			throw new IllegalArgumentException();
+
+		snapshot(game, delta).write(out);
+	}
+
+	/**
+	 * Takes a snapshot of the state of a game, which can be written later
+	 * (in another thread) while the game goes on. Only the ids of the
+	 * elements are copied, so it is cheap.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param delta
+	 *            true for saving only the differences from the definition.
+	 * @return The snapshot.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null and it must be
+	 *             supported.
+	 */
+	public static Snapshot snapshot(Game game, boolean delta) {
+		if ((game == null) || !supports(game))
+			throw new IllegalArgumentException();
+		return new Snapshot(game, delta);
+	}
+
+	/**
+	 * Checks whether some leading bytes are the header of a saved game.
+	 *
+	 * @param head
+	 *            The leading bytes.
+	 * @param length
+	 *            The number of valid bytes.
+	 * @return true if they start with the magic number of the saved games.
+	 */
+	public static boolean isSave(byte[] head, int length) {
+		return (head != null) && (length >= 4)
+				&& (ByteBuffer.wrap(head, 0, 4).getInt() == MAGIC);
+	}
+
+	/**
+	 * Reads a saved game completely.
+	 *
+	 * @param in
+	 *            The stream, which is not closed.
+	 * @return The saved game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'in' cannot be null.
+	 * @throws IOException
+	 *             The stream cannot be read.
+	 */
+	public static byte[] readFully(InputStream in) throws IOException {
+		if (in == null)
+			throw new IllegalArgumentException();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the fingerprint of the definition of a saved game, validating
+	 * its header and its checksum.
+	 *
+	 * @param save
+	 *            The saved game.
+	 * @return The fingerprint, null if it is unknown.
+	 * @throws IllegalArgumentException
+	 *             The argument 'save' cannot be null.
+	 * @throws IOException
+	 *             It is not a valid saved game.
+	 */
+	public static String getFingerprint(byte[] save) throws IOException {
+		if (save == null)
+			throw new IllegalArgumentException();
+		String fingerprint = payload(save).readUTF();
+		return (fingerprint.length() > 0) ? fingerprint : null;
+	}
+
+	/**
+	 * Returns the file of the definition of a saved game, validating its
+	 * header and its checksum.
+	 *
+	 * @param save
+	 *            The saved game.
+	 * @return The file, null if it is unknown (or it was saved by the first
+	 *         versions).
+	 * @throws IllegalArgumentException
+	 *             The argument 'save' cannot be null.
+	 * @throws IOException
+	 *             It is not a valid saved game.
+	 */
+	public static File getSource(byte[] save) throws IOException {
+		if (save == null)
+			throw new IllegalArgumentException();
+		DataInputStream in = payload(save);
+		in.readUTF();
+		String source = readSource(save, in);
+		return (source.length() > 0) ? new File(source) : null;
+	}
+
+	/**
+	 * Returns the summary of a saved game, validating only its header.
+	 *
+	 * @param head
+	 *            The saved game, or at least its header.
+	 * @return The summary, null if the saved game has none (it was saved by
+	 *         the first version).
+	 * @throws IllegalArgumentException
+	 *             The argument 'head' cannot be null.
+	 * @throws IOException
+	 *             It is not a valid saved game.
+	 */
+	public static SaveSummary getSummary(byte[] head) throws IOException {
+		if (head == null)
+			throw new IllegalArgumentException();
+		if (headerLength(head) == HEADER_LENGTH_V1)
+			return null;
+		ByteBuffer summary = ByteBuffer.wrap(head);
+		summary.position(HEADER_LENGTH_V1);
+		return SaveSummary.read(summary);
+	}
+
+	/**
+	 * Restores a saved game into a game just loaded from its definition (a
+	 * delta save requires it; a full save can be restored into any game of
+	 * the definition).
+	 *
+	 * @param save
+	 *            The saved game.
+	 * @param game
+	 *            The game, just loaded (not played) and supported.
+	 * @return The game, with the saved state.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null and the game must be supported.
+	 * @throws IOException
+	 *             It is not a valid saved game or it is not a saved game of
+	 *             the definition of the game.
+	 */
+	public static Game restore(byte[] save, Game game) throws IOException {
+		if ((save == null) || (game == null) || !supports(game))
+			throw new IllegalArgumentException();
+
+		DataInputStream in = payload(save);
+		short flags = ByteBuffer.wrap(save).getShort(6);
+		String fingerprint = in.readUTF();
+		if ((fingerprint.length() > 0)
+				&& !fingerprint.equals(game.getFingerprint()))
+			throw new IOException("Saved game of another definition");
+		readSource(save, in);
+		if ((flags & FLAG_COMPRESSED) != 0)
+			in = new DataInputStream(new ByteArrayInputStream(inflate(
+					readFully(in), dictionary(game))));
+		boolean delta = (flags & FLAG_DELTA) != 0;
+		try {
+			new Restorer(game, in, delta).restore();
+		} catch (RuntimeException e) {
+			// Valid checksum but inconsistent state
+			throw new IOException("Invalid saved game: " + e);
+		}
+		return game;
+	}
+
+	/**
+	 * Validates the header and the checksum of a saved game, returning its
+	 * payload
+	 */
+	private static DataInputStream payload(byte[] save) throws IOException {
+		int offset = headerLength(save);
+		ByteBuffer header = ByteBuffer.wrap(save);
+		int length = header.getInt(8);
+		if ((length < 0) || (length > save.length - offset))
+			throw new IOException("Truncated saved game");
+
+		CRC32 crc = new CRC32();
+		crc.update(save, offset, length);
+		if ((int) crc.getValue() != header.getInt(12))
+			throw new IOException("Corrupt saved game: checksum mismatch");
+		if (offset == HEADER_LENGTH)
+			getSummary(save);
+		return new DataInputStream(new ByteArrayInputStream(save, offset,
+				length));
+	}
+
+	/**
+	 * Reads the path of the file of the definition, after the fingerprint
+	 * (empty for the saves of the first versions, which do not have it)
+	 */
+	private static String readSource(byte[] save, DataInputStream in)
+			throws IOException {
+		if (ByteBuffer.wrap(save).getShort(4) < 3)
+			return "";
+		return in.readUTF();
+	}
+
+	/**
+	 * Validates the magic number, the version and the flags of a saved game,
+	 * returning the length of its header
+	 */
+	private static int headerLength(byte[] save) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(save);
+		if ((save.length < HEADER_LENGTH_V1) || (header.getInt(0) != MAGIC))
+			throw new IOException("Not a saved game");
+		short version = header.getShort(4);
+		if (((version < 1) || (version > VERSION))
+				|| ((header.getShort(6) & ~(FLAG_DELTA | FLAG_COMPRESSED)) != 0))
+			throw new IOException("Unsupported saved game version: "
+					+ version);
+		int length = (version == 1) ? HEADER_LENGTH_V1 : HEADER_LENGTH;
+		if (save.length < length)
+			throw new IOException("Truncated saved game");
+		return length;
+	}
+
+	/**
+	 * Inflates a compressed payload, with the preset dictionary of its
+	 * definition
+	 */
+	private static byte[] inflate(byte[] data, byte[] dictionary)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					data.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n > 0)
+					out.write(buffer, 0, n);
+				else if (inflater.needsDictionary())
+					inflater.setDictionary(dictionary);
+				else if (inflater.needsInput())
+					throw new IOException("Truncated saved game");
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid saved game: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// The dictionary is not the one the save was compressed with
+			throw new IOException("Saved game of another definition");
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Returns the preset dictionary of the definition of a game: the ids of
+	 * its triggers, obstacles, locations and items (the most frequent in the
+	 * saves, so they are the nearest), as they are written in the payload.
+	 * Only the last bytes fit in the window of deflate.
+	 */
+	private static byte[] dictionary(Game game) {
+		String fingerprint = game.getFingerprint();
+		synchronized (dictionaries) {
+			byte[] dictionary = dictionaries.get(fingerprint);
+			if (dictionary != null)
+				return dictionary;
+		}
+
+		List<String> triggers = new ArrayList<String>();
+		for (Trigger trigger : game.getTriggers())
+			triggers.add(trigger.getId());
+		List<String> obstacles = new ArrayList<String>();
+		List<String> locations = new ArrayList<String>();
+		List<String> items = new ArrayList<String>();
+		for (Location location : game.getLocations().values()) {
+			locations.add(location.getId());
+			for (Direction dir : DIRECTIONS) {
+				Obstacle obstacle = location.getObstacle(dir);
+				if (obstacle != null)
+					obstacles.add(obstacle.getId());
+			}
+			for (Item item : location.getAllItems())
+				items.add(item.getId());
+		}
+		for (Item item : game.getInventory().getAllItems())
+			items.add(item.getId());
+
+		// Sorted, so the dictionary does not depend on where the items are
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeSorted(out, triggers);
+			writeSorted(out, obstacles);
+			writeSorted(out, locations);
+			writeSorted(out, items);
+			out.flush();
+		} catch (IOException e) {
+			// Ids are short, and a byte array stream cannot fail
+			throw new IllegalStateException(e);
+		}
+		byte[] dictionary = bytes.toByteArray();
+		if (dictionary.length > DICTIONARY_LENGTH) {
+			byte[] tail = new byte[DICTIONARY_LENGTH];
+			System.arraycopy(dictionary, dictionary.length - tail.length,
+					tail, 0, tail.length);
+			dictionary = tail;
+		}
+
+		synchronized (dictionaries) {
+			dictionaries.put(fingerprint, dictionary);
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Writes some ids sorted, without repeating them
+	 */
+	private static void writeSorted(DataOutputStream out, List<String> ids)
+			throws IOException {
+		Collections.sort(ids);
+		String last = null;
+		for (String id : ids) {
+			if (!id.equals(last))
+				out.writeUTF(id);
+			last = id;
+		}
+	}
+
+	/**
+	 * Writes a non negative number in 7-bit groups, least significant first
+	 */
+	private static void writeVarint(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid saved game: malformed number");
+	}
+
+	private static int readCount(DataInputStream in) throws IOException {
+		long count = readVarint(in);
+		if (count > Integer.MAX_VALUE)
+			throw new IOException("Invalid saved game: malformed count");
+		return (int) count;
+	}
+
+	/**
+	 * Represents an immutable copy of the state of a game at a given moment,
+	 * ready to be written as a saved game.
+	 */
+	public static class Snapshot {
+
+		private boolean delta;
+		private String fingerprint;
+		private String source;
+		private String current;
+
+		/**
+		 * The saved locations and their items, the inventory, the saved
+		 * obstacles and their statuses and the fired triggers, as ids
+		 */
+		private List<String> locations;
+		private List<String[]> contents;
+		private String[] inventory;
+		private List<String> obstacles;
+		private List<Boolean> statuses;
+		private List<String> fired;
+
+		/**
+		 * The command statistics of every command type executed
+		 */
+		private List<CommandType> executed;
+		private List<long[]> histograms;
+		private List<long[]> counters;
+
+		/**
+		 * The time the snapshot was taken
+		 */
+		private long timestamp;
+
+		/**
+		 * The summary, for the header
+		 */
+		private SaveSummary summary;
+
+		/**
+		 * The compression level (0 if not compressed) and the preset
+		 * dictionary of the definition
+		 */
+		private int level;
+		private byte[] dictionary;
+
+		private Snapshot(Game game, boolean delta) {
+			this.delta = delta;
+			String fingerprint = game.getFingerprint();
+			this.fingerprint = (fingerprint != null) ? fingerprint : "";
+			File file = game.getSource();
+			source = (file != null) ? file.getAbsolutePath() : "";
+			current = game.getCurrentLocation().getId();
+			timestamp = System.currentTimeMillis();
+			summary = new SaveSummary(game, timestamp);
+
+			locations = new ArrayList<String>();
+			contents = new ArrayList<String[]>();
+			obstacles = new ArrayList<String>();
+			statuses = new ArrayList<Boolean>();
+			GameChanges changes = game.getChanges();
+			if (delta && (changes != null)) {
+				// Only the elements changed, not the whole world
+				for (Location location : changes.getLocations())
+					if (location.isChanged()) {
+						locations.add(location.getId());
+						contents.add(ids(location.getAllItems()));
+					}
+				for (Obstacle obstacle : changes.getObstacles())
+					if (obstacle.isChanged() && isPlaced(obstacle)) {
+						obstacles.add(obstacle.getId());
+						statuses.add(obstacle.getStatus());
+					}
+			} else {
+				for (Location location : game.getLocations().values()) {
+					if (delta ? location.isChanged() : !location
+							.getAllItems().isEmpty()) {
+						locations.add(location.getId());
+						contents.add(ids(location.getAllItems()));
+					}
+					for (Direction dir : DIRECTIONS) {
+						Obstacle obstacle = location.getObstacle(dir);
+						if ((obstacle != null)
+								&& (!delta || obstacle.isChanged())) {
+							obstacles.add(obstacle.getId());
+							statuses.add(obstacle.getStatus());
+						}
+					}
+				}
+			}
+			inventory = ids(game.getInventory().getAllItems());
+
+			fired = new ArrayList<String>();
+			for (Trigger trigger : game.getTriggers())
+				if (trigger.hasFired())
+					fired.add(trigger.getId());
+
+			CommandStatistics statistics = game.getStatistics();
+			executed = new ArrayList<CommandType>();
+			histograms = new ArrayList<long[]>();
+			counters = new ArrayList<long[]>();
+			for (CommandType type : CommandType.values()) {
+				if (statistics.getExecutions(type) > 0) {
+					executed.add(type);
+					counters.add(new long[] { statistics.getExecutions(type),
+							statistics.getTotalLatency(type) });
+					histograms.add(statistics.getLatencyHistogram(type));
+				}
+			}
+
+			level = getCompressionLevel();
+			if (level != 0)
+				dictionary = dictionary(game);
+		}
+
+		/**
+		 * Checks whether an obstacle is in its location, so it is restored
+		 */
+		private static boolean isPlaced(Obstacle obstacle) {
+			Location location = obstacle.getLocation();
+			if (location == null)
+				return false;
+			for (Direction dir : DIRECTIONS)
+				if (location.getObstacle(dir) == obstacle)
+					return true;
+			return false;
+		}
+
+		private static String[] ids(Iterable<Item> items) {
+			List<String> ids = new ArrayList<String>();
+			for (Item item : items)
+				ids.add(item.getId());
+			return ids.toArray(new String[ids.size()]);
+		}
+
+		/**
+		 * Returns the summary of the saved game (see SaveSummary).
+		 *
+		 * @return The summary.
+		 */
+		public SaveSummary getSummary() {
+			return summary;
+		}
+
+		/**
+		 * Checks whether it only holds the differences from the definition.
+		 *
+		 * @return true if it is a delta snapshot.
+		 */
+		public boolean isDelta() {
+			return delta;
+		}
+
+		/**
+		 * Returns the time the snapshot was taken.
+		 *
+		 * @return The time in milliseconds since the epoch.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Writes the snapshot as a saved game.
+		 *
+		 * @param out
+		 *            The stream where the saved game is written.
+		 * @throws IllegalArgumentException
+		 *             The argument 'out' cannot be null.
+		 * @throws IOException
+		 *             The saved game cannot be written.
+		 */
+		public void write(OutputStream out) throws IOException {
+			if (out == null)
+				throw new IllegalArgumentException();
+
+			byte[] payload = payload();
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeShort(VERSION);
+			data.writeShort((delta ? FLAG_DELTA : 0)
+					| ((level != 0) ? FLAG_COMPRESSED : 0));
+			data.writeInt(payload.length);
+			data.writeInt((int) crc.getValue());
+			data.write(summary.toBytes());
+			data.write(payload);
+			data.flush();
+		}
+
+		/**
+		 * Builds the payload of the saved game, deflating everything after
+		 * the path of the definition while it is encoded
+		 */
+		private byte[] payload() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(fingerprint);
+			out.writeUTF(source);
+			out.flush();
+			if (level == 0) {
+				writeBody(out);
+				out.flush();
+				return bytes.toByteArray();
+			}
+
+			Deflater deflater = new Deflater(level);
+			try {
+				if (dictionary.length > 0)
+					deflater.setDictionary(dictionary);
+				DeflaterOutputStream deflated = new DeflaterOutputStream(
+						bytes, deflater);
+				out = new DataOutputStream(deflated);
+				writeBody(out);
+				out.flush();
+				deflated.finish();
+			} finally {
+				deflater.end();
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Encodes everything after the path of the definition
+		 */
+		private void writeBody(DataOutputStream out) throws IOException {
+			out.writeUTF(current);
+
+			writeVarint(out, locations.size());
+			for (int i = 0; i < locations.size(); i++) {
+				out.writeUTF(locations.get(i));
+				writeIds(out, contents.get(i));
+			}
+			writeIds(out, inventory);
+
+			writeVarint(out, obstacles.size());
+			for (int i = 0; i < obstacles.size(); i++) {
+				out.writeUTF(obstacles.get(i));
+				out.writeBoolean(statuses.get(i));
+			}
+
+			writeIds(out, fired.toArray(new String[fired.size()]));
+
+			writeVarint(out, executed.size());
+			for (int i = 0; i < executed.size(); i++) {
+				writeVarint(out, executed.get(i).ordinal());
+				writeVarint(out, counters.get(i)[0]);
+				writeVarint(out, counters.get(i)[1]);
+				long[] histogram = histograms.get(i);
+				int buckets = 0;
+				for (long count : histogram)
+					if (count > 0)
+						buckets++;
+				writeVarint(out, buckets);
+				for (int j = 0; j < histogram.length; j++) {
+					if (histogram[j] > 0) {
+						writeVarint(out, j);
+						writeVarint(out, histogram[j]);
+					}
+				}
+			}
+		}
+
+		private static void writeIds(DataOutputStream out, String[] ids)
+				throws IOException {
+			writeVarint(out, ids.length);
+			for (String id : ids)
+				out.writeUTF(id);
+		}
+
+		/**
+		 * Returns a String representation for this object:
+		 * Snapshot[current:timestamp]. This is useful for debugging purposes.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			return this.getClass().getSimpleName() + "[" + current + ":"
+					+ timestamp + "]";
+		}
+	}
+
+	/**
+	 * Applies the payload of a saved game to a game
+	 */
+	private static class Restorer {
+
+		private Game game;
+		private DataInputStream in;
+		private boolean delta;
+
+		/**
+		 * The items of the game, by id
+		 */
+		private Map<String, Item> items;
+
+		private Restorer(Game game, DataInputStream in, boolean delta) {
+			this.game = game;
+			this.in = in;
+			this.delta = delta;
+		}
+
+		private void restore() throws IOException {
+			Map<String, Location> locations = game.getLocations();
+			Location current = locations.get(in.readUTF());
+			if (current == null)
+				throw new IOException("Invalid saved game: unknown location");
+
+			// The saved locations with their items, as ids
+			int count = readCount(in);
+			List<Location> saved = new ArrayList<Location>(count);
+			List<String[]> contents = new ArrayList<String[]>(count);
+			for (int i = 0; i < count; i++) {
+				Location location = locations.get(in.readUTF());
+				if (location == null)
+					throw new IOException(
+							"Invalid saved game: unknown location");
+				String[] ids = new String[readCount(in)];
+				for (int j = 0; j < ids.length; j++)
+					ids[j] = in.readUTF();
+				saved.add(location);
+				contents.add(ids);
+			}
+
+			// Every item of the restored locations (all of them, unless it is
+			// a delta save) is taken out and put back where it was
+			items = new HashMap<String, Item>();
+			for (Location location : delta ? saved : locations.values())
+				for (Item item : new ArrayList<Item>(location.getAllItems())) {
+					items.put(item.getId(), item);
+					location.removeItem(item);
+				}
+			ItemRepository inventory = game.getInventory();
+			for (Item item : new ArrayList<Item>(inventory.getAllItems())) {
+				items.put(item.getId(), item);
+				inventory.removeItem(item);
+			}
+			int placed = 0;
+			for (int i = 0; i < saved.size(); i++) {
+				for (String id : contents.get(i))
+					saved.get(i).addItem(item(id));
+				placed += contents.get(i).length;
+			}
+			count = readCount(in);
+			for (int j = 0; j < count; j++)
+				inventory.addItem(item(in.readUTF()));
+			placed += count;
+			if (placed != items.size())
+				throw new IOException("Invalid saved game: missing items");
+
+			Map<String, Obstacle> obstacles = new HashMap<String, Obstacle>();
+			for (Location location : locations.values())
+				for (Direction dir : DIRECTIONS) {
+					Obstacle obstacle = location.getObstacle(dir);
+					if (obstacle != null)
+						obstacles.put(obstacle.getId(), obstacle);
+				}
+			count = readCount(in);
+			for (int i = 0; i < count; i++) {
+				Obstacle obstacle = obstacles.get(in.readUTF());
+				if (obstacle == null)
+					throw new IOException(
+							"Invalid saved game: unknown obstacle");
+				obstacle.setStatus(in.readBoolean());
+			}
+
+			count = readCount(in);
+			for (int i = 0; i < count; i++)
+				if (!game.markTriggerFired(in.readUTF()))
+					throw new IOException(
+							"Invalid saved game: unknown trigger");
+
+			CommandType[] types = CommandType.values();
+			CommandStatistics statistics = game.getStatistics();
+			statistics.clear();
+			count = readCount(in);
+			for (int i = 0; i < count; i++) {
+				int type = readCount(in);
+				if (type >= types.length)
+					throw new IOException(
+							"Invalid saved game: unknown command type");
+				long executions = readVarint(in);
+				long latency = readVarint(in);
+				long[] histogram = new long[CommandStatistics.LATENCY_BUCKETS];
+				int buckets = readCount(in);
+				for (int j = 0; j < buckets; j++) {
+					int bucket = readCount(in);
+					if (bucket >= histogram.length)
+						throw new IOException(
+								"Invalid saved game: unknown latency bucket");
+					histogram[bucket] = readVarint(in);
+				}
+				statistics.restore(types[type], executions, latency,
+						histogram);
+			}
+			if (in.read() >= 0)
+				throw new IOException("Invalid saved game: trailing data");
+
+			game.setCurrentLocation(current);
+		}
+
+		/**
+		 * Returns the item with a given id, which can be placed only once
+		 */
+		private Item item(String id) throws IOException {
+			Item item = items.get(id);
+			if (item == null)
+				throw new IOException("Invalid saved game: unknown item");
+			items.put(item.getId(), null);
+			return item;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Summarizes a saved game, so it can be listed without restoring it: the
+ * title and the author of the game, the name of the current location, the
+ * score (the value of the inventory), the number of executed commands, the
+ * time it was saved and the fingerprint of its definition.
+ * <p>
+ * The summary has a fixed layout and length (LENGTH bytes), right after the
+ * header of the saved game (see SaveCodec), and its own CRC32, so it is read
+ * with a single small read, without the payload:
+ * <ul>
+ * <li>0: the time it was saved (long).</li>
+ * <li>8: the number of executed commands (long).</li>
+ * <li>16: the score (int).</li>
+ * <li>20: the CRC32 of the rest of the summary (int).</li>
+ * <li>24: the fingerprint, the title, the author and the location name, in
+ * fields of fixed width: a 2-byte length and UTF-8 bytes, truncated to the
+ * width of the field.</li>
+ * </ul>
+ * The rest of the summary is reserved (zeros).
+ */
+public class SaveSummary {
+
+	/**
+	 * Length of the summary
+	 */
+	public static final int LENGTH = 512;
+
+	/**
+	 * Widths of the string fields, length included
+	 */
+	private static final int FINGERPRINT_WIDTH = 66;
+	private static final int TITLE_WIDTH = 128;
+	private static final int AUTHOR_WIDTH = 96;
+	private static final int LOCATION_WIDTH = 128;
+
+	/**
+	 * Offset of the CRC32 and of the string fields
+	 */
+	private static final int CRC_OFFSET = 20;
+	private static final int STRINGS_OFFSET = 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String title;
+	private String author;
+	private String locationName;
+	private int score;
+	private long commands;
+	private long timestamp;
+	private String fingerprint;
+
+	/**
+	 * Constructs the summary of a game, saved at a given time
+	 */
+	SaveSummary(Game game, long timestamp) {
+		title = (game.getTitle() != null) ? game.getTitle() : "";
+		author = (game.getAuthor() != null) ? game.getAuthor() : "";
+		locationName = game.reportLocationName();
+		if (locationName == null)
+			locationName = "";
+		score = game.reportInventoryValue();
+		commands = game.getTotalNumberOfExecutedCommands();
+		this.timestamp = timestamp;
+		fingerprint = (game.getFingerprint() != null) ? game
+				.getFingerprint() : "";
+	}
+
+	private SaveSummary() {
+	}
+
+	/**
+	 * Reads the summary of a saved game, reading only its header.
+	 *
+	 * @param save
+	 *            The file of the saved game.
+	 * @return The summary, null if the saved game has none (it was saved by
+	 *         a previous version).
+	 * @throws IllegalArgumentException
+	 *             The argument 'save' cannot be null.
+	 * @throws IOException
+	 *             The file cannot be read or it is not a valid saved game.
+	 */
+	public static SaveSummary read(File save) throws IOException {
+		if (save == null)
+			throw new IllegalArgumentException();
+
+		RandomAccessFile raf = new RandomAccessFile(save, "r");
+		try {
+			byte[] head = new byte[(int) Math.min(raf.length(),
+					SaveCodec.HEADER_LENGTH)];
+			raf.readFully(head);
+			return SaveCodec.getSummary(head);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encodes the summary
+	 */
+	byte[] toBytes() {
+		ByteBuffer summary = ByteBuffer.allocate(LENGTH);
+		summary.putLong(timestamp);
+		summary.putLong(commands);
+		summary.putInt(score);
+		summary.position(STRINGS_OFFSET);
+		putString(summary, fingerprint, FINGERPRINT_WIDTH);
+		putString(summary, title, TITLE_WIDTH);
+		putString(summary, author, AUTHOR_WIDTH);
+		putString(summary, locationName, LOCATION_WIDTH);
+		summary.putInt(CRC_OFFSET, crc(summary.array()));
+		return summary.array();
+	}
+
+	/**
+	 * Reads a summary from a buffer, from its current position, validating
+	 * its checksum
+	 */
+	static SaveSummary read(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < LENGTH)
+			throw new IOException("Truncated saved game");
+		byte[] bytes = new byte[LENGTH];
+		buffer.get(bytes);
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		if (in.getInt(CRC_OFFSET) != crc(bytes))
+			throw new IOException("Corrupt saved game: checksum mismatch");
+
+		SaveSummary summary = new SaveSummary();
+		summary.timestamp = in.getLong();
+		summary.commands = in.getLong();
+		summary.score = in.getInt();
+		in.position(STRINGS_OFFSET);
+		summary.fingerprint = getString(in, FINGERPRINT_WIDTH);
+		summary.title = getString(in, TITLE_WIDTH);
+		summary.author = getString(in, AUTHOR_WIDTH);
+		summary.locationName = getString(in, LOCATION_WIDTH);
+		return summary;
+	}
+
+	/**
+	 * Returns the CRC32 of a summary, but its CRC32 field
+	 */
+	private static int crc(byte[] summary) {
+		CRC32 crc = new CRC32();
+		crc.update(summary, 0, CRC_OFFSET);
+		crc.update(summary, STRINGS_OFFSET, LENGTH - STRINGS_OFFSET);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Puts a string into a field of fixed width, truncated (never in the
+	 * middle of a character) if it does not fit
+	 */
+	static void putString(ByteBuffer buffer, String s, int width) {
+		byte[] bytes = s.getBytes(UTF8);
+		int length = Math.min(bytes.length, width - 2);
+		while ((length < bytes.length) && (length > 0)
+				&& ((bytes[length] & 0xC0) == 0x80))
+			length--;
+		int start = buffer.position();
+		buffer.putShort((short) length);
+		buffer.put(bytes, 0, length);
+		buffer.position(start + width);
+	}
+
+	/**
+	 * Gets a string from a field of fixed width
+	 */
+	static String getString(ByteBuffer buffer, int width) throws IOException {
+		int start = buffer.position();
+		int length = buffer.getShort() & 0xFFFF;
+		if (length > width - 2)
+			throw new IOException("Invalid saved game: malformed summary");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		buffer.position(start + width);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Returns the title of the game.
+	 *
+	 * @return The title, maybe truncated.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the author of the game.
+	 *
+	 * @return The author, maybe truncated.
+	 */
+	public String getAuthor() {
+		return author;
+	}
+
+	/**
+	 * Returns the name of the current location.
+	 *
+	 * @return The location name, maybe truncated.
+	 */
+	public String getLocationName() {
+		return locationName;
+	}
+
+	/**
+	 * Returns the score: the value of the player inventory.
+	 *
+	 * @return The score.
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Returns the number of commands executed.
+	 *
+	 * @return The number of commands.
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Returns the time the game was saved.
+	 *
+	 * @return The time in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the fingerprint of the definition of the game.
+	 *
+	 * @return The fingerprint, null if it is unknown.
+	 */
+	public String getFingerprint() {
+		return (fingerprint.length() > 0) ? fingerprint : null;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * SaveSummary[title:location:score:commands]. This is useful for
+	 * debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + title + ":"
+				+ locationName + ":" + score + ":" + commands + "]";
+	}
+}
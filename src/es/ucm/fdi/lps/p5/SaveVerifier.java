@@ -0,0 +1,250 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Verifies the integrity of the saved games of a directory, in parallel,
+ * without restoring them: the header, the summary and the checksum of the
+ * saved games (see SaveCodec), every block of the games serialized in blocks
+ * (see BlockInputStream) and the gzip checksum of the compressed files.
+ * Games serialized without checksums cannot be verified; other files
+ * (temporary files, indexes) are not saved games.
+ * <p>
+ * Usage: SaveVerifier directory
+ */
+public class SaveVerifier {
+
+	/**
+	 * Minimum number of files for verifying them in parallel
+	 */
+	private static final int PARALLEL_THRESHOLD = 16;
+
+	/**
+	 * Extension of the temporary files (like those of Autosave), which are
+	 * not verified
+	 */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	/**
+	 * Represents the result of verifying a file.
+	 */
+	public enum Status {
+		/**
+		 * Saved game with valid checksums
+		 */
+		VALID,
+		/**
+		 * Saved game corrupt or truncated
+		 */
+		CORRUPT,
+		/**
+		 * Saved game without checksums
+		 */
+		UNCHECKED,
+		/**
+		 * Not a saved game
+		 */
+		NOT_SAVE
+	}
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private SaveVerifier() {
+	}
+
+	/**
+	 * Verifies a file.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The result.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 */
+	public static Result verify(File file) {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		try {
+			byte[] data = readFully(file);
+			GameLoader.Format format = GameLoader.detect(data, data.length);
+			if (format == GameLoader.Format.COMPRESSED) {
+				// Its gzip checksum is validated when it is uncompressed
+				data = SaveCodec.uncompress(data);
+				format = GameLoader.detect(data, data.length);
+				if (format == GameLoader.Format.SERIALIZED)
+					return new Result(file, Status.VALID, null);
+			}
+			if (format == GameLoader.Format.SAVE) {
+				SaveCodec.getFingerprint(data);
+				return new Result(file, Status.VALID, null);
+			}
+			if (format == GameLoader.Format.BLOCKS) {
+				InputStream in = SaveCodec.openSerialized(data);
+				try {
+					byte[] buffer = new byte[8192];
+					while (in.read(buffer) >= 0)
+						;
+				} finally {
+					in.close();
+				}
+				return new Result(file, Status.VALID, null);
+			}
+			if (format == GameLoader.Format.SERIALIZED)
+				return new Result(file, Status.UNCHECKED, null);
+			return new Result(file, Status.NOT_SAVE, null);
+		} catch (IOException e) {
+			return new Result(file, Status.CORRUPT, e.getMessage());
+		}
+	}
+
+	/**
+	 * Verifies the files of a directory, in parallel, in name order.
+	 *
+	 * @param directory
+	 *            The directory.
+	 * @return The results.
+	 * @throws IllegalArgumentException
+	 *             The argument 'directory' cannot be null.
+	 * @throws IOException
+	 *             The directory cannot be listed.
+	 */
+	public static List<Result> verifyAll(File directory) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException();
+
+		final File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + directory.getPath());
+		Arrays.sort(files);
+		final Result[] results = new Result[files.length];
+		ParallelChunks.run(files.length, ParallelChunks.count(files.length,
+				PARALLEL_THRESHOLD), new ParallelChunks.Chunk() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++)
+					if (files[i].isFile()
+							&& !files[i].getName().endsWith(
+									TEMPORARY_EXTENSION))
+						results[i] = verify(files[i]);
+			}
+		});
+
+		int count = 0;
+		for (Result result : results)
+			if (result != null)
+				results[count++] = result;
+		return Arrays.asList(Arrays.copyOf(results, count));
+	}
+
+	/**
+	 * Reads a whole file with a single read
+	 */
+	private static byte[] readFully(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large: " + file.getPath());
+			byte[] data = new byte[(int) size];
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Represents the result of verifying a file.
+	 */
+	public static class Result {
+
+		private File file;
+		private Status status;
+		private String message;
+
+		private Result(File file, Status status, String message) {
+			this.file = file;
+			this.status = status;
+			this.message = message;
+		}
+
+		/**
+		 * Returns the file verified.
+		 *
+		 * @return The file.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Returns the result.
+		 *
+		 * @return The status.
+		 */
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns why a file is corrupt.
+		 *
+		 * @return The reason, null if it is not corrupt.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Returns a String representation for this object:
+		 * Result[file:status]. This is useful for debugging purposes.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			return this.getClass().getSimpleName() + "[" + file.getName()
+					+ ":" + status + "]";
+		}
+	}
+
+	/**
+	 * Verifies the saved games of a directory, reporting the corrupt ones and
+	 * the totals. The exit status is 1 if any saved game is corrupt.
+	 *
+	 * @param args
+	 *            The directory.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1)
+			throw new IllegalArgumentException("Usage: SaveVerifier directory");
+
+		try {
+			long start = System.nanoTime();
+			int[] totals = new int[Status.values().length];
+			for (Result result : verifyAll(new File(args[0]))) {
+				totals[result.getStatus().ordinal()]++;
+				if (result.getStatus() == Status.CORRUPT)
+					System.out.println(result.getFile().getName() + "\t"
+							+ result.getMessage());
+				else if (result.getStatus() == Status.UNCHECKED)
+					System.out.println(result.getFile().getName()
+							+ "\tno checksums");
+			}
+			System.out.println(totals[Status.VALID.ordinal()] + " valid, "
+					+ totals[Status.CORRUPT.ordinal()] + " corrupt, "
+					+ totals[Status.UNCHECKED.ordinal()] + " unchecked in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+			if (totals[Status.CORRUPT.ordinal()] > 0)
+				System.exit(1);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Represents a checkpoint of the sessions of a SessionManager: a single file
+ * with the saved game of every session (see SaveCodec, or serialized whole
+ * for the games it cannot save) one after another, followed by an index with
+ * the id of every session, the file of its definition and the position of
+ * its saved game.
+ * <p>
+ * The index is validated with its own checksum, and every saved game with
+ * its own one when it is restored. The checkpoint is memory-mapped when it
+ * is opened, so only the index is read: the saved games are read when their
+ * sessions are rehydrated.
+ */
+class SessionCheckpoint {
+
+	/**
+	 * Magic number of the checkpoints ("P5CK")
+	 */
+	static final int MAGIC = 0x5035434B;
+
+	/**
+	 * Current version of the checkpoint format
+	 */
+	static final short VERSION = 1;
+
+	/**
+	 * Length of the header: magic, version, reserved, number of sessions,
+	 * offset, length and checksum of the index
+	 */
+	private static final int HEADER_LENGTH = 4 + 2 + 2 + 4 + 8 + 4 + 4;
+
+	/**
+	 * The file, memory-mapped
+	 */
+	private File file;
+	private ByteBuffer data;
+
+	/**
+	 * The sessions
+	 */
+	private List<Entry> entries;
+
+	/**
+	 * Writes a checkpoint into a temporary file of the same directory, syncs
+	 * it and renames it.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param entries
+	 *            The sessions.
+	 * @throws IOException
+	 *             The file cannot be written.
+	 */
+	static void write(File file, List<Entry> entries) throws IOException {
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(index);
+		long offset = HEADER_LENGTH;
+		for (Entry entry : entries) {
+			out.writeUTF(entry.id);
+			out.writeUTF((entry.source == null) ? "" : entry.source);
+			out.writeLong(offset);
+			out.writeInt(entry.save.length);
+			offset += entry.save.length;
+		}
+		out.flush();
+		byte[] indexBytes = index.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(indexBytes);
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		// The prefix of a temporary file has 3 characters at least
+		String prefix = file.getName();
+		while (prefix.length() < 3)
+			prefix += "_";
+		File temp = File.createTempFile(prefix, ".tmp", directory);
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				DataOutputStream data = new DataOutputStream(
+						new BufferedOutputStream(stream, 1 << 16));
+				data.writeInt(MAGIC);
+				data.writeShort(VERSION);
+				data.writeShort(0);
+				data.writeInt(entries.size());
+				data.writeLong(offset);
+				data.writeInt(indexBytes.length);
+				data.writeInt((int) crc.getValue());
+				for (Entry entry : entries)
+					data.write(entry.save);
+				data.write(indexBytes);
+				data.flush();
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot write " + file.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Opens a checkpoint, reading its index.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             The file cannot be read or it is not a valid checkpoint.
+	 */
+	SessionCheckpoint(File file) throws IOException {
+		this.file = file;
+		data = WorldImage.map(file);
+		if ((data.capacity() < HEADER_LENGTH) || (data.getInt(0) != MAGIC))
+			throw new IOException("Not a checkpoint: " + file.getPath());
+		if (data.getShort(4) != VERSION)
+			throw new IOException("Unsupported checkpoint version: "
+					+ data.getShort(4));
+		int count = data.getInt(8);
+		long offset = data.getLong(12);
+		int length = data.getInt(20);
+		int checksum = data.getInt(24);
+		if ((count < 0) || (offset < HEADER_LENGTH) || (length < 0)
+				|| (offset + length != data.capacity()))
+			throw new IOException("Truncated checkpoint: " + file.getPath());
+
+		byte[] index = new byte[length];
+		ByteBuffer slice = data.duplicate();
+		slice.position((int) offset);
+		slice.get(index);
+		CRC32 crc = new CRC32();
+		crc.update(index);
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("Corrupt checkpoint: checksum mismatch");
+
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(index));
+		entries = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			String id = in.readUTF();
+			String source = in.readUTF();
+			long position = in.readLong();
+			int size = in.readInt();
+			if ((position < HEADER_LENGTH) || (size < 0)
+					|| (position + size > offset))
+				throw new IOException("Corrupt checkpoint: invalid entry "
+						+ id);
+			entries.add(new Entry(id, (source.length() == 0) ? null : source,
+					position, size));
+		}
+	}
+
+	/**
+	 * Returns the sessions of the checkpoint.
+	 *
+	 * @return The sessions.
+	 */
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Reads the saved game of a session of the checkpoint.
+	 *
+	 * @param entry
+	 *            The session.
+	 * @return The saved game.
+	 */
+	byte[] getSave(Entry entry) {
+		byte[] save = new byte[entry.length];
+		ByteBuffer slice = data.duplicate();
+		slice.position((int) entry.offset);
+		slice.get(save);
+		return save;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * SessionCheckpoint[file:sessions]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + file + ":"
+				+ entries.size() + "]";
+	}
+
+	/**
+	 * Represents a session of a checkpoint
+	 */
+	static class Entry {
+
+		private String id;
+		private String source;
+
+		/**
+		 * The saved game, when it is written, or its position, when it is
+		 * read
+		 */
+		private byte[] save;
+		private long offset;
+		private int length;
+
+		/**
+		 * Constructs a session to be written.
+		 *
+		 * @param id
+		 *            The id of the session.
+		 * @param source
+		 *            The path of the file of its definition, or null if it is
+		 *            unknown.
+		 * @param save
+		 *            Its saved game.
+		 */
+		Entry(String id, String source, byte[] save) {
+			this.id = id;
+			this.source = source;
+			this.save = save;
+		}
+
+		private Entry(String id, String source, long offset, int length) {
+			this.id = id;
+			this.source = source;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the id of the session.
+		 *
+		 * @return The id.
+		 */
+		String getId() {
+			return id;
+		}
+
+		/**
+		 * Returns the path of the file of the definition of the session.
+		 *
+		 * @return The path, null if it is unknown.
+		 */
+		String getSource() {
+			return source;
+		}
+	}
+}
@@ -0,0 +1,910 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Manages the sessions of many players in one process, each one a game run
+ * by its own engine, one command at a time (see Engine.step). Most players
+ * are idle at any moment, so their games are passivated: the state of the
+ * game is saved (a delta save, see SaveCodec) into a storage of saved games
+ * and the game is dropped from memory. The game is rehydrated transparently
+ * (restored into its definition, usually taken from the cache of parsed
+ * definitions) when the next command of its player arrives.
+ * <p>
+ * A session is passivated when it has been idle for a time, or when the heap
+ * used exceeds a budget: then the least recently used sessions are
+ * passivated, as many as the heap used by the sessions (estimated evenly)
+ * exceeds it. The games passivated are still in the heap used until the next
+ * garbage collection, so no more sessions are passivated by memory until
+ * then. The sessions are checked periodically by a thread shared by every
+ * manager, once it is started.
+ * <p>
+ * Only the state of the game survives a passivation (not its history of
+ * executed commands), and games that cannot be saved in the compact format
+ * (see SaveCodec.supports) are serialized whole. The storage is used only by
+ * the manager: its keys are the ids of the sessions, and they are removed
+ * when the sessions end.
+ * <p>
+ * Every open session can be checkpointed into a single file (see
+ * SessionCheckpoint), in parallel, when the process shuts down; the sessions
+ * are restored from it, in parallel, when the next process starts, before
+ * the players can send commands. They are restored passivated (their games
+ * are rehydrated from the checkpoint on their next command) or rehydrated at
+ * once.
+ */
+public class SessionManager {
+
+	/**
+	 * Default idle time before a session is passivated, in seconds
+	 */
+	public static final int DEFAULT_IDLE_SECONDS = 300;
+
+	/**
+	 * Period of the checks of the sessions, in milliseconds
+	 */
+	public static final long SWEEP_PERIOD = 1000;
+
+	/**
+	 * Minimum number of sessions for checkpointing or restoring them in
+	 * parallel
+	 */
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	/**
+	 * Output of the restored sessions, until their players set theirs
+	 */
+	private static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {
+		}
+	};
+
+	/**
+	 * Shared thread that checks the sessions, created on demand
+	 */
+	private static ScheduledExecutorService executor;
+
+	/**
+	 * The storage of the passivated games
+	 */
+	private SessionStore store;
+
+	/**
+	 * Idle time (0 if sessions are not passivated by time) and heap budget (0
+	 * if they are not passivated by memory)
+	 */
+	private long idleMillis;
+	private long heapBudget;
+
+	/**
+	 * Number of garbage collections when sessions were last passivated by
+	 * memory (-1 if they have not been)
+	 */
+	private long budgetCollections = -1;
+
+	/**
+	 * The sessions by id, and the sessions in memory, least recently used
+	 * first
+	 */
+	private Map<String, Session> sessions;
+	private LinkedHashMap<String, Session> resident;
+
+	/**
+	 * The periodic check of the sessions, null if it is not started
+	 */
+	private ScheduledFuture<?> sweeper;
+
+	/**
+	 * Metrics and the last failure
+	 */
+	private long passivations;
+	private long rehydrations;
+	private long rehydrationTime;
+	private long maxRehydrationTime;
+	private long failures;
+	private IOException failure;
+	private int checkpointFailures;
+	private int restoreFailures;
+
+	/**
+	 * Constructs a manager that passivates the sessions idle for the default
+	 * time, without heap budget.
+	 *
+	 * @param store
+	 *            The storage of the passivated games.
+	 * @throws IllegalArgumentException
+	 *             The argument 'store' cannot be null.
+	 */
+	public SessionManager(SessionStore store) {
+		this(store, DEFAULT_IDLE_SECONDS, 0);
+	}
+
+	/**
+	 * Constructs a manager.
+	 *
+	 * @param store
+	 *            The storage of the passivated games.
+	 * @param idleSeconds
+	 *            The idle time before a session is passivated, 0 for not
+	 *            passivating sessions by time.
+	 * @param heapBudget
+	 *            The heap budget in bytes, 0 for not passivating sessions by
+	 *            memory.
+	 * @throws IllegalArgumentException
+	 *             The argument 'store' cannot be null and the idle time and
+	 *             the budget cannot be negative.
+	 */
+	public SessionManager(SessionStore store, int idleSeconds, long heapBudget) {
+		if ((store == null) || (idleSeconds < 0) || (heapBudget < 0))
+			throw new IllegalArgumentException();
+		this.store = store;
+		this.idleMillis = idleSeconds * 1000L;
+		this.heapBudget = heapBudget;
+		sessions = new HashMap<String, Session>();
+		resident = new LinkedHashMap<String, Session>(16, 0.75f, true);
+	}
+
+	/**
+	 * Opens a session, running a game in memory.
+	 *
+	 * @param id
+	 *            The id of the session (of its player).
+	 * @param game
+	 *            The game.
+	 * @param config
+	 *            The configuration of the engine, or null for the default one.
+	 * @param output
+	 *            The output of the session.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'id', 'game' and 'output' cannot be null, and
+	 *             the session cannot be already open.
+	 */
+	public void open(String id, Game game, Properties config,
+			OutputStream output) {
+		if ((id == null) || (game == null) || (output == null))
+			throw new IllegalArgumentException();
+
+		Session session = new Session(id, config, output);
+		synchronized (session) {
+			session.attach(game);
+			synchronized (this) {
+				if (sessions.containsKey(id))
+					throw new IllegalArgumentException(
+							"Session already open: " + id);
+				sessions.put(id, session);
+				resident.put(id, session);
+			}
+		}
+	}
+
+	/**
+	 * Executes a line of the player of a session (see Engine.step),
+	 * rehydrating its game first if it was passivated. The session is closed
+	 * when its game ends. A game loaded by the player (see LoadCommand)
+	 * replaces the game of the session.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @param line
+	 *            The line.
+	 * @return true if a command was executed.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null and the session must be open.
+	 * @throws IOException
+	 *             The passivated game cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The definition of the passivated game is unknown or it has
+	 *             changed.
+	 */
+	public boolean step(String id, String line) throws IOException,
+			InvalidGameDefinitionException {
+		if ((id == null) || (line == null))
+			throw new IllegalArgumentException();
+
+		Session session = session(id);
+		boolean executed;
+		boolean ended;
+		synchronized (session) {
+			if (session.closed)
+				throw new IllegalArgumentException("Session not open: " + id);
+			if (session.engine == null)
+				rehydrate(session);
+			synchronized (this) {
+				// Most recently used
+				resident.put(id, session);
+			}
+			executed = session.engine.step(line);
+			// A game loaded by the player replaces the game of the session
+			if (session.engine.getGame() != session.game)
+				session.replace();
+			session.lastAccess = System.currentTimeMillis();
+			ended = session.game.isEnded();
+		}
+		if (ended)
+			close(id);
+		return executed;
+	}
+
+	/**
+	 * Closes a session, dropping its game and its passivated state.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @return true if the session was open.
+	 * @throws IllegalArgumentException
+	 *             The argument 'id' cannot be null.
+	 * @throws IOException
+	 *             The passivated state cannot be removed.
+	 */
+	public boolean close(String id) throws IOException {
+		if (id == null)
+			throw new IllegalArgumentException();
+
+		Session session;
+		synchronized (this) {
+			session = sessions.get(id);
+		}
+		if (session == null)
+			return false;
+		synchronized (session) {
+			if (session.closed)
+				return false;
+			session.closed = true;
+			session.detach();
+			synchronized (this) {
+				sessions.remove(id);
+				resident.remove(id);
+			}
+			// Also saved if it was passivated and rehydrated since
+			store.remove(id);
+		}
+		return true;
+	}
+
+	/**
+	 * Passivates a session now, if its game is in memory.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @return true if the session was passivated.
+	 * @throws IllegalArgumentException
+	 *             The argument 'id' cannot be null and the session must be
+	 *             open.
+	 * @throws IOException
+	 *             The game cannot be saved.
+	 */
+	public boolean passivate(String id) throws IOException {
+		if (id == null)
+			throw new IllegalArgumentException();
+		return passivate(session(id), Long.MAX_VALUE);
+	}
+
+	/**
+	 * Passivates the sessions idle for longer than the idle time and, if the
+	 * heap used exceeds the budget, the least recently used sessions. It is
+	 * called periodically once the manager is started.
+	 *
+	 * @return The number of sessions passivated.
+	 */
+	public int sweep() {
+		List<Session> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<Session>(resident.values());
+		}
+		if (candidates.isEmpty())
+			return 0;
+
+		long excess = 0;
+		long collections = collections();
+		boolean collected;
+		synchronized (this) {
+			collected = (collections != budgetCollections);
+		}
+		// The heap used counts the games passivated until a collection
+		if ((heapBudget > 0) && collected) {
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			if (used > heapBudget) {
+				long perSession = Math.max(1, used / candidates.size());
+				excess = (used - heapBudget + perSession - 1) / perSession;
+				synchronized (this) {
+					budgetCollections = collections;
+				}
+			}
+		}
+
+		if ((idleMillis == 0) && (excess == 0))
+			return 0;
+		long idleSince = (idleMillis > 0) ? System.currentTimeMillis()
+				- idleMillis : Long.MIN_VALUE;
+		int count = 0;
+		for (Session session : candidates) {
+			// Over budget, the least recently used go first, idle or not
+			long since = (excess > 0) ? Long.MAX_VALUE : idleSince;
+			try {
+				if (passivate(session, since)) {
+					count++;
+					excess--;
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failures++;
+					failure = e;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Starts checking the sessions periodically, in the background.
+	 */
+	public synchronized void start() {
+		if (sweeper != null)
+			return;
+		sweeper = executor().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops checking the sessions periodically. The sessions stay open.
+	 */
+	public synchronized void stop() {
+		if (sweeper == null)
+			return;
+		sweeper.cancel(false);
+		sweeper = null;
+	}
+
+	/**
+	 * Sets the output of a session, when its player connects again.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @param output
+	 *            The output.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null and the session must be open.
+	 */
+	public void setOutput(String id, OutputStream output) {
+		if ((id == null) || (output == null))
+			throw new IllegalArgumentException();
+
+		Session session = session(id);
+		synchronized (session) {
+			session.output = output;
+			if (session.engine != null)
+				session.engine.setOutput(output);
+		}
+	}
+
+	/**
+	 * Checkpoints every open session into a file, in parallel: the games in
+	 * memory are saved (and they go on running) and the passivated ones are
+	 * copied. Games that cannot be saved in the compact format (see
+	 * SaveCodec.supports) are serialized whole (see
+	 * SaveCodec.writeSerialized). A session that fails (like a passivated
+	 * session lost) is skipped and the rest are checkpointed: the failures
+	 * are counted (see getCheckpointFailures and getLastFailure).
+	 *
+	 * @param file
+	 *            The file, written into a temporary file which is renamed.
+	 * @return The number of sessions checkpointed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 * @throws IOException
+	 *             The file cannot be written.
+	 */
+	public int checkpoint(File file) throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		final List<Session> open;
+		synchronized (this) {
+			open = new ArrayList<Session>(sessions.values());
+		}
+		final SessionCheckpoint.Entry[] entries = new SessionCheckpoint.Entry[open
+				.size()];
+		final IOException[] errors = new IOException[open.size()];
+		ParallelChunks.run(open.size(), ParallelChunks.count(open.size(),
+				PARALLEL_THRESHOLD), new ParallelChunks.Chunk() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					try {
+						entries[i] = checkpoint(open.get(i));
+					} catch (IOException e) {
+						errors[i] = e;
+					}
+				}
+			}
+		});
+
+		// The sessions that failed are skipped
+		int failed = 0;
+		IOException last = null;
+		for (IOException error : errors)
+			if (error != null) {
+				failed++;
+				last = error;
+			}
+		synchronized (this) {
+			checkpointFailures = failed;
+			failures += failed;
+			if (last != null)
+				failure = last;
+		}
+
+		List<SessionCheckpoint.Entry> written = new ArrayList<SessionCheckpoint.Entry>(
+				entries.length);
+		for (SessionCheckpoint.Entry entry : entries)
+			if (entry != null)
+				written.add(entry);
+		SessionCheckpoint.write(file, written);
+		return written.size();
+	}
+
+	/**
+	 * Restores the sessions of a checkpoint, in parallel, validating their
+	 * saved games. Their output is discarded until their players set theirs
+	 * (see setOutput). A session that fails (like a saved game corrupt or a
+	 * definition changed, when it is rehydrated at once) is skipped and the
+	 * rest are restored: the failures are counted (see getRestoreFailures
+	 * and getLastFailure).
+	 *
+	 * @param file
+	 *            The checkpoint.
+	 * @param config
+	 *            The configuration of the engines, or null for the default
+	 *            one.
+	 * @param eager
+	 *            true for rehydrating the games at once, false for
+	 *            rehydrating them from the checkpoint on their next command.
+	 * @return The number of sessions restored.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null and the sessions cannot
+	 *             be already open.
+	 * @throws IOException
+	 *             The checkpoint cannot be read or its index is not valid.
+	 */
+	public int restore(File file, final Properties config, final boolean eager)
+			throws IOException {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		final SessionCheckpoint checkpoint = new SessionCheckpoint(file);
+		final List<SessionCheckpoint.Entry> entries = checkpoint.getEntries();
+		final Session[] restored = new Session[entries.size()];
+		final IOException[] errors = new IOException[entries.size()];
+		ParallelChunks.run(entries.size(), ParallelChunks.count(entries
+				.size(), PARALLEL_THRESHOLD), new ParallelChunks.Chunk() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					try {
+						restored[i] = restore(checkpoint, entries.get(i),
+								config, eager);
+					} catch (IOException e) {
+						errors[i] = e;
+					} catch (InvalidGameDefinitionException e) {
+						errors[i] = new IOException(entries.get(i).getId()
+								+ ": " + e.getMessage());
+					}
+				}
+			}
+		});
+
+		// The sessions that failed are skipped
+		int failed = 0;
+		IOException last = null;
+		for (IOException error : errors)
+			if (error != null) {
+				failed++;
+				last = error;
+			}
+		synchronized (this) {
+			for (Session session : restored)
+				if ((session != null) && sessions.containsKey(session.id))
+					throw new IllegalArgumentException(
+							"Session already open: " + session.id);
+			for (Session session : restored) {
+				if (session == null)
+					continue;
+				sessions.put(session.id, session);
+				if (session.engine != null)
+					resident.put(session.id, session);
+			}
+			restoreFailures = failed;
+			failures += failed;
+			if (last != null)
+				failure = last;
+		}
+		return restored.length - failed;
+	}
+
+	/**
+	 * Checkpoints every open session into a file when the process shuts down
+	 * (see checkpoint), stopping the periodic checks first. A failure, and
+	 * the sessions that could not be checkpointed, are reported to the
+	 * standard error.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The shutdown hook, which can be removed.
+	 * @throws IllegalArgumentException
+	 *             The argument 'file' cannot be null.
+	 */
+	public Thread checkpointOnShutdown(final File file) {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		Thread hook = new Thread("session-checkpoint") {
+			public void run() {
+				SessionManager.this.stop();
+				try {
+					checkpoint(file);
+					if (getCheckpointFailures() > 0)
+						System.err.println(getCheckpointFailures()
+								+ " sessions not checkpointed, the last: "
+								+ getLastFailure().getMessage());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+		return hook;
+	}
+
+	/**
+	 * Saves a session for a checkpoint, null if it is closed
+	 */
+	private SessionCheckpoint.Entry checkpoint(Session session)
+			throws IOException {
+		synchronized (session) {
+			if (session.closed)
+				return null;
+			byte[] save;
+			if (session.engine != null)
+				save = save(session.game);
+			else
+				save = passivated(session);
+			return new SessionCheckpoint.Entry(session.id,
+					(session.source == null) ? null : session.source.getPath(),
+					save);
+		}
+	}
+
+	/**
+	 * Restores a session of a checkpoint, rehydrating its game if it is eager
+	 */
+	private Session restore(SessionCheckpoint checkpoint,
+			SessionCheckpoint.Entry entry, Properties config, boolean eager)
+			throws IOException, InvalidGameDefinitionException {
+		Session session = new Session(entry.getId(), config, DISCARD);
+		byte[] save = checkpoint.getSave(entry);
+		if (SaveCodec.isSave(save, save.length))
+			session.fingerprint = SaveCodec.getFingerprint(save);
+		session.source = (entry.getSource() == null) ? null : new File(entry
+				.getSource());
+		session.checkpoint = checkpoint;
+		session.entry = entry;
+		if (eager)
+			rehydrate(session);
+		return session;
+	}
+
+	/**
+	 * Returns an open session
+	 */
+	private synchronized Session session(String id) {
+		Session session = sessions.get(id);
+		if (session == null)
+			throw new IllegalArgumentException("Session not open: " + id);
+		return session;
+	}
+
+	/**
+	 * Returns the number of garbage collections so far
+	 */
+	private static long collections() {
+		long collections = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			collections += Math.max(0, collector.getCollectionCount());
+		return collections;
+	}
+
+	/**
+	 * Passivates a session if its game is in memory and it has not been used
+	 * since a time
+	 */
+	private boolean passivate(Session session, long idleSince)
+			throws IOException {
+		synchronized (session) {
+			if (session.closed || (session.engine == null)
+					|| (session.lastAccess > idleSince))
+				return false;
+
+			store.put(session.id, save(session.game));
+			session.detach();
+			synchronized (this) {
+				resident.remove(session.id);
+				passivations++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Restores the passivated game of a session into its definition (holding
+	 * the lock of the session)
+	 */
+	private void rehydrate(Session session) throws IOException,
+			InvalidGameDefinitionException {
+		long start = System.nanoTime();
+		byte[] save = passivated(session);
+		Game game;
+		if (SaveCodec.isSave(save, save.length)) {
+			game = SaveCodec.restore(save, GameLoader.reload(
+					session.fingerprint, session.source));
+			game.setSource(session.source);
+		} else {
+			// Serialized whole (see save)
+			try {
+				game = SaveCodec.readSerialized(save);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Invalid saved game: " + e.getMessage());
+			}
+		}
+		session.attach(game);
+		session.checkpoint = null;
+		session.entry = null;
+		long time = System.nanoTime() - start;
+		synchronized (this) {
+			rehydrations++;
+			rehydrationTime += time;
+			maxRehydrationTime = Math.max(maxRehydrationTime, time);
+		}
+	}
+
+	/**
+	 * Saves a game: a delta save, or the game serialized whole if it cannot
+	 * be saved in the compact format (see SaveCodec.supports)
+	 */
+	private static byte[] save(Game game) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (SaveCodec.supports(game))
+			SaveCodec.write(game, out, true);
+		else
+			SaveCodec.writeSerialized(game, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the saved game of a passivated session: from the checkpoint it
+	 * was restored from, or from the storage
+	 */
+	private byte[] passivated(Session session) throws IOException {
+		if (session.checkpoint != null)
+			return session.checkpoint.getSave(session.entry);
+		byte[] save = store.get(session.id);
+		if (save == null)
+			throw new IOException("Passivated session lost: " + session.id);
+		return save;
+	}
+
+	/**
+	 * Returns the number of open sessions.
+	 *
+	 * @return The number of sessions.
+	 */
+	public synchronized int getSessions() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns the number of open sessions which game is in memory.
+	 *
+	 * @return The number of sessions in memory.
+	 */
+	public synchronized int getResident() {
+		return resident.size();
+	}
+
+	/**
+	 * Returns the number of sessions passivated.
+	 *
+	 * @return The number of passivations.
+	 */
+	public synchronized long getPassivations() {
+		return passivations;
+	}
+
+	/**
+	 * Returns the number of sessions rehydrated.
+	 *
+	 * @return The number of rehydrations.
+	 */
+	public synchronized long getRehydrations() {
+		return rehydrations;
+	}
+
+	/**
+	 * Returns the mean time of the rehydrations.
+	 *
+	 * @return The mean time in nanoseconds, 0 if there has been none.
+	 */
+	public synchronized long getMeanRehydrationTime() {
+		return (rehydrations == 0) ? 0 : rehydrationTime / rehydrations;
+	}
+
+	/**
+	 * Returns the maximum time of the rehydrations.
+	 *
+	 * @return The maximum time in nanoseconds, 0 if there has been none.
+	 */
+	public synchronized long getMaxRehydrationTime() {
+		return maxRehydrationTime;
+	}
+
+	/**
+	 * Returns the number of sessions that could not be passivated in the
+	 * background, checkpointed or restored.
+	 *
+	 * @return The number of failures.
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the number of sessions that could not be checkpointed by the
+	 * last checkpoint (see checkpoint).
+	 *
+	 * @return The number of sessions skipped.
+	 */
+	public synchronized int getCheckpointFailures() {
+		return checkpointFailures;
+	}
+
+	/**
+	 * Returns the number of sessions that could not be restored by the last
+	 * restore of a checkpoint (see restore).
+	 *
+	 * @return The number of sessions skipped.
+	 */
+	public synchronized int getRestoreFailures() {
+		return restoreFailures;
+	}
+
+	/**
+	 * Returns the last failure passivating a session in the background,
+	 * checkpointing it or restoring it.
+	 *
+	 * @return The failure, null if there has been none.
+	 */
+	public synchronized IOException getLastFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the shared thread that checks the sessions
+	 */
+	private static synchronized ScheduledExecutorService executor() {
+		if (executor == null) {
+			executor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "session-passivation");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * SessionManager[resident/sessions:passivations/rehydrations]. This is
+	 * useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public synchronized String toString() {
+		return this.getClass().getSimpleName() + "[" + resident.size() + "/"
+				+ sessions.size() + ":" + passivations + "/" + rehydrations
+				+ "]";
+	}
+
+	/**
+	 * Represents a session: its engine and its game while it is in memory,
+	 * and what is needed to rehydrate it (guarded by the session)
+	 */
+	private static class Session {
+
+		private String id;
+		private Properties config;
+		private OutputStream output;
+
+		/**
+		 * The definition of the game
+		 */
+		private String fingerprint;
+		private File source;
+
+		/**
+		 * The checkpoint the session was restored from and its entry, null
+		 * once it is rehydrated
+		 */
+		private SessionCheckpoint checkpoint;
+		private SessionCheckpoint.Entry entry;
+
+		/**
+		 * The game and its engine, null while the session is passivated
+		 */
+		private Game game;
+		private Engine engine;
+
+		private volatile long lastAccess;
+		private boolean closed;
+
+		private Session(String id, Properties config, OutputStream output) {
+			this.id = id;
+			this.config = config;
+			this.output = output;
+			lastAccess = System.currentTimeMillis();
+		}
+
+		/**
+		 * Runs a game in a new engine. The engine is not run: it executes
+		 * the lines of the player one at a time
+		 */
+		private void attach(Game game) {
+			ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+			this.game = game;
+			fingerprint = game.getFingerprint();
+			source = game.getSource();
+			engine = (config == null) ? new Engine(game, input, output)
+					: new Engine(game, config, input, output);
+		}
+
+		/**
+		 * Takes the game of the engine, a game loaded by the player that
+		 * has replaced the game of the session
+		 */
+		private void replace() {
+			game = engine.getGame();
+			fingerprint = game.getFingerprint();
+			source = game.getSource();
+		}
+
+		/**
+		 * Drops the game and its engine
+		 */
+		private void detach() {
+			game = null;
+			engine = null;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Represents a storage of saved games (or any other session data), by key:
+ * the path given to the Save command, the autosave file of a session or the
+ * id of a player. The implementations are thread-safe, and a value is
+ * durable when put returns.
+ * <ul>
+ * <li>FileSessionStore: a file per key, written into a temporary file which
+ * is renamed (the default storage).</li>
+ * <li>LogSessionStore: every value appended to a few large segment files,
+ * with an index in memory, for many small saved games.</li>
+ * </ul>
+ */
+public interface SessionStore {
+
+	/**
+	 * Stores a value, replacing the previous value of its key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The value cannot be stored.
+	 */
+	void put(String key, byte[] value) throws IOException;
+
+	/**
+	 * Returns the value of a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value, null if the key is not stored.
+	 * @throws IllegalArgumentException
+	 *             The argument 'key' cannot be null.
+	 * @throws IOException
+	 *             The value cannot be read.
+	 */
+	byte[] get(String key) throws IOException;
+
+	/**
+	 * Checks whether a key is stored.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return true if it is stored.
+	 * @throws IllegalArgumentException
+	 *             The argument 'key' cannot be null.
+	 */
+	boolean contains(String key);
+
+	/**
+	 * Removes a key and its value.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return true if it was stored.
+	 * @throws IllegalArgumentException
+	 *             The argument 'key' cannot be null.
+	 * @throws IOException
+	 *             The key cannot be removed.
+	 */
+	boolean remove(String key) throws IOException;
+
+	/**
+	 * Returns the keys stored.
+	 *
+	 * @return The keys.
+	 * @throws IOException
+	 *             The keys cannot be listed.
+	 */
+	Set<String> keys() throws IOException;
+
+	/**
+	 * Closes the storage, releasing its files.
+	 *
+	 * @throws IOException
+	 *             The storage cannot be closed.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,472 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.exception.InvalidBoundedItemException;
+import es.ucm.fdi.lps.p5.exception.InvalidBoundedObstacleException;
+import es.ucm.fdi.lps.p5.exception.InvalidTriggerException;
+
+/**
+ * Reads an XML game definition (following the game DTD) with a StAX pull
+ * parser, building the locations, items and obstacles while the definition
+ * is streamed. Every id of the definition is numbered once; the pending
+ * references (connections, item-refs and obstacle-refs) are kept as pairs of
+ * numbers in int arrays and resolved by index when the definition ends, so no
+ * scratch maps of names are needed.
+ * <p>
+ * The definition is not validated against the DTD (StAX parsers do not
+ * support DTD validation).
+ */
+public class StAXGameReader {
+
+	/**
+	 * Shared factory, created once
+	 */
+	private static XMLInputFactory factory;
+
+	private Game game;
+
+	/**
+	 * Number of every id of the definition
+	 */
+	private Map<String, Integer> ids;
+
+	/**
+	 * Element defined by every id number (location, item or obstacle), null
+	 * while it is not defined
+	 */
+	private Object[] elements;
+
+	/**
+	 * Pending connections: location number, direction ordinal and target
+	 * number
+	 */
+	private int[] connections;
+	private int connectionCount;
+
+	/**
+	 * Pending references: obstacle number and referenced item or obstacle
+	 * number
+	 */
+	private int[] itemRefs;
+	private int itemRefCount;
+	private int[] obstacleRefs;
+	private int obstacleRefCount;
+
+	/**
+	 * Obstacles in definition order
+	 */
+	private List<Obstacle> obstacles;
+
+	/**
+	 * Text of the open elements (see SAXHandler)
+	 */
+	private StringBuilder text;
+
+	/**
+	 * Constructs a reader that fills a game.
+	 *
+	 * @param game
+	 *            The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public StAXGameReader(Game game) {
+		if (game == null)
+			throw new IllegalArgumentException();
+		this.game = game;
+		ids = new HashMap<String, Integer>();
+		elements = new Object[64];
+		connections = new int[96];
+		itemRefs = new int[16];
+		obstacleRefs = new int[16];
+		obstacles = new ArrayList<Obstacle>();
+		text = new StringBuilder(256);
+	}
+
+	/**
+	 * Reads a definition into the game.
+	 *
+	 * @param in
+	 *            The definition.
+	 * @throws IllegalArgumentException
+	 *             The argument 'in' cannot be null.
+	 * @throws XMLStreamException
+	 *             The definition is not well-formed, or a trigger has an
+	 *             unknown kind.
+	 * @throws InvalidBoundedItemException
+	 *             An obstacle references an unknown item.
+	 * @throws InvalidBoundedObstacleException
+	 *             An obstacle references an unknown obstacle, or the
+	 *             obstacles are bounded in a cycle.
+	 * @throws InvalidTriggerException
+	 *             A trigger has a duplicate id or an unknown target.
+	 */
+	public void read(InputStream in) throws XMLStreamException {
+		if (in == null)
+			throw new IllegalArgumentException();
+
+		XMLStreamReader r = newReader(in);
+		try {
+			while (r.hasNext()) {
+				if ((r.next() == XMLStreamConstants.START_ELEMENT)
+						&& r.getLocalName().equals("game"))
+					readGame(r);
+			}
+		} finally {
+			r.close();
+		}
+		link();
+	}
+
+	/**
+	 * Reads the game element
+	 */
+	private void readGame(XMLStreamReader r) throws XMLStreamException {
+		game.setTitle(r.getAttributeValue(null, "title"));
+		game.setAuthor(r.getAttributeValue(null, "author"));
+		text.setLength(0);
+
+		int event;
+		while ((event = r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if (isText(event))
+				text.append(r.getTextCharacters(), r.getTextStart(), r
+						.getTextLength());
+			else if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = r.getLocalName();
+				int start = text.length();
+				if (name.equals("location"))
+					readLocation(r, start);
+				else if (name.equals("trigger"))
+					readTrigger(r, start);
+				else if (name.equals("help"))
+					game.setSpecialHelp(readText(r, start));
+				else
+					readText(r, start);
+			}
+		}
+		game.setDescription(SAXHandler.normalize(text, 0));
+	}
+
+	/**
+	 * Reads a location element with its items and connections
+	 */
+	private void readLocation(XMLStreamReader r, int start)
+			throws XMLStreamException {
+		String id = r.getAttributeValue(null, "id");
+		String name = r.getAttributeValue(null, "name");
+		String threshold = r.getAttributeValue(null, "threshold");
+		String exitMsg = r.getAttributeValue(null, "exitMsg");
+		int number = number(id);
+
+		Location location = null;
+		int event;
+		while ((event = r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if (isText(event))
+				text.append(r.getTextCharacters(), r.getTextStart(), r
+						.getTextLength());
+			else if (event == XMLStreamConstants.START_ELEMENT) {
+				// The description is the text before the first child
+				if (location == null)
+					location = newLocation(id, name, threshold, exitMsg, start);
+				String child = r.getLocalName();
+				int childStart = text.length();
+				if (child.equals("item"))
+					readItem(r, location, childStart);
+				else if (child.equals("connection"))
+					readConnection(r, location, number, childStart);
+				else
+					readText(r, childStart);
+			}
+		}
+		if (location == null)
+			location = newLocation(id, name, threshold, exitMsg, start);
+		text.setLength(start);
+	}
+
+	/**
+	 * Creates a location, taking its description from the text buffer
+	 */
+	private Location newLocation(String id, String name, String threshold,
+			String exitMsg, int start) {
+		String description = SAXHandler.normalize(text, start);
+		text.setLength(start);
+
+		Location location;
+		if ((threshold != null) && (exitMsg != null))
+			location = new Location(id, name, description, Integer
+					.parseInt(threshold), exitMsg);
+		else
+			location = new Location(id, name, description);
+
+		define(number(id), location);
+		if (game.getCurrentLocation() == null)
+			game.setCurrentLocation(location);
+		game.getLocations().put(id, location);
+		return location;
+	}
+
+	/**
+	 * Reads an item element, adding the item to its location
+	 */
+	private void readItem(XMLStreamReader r, Location location, int start)
+			throws XMLStreamException {
+		String id = r.getAttributeValue(null, "id");
+		String name = r.getAttributeValue(null, "name");
+		int value = Integer.parseInt(r.getAttributeValue(null, "value"));
+		int weight = Integer.parseInt(r.getAttributeValue(null, "weight"));
+		String description = readText(r, start);
+
+		Item item = new Item(id, name, description, value, weight);
+		define(number(id), item);
+		location.addItem(item);
+	}
+
+	/**
+	 * Reads a connection element with its obstacles
+	 */
+	private void readConnection(XMLStreamReader r, Location location,
+			int number, int start) throws XMLStreamException {
+		Direction direction = direction(r.getAttributeValue(null, "dir"));
+		String target = r.getAttributeValue(null, "target");
+		if (direction != null) {
+			connections = ensure(connections, connectionCount + 3);
+			connections[connectionCount++] = number;
+			connections[connectionCount++] = direction.ordinal();
+			connections[connectionCount++] = number(target);
+		}
+
+		int event;
+		while ((event = r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (r.getLocalName().equals("obstacle") && (direction != null))
+					readObstacle(r, location, direction, start);
+				else
+					readText(r, start);
+			}
+		}
+	}
+
+	/**
+	 * Reads an obstacle element with its references, adding the obstacle to
+	 * its location
+	 */
+	private void readObstacle(XMLStreamReader r, Location location,
+			Direction direction, int start) throws XMLStreamException {
+		String id = r.getAttributeValue(null, "id");
+		String name = r.getAttributeValue(null, "name");
+		String status = r.getAttributeValue(null, "status");
+		if (status == null)
+			status = r.getAttributeValue(null, "active");
+		String errorMsg = r.getAttributeValue(null, "errorMsg");
+		int number = number(id);
+
+		int event;
+		while ((event = r.next()) != XMLStreamConstants.END_ELEMENT) {
+			if (isText(event))
+				text.append(r.getTextCharacters(), r.getTextStart(), r
+						.getTextLength());
+			else if (event == XMLStreamConstants.START_ELEMENT) {
+				String child = r.getLocalName();
+				int ref = number(r.getAttributeValue(null, "id"));
+				if (child.equals("item-ref")) {
+					itemRefs = ensure(itemRefs, itemRefCount + 2);
+					itemRefs[itemRefCount++] = number;
+					itemRefs[itemRefCount++] = ref;
+				} else if (child.equals("obstacle-ref")) {
+					obstacleRefs = ensure(obstacleRefs, obstacleRefCount + 2);
+					obstacleRefs[obstacleRefCount++] = number;
+					obstacleRefs[obstacleRefCount++] = ref;
+				}
+				readText(r, text.length());
+			}
+		}
+
+		Obstacle obstacle = new Obstacle(id, name, SAXHandler.normalize(text,
+				start), Boolean.parseBoolean(status), errorMsg, direction);
+		text.setLength(start);
+		define(number, obstacle);
+		obstacles.add(obstacle);
+		location.addObstacle(direction, obstacle);
+	}
+
+	/**
+	 * Reads a trigger element, adding the trigger to the game
+	 */
+	private void readTrigger(XMLStreamReader r, int start)
+			throws XMLStreamException {
+		String id = r.getAttributeValue(null, "id");
+		Trigger.Kind kind = Trigger.Kind.fromKeyword(r.getAttributeValue(null,
+				"on"));
+		String target = r.getAttributeValue(null, "target");
+		String score = r.getAttributeValue(null, "score");
+		String status = r.getAttributeValue(null, "status");
+		boolean end = Boolean.parseBoolean(r.getAttributeValue(null, "end"));
+		String message = readText(r, start);
+
+		if (kind == null)
+			throw new XMLStreamException("Unknown trigger kind: " + id);
+		int value;
+		if (kind == Trigger.Kind.OBSTACLE)
+			value = Boolean.parseBoolean(status) ? 1 : 0;
+		else
+			value = (score != null) ? Integer.parseInt(score) : 0;
+		game.defineTrigger(new Trigger(id, kind, target, value, message, end));
+	}
+
+	/**
+	 * Reads the rest of an element, returning its normalized text (the text
+	 * of its children included)
+	 */
+	private String readText(XMLStreamReader r, int start)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = r.next();
+			if (isText(event))
+				text.append(r.getTextCharacters(), r.getTextStart(), r
+						.getTextLength());
+			else if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+		String result = SAXHandler.normalize(text, start);
+		text.setLength(start);
+		return result;
+	}
+
+	/**
+	 * Resolves the pending references when the definition has been read
+	 */
+	private void link() {
+		List<String> dangling = new ArrayList<String>();
+		for (int i = 0; i < connectionCount; i += 3) {
+			Location location = (Location) elements[connections[i]];
+			Direction dir = Direction.values()[connections[i + 1]];
+			Object target = elements[connections[i + 2]];
+			if (target instanceof Location)
+				location.setConnection(dir, (Location) target);
+			else
+				dangling.add(location.getId() + ": " + dir.getKeyword()
+						+ " -> " + id(connections[i + 2]));
+		}
+		game.setDanglingConnections(dangling);
+
+		for (int i = 0; i < itemRefCount; i += 2) {
+			Object item = elements[itemRefs[i + 1]];
+			if (!(item instanceof Item))
+				throw new InvalidBoundedItemException(
+						"InvalidBoundedItemException");
+			((Obstacle) elements[itemRefs[i]]).addBoundedItem((Item) item);
+		}
+
+		for (int i = 0; i < obstacleRefCount; i += 2) {
+			Object obstacle = elements[obstacleRefs[i + 1]];
+			if (!(obstacle instanceof Obstacle))
+				throw new InvalidBoundedObstacleException(
+						"InvalidBoundedObstacleException");
+			((Obstacle) elements[obstacleRefs[i]])
+					.addBoundedObstacle((Obstacle) obstacle);
+		}
+
+		game.buildObstacleGraph(obstacles);
+		game.checkTriggers();
+	}
+
+	/**
+	 * Returns the number of an id, numbering it the first time
+	 */
+	private int number(String id) {
+		Integer number = ids.get(id);
+		if (number == null) {
+			number = ids.size();
+			ids.put(id, number);
+			elements = ensure(elements, number + 1);
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the id of a number (only for reporting errors, it scans the
+	 * ids)
+	 */
+	private String id(int number) {
+		for (Map.Entry<String, Integer> e : ids.entrySet())
+			if (e.getValue() == number)
+				return e.getKey();
+		return null;
+	}
+
+	/**
+	 * Sets the element defined by an id number
+	 */
+	private void define(int number, Object element) {
+		elements[number] = element;
+	}
+
+	private static boolean isText(int event) {
+		return (event == XMLStreamConstants.CHARACTERS)
+				|| (event == XMLStreamConstants.CDATA)
+				|| (event == XMLStreamConstants.SPACE);
+	}
+
+	private static Direction direction(String keyword) {
+		for (Direction dir : Direction.values())
+			if (dir.getKeyword().equals(keyword))
+				return dir;
+		return null;
+	}
+
+	private static int[] ensure(int[] array, int size) {
+		if (size <= array.length)
+			return array;
+		int[] temp = new int[Math.max(size, array.length * 2)];
+		System.arraycopy(array, 0, temp, 0, array.length);
+		return temp;
+	}
+
+	private static Object[] ensure(Object[] array, int size) {
+		if (size <= array.length)
+			return array;
+		Object[] temp = new Object[Math.max(size, array.length * 2)];
+		System.arraycopy(array, 0, temp, 0, array.length);
+		return temp;
+	}
+
+	/**
+	 * Creates a stream reader. The DTD is not processed: the reader does not
+	 * validate and it does not need to read the external DTD.
+	 */
+	private static synchronized XMLStreamReader newReader(InputStream in)
+			throws XMLStreamException {
+		if (factory == null) {
+			factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,
+					Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		}
+		return factory.createXMLStreamReader(in);
+	}
+
+	/**
+	 * Returns a String representation for this object: StAXGameReader[ids].
+	 * This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + ids.size() + "]";
+	}
+}
@@ -0,0 +1,436 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Splits a text game definition into tokens: words, quoted strings and
+ * numbers. Blanks separate the tokens and '#' starts a comment until the end
+ * of the line. Quoted strings cannot span lines and support the escapes \",
+ * \\, \n, \t and \r.
+ * <p>
+ * The characters are read through a reusable char[] window, so definitions of
+ * any size are read in linear time with a constant memory footprint. A word
+ * equal to one of the keywords of the lexer is returned as the keyword
+ * instance itself, so keywords can be compared by identity (==) and no
+ * String is allocated for them. The line and column where every token starts
+ * are tracked exactly.
+ */
+public class TextGameLexer {
+
+	/**
+	 * Initial size of the char window
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Represents the types of the tokens.
+	 */
+	public enum TokenType {
+		/**
+		 * A word (unquoted text that is not a number)
+		 */
+		WORD,
+		/**
+		 * A quoted string
+		 */
+		STRING,
+		/**
+		 * A number, integer or decimal
+		 */
+		NUMBER,
+		/**
+		 * The end of the definition
+		 */
+		EOF
+	}
+
+	/**
+	 * The source of the characters
+	 */
+	private Reader in;
+
+	/**
+	 * The char window: the valid characters are [0, limit) and the next one
+	 * is at 'pos'. When the window is refilled, the characters from 'mark' on
+	 * are kept (if 'mark' is not negative).
+	 */
+	private char[] buffer;
+	private int pos;
+	private int limit;
+	private int mark = -1;
+	private boolean eof;
+
+	/**
+	 * The position of the next character
+	 */
+	private int line = 1;
+	private int column = 1;
+
+	/**
+	 * The current token: its type, its text (words and strings), its value
+	 * (numbers) and its position
+	 */
+	private TokenType type;
+	private String text;
+	private double number;
+	private int tokenLine;
+	private int tokenColumn;
+
+	/**
+	 * The keywords, in an open addressing hash table
+	 */
+	private String[] keywords;
+
+	/**
+	 * Reusable buffer for the strings with escapes
+	 */
+	private StringBuilder escaped;
+
+	/**
+	 * Constructs a lexer.
+	 *
+	 * @param in
+	 *            The source of the characters.
+	 * @param keywords
+	 *            The keywords: the words equal to them are returned as these
+	 *            same instances.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 */
+	public TextGameLexer(Reader in, String... keywords) {
+		if ((in == null) || (keywords == null))
+			throw new IllegalArgumentException();
+		this.in = in;
+		buffer = new char[BUFFER_SIZE];
+		escaped = new StringBuilder();
+
+		int size = 16;
+		while (size < keywords.length * 2)
+			size *= 2;
+		this.keywords = new String[size];
+		for (String keyword : keywords) {
+			if (keyword == null)
+				throw new IllegalArgumentException();
+			int h = keyword.hashCode() & (size - 1);
+			while ((this.keywords[h] != null)
+					&& !this.keywords[h].equals(keyword))
+				h = (h + 1) & (size - 1);
+			if (this.keywords[h] == null)
+				this.keywords[h] = keyword;
+		}
+	}
+
+	/**
+	 * Reads the next token.
+	 *
+	 * @return The type of the token.
+	 * @throws IOException
+	 *             The characters cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             A quoted string is not closed in its line.
+	 */
+	public TokenType nextToken() throws IOException,
+			InvalidGameDefinitionException {
+		text = null;
+		number = 0;
+
+		int c;
+		while (true) {
+			c = peek();
+			if (c < 0) {
+				tokenLine = line;
+				tokenColumn = column;
+				return type = TokenType.EOF;
+			} else if (c == '\n') {
+				pos++;
+				newLine();
+			} else if (c == '\r') {
+				pos++;
+				newLine();
+				if (peek() == '\n')
+					pos++;
+			} else if (c <= ' ') {
+				pos++;
+				column++;
+			} else if (c == '#') {
+				while (((c = peek()) >= 0) && (c != '\n') && (c != '\r')) {
+					pos++;
+					column++;
+				}
+			} else
+				break;
+		}
+
+		tokenLine = line;
+		tokenColumn = column;
+		if (c == '"')
+			readString();
+		else
+			readBare();
+		return type;
+	}
+
+	/**
+	 * Returns the type of the current token.
+	 *
+	 * @return The type, or null if no token has been read.
+	 */
+	public TokenType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the text of the current token.
+	 *
+	 * @return The text of a word (the keyword instance if it is a keyword) or
+	 *         a string; null for numbers and the end of the definition.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Returns the value of the current token.
+	 *
+	 * @return The value of a number; 0 for the other tokens.
+	 */
+	public double getNumber() {
+		return number;
+	}
+
+	/**
+	 * Returns the line where the current token starts.
+	 *
+	 * @return The line, starting at 1.
+	 */
+	public int getLine() {
+		return tokenLine;
+	}
+
+	/**
+	 * Returns the column where the current token starts.
+	 *
+	 * @return The column, starting at 1.
+	 */
+	public int getColumn() {
+		return tokenColumn;
+	}
+
+	/**
+	 * Closes the source of the characters.
+	 *
+	 * @throws IOException
+	 *             The source cannot be closed.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads a word or a number: every character until a blank, a quote or a
+	 * comment
+	 */
+	private void readBare() throws IOException {
+		mark = pos;
+		int hash = 0;
+		while (true) {
+			if ((pos == limit) && !fill())
+				break;
+			char c = buffer[pos];
+			if ((c <= ' ') || (c == '"') || (c == '#'))
+				break;
+			hash = 31 * hash + c;
+			pos++;
+		}
+		int start = mark;
+		int length = pos - start;
+		mark = -1;
+		column += length;
+
+		if (isNumber(start, length)) {
+			type = TokenType.NUMBER;
+			number = parseNumber(start, length);
+		} else {
+			type = TokenType.WORD;
+			text = keyword(start, length, hash);
+			if (text == null)
+				text = new String(buffer, start, length);
+		}
+	}
+
+	/**
+	 * Reads a quoted string, without copying it unless it has escapes
+	 */
+	private void readString() throws IOException,
+			InvalidGameDefinitionException {
+		pos++;
+		column++;
+		mark = pos;
+		boolean escapes = false;
+		while (true) {
+			if ((pos == limit) && !fill())
+				throw unterminatedString();
+			char c = buffer[pos];
+			if (c == '"')
+				break;
+			if ((c == '\n') || (c == '\r'))
+				throw unterminatedString();
+			if (c == '\\') {
+				if (!escapes) {
+					escaped.setLength(0);
+					escaped.append(buffer, mark, pos - mark);
+					escapes = true;
+				}
+				pos++;
+				column++;
+				if ((pos == limit) && !fill())
+					throw unterminatedString();
+				c = buffer[pos];
+				if (c == 'n')
+					c = '\n';
+				else if (c == 't')
+					c = '\t';
+				else if (c == 'r')
+					c = '\r';
+				else if ((c == '\n') || (c == '\r'))
+					throw unterminatedString();
+			}
+			if (escapes)
+				escaped.append(c);
+			pos++;
+			column++;
+		}
+
+		type = TokenType.STRING;
+		text = escapes ? escaped.toString() : new String(buffer, mark, pos
+				- mark);
+		mark = -1;
+		// Closing quote
+		pos++;
+		column++;
+	}
+
+	/**
+	 * Returns the keyword equal to some characters of the window, or null
+	 */
+	private String keyword(int start, int length, int hash) {
+		int mask = keywords.length - 1;
+		for (int h = hash & mask; keywords[h] != null; h = (h + 1) & mask) {
+			String keyword = keywords[h];
+			if (keyword.length() == length) {
+				int i = 0;
+				while ((i < length) && (keyword.charAt(i) == buffer[start + i]))
+					i++;
+				if (i == length)
+					return keyword;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether some characters of the window are a number: an optional
+	 * minus sign, digits and an optional decimal part
+	 */
+	private boolean isNumber(int start, int length) {
+		int i = start;
+		int end = start + length;
+		if ((i < end) && (buffer[i] == '-'))
+			i++;
+		boolean digits = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = buffer[i];
+			if ((c >= '0') && (c <= '9'))
+				digits = true;
+			else if ((c == '.') && !point)
+				point = true;
+			else
+				return false;
+		}
+		return digits;
+	}
+
+	/**
+	 * Parses a number of the window, without allocating for integers
+	 */
+	private double parseNumber(int start, int length) {
+		boolean negative = buffer[start] == '-';
+		long value = 0;
+		for (int i = negative ? start + 1 : start; i < start + length; i++) {
+			char c = buffer[i];
+			if ((c == '.') || (value > Long.MAX_VALUE / 10))
+				return Double.parseDouble(new String(buffer, start, length));
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Refills the window, keeping the characters from the mark on.
+	 *
+	 * @return false if there are no more characters.
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+
+		int keep = (mark >= 0) ? mark : pos;
+		if (keep > 0) {
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			limit -= keep;
+			pos -= keep;
+			if (mark >= 0)
+				mark -= keep;
+		}
+		if (limit == buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+		int n;
+		do
+			n = in.read(buffer, limit, buffer.length - limit);
+		while (n == 0);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/**
+	 * Returns the next character without consuming it, or -1 at the end
+	 */
+	private int peek() throws IOException {
+		if ((pos == limit) && !fill())
+			return -1;
+		return buffer[pos];
+	}
+
+	private void newLine() {
+		line++;
+		column = 1;
+	}
+
+	private InvalidGameDefinitionException unterminatedString() {
+		return new InvalidGameDefinitionException("Error in line: " + line
+				+ ", column " + column + " in definitions game"
+				+ System.getProperty("line.separator")
+				+ "Unterminated string");
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * TextGameLexer[type:line:column]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + type + ":" + tokenLine
+				+ ":" + tokenColumn + "]";
+	}
+}
@@ -0,0 +1,234 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.Serializable;
+
+/**
+ * Represents a trigger declared in a game definition: a condition on the
+ * state of the game (entering a location, holding an item, the status of an
+ * obstacle or the player score) that, when it holds for the first time,
+ * reports a message as a game event and may end the game.
+ */
+public class Trigger implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Represents the kinds of triggers, that is, the element of the game each
+	 * kind of trigger is subscribed to.
+	 */
+	public enum Kind {
+		/**
+		 * Fires when the player enters a location (the target) with at least
+		 * the given score.
+		 */
+		ENTER("enter"),
+		/**
+		 * Fires when an item (the target) is placed in the player inventory
+		 * and the player has at least the given score.
+		 */
+		HOLD("hold"),
+		/**
+		 * Fires when an obstacle (the target) reaches the given status.
+		 */
+		OBSTACLE("obstacle"),
+		/**
+		 * Fires when the player score reaches the given value.
+		 */
+		SCORE("score");
+
+		/**
+		 * Contains the keyword used in the game definitions
+		 */
+		private String keyword;
+
+		/**
+		 * Kind enum constructor
+		 *
+		 * @param keyword
+		 *            The keyword used in the game definitions
+		 */
+		private Kind(String keyword) {
+			this.keyword = keyword;
+		}
+
+		/**
+		 * Gets the keyword used for representing this kind of trigger in a
+		 * game definition.
+		 *
+		 * @return The keyword.
+		 */
+		public String getKeyword() {
+			return keyword;
+		}
+
+		/**
+		 * Returns the kind of trigger represented by a keyword.
+		 *
+		 * @param keyword
+		 *            The keyword.
+		 * @return The kind, or null if the keyword is unknown.
+		 */
+		public static Kind fromKeyword(String keyword) {
+			for (Kind kind : values()) {
+				if (kind.keyword.equalsIgnoreCase(keyword))
+					return kind;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The trigger id
+	 */
+	private String id;
+
+	/**
+	 * The trigger kind
+	 */
+	private Kind kind;
+
+	/**
+	 * The id of the location, item or obstacle the trigger is subscribed to
+	 * (null for score triggers)
+	 */
+	private String target;
+
+	/**
+	 * The minimum score (enter, hold and score triggers) or the obstacle
+	 * status, 1 = active, 0 = inactive (obstacle triggers)
+	 */
+	private int value;
+
+	/**
+	 * The message reported when the trigger fires
+	 */
+	private String message;
+
+	/**
+	 * Flag that decides whether the game ends when the trigger fires
+	 */
+	private boolean endsGame;
+
+	/**
+	 * Flag that points if the trigger has already fired
+	 */
+	private boolean fired;
+
+	/**
+	 * Constructs a trigger.
+	 *
+	 * @param id
+	 *            The trigger id.
+	 * @param kind
+	 *            The trigger kind.
+	 * @param target
+	 *            The id of the location, item or obstacle the trigger is
+	 *            subscribed to. It is ignored for score triggers.
+	 * @param value
+	 *            The minimum score, or the obstacle status (1 = active, 0 =
+	 *            inactive) for obstacle triggers.
+	 * @param message
+	 *            The message reported when the trigger fires.
+	 * @param endsGame
+	 *            true if the game ends when the trigger fires.
+	 * @throws IllegalArgumentException
+	 *             The arguments 'id', 'kind' and 'message' cannot be null, and
+	 *             'target' cannot be null unless it is a score trigger.
+	 */
+	public Trigger(String id, Kind kind, String target, int value,
+			String message, boolean endsGame) {
+		if ((id == null) || (kind == null) || (message == null)
+				|| ((target == null) && (kind != Kind.SCORE)))
+			throw new IllegalArgumentException();
+		this.id = id;
+		this.kind = kind;
+		this.target = (kind == Kind.SCORE) ? null : target;
+		this.value = value;
+		this.message = message;
+		this.endsGame = endsGame;
+		this.fired = false;
+	}
+
+	/**
+	 * Returns the id.
+	 *
+	 * @return The id.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the kind.
+	 *
+	 * @return The kind.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Returns the id of the element the trigger is subscribed to.
+	 *
+	 * @return The target id, null for score triggers.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the minimum score or the obstacle status of the trigger.
+	 *
+	 * @return The value.
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns the message reported when the trigger fires.
+	 *
+	 * @return The message.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Checks whether the game ends when the trigger fires.
+	 *
+	 * @return true if the game ends; false otherwise.
+	 */
+	public boolean endsGame() {
+		return endsGame;
+	}
+
+	/**
+	 * Checks whether the trigger has already fired.
+	 *
+	 * @return true if it has fired; false otherwise.
+	 */
+	public boolean hasFired() {
+		return fired;
+	}
+
+	/**
+	 * Marks the trigger as fired.
+	 */
+	void fire() {
+		fired = true;
+	}
+
+	/**
+	 * Returns a String representation for this object: Trigger[id]. This is
+	 * useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + id + "]";
+	}
+}
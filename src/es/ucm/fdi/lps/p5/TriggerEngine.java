@@ -0,0 +1,339 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Evaluates the triggers of a game. The pending triggers are indexed by the
+ * location, the item or the obstacle they are subscribed to (and score
+ * triggers by their threshold), so every change in the game only checks the
+ * triggers subscribed to the changed element instead of scanning all of them.
+ * A trigger is removed from the index once it has fired.
+ * <p>
+ * The exit threshold of a location is handled as an implicit enter trigger
+ * that ends the game. It is indexed the first time the location is entered.
+ */
+public class TriggerEngine implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Pending enter triggers, by location id
+	 */
+	private Map<String, List<Trigger>> enterTriggers;
+
+	/**
+	 * Pending hold triggers, by item id
+	 */
+	private Map<String, List<Trigger>> holdTriggers;
+
+	/**
+	 * Pending obstacle triggers, by obstacle id
+	 */
+	private Map<String, List<Trigger>> obstacleTriggers;
+
+	/**
+	 * Pending score triggers, by threshold
+	 */
+	private TreeMap<Integer, List<Trigger>> scoreTriggers;
+
+	/**
+	 * Ids of the locations which exit threshold has already been indexed
+	 */
+	private Set<String> indexedExitThresholds;
+
+	/**
+	 * Ids of all the triggers added
+	 */
+	private Set<String> ids;
+
+	/**
+	 * All the triggers added, in definition order
+	 */
+	private List<Trigger> triggers;
+
+	/**
+	 * Constructs an engine without triggers.
+	 */
+	public TriggerEngine() {
+		enterTriggers = new HashMap<String, List<Trigger>>();
+		holdTriggers = new HashMap<String, List<Trigger>>();
+		obstacleTriggers = new HashMap<String, List<Trigger>>();
+		scoreTriggers = new TreeMap<Integer, List<Trigger>>();
+		indexedExitThresholds = new HashSet<String>();
+		ids = new HashSet<String>();
+		triggers = new ArrayList<Trigger>();
+	}
+
+	/**
+	 * Adds a trigger to the engine.
+	 *
+	 * @param trigger
+	 *            The trigger.
+	 * @return true if the trigger was added; false if there is already a
+	 *         trigger with the same id or it has already fired.
+	 * @throws IllegalArgumentException
+	 *             The argument 'trigger' cannot be null.
+	 */
+	public boolean addTrigger(Trigger trigger) {
+		if (trigger == null)
+			throw new IllegalArgumentException();
+
+		if (trigger.hasFired() || !ids.add(trigger.getId()))
+			return false;
+		triggers.add(trigger);
+
+		switch (trigger.getKind()) {
+		case ENTER:
+			index(enterTriggers, trigger.getTarget(), trigger);
+			break;
+		case HOLD:
+			index(holdTriggers, trigger.getTarget(), trigger);
+			break;
+		case OBSTACLE:
+			index(obstacleTriggers, trigger.getTarget(), trigger);
+			break;
+		case SCORE:
+			index(scoreTriggers, trigger.getValue(), trigger);
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns all the triggers added, fired or not.
+	 *
+	 * @return The triggers, in definition order.
+	 */
+	public List<Trigger> getTriggers() {
+		return Collections.unmodifiableList(triggers);
+	}
+
+	/**
+	 * Returns the number of triggers that have not fired yet.
+	 *
+	 * @return The number of pending triggers.
+	 */
+	public int getPendingTriggers() {
+		return count(enterTriggers) + count(holdTriggers)
+				+ count(obstacleTriggers) + count(scoreTriggers);
+	}
+
+	/**
+	 * Marks a trigger as fired without reporting it, when a saved game is
+	 * restored (see SaveCodec).
+	 *
+	 * @param id
+	 *            The trigger id.
+	 * @return true if the trigger was pending; false if it does not exist or
+	 *         it has already fired.
+	 */
+	boolean markFired(String id) {
+		for (Trigger trigger : triggers) {
+			if (trigger.getId().equals(id)) {
+				if (trigger.hasFired())
+					return false;
+				trigger.fire();
+				switch (trigger.getKind()) {
+				case ENTER:
+					unindex(enterTriggers, trigger.getTarget(), trigger);
+					break;
+				case HOLD:
+					unindex(holdTriggers, trigger.getTarget(), trigger);
+					break;
+				case OBSTACLE:
+					unindex(obstacleTriggers, trigger.getTarget(), trigger);
+					break;
+				case SCORE:
+					unindex(scoreTriggers, trigger.getValue(), trigger);
+					break;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluates the triggers subscribed to a location the player has just
+	 * entered.
+	 *
+	 * @param location
+	 *            The location.
+	 * @param score
+	 *            The player score.
+	 * @return The triggers that have fired, in definition order.
+	 * @throws IllegalArgumentException
+	 *             The argument 'location' cannot be null.
+	 */
+	public List<Trigger> locationEntered(Location location, int score) {
+		if (location == null)
+			throw new IllegalArgumentException();
+
+		if (location.hasExitThreshold()
+				&& indexedExitThresholds.add(location.getId()))
+			index(enterTriggers, location.getId(), new Trigger("exit:"
+					+ location.getId(), Trigger.Kind.ENTER, location.getId(),
+					location.getExitThreshold(), location.getExitMessage(),
+					true));
+
+		return fireReached(enterTriggers, location.getId(), score);
+	}
+
+	/**
+	 * Evaluates the triggers subscribed to an item the player has just placed
+	 * in the inventory.
+	 *
+	 * @param item
+	 *            The item.
+	 * @param score
+	 *            The player score.
+	 * @return The triggers that have fired, in definition order.
+	 * @throws IllegalArgumentException
+	 *             The argument 'item' cannot be null.
+	 */
+	public List<Trigger> itemHeld(Item item, int score) {
+		if (item == null)
+			throw new IllegalArgumentException();
+
+		return fireReached(holdTriggers, item.getId(), score);
+	}
+
+	/**
+	 * Evaluates the triggers subscribed to an obstacle which status has just
+	 * changed.
+	 *
+	 * @param obstacle
+	 *            The obstacle.
+	 * @return The triggers that have fired, in definition order.
+	 * @throws IllegalArgumentException
+	 *             The argument 'obstacle' cannot be null.
+	 */
+	public List<Trigger> obstacleChanged(Obstacle obstacle) {
+		if (obstacle == null)
+			throw new IllegalArgumentException();
+
+		List<Trigger> pending = obstacleTriggers.get(obstacle.getId());
+		if (pending == null)
+			return Collections.emptyList();
+
+		int status = obstacle.getStatus() ? 1 : 0;
+		List<Trigger> fired = new ArrayList<Trigger>();
+		Iterator<Trigger> itr = pending.iterator();
+		while (itr.hasNext()) {
+			Trigger trigger = itr.next();
+			if (trigger.getValue() == status) {
+				trigger.fire();
+				fired.add(trigger);
+				itr.remove();
+			}
+		}
+		if (pending.isEmpty())
+			obstacleTriggers.remove(obstacle.getId());
+		return fired;
+	}
+
+	/**
+	 * Evaluates the score triggers after a change of the player score. Only
+	 * the thresholds reached by the new score are visited.
+	 *
+	 * @param score
+	 *            The player score.
+	 * @return The triggers that have fired, by threshold.
+	 */
+	public List<Trigger> scoreChanged(int score) {
+		if (scoreTriggers.isEmpty() || (scoreTriggers.firstKey() > score))
+			return Collections.emptyList();
+
+		SortedMap<Integer, List<Trigger>> reached = scoreTriggers
+				.headMap(score + 1);
+		List<Trigger> fired = new ArrayList<Trigger>();
+		for (List<Trigger> triggers : reached.values()) {
+			for (Trigger trigger : triggers) {
+				trigger.fire();
+				fired.add(trigger);
+			}
+		}
+		reached.clear();
+		return fired;
+	}
+
+	/**
+	 * Fires the triggers indexed by a key which minimum score has been reached
+	 */
+	private List<Trigger> fireReached(Map<String, List<Trigger>> index,
+			String key, int score) {
+		List<Trigger> pending = index.get(key);
+		if (pending == null)
+			return Collections.emptyList();
+
+		List<Trigger> fired = new ArrayList<Trigger>();
+		Iterator<Trigger> itr = pending.iterator();
+		while (itr.hasNext()) {
+			Trigger trigger = itr.next();
+			if (score >= trigger.getValue()) {
+				trigger.fire();
+				fired.add(trigger);
+				itr.remove();
+			}
+		}
+		if (pending.isEmpty())
+			index.remove(key);
+		return fired;
+	}
+
+	/**
+	 * Adds a trigger to the list of an index
+	 */
+	private <K> void index(Map<K, List<Trigger>> index, K key, Trigger trigger) {
+		List<Trigger> list = index.get(key);
+		if (list == null) {
+			list = new ArrayList<Trigger>(2);
+			index.put(key, list);
+		}
+		list.add(trigger);
+	}
+
+	/**
+	 * Removes a trigger from the list of an index
+	 */
+	private <K> void unindex(Map<K, List<Trigger>> index, K key,
+			Trigger trigger) {
+		List<Trigger> list = index.get(key);
+		if ((list != null) && list.remove(trigger) && list.isEmpty())
+			index.remove(key);
+	}
+
+	/**
+	 * Counts the triggers of an index
+	 */
+	private int count(Map<?, List<Trigger>> index) {
+		int total = 0;
+		for (List<Trigger> list : index.values())
+			total += list.size();
+		return total;
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * TriggerEngine[pending]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + getPendingTriggers()
+				+ "]";
+	}
+}
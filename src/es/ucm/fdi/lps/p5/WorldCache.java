@@ -0,0 +1,259 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Caches the parsed game definitions, keyed by their fingerprint (the hash
+ * of their content), so an unchanged definition is parsed only once. A
+ * changed definition has another fingerprint, so its stale entry is never
+ * used again.
+ * <p>
+ * Games are mutable (every session plays its own copy), so the cache keeps
+ * the world image of every definition (see WorldImage), already linked, and
+ * every hit creates a new game from it without parsing. The images are kept
+ * in memory for the sessions of the same process (the most recently used
+ * ones, up to a limit) and, if the cache has a directory, in files named
+ * after the fingerprint for the next processes.
+ */
+public class WorldCache {
+
+	/**
+	 * Default number of images kept in memory
+	 */
+	public static final int DEFAULT_MEMORY_ENTRIES = 16;
+
+	/**
+	 * Extension of the image files of the cache directory
+	 */
+	public static final String EXTENSION = ".img";
+
+	/**
+	 * The cache directory, null if the cache is only kept in memory
+	 */
+	private File directory;
+
+	/**
+	 * The images in memory, by fingerprint, in access order
+	 */
+	private Map<String, byte[]> images;
+
+	/**
+	 * Statistics
+	 */
+	private long hits;
+	private long misses;
+
+	/**
+	 * Constructs a cache kept in memory.
+	 */
+	public WorldCache() {
+		this(null, DEFAULT_MEMORY_ENTRIES);
+	}
+
+	/**
+	 * Constructs a cache kept in memory and in a directory.
+	 *
+	 * @param directory
+	 *            The directory, created if it does not exist, or null for
+	 *            keeping the cache only in memory.
+	 * @param memoryEntries
+	 *            The maximum number of images kept in memory.
+	 * @throws IllegalArgumentException
+	 *             The argument 'memoryEntries' must be positive.
+	 */
+	public WorldCache(File directory, final int memoryEntries) {
+		if (memoryEntries <= 0)
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		if (directory != null)
+			directory.mkdirs();
+		images = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> e) {
+				return size() > memoryEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns a new game from the cached image of a definition.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 * @return The game, or null if the definition is not cached.
+	 * @throws IllegalArgumentException
+	 *             The argument 'fingerprint' cannot be null.
+	 */
+	public Game get(String fingerprint) {
+		if (fingerprint == null)
+			throw new IllegalArgumentException();
+
+		byte[] image;
+		synchronized (this) {
+			image = images.get(fingerprint);
+		}
+		if (image == null) {
+			image = readImage(fingerprint);
+			if (image != null) {
+				synchronized (this) {
+					images.put(fingerprint, image);
+				}
+			}
+		}
+		if (image != null) {
+			try {
+				Game game = WorldImage.read(ByteBuffer.wrap(image));
+				if (fingerprint.equals(game.getFingerprint())) {
+					count(true);
+					return game;
+				}
+			} catch (InvalidGameDefinitionException e) {
+				// Corrupt entry, it is replaced
+			}
+			remove(fingerprint);
+		}
+		count(false);
+		return null;
+	}
+
+	/**
+	 * Caches a game just loaded from its definition, before it is played.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 * @param game
+	 *            The game.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The image cannot be written into the cache directory (it is
+	 *             kept in memory anyway).
+	 */
+	public void put(String fingerprint, Game game) throws IOException {
+		if ((fingerprint == null) || (game == null))
+			throw new IllegalArgumentException();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WorldImage.write(game, out);
+		byte[] image = out.toByteArray();
+		synchronized (this) {
+			images.put(fingerprint, image);
+		}
+		if (directory != null)
+			writeImage(fingerprint, image);
+	}
+
+	/**
+	 * Removes a definition from the cache.
+	 *
+	 * @param fingerprint
+	 *            The fingerprint of the definition.
+	 */
+	public void remove(String fingerprint) {
+		synchronized (this) {
+			images.remove(fingerprint);
+		}
+		if (directory != null)
+			file(fingerprint).delete();
+	}
+
+	/**
+	 * Returns the number of games created from the cache.
+	 *
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of definitions not found in the cache.
+	 *
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private synchronized void count(boolean hit) {
+		if (hit)
+			hits++;
+		else
+			misses++;
+	}
+
+	private File file(String fingerprint) {
+		return new File(directory, fingerprint + EXTENSION);
+	}
+
+	/**
+	 * Reads the image of a definition from the cache directory, or null
+	 */
+	private byte[] readImage(String fingerprint) {
+		if (directory == null)
+			return null;
+		File file = file(fingerprint);
+		if (!file.isFile())
+			return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				byte[] image = new byte[(int) raf.length()];
+				raf.readFully(image);
+				return image;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the image of a definition into the cache directory, through a
+	 * temporary file so a concurrent reader never sees a partial image
+	 */
+	private void writeImage(String fingerprint, byte[] image)
+			throws IOException {
+		File file = file(fingerprint);
+		File temp = File.createTempFile(fingerprint, ".tmp", directory);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(image);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot write " + file.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * WorldCache[directory:hits/misses]. This is useful for debugging
+	 * purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + directory + ":"
+				+ getHits() + "/" + getMisses() + "]";
+	}
+}
@@ -0,0 +1,638 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Compiles a game definition (XML or text) into a binary world image, and
+ * loads games from images without any parsing: the image is memory-mapped
+ * and the game elements are created straight from its tables.
+ * <p>
+ * An image is a header followed by a payload. The header holds the magic
+ * number "P5WI", the format version, the payload length and the CRC32 of the
+ * payload, so a corrupt or truncated image is rejected before it is read. The
+ * payload holds, as big-endian ints:
+ * <ul>
+ * <li>The string table: every distinct string once, in UTF-8, referenced by
+ * index everywhere else (-1 is null).</li>
+ * <li>The game: title, author, description, special help, fingerprint of the
+ * source definition and initial location.</li>
+ * <li>The location table (id, name, description, exit message and exit
+ * threshold; the exit message is -1 if there is no exit threshold).</li>
+ * <li>The item table (id, name, description, value, weight and location),
+ * grouped by location in location order; items out of the locations go last.</li>
+ * <li>The connections in CSR form: the first connection of every location
+ * and the direction and target location of every connection.</li>
+ * <li>The obstacle table (id, name, description, error message, status,
+ * direction and location), grouped by location in location order, and its
+ * bound items and obstacles in CSR form.</li>
+ * <li>The trigger table (id, kind, target, value, message and whether it
+ * ends the game).</li>
+ * </ul>
+ * <p>
+ * Usage as a compiler: WorldImage definition image
+ */
+public class WorldImage {
+
+	/**
+	 * Magic number of the images ("P5WI")
+	 */
+	public static final int MAGIC = 0x50355749;
+
+	/**
+	 * Current version of the image format
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * Length of the header: magic, version, flags, payload length and CRC32
+	 */
+	public static final int HEADER_LENGTH = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Utility class, it cannot be instantiated
+	 */
+	private WorldImage() {
+	}
+
+	/**
+	 * Compiles a game definition into an image file.
+	 *
+	 * @param args
+	 *            The definition file and the image file.
+	 * @throws IOException
+	 *             The files cannot be read or written.
+	 * @throws InvalidGameDefinitionException
+	 *             The definition is invalid.
+	 */
+	public static void main(String[] args) throws IOException,
+			InvalidGameDefinitionException {
+		if (args.length != 2) {
+			System.out.println("Usage: WorldImage definition image");
+			return;
+		}
+		long start = System.nanoTime();
+		compile(new File(args[0]), new File(args[1]));
+		System.out.println(args[1] + ": " + new File(args[1]).length()
+				+ " bytes, compiled in "
+				+ ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+	/**
+	 * Compiles a game definition file into an image file.
+	 *
+	 * @param definition
+	 *            The definition (XML or text).
+	 * @param image
+	 *            The image file, replaced if it exists.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The files cannot be read or written.
+	 * @throws InvalidGameDefinitionException
+	 *             The definition is invalid or it is a saved game.
+	 */
+	public static void compile(File definition, File image)
+			throws IOException, InvalidGameDefinitionException {
+		if ((definition == null) || (image == null))
+			throw new IllegalArgumentException();
+
+		Game game = GameLoader.load(definition);
+		if (game.getFingerprint() == null)
+			throw new InvalidGameDefinitionException(
+					"Not a game definition: " + definition.getPath());
+		OutputStream out = new FileOutputStream(image);
+		try {
+			write(game, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the image of a game. The game must have been just loaded from
+	 * its definition: the player inventory and the command history are not
+	 * part of the image.
+	 *
+	 * @param game
+	 *            The game.
+	 * @param out
+	 *            The stream where the image is written.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 * @throws IOException
+	 *             The image cannot be written.
+	 */
+	public static void write(Game game, OutputStream out) throws IOException {
+		if ((game == null) || (out == null))
+			throw new IllegalArgumentException();
+
+		byte[] payload = new Compiler(game).compile();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeShort(0);
+		data.writeInt(payload.length);
+		data.writeInt((int) crc.getValue());
+		data.write(payload);
+		data.flush();
+	}
+
+	/**
+	 * Checks whether some leading bytes are the header of an image.
+	 *
+	 * @param head
+	 *            The leading bytes.
+	 * @param length
+	 *            The number of valid bytes.
+	 * @return true if they start with the magic number of the images.
+	 */
+	public static boolean isImage(byte[] head, int length) {
+		return (head != null) && (length >= 4)
+				&& (ByteBuffer.wrap(head, 0, 4).getInt() == MAGIC);
+	}
+
+	/**
+	 * Loads a game from an image file, memory-mapping it.
+	 *
+	 * @param image
+	 *            The image file.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'image' cannot be null.
+	 * @throws IOException
+	 *             The file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             The file is not a valid image.
+	 */
+	public static Game load(File image) throws IOException,
+			InvalidGameDefinitionException {
+		if (image == null)
+			throw new IllegalArgumentException();
+
+		return read(map(image));
+	}
+
+	/**
+	 * Memory-maps an image file
+	 */
+	static MappedByteBuffer map(File image) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(image, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a game from an image, validating its header and its checksum.
+	 *
+	 * @param image
+	 *            The image, from its current position.
+	 * @return The game.
+	 * @throws IllegalArgumentException
+	 *             The argument 'image' cannot be null.
+	 * @throws InvalidGameDefinitionException
+	 *             It is not a valid image.
+	 */
+	public static Game read(ByteBuffer image)
+			throws InvalidGameDefinitionException {
+		if (image == null)
+			throw new IllegalArgumentException();
+
+		ByteBuffer payload = payload(image, true);
+		try {
+			return new Loader(payload).load();
+		} catch (RuntimeException e) {
+			// Valid checksum but inconsistent tables
+			throw new InvalidGameDefinitionException("Invalid world image: "
+					+ e);
+		}
+	}
+
+	/**
+	 * Validates the header of an image and optionally its checksum (reading
+	 * the whole image), returning its payload
+	 */
+	static ByteBuffer payload(ByteBuffer image, boolean verify)
+			throws InvalidGameDefinitionException {
+		ByteBuffer header = image.slice();
+		if ((header.remaining() < HEADER_LENGTH)
+				|| (header.getInt(0) != MAGIC))
+			throw new InvalidGameDefinitionException("Not a world image");
+		short version = header.getShort(4);
+		if (version != VERSION)
+			throw new InvalidGameDefinitionException(
+					"Unsupported world image version: " + version);
+		int length = header.getInt(8);
+		if ((length < 0) || (length > header.remaining() - HEADER_LENGTH))
+			throw new InvalidGameDefinitionException("Truncated world image");
+
+		header.position(HEADER_LENGTH);
+		header.limit(HEADER_LENGTH + length);
+		ByteBuffer payload = header.slice();
+
+		if (!verify)
+			return payload;
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+		ByteBuffer view = payload.duplicate();
+		while (view.hasRemaining()) {
+			int n = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if ((int) crc.getValue() != header.getInt(12))
+			throw new InvalidGameDefinitionException(
+					"Corrupt world image: checksum mismatch");
+		return payload;
+	}
+
+	/**
+	 * Builds the payload of the image of a game
+	 */
+	private static class Compiler {
+
+		private Game game;
+
+		/**
+		 * The string table
+		 */
+		private Map<String, Integer> stringIndex;
+		private List<String> strings;
+
+		/**
+		 * The numbered elements
+		 */
+		private Map<Location, Integer> locationIndex;
+		private List<Location> locations;
+		private Map<Item, Integer> itemIndex;
+		private List<Item> items;
+		private List<Location> itemLocations;
+		private Map<Obstacle, Integer> obstacleIndex;
+		private List<Obstacle> obstacles;
+
+		private Compiler(Game game) {
+			this.game = game;
+			stringIndex = new HashMap<String, Integer>();
+			strings = new ArrayList<String>();
+			locationIndex = new IdentityHashMap<Location, Integer>();
+			locations = new ArrayList<Location>();
+			itemIndex = new IdentityHashMap<Item, Integer>();
+			items = new ArrayList<Item>();
+			itemLocations = new ArrayList<Location>();
+			obstacleIndex = new IdentityHashMap<Obstacle, Integer>();
+			obstacles = new ArrayList<Obstacle>();
+		}
+
+		private byte[] compile() throws IOException {
+			// Number the elements in definition order
+			for (Location location : game.getLocations().values()) {
+				locationIndex.put(location, locations.size());
+				locations.add(location);
+			}
+			for (Location location : locations) {
+				for (Item item : location.getAllItems())
+					item(item, location);
+				for (Direction dir : Direction.values()) {
+					Obstacle obstacle = location.getObstacle(dir);
+					if ((obstacle != null)
+							&& !obstacleIndex.containsKey(obstacle)) {
+						obstacleIndex.put(obstacle, obstacles.size());
+						obstacles.add(obstacle);
+					}
+				}
+			}
+			// Bound items out of the locations (never in a new definition)
+			for (Obstacle obstacle : obstacles)
+				for (Item item : obstacle.getBoundedItems())
+					item(item, null);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeTables(out);
+			out.flush();
+			byte[] tables = bytes.toByteArray();
+
+			bytes = new ByteArrayOutputStream(tables.length + strings.size()
+					* 32);
+			out = new DataOutputStream(bytes);
+			writeStrings(out);
+			out.write(tables);
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		private void writeStrings(DataOutputStream out) throws IOException {
+			byte[][] encoded = new byte[strings.size()][];
+			int total = 0;
+			for (int i = 0; i < encoded.length; i++) {
+				encoded[i] = strings.get(i).getBytes(UTF8);
+				total += encoded[i].length;
+			}
+			out.writeInt(encoded.length);
+			int offset = 0;
+			for (byte[] s : encoded) {
+				out.writeInt(offset);
+				offset += s.length;
+			}
+			out.writeInt(total);
+			for (byte[] s : encoded)
+				out.write(s);
+		}
+
+		private void writeTables(DataOutputStream out) throws IOException {
+			out.writeInt(string(game.getTitle()));
+			out.writeInt(string(game.getAuthor()));
+			out.writeInt(string(game.getDescription()));
+			out.writeInt(string(game.getSpecialHelp()));
+			out.writeInt(string(game.getFingerprint()));
+			Integer current = locationIndex.get(game.getCurrentLocation());
+			out.writeInt((current != null) ? current : -1);
+
+			out.writeInt(locations.size());
+			for (Location location : locations) {
+				out.writeInt(string(location.getId()));
+				out.writeInt(string(location.getName()));
+				out.writeInt(string(location.getDescription()));
+				if (location.hasExitThreshold()) {
+					out.writeInt(string(location.getExitMessage()));
+					out.writeInt(location.getExitThreshold());
+				} else {
+					out.writeInt(-1);
+					out.writeInt(0);
+				}
+			}
+
+			out.writeInt(items.size());
+			for (int i = 0; i < items.size(); i++) {
+				Item item = items.get(i);
+				Location location = itemLocations.get(i);
+				out.writeInt(string(item.getId()));
+				out.writeInt(string(item.getName()));
+				out.writeInt(string(item.getDescription()));
+				out.writeInt(item.getValue());
+				out.writeInt(item.getWeight());
+				out.writeInt((location != null) ? locationIndex.get(location)
+						: -1);
+			}
+
+			// Connections (CSR)
+			List<Integer> edges = new ArrayList<Integer>();
+			out.writeInt(locations.size() + 1);
+			out.writeInt(0);
+			for (Location location : locations) {
+				for (Direction dir : Direction.values()) {
+					if (!location.hasConnectedLocation(dir))
+						continue;
+					Integer index = locationIndex.get(location
+							.getConnectedLocation(dir));
+					if (index != null) {
+						edges.add(dir.ordinal());
+						edges.add(index);
+					}
+				}
+				out.writeInt(edges.size() / 2);
+			}
+			writeInts(out, edges);
+
+			out.writeInt(obstacles.size());
+			for (Obstacle obstacle : obstacles) {
+				out.writeInt(string(obstacle.getId()));
+				out.writeInt(string(obstacle.getName()));
+				out.writeInt(string(obstacle.getDescription()));
+				out.writeInt(string(obstacle.getErrorMsg()));
+				out.writeInt(obstacle.getStatus() ? 1 : 0);
+				out.writeInt(obstacle.getDirection().ordinal());
+				out.writeInt(locationIndex.get(obstacle.getLocation()));
+			}
+
+			// Obstacle bindings (CSR)
+			List<Integer> bound = new ArrayList<Integer>();
+			out.writeInt(obstacles.size() + 1);
+			out.writeInt(0);
+			for (Obstacle obstacle : obstacles) {
+				for (Item item : obstacle.getBoundedItems())
+					bound.add(itemIndex.get(item));
+				out.writeInt(bound.size());
+			}
+			writeInts(out, bound);
+			bound.clear();
+			out.writeInt(obstacles.size() + 1);
+			out.writeInt(0);
+			for (Obstacle obstacle : obstacles) {
+				for (Obstacle other : obstacle.getBoundedObstacles()) {
+					Integer index = obstacleIndex.get(other);
+					if (index == null)
+						throw new IllegalStateException(
+								"Bounded obstacle out of the locations: "
+										+ other.getId());
+					bound.add(index);
+				}
+				out.writeInt(bound.size());
+			}
+			writeInts(out, bound);
+
+			List<Trigger> triggers = game.getTriggers();
+			out.writeInt(triggers.size());
+			for (Trigger trigger : triggers) {
+				out.writeInt(string(trigger.getId()));
+				out.writeInt(trigger.getKind().ordinal());
+				out.writeInt(string(trigger.getTarget()));
+				out.writeInt(trigger.getValue());
+				out.writeInt(string(trigger.getMessage()));
+				out.writeInt(trigger.endsGame() ? 1 : 0);
+			}
+		}
+
+		private void item(Item item, Location location) {
+			if (!itemIndex.containsKey(item)) {
+				itemIndex.put(item, items.size());
+				items.add(item);
+				itemLocations.add(location);
+			}
+		}
+
+		private int string(String s) {
+			if (s == null)
+				return -1;
+			Integer index = stringIndex.get(s);
+			if (index == null) {
+				index = strings.size();
+				stringIndex.put(s, index);
+				strings.add(s);
+			}
+			return index;
+		}
+
+		private static void writeInts(DataOutputStream out, List<Integer> ints)
+				throws IOException {
+			out.writeInt(ints.size());
+			for (int i : ints)
+				out.writeInt(i);
+		}
+	}
+
+	/**
+	 * Creates a game from the payload of an image
+	 */
+	private static class Loader {
+
+		private ByteBuffer in;
+
+		private String[] strings;
+
+		private Loader(ByteBuffer payload) {
+			in = payload.duplicate();
+		}
+
+		private Game load() throws InvalidGameDefinitionException {
+			readStrings();
+
+			String title = string();
+			String author = string();
+			String description = string();
+			String specialHelp = string();
+			String fingerprint = string();
+			int current = in.getInt();
+
+			Location[] locations = new Location[in.getInt()];
+			for (int i = 0; i < locations.length; i++) {
+				String id = string();
+				String name = string();
+				String text = string();
+				String exitMessage = string();
+				int threshold = in.getInt();
+				locations[i] = (exitMessage != null) ? new Location(id, name,
+						text, threshold, exitMessage) : new Location(id, name,
+						text);
+			}
+			if ((current < 0) || (current >= locations.length))
+				throw new InvalidGameDefinitionException(
+						"World image without initial location");
+
+			Item[] items = new Item[in.getInt()];
+			for (int i = 0; i < items.length; i++) {
+				items[i] = new Item(string(), string(), string(), in.getInt(),
+						in.getInt());
+				int location = in.getInt();
+				if (location >= 0)
+					locations[location].addItem(items[i]);
+			}
+
+			Direction[] directions = Direction.values();
+			int[] rows = ints();
+			int[] edges = ints();
+			for (int i = 0; i < locations.length; i++)
+				for (int e = rows[i]; e < rows[i + 1]; e++)
+					locations[i].setConnection(directions[edges[2 * e]],
+							locations[edges[2 * e + 1]]);
+
+			Obstacle[] obstacles = new Obstacle[in.getInt()];
+			List<Obstacle> obstacleList = new ArrayList<Obstacle>(
+					obstacles.length);
+			for (int i = 0; i < obstacles.length; i++) {
+				String id = string();
+				String name = string();
+				String text = string();
+				String errorMsg = string();
+				boolean status = in.getInt() != 0;
+				Direction dir = directions[in.getInt()];
+				obstacles[i] = new Obstacle(id, name, text, status, errorMsg,
+						dir);
+				locations[in.getInt()].addObstacle(dir, obstacles[i]);
+				obstacleList.add(obstacles[i]);
+			}
+			rows = ints();
+			int[] bound = ints();
+			for (int i = 0; i < obstacles.length; i++)
+				for (int b = rows[i]; b < rows[i + 1]; b++)
+					obstacles[i].addBoundedItem(items[bound[b]]);
+			rows = ints();
+			bound = ints();
+			for (int i = 0; i < obstacles.length; i++)
+				for (int b = rows[i]; b < rows[i + 1]; b++)
+					obstacles[i].addBoundedObstacle(obstacles[bound[b]]);
+
+			Game game = new Game(title, author, description,
+					locations[current]);
+			for (Location location : locations)
+				game.getLocations().put(location.getId(), location);
+			if (specialHelp != null)
+				game.setSpecialHelp(specialHelp);
+			game.setFingerprint(fingerprint);
+			game.buildObstacleGraph(obstacleList);
+
+			Trigger.Kind[] kinds = Trigger.Kind.values();
+			int triggers = in.getInt();
+			for (int i = 0; i < triggers; i++) {
+				String id = string();
+				Trigger.Kind kind = kinds[in.getInt()];
+				String target = string();
+				int value = in.getInt();
+				String message = string();
+				boolean endsGame = in.getInt() != 0;
+				game.addTrigger(new Trigger(id, kind, target, value, message,
+						endsGame));
+			}
+			return game;
+		}
+
+		private void readStrings() {
+			strings = new String[in.getInt()];
+			int[] offsets = new int[strings.length];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = in.getInt();
+			int total = in.getInt();
+			byte[] utf8 = new byte[total];
+			in.get(utf8);
+			for (int i = 0; i < strings.length; i++) {
+				int end = (i + 1 < strings.length) ? offsets[i + 1] : total;
+				strings[i] = new String(utf8, offsets[i], end - offsets[i],
+						UTF8);
+			}
+		}
+
+		private String string() {
+			int index = in.getInt();
+			return (index < 0) ? null : strings[index];
+		}
+
+		/**
+		 * Reads an int array: its length and its elements
+		 */
+		private int[] ints() {
+			int[] ints = new int[in.getInt()];
+			in.asIntBuffer().get(ints);
+			in.position(in.position() + ints.length * 4);
+			return ints;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package es.ucm.fdi.lps.p5;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.exception.InvalidBoundedItemException;
+import es.ucm.fdi.lps.p5.exception.InvalidBoundedObstacleException;
+
+/**
+ * Links the elements of a game when its definition has been parsed: the
+ * connections and the obstacles of every location, and the items and
+ * obstacles bounded to every obstacle. The references are resolved through
+ * the id indexes of the parsed elements, never scanning lists. Connections
+ * to unknown locations are ignored, and reported by getDanglingConnections.
+ * <p>
+ * Every link step only changes the element that declares the references (a
+ * location or an obstacle), so large worlds are linked in parallel, splitting
+ * the elements in chunks. The result does not depend on the number of
+ * threads: every element is linked in definition order, and if several
+ * references are invalid the error reported is the first one in definition
+ * order.
+ */
+public class WorldLinker {
+
+	/**
+	 * Minimum number of elements of a step for linking them in parallel
+	 */
+	public static final int PARALLEL_THRESHOLD = 2048;
+
+	/**
+	 * The id indexes of the parsed elements
+	 */
+	private Map<String, Location> locations;
+	private Map<String, Item> items;
+	private Map<String, Obstacle> obstacles;
+
+	/**
+	 * The locations to link, in definition order, with their connections
+	 * (target ids) and their obstacles
+	 */
+	private List<Location> sources;
+	private List<EnumMap<Direction, String>> targets;
+	private List<List<Obstacle>> sourceObstacles;
+
+	/**
+	 * The connections of every location to unknown locations, null if there
+	 * are none
+	 */
+	private String[] dangling;
+
+	/**
+	 * The obstacles to link, in definition order, with the ids of their
+	 * bounded items and obstacles
+	 */
+	private List<Obstacle> owners;
+	private List<List<String>> itemRefs;
+	private List<List<String>> obstacleRefs;
+
+	/**
+	 * Constructs a linker for the parsed elements of a game.
+	 *
+	 * @param locations
+	 *            The locations, by id.
+	 * @param items
+	 *            The items, by id.
+	 * @param obstacles
+	 *            The obstacles, by id.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 */
+	public WorldLinker(Map<String, Location> locations,
+			Map<String, Item> items, Map<String, Obstacle> obstacles) {
+		if ((locations == null) || (items == null) || (obstacles == null))
+			throw new IllegalArgumentException();
+		this.locations = locations;
+		this.items = items;
+		this.obstacles = obstacles;
+		sources = new ArrayList<Location>();
+		targets = new ArrayList<EnumMap<Direction, String>>();
+		sourceObstacles = new ArrayList<List<Obstacle>>();
+		owners = new ArrayList<Obstacle>();
+		itemRefs = new ArrayList<List<String>>();
+		obstacleRefs = new ArrayList<List<String>>();
+	}
+
+	/**
+	 * Adds the connections and the obstacles of a location. Connections to
+	 * unknown locations are ignored.
+	 *
+	 * @param location
+	 *            The location.
+	 * @param connections
+	 *            The ids of the connected locations, by direction.
+	 * @param locationObstacles
+	 *            The obstacles to add to the location (in the direction of
+	 *            each one).
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 */
+	public void addLocation(Location location,
+			EnumMap<Direction, String> connections,
+			List<Obstacle> locationObstacles) {
+		if ((location == null) || (connections == null)
+				|| (locationObstacles == null))
+			throw new IllegalArgumentException();
+		sources.add(location);
+		targets.add(connections);
+		sourceObstacles.add(locationObstacles);
+	}
+
+	/**
+	 * Adds the references of an obstacle to its bounded items and obstacles.
+	 *
+	 * @param obstacle
+	 *            The obstacle.
+	 * @param boundedItems
+	 *            The ids of the bounded items.
+	 * @param boundedObstacles
+	 *            The ids of the bounded obstacles.
+	 * @throws IllegalArgumentException
+	 *             The arguments cannot be null.
+	 */
+	public void addReferences(Obstacle obstacle, List<String> boundedItems,
+			List<String> boundedObstacles) {
+		if ((obstacle == null) || (boundedItems == null)
+				|| (boundedObstacles == null))
+			throw new IllegalArgumentException();
+		owners.add(obstacle);
+		itemRefs.add(boundedItems);
+		obstacleRefs.add(boundedObstacles);
+	}
+
+	/**
+	 * Links every added location and obstacle.
+	 *
+	 * @throws InvalidBoundedItemException
+	 *             An obstacle references an unknown item (the first one in
+	 *             definition order).
+	 * @throws InvalidBoundedObstacleException
+	 *             An obstacle references an unknown obstacle (the first one in
+	 *             definition order).
+	 */
+	public void link() {
+		dangling = new String[sources.size()];
+		run(sources.size(), new Step() {
+			public void link(int i) {
+				linkLocation(i);
+			}
+		});
+		run(owners.size(), new Step() {
+			public void link(int i) {
+				linkObstacle(i);
+			}
+		});
+	}
+
+	/**
+	 * Returns the connections to unknown locations found by the last link
+	 * (they are ignored).
+	 *
+	 * @return The connections, in definition order: the id of the location
+	 *         and its connections to unknown locations.
+	 */
+	public List<String> getDanglingConnections() {
+		List<String> result = new ArrayList<String>();
+		if (dangling != null)
+			for (int i = 0; i < dangling.length; i++)
+				if (dangling[i] != null)
+					result.add(sources.get(i).getId() + ": " + dangling[i]);
+		return result;
+	}
+
+	/**
+	 * Sets the connections and the obstacles of a location
+	 */
+	private void linkLocation(int i) {
+		Location location = sources.get(i);
+		EnumMap<Direction, String> connections = targets.get(i);
+		for (Map.Entry<Direction, String> connection : connections.entrySet()) {
+			Location target = locations.get(connection.getValue());
+			if (target != null)
+				location.setConnection(connection.getKey(), target);
+			else
+				dangling[i] = ((dangling[i] != null) ? dangling[i] + ", " : "")
+						+ connection.getKey().getKeyword() + " -> "
+						+ connection.getValue();
+		}
+		for (Obstacle obstacle : sourceObstacles.get(i))
+			location.addObstacle(obstacle.getDirection(), obstacle);
+	}
+
+	/**
+	 * Binds the items and the obstacles referenced by an obstacle
+	 */
+	private void linkObstacle(int i) {
+		Obstacle obstacle = owners.get(i);
+		for (String id : itemRefs.get(i)) {
+			Item item = items.get(id);
+			if (item == null)
+				throw new InvalidBoundedItemException(
+						"InvalidBoundedItemException");
+			obstacle.addBoundedItem(item);
+		}
+		for (String id : obstacleRefs.get(i)) {
+			Obstacle bounded = obstacles.get(id);
+			if (bounded == null)
+				throw new InvalidBoundedObstacleException(
+						"InvalidBoundedObstacleException");
+			obstacle.addBoundedObstacle(bounded);
+		}
+	}
+
+	/**
+	 * A link step, applied to every element by index
+	 */
+	private interface Step {
+		void link(int i);
+	}
+
+	/**
+	 * Applies a step to the elements [0, size), in parallel chunks if there
+	 * are many of them. Every chunk stops at its first failure, and the
+	 * failure of the lowest chunk (so the lowest index) is rethrown.
+	 */
+	private void run(int size, final Step step) {
+		ParallelChunks.run(size, ParallelChunks.count(size,
+				PARALLEL_THRESHOLD), new ParallelChunks.Chunk() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++)
+					step.link(i);
+			}
+		});
+	}
+
+	/**
+	 * Returns a String representation for this object:
+	 * WorldLinker[locations/obstacles]. This is useful for debugging purposes.
+	 *
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return this.getClass().getSimpleName() + "[" + sources.size() + "/"
+				+ owners.size() + "]";
+	}
+}
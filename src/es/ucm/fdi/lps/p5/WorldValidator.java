@@ -0,0 +1,575 @@
+package es.ucm.fdi.lps.p5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import es.ucm.fdi.lps.p5.Game.Direction;
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
+
+/**
+ * Checks the world of a game just loaded (whole, not lazily) and reports the
+ * defects of its definition:
+ * <ul>
+ * <li>Connections to unknown locations, ignored by the loader.</li>
+ * <li>Locations that cannot be reached from the initial location.</li>
+ * <li>Dead ends: locations without connections that are not exits.</li>
+ * <li>Connections without the reverse connection, so the player cannot go
+ * back (and going back cannot be undone).</li>
+ * <li>Closed obstacles with keys that cannot be opened: none of their keys is
+ * in a reachable location and no obstacle that can be opened is bounded to
+ * them.</li>
+ * <li>Exit thresholds and trigger scores above the maximum score: the sum of
+ * the positive values of the items in the reachable locations.</li>
+ * </ul>
+ * Reachability follows the connections, ignoring the obstacles. The world is
+ * numbered once and every pass (the breadth-first search by levels included)
+ * runs in parallel chunks over the locations. The issues are reported in
+ * definition order, independently of the number of threads.
+ * <p>
+ * Usage: WorldValidator definition... (exit status 1 if any has issues)
+ */
+public class WorldValidator {
+
+	/**
+	 * Minimum number of locations (or locations of a search level) for
+	 * running a pass in parallel
+	 */
+	public static final int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * Represents the kinds of issues.
+	 */
+	public enum Kind {
+		/**
+		 * Connection to an unknown location
+		 */
+		DANGLING_CONNECTION,
+		/**
+		 * Location not reachable from the initial location
+		 */
+		UNREACHABLE_LOCATION,
+		/**
+		 * Location without connections that is not an exit
+		 */
+		DEAD_END,
+		/**
+		 * Connection without its reverse connection
+		 */
+		MISSING_REVERSE_CONNECTION,
+		/**
+		 * Closed obstacle that cannot be opened
+		 */
+		UNLOCKABLE_OBSTACLE,
+		/**
+		 * Exit threshold or score trigger above the maximum score
+		 */
+		UNREACHABLE_THRESHOLD
+	}
+
+	/**
+	 * Represents an issue: its kind, the id of the element and a detail.
+	 */
+	public static class Issue {
+
+		private Kind kind;
+		private String subject;
+		private String detail;
+
+		private Issue(Kind kind, String subject, String detail) {
+			this.kind = kind;
+			this.subject = subject;
+			this.detail = detail;
+		}
+
+		/**
+		 * Returns the kind of the issue.
+		 *
+		 * @return The kind.
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Returns the id of the element with the issue.
+		 *
+		 * @return The id.
+		 */
+		public String getSubject() {
+			return subject;
+		}
+
+		/**
+		 * Returns the detail of the issue.
+		 *
+		 * @return The detail.
+		 */
+		public String getDetail() {
+			return detail;
+		}
+
+		/**
+		 * Returns a String representation for this object: KIND subject:
+		 * detail.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			return kind + " " + subject + ": " + detail;
+		}
+	}
+
+	/**
+	 * Represents the result of a validation.
+	 */
+	public static class Report {
+
+		private List<Issue> issues;
+		private int locations;
+		private int reachable;
+		private int maxScore;
+		private long millis;
+
+		private Report(List<Issue> issues, int locations, int reachable,
+				int maxScore, long millis) {
+			this.issues = Collections.unmodifiableList(issues);
+			this.locations = locations;
+			this.reachable = reachable;
+			this.maxScore = maxScore;
+			this.millis = millis;
+		}
+
+		/**
+		 * Returns the issues found.
+		 *
+		 * @return The issues, in definition order.
+		 */
+		public List<Issue> getIssues() {
+			return issues;
+		}
+
+		/**
+		 * Returns the number of issues of a kind.
+		 *
+		 * @param kind
+		 *            The kind.
+		 * @return The number of issues.
+		 */
+		public int count(Kind kind) {
+			int count = 0;
+			for (Issue issue : issues)
+				if (issue.getKind() == kind)
+					count++;
+			return count;
+		}
+
+		/**
+		 * Checks whether no issue was found.
+		 *
+		 * @return true if there are no issues.
+		 */
+		public boolean isClean() {
+			return issues.isEmpty();
+		}
+
+		/**
+		 * Returns the number of locations checked.
+		 *
+		 * @return The number of locations.
+		 */
+		public int getLocations() {
+			return locations;
+		}
+
+		/**
+		 * Returns the number of locations reachable from the initial one.
+		 *
+		 * @return The number of reachable locations.
+		 */
+		public int getReachableLocations() {
+			return reachable;
+		}
+
+		/**
+		 * Returns the maximum score: the sum of the positive values of the
+		 * items in the reachable locations.
+		 *
+		 * @return The maximum score.
+		 */
+		public int getMaxScore() {
+			return maxScore;
+		}
+
+		/**
+		 * Returns the time the validation took.
+		 *
+		 * @return The time in milliseconds.
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Returns a String representation for this object: a summary line
+		 * followed by a line per issue.
+		 *
+		 * @see Object#toString()
+		 */
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			s.append(locations).append(" locations, ").append(reachable)
+					.append(" reachable, max score ").append(maxScore)
+					.append(", ").append(issues.size()).append(
+							" issues in ").append(millis).append(" ms");
+			for (Kind kind : Kind.values()) {
+				int count = count(kind);
+				if (count > 0)
+					s.append(", ").append(kind).append(' ').append(count);
+			}
+			for (Issue issue : issues)
+				s.append(System.getProperty("line.separator")).append(issue);
+			return s.toString();
+		}
+	}
+
+	/**
+	 * The directions, by ordinal
+	 */
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private Game game;
+
+	/**
+	 * The locations in definition order, their numbers and their connections
+	 * (target number by location and direction, -1 if none)
+	 */
+	private Location[] locations;
+	private Map<Location, Integer> numbers;
+	private int[] targets;
+
+	/**
+	 * Locations reachable from the initial location (1) or not (0)
+	 */
+	private AtomicIntegerArray reached;
+
+	/**
+	 * Utility class, it is only instantiated for a validation
+	 */
+	private WorldValidator(Game game) {
+		this.game = game;
+	}
+
+	/**
+	 * Validates the game definitions given as arguments.
+	 *
+	 * @param args
+	 *            The definition files.
+	 * @throws IOException
+	 *             A file cannot be read.
+	 * @throws InvalidGameDefinitionException
+	 *             A definition cannot be loaded.
+	 */
+	public static void main(String[] args) throws IOException,
+			InvalidGameDefinitionException {
+		boolean clean = true;
+		for (String path : args) {
+			Report report = validate(GameLoader.load(new File(path)));
+			System.out.println(path + ": " + report);
+			clean &= report.isClean();
+		}
+		if (!clean)
+			System.exit(1);
+	}
+
+	/**
+	 * Validates the world of a game.
+	 *
+	 * @param game
+	 *            The game, just loaded.
+	 * @return The report.
+	 * @throws IllegalArgumentException
+	 *             The argument 'game' cannot be null.
+	 */
+	public static Report validate(Game game) {
+		if (game == null)
+			throw new IllegalArgumentException();
+		return new WorldValidator(game).validate();
+	}
+
+	private Report validate() {
+		long start = System.nanoTime();
+		List<Issue> issues = new ArrayList<Issue>();
+		for (String dangling : game.getDanglingConnections()) {
+			int colon = dangling.indexOf(": ");
+			issues.add(new Issue(Kind.DANGLING_CONNECTION, dangling.substring(
+					0, colon), dangling.substring(colon + 2)));
+		}
+
+		number();
+		int reachable = search();
+		int maxScore = maxScore();
+		issues.addAll(checkLocations(maxScore));
+		issues.addAll(checkObstacles());
+		for (Trigger trigger : game.getTriggers())
+			if ((trigger.getKind() != Trigger.Kind.OBSTACLE)
+					&& (trigger.getValue() > maxScore))
+				issues.add(new Issue(Kind.UNREACHABLE_THRESHOLD, trigger
+						.getId(), trigger.getKind().getKeyword()
+						+ " trigger at score " + trigger.getValue()
+						+ " above the maximum score " + maxScore));
+
+		return new Report(issues, locations.length, reachable, maxScore,
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Numbers the locations and builds their connection table
+	 */
+	private void number() {
+		locations = game.getLocations().values().toArray(new Location[0]);
+		numbers = new IdentityHashMap<Location, Integer>(locations.length);
+		for (int i = 0; i < locations.length; i++)
+			numbers.put(locations[i], i);
+
+		targets = new int[locations.length * DIRECTIONS.length];
+		forEach(locations.length, new ParallelChunks.Chunk() {
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++)
+					for (Direction dir : DIRECTIONS) {
+						int target = -1;
+						if (locations[i].hasConnectedLocation(dir)) {
+							Integer number = numbers.get(locations[i]
+									.getConnectedLocation(dir));
+							if (number != null)
+								target = number;
+						}
+						targets[i * DIRECTIONS.length + dir.ordinal()] = target;
+					}
+			}
+		});
+	}
+
+	/**
+	 * Breadth-first search from the initial location, level by level, every
+	 * level in parallel chunks. Returns the number of reachable locations.
+	 */
+	private int search() {
+		reached = new AtomicIntegerArray(locations.length);
+		Integer initial = numbers.get(game.getCurrentLocation());
+		if (initial == null)
+			return 0;
+		reached.set(initial, 1);
+		int count = 1;
+		int[] frontier = { initial };
+
+		while (frontier.length > 0) {
+			final int[] level = frontier;
+			final int chunks = ParallelChunks.count(level.length,
+					PARALLEL_THRESHOLD);
+			final int[][] next = new int[chunks][];
+			ParallelChunks.run(level.length, chunks,
+					new ParallelChunks.Chunk() {
+						public void run(int chunk, int from, int to) {
+							int[] found = new int[16];
+							int n = 0;
+							for (int i = from; i < to; i++) {
+								int base = level[i] * DIRECTIONS.length;
+								for (int d = 0; d < DIRECTIONS.length; d++) {
+									int target = targets[base + d];
+									if ((target >= 0)
+											&& reached.compareAndSet(target,
+													0, 1)) {
+										if (n == found.length) {
+											int[] temp = new int[n * 2];
+											System.arraycopy(found, 0, temp,
+													0, n);
+											found = temp;
+										}
+										found[n++] = target;
+									}
+								}
+							}
+							int[] result = new int[n];
+							System.arraycopy(found, 0, result, 0, n);
+							next[chunk] = result;
+						}
+					});
+
+			int size = 0;
+			for (int[] part : next)
+				size += part.length;
+			frontier = new int[size];
+			size = 0;
+			for (int[] part : next) {
+				System.arraycopy(part, 0, frontier, size, part.length);
+				size += part.length;
+			}
+			count += frontier.length;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sum of the positive values of the items in the reachable
+	 * locations
+	 */
+	private int maxScore() {
+		final int chunks = ParallelChunks.count(locations.length,
+				PARALLEL_THRESHOLD);
+		final long[] sums = new long[chunks];
+		ParallelChunks.run(locations.length, chunks,
+				new ParallelChunks.Chunk() {
+					public void run(int chunk, int from, int to) {
+						long sum = 0;
+						for (int i = from; i < to; i++)
+							if (reached.get(i) != 0)
+								for (Item item : locations[i].getAllItems())
+									if (item.getValue() > 0)
+										sum += item.getValue();
+						sums[chunk] = sum;
+					}
+				});
+		long total = 0;
+		for (long sum : sums)
+			total += sum;
+		return (int) Math.min(total, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Checks every location: reachability, dead ends, reverse connections and
+	 * exit thresholds
+	 */
+	private List<Issue> checkLocations(final int maxScore) {
+		final int chunks = ParallelChunks.count(locations.length,
+				PARALLEL_THRESHOLD);
+		final List<List<Issue>> found = chunkLists(chunks);
+		ParallelChunks.run(locations.length, chunks,
+				new ParallelChunks.Chunk() {
+					public void run(int chunk, int from, int to) {
+						List<Issue> issues = found.get(chunk);
+						for (int i = from; i < to; i++)
+							checkLocation(i, maxScore, issues);
+					}
+				});
+		return merge(found);
+	}
+
+	private void checkLocation(int i, int maxScore, List<Issue> issues) {
+		Location location = locations[i];
+		String id = location.getId();
+		if (reached.get(i) == 0)
+			issues.add(new Issue(Kind.UNREACHABLE_LOCATION, id,
+					"not reachable from the initial location"));
+
+		boolean exits = false;
+		int base = i * DIRECTIONS.length;
+		for (Direction dir : DIRECTIONS) {
+			int target = targets[base + dir.ordinal()];
+			if (target < 0)
+				continue;
+			exits = true;
+			int back = targets[target * DIRECTIONS.length
+					+ dir.getOppositeDirection().ordinal()];
+			if (back != i)
+				issues.add(new Issue(Kind.MISSING_REVERSE_CONNECTION, id, dir
+						.getKeyword()
+						+ " -> "
+						+ locations[target].getId()
+						+ " has no "
+						+ dir.getOppositeDirection().getKeyword()
+						+ " connection back"));
+		}
+		if (!exits && !location.hasExitThreshold())
+			issues.add(new Issue(Kind.DEAD_END, id,
+					"no connections and no exit threshold"));
+
+		if (location.hasExitThreshold()
+				&& (location.getExitThreshold() > maxScore))
+			issues.add(new Issue(Kind.UNREACHABLE_THRESHOLD, id,
+					"exit threshold " + location.getExitThreshold()
+							+ " above the maximum score " + maxScore));
+	}
+
+	/**
+	 * Checks that every closed obstacle with keys can be opened
+	 */
+	private List<Issue> checkObstacles() {
+		List<Obstacle> obstacles = new ArrayList<Obstacle>();
+		final Set<Item> keys = Collections
+				.newSetFromMap(new IdentityHashMap<Item, Boolean>());
+		for (Location location : locations)
+			for (Direction dir : DIRECTIONS) {
+				Obstacle obstacle = location.getObstacle(dir);
+				if (obstacle != null) {
+					obstacles.add(obstacle);
+					keys.addAll(obstacle.getBoundedItems());
+				}
+			}
+		if (obstacles.isEmpty())
+			return Collections.emptyList();
+
+		// Keys in reachable locations
+		final int chunks = ParallelChunks.count(locations.length,
+				PARALLEL_THRESHOLD);
+		final List<List<Item>> reachableKeys = new ArrayList<List<Item>>();
+		for (int c = 0; c < chunks; c++)
+			reachableKeys.add(new ArrayList<Item>());
+		ParallelChunks.run(locations.length, chunks,
+				new ParallelChunks.Chunk() {
+					public void run(int chunk, int from, int to) {
+						for (int i = from; i < to; i++)
+							if (reached.get(i) != 0)
+								for (Item item : locations[i].getAllItems())
+									if (keys.contains(item))
+										reachableKeys.get(chunk).add(item);
+					}
+				});
+		Set<Item> available = Collections
+				.newSetFromMap(new IdentityHashMap<Item, Boolean>());
+		for (List<Item> part : reachableKeys)
+			available.addAll(part);
+
+		// Obstacles that can be toggled, with their propagation sets
+		Set<Obstacle> openable = Collections
+				.newSetFromMap(new IdentityHashMap<Obstacle, Boolean>());
+		for (Obstacle obstacle : obstacles)
+			if (!obstacle.getStatus() || !obstacle.hasBoundedItems()
+					|| !Collections.disjoint(available, obstacle
+							.getBoundedItems()))
+				openable.addAll(obstacle.getPropagationSet());
+
+		List<Issue> issues = new ArrayList<Issue>();
+		for (Obstacle obstacle : obstacles)
+			if (obstacle.getStatus() && !openable.contains(obstacle))
+				issues.add(new Issue(Kind.UNLOCKABLE_OBSTACLE, obstacle
+						.getId(), "no reachable key opens it nor any obstacle"
+						+ " bounded to it"));
+		return issues;
+	}
+
+	private static List<List<Issue>> chunkLists(int chunks) {
+		List<List<Issue>> lists = new ArrayList<List<Issue>>(chunks);
+		for (int c = 0; c < chunks; c++)
+			lists.add(new ArrayList<Issue>());
+		return lists;
+	}
+
+	private static List<Issue> merge(List<List<Issue>> lists) {
+		List<Issue> merged = new ArrayList<Issue>();
+		for (List<Issue> list : lists)
+			merged.addAll(list);
+		return merged;
+	}
+
+	private static void forEach(int size, ParallelChunks.Chunk task) {
+		ParallelChunks.run(size, ParallelChunks.count(size,
+				PARALLEL_THRESHOLD), task);
+	}
+}
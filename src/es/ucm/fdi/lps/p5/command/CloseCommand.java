@@ -230,8 +230,8 @@ public class CloseCommand extends Command {
 				if (!game.getCurrentLocation().getObstacleStatus(dir)) {
 					if (!game.getCurrentLocation().getObstacle(dir)
 							.hasBoundedItems()) {
-						game.getCurrentLocation().getObstacle(dir)
-								.changeStatus();
+						game.toggleObstacle(game.getCurrentLocation()
+								.getObstacle(dir));
 						//result = "El obstculo ha sido desactivado"	+ LINE_SEPARATOR;
 						result = msgCloseCommandSuccess + LINE_SEPARATOR;
 						return true;
@@ -245,8 +245,8 @@ public class CloseCommand extends Command {
 										.contains(
 												game.getItemsFromInventory(
 														itemName).toArray()[0])) {
-									game.getCurrentLocation().getObstacle(dir)
-											.changeStatus();
+									game.toggleObstacle(game.getCurrentLocation()
+											.getObstacle(dir));
 									//result = "El obstculo ha sido activado gracias al item: " + itemName + LINE_SEPARATOR;
 									result = msgCloseCommandSuccess + LINE_SEPARATOR;
 									return true;
@@ -352,7 +352,7 @@ public class CloseCommand extends Command {
 
 		if (game.getCurrentLocation().hasObstacle(dir)) {
 			if (game.getCurrentLocation().getObstacleStatus(dir)) {
-				game.getCurrentLocation().getObstacle(dir).changeStatus();
+				game.toggleObstacle(game.getCurrentLocation().getObstacle(dir));
 				result = msgCloseCommandUndoSuccess + LINE_SEPARATOR;
 				return true;
 			} else {
@@ -365,6 +365,16 @@ public class CloseCommand extends Command {
 		}
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.CLOSE.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.CLOSE;
+	}
+
 	/**
 	 * Returns a String representation for this object: CloseCommand. This is
 	 * useful for debugging purposes.
@@ -250,6 +250,15 @@ public abstract class Command implements Cloneable,Serializable {
 	 */
 	public abstract boolean parse(String line);
 
+	/**
+	 * Gets the type of this command. It is used for indexing per-command
+	 * information (i.e. the command statistics) without checking the class of
+	 * the command.
+	 * 
+	 * @return The command type.
+	 */
+	public abstract CommandType getType();
+
 	/**
 	 * Returns a String representation for this object, depending on the type of
 	 * specific command. This is useful for debugging purposes.
@@ -0,0 +1,38 @@
+package es.ucm.fdi.lps.p5.command;
+
+/**
+ * Represents all the kinds of commands that the player can use during the
+ * game. Each specific command reports its own type, so the game can index
+ * per-command information (i.e. the command statistics) by the ordinal of the
+ * type instead of by the class name of the command.
+ */
+public enum CommandType {
+	CLOSE("CloseCommand"), DROP("DropCommand"), EXAMINE("ExamineCommand"), GO(
+			"GoCommand"), HELP("HelpCommand"), LOAD("LoadCommand"), LOOK(
+			"LookCommand"), OPEN("OpenCommand"), QUIT("QuitCommand"), SAVE(
+			"SaveCommand"), TAKE("TakeCommand"), UNDO("UndoCommand");
+
+	/**
+	 * Contains the name shown for this type of command
+	 */
+	private String displayName;
+
+	/**
+	 * CommandType enum constructor
+	 * 
+	 * @param displayName
+	 *            The name shown for this type of command
+	 */
+	private CommandType(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * Gets the name shown for this type of command (e.g. "GoCommand").
+	 * 
+	 * @return The name.
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -433,6 +433,16 @@ public class DropCommand extends Command {
 		}
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.DROP.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.DROP;
+	}
+
 	/**
 	 * Returns a String representation for this object: DropCommand[item name].
 	 * This is useful for debugging purposes.
@@ -376,6 +376,16 @@ public class ExamineCommand extends Command {
 		return true;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.EXAMINE.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.EXAMINE;
+	}
+
 	/**
 	 * Returns a String representation for this object: ExamineCommand or
 	 * ExamineCommand[]. This is useful for debugging purposes.
@@ -5,6 +5,7 @@ import java.util.Properties;
 import java.util.Scanner;
 
 import es.ucm.fdi.lps.p5.Game;
+import es.ucm.fdi.lps.p5.LocationView;
 import es.ucm.fdi.lps.p5.Game.Direction;
 import es.ucm.fdi.lps.p5.exception.UnexecutedCommandException;
 import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
@@ -444,6 +445,19 @@ public class GoCommand extends Command {
 	private static final String FLAG_SHOWCONNECTIONSSTATE = "flag.showConnectionsState";
 	private boolean flagShowConnectionsState;
 
+	/**
+	 * Limit of items shown for a location (the name of the property). Longer
+	 * lists are paginated: only the first page is shown, followed by a
+	 * "more..." line with the number of the items not shown (the next pages
+	 * are shown by the Look command, e.g. "look 2").
+	 * <ul>
+	 * <li>This property is called "limit.listPageSize" and its default value
+	 * is "0" (no limit). Negative values mean no limit too.</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_LISTPAGESIZE = "limit.listPageSize";
+	private int limitListPageSize;
+
 	/**
 	 * The movement direction
 	 */
@@ -536,6 +550,7 @@ public class GoCommand extends Command {
 
 		flagShowConnections = true;
 		flagShowConnectionsState = true;
+		limitListPageSize = 0;
 	}
 
 	/**
@@ -653,6 +668,10 @@ public class GoCommand extends Command {
 			else if (obj.toString().equalsIgnoreCase(FLAG_SHOWCONNECTIONSSTATE))
 				flagShowConnectionsState = Boolean.parseBoolean(config
 						.getProperty(obj.toString()));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_LISTPAGESIZE))
+				// A negative size means no limit, like the default one
+				limitListPageSize = Math.max(0, Integer.parseInt(config
+						.getProperty(obj.toString())));
 		}
 	}
 
@@ -830,6 +849,16 @@ public class GoCommand extends Command {
 		}
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.GO.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.GO;
+	}
+
 	/**
 	 * Returns a String representation for this object: GoCommand[]. This is
 	 * useful for debugging purposes.
@@ -846,27 +875,12 @@ public class GoCommand extends Command {
 	 * @return the String with the result
 	 */
 	private String movementOk() {
-		String temp = "";
-		if (flagGoCommandShowLocationItems) {
-			temp = game.reportLocationName() + LINE_SEPARATOR
-					+ game.reportLocationDescription() + LINE_SEPARATOR;
-
-			if (game.reportAllLocationItems().isEmpty()) {
-				temp += LINE_SEPARATOR + msgGoCommandLocationWithoutItems
-						+ LINE_SEPARATOR;
-			} else {
-				temp += LINE_SEPARATOR
-						+ msgGoCommandLocationWithItems
-						+ game.setToString(game.reportAllLocationItems(),
-								flagShowItemsValues, flagShowItemsWeight)
-						+ LINE_SEPARATOR;
-			}
-
-			if (flagShowConnections) {
-				temp += game.getCurrentLocation().showConnections(
-						flagShowConnectionsState);
-			}
-		}
-		return temp;
+		return game.reportLocationView(new LocationView(false,
+				flagGoCommandShowLocationItems, flagGoCommandShowLocationItems,
+				flagShowItemsValues, flagShowItemsWeight,
+				flagGoCommandShowLocationItems && flagShowConnections,
+				flagShowConnectionsState, limitListPageSize,
+				msgGoCommandLocationWithItems,
+				msgGoCommandLocationWithoutItems));
 	}
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Scanner;
 
+import es.ucm.fdi.lps.p5.CommandStatistics;
 import es.ucm.fdi.lps.p5.Game;
 import es.ucm.fdi.lps.p5.Parser;
 import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
@@ -231,7 +232,7 @@ public class HelpCommand extends Command {
 			if (flagShowHistoryStatistics) {
 				result += LINE_SEPARATOR + LINE_SEPARATOR
 						+ "Command Statistics: " + LINE_SEPARATOR
-						+ game.getCommandStatistics();
+						+ statisticsToString(game.getCommandStatistics());
 			}
 
 			if (flagShowActiveConfiguration) {
@@ -244,6 +245,43 @@ public class HelpCommand extends Command {
 		}
 	}
 
+	/**
+	 * Renders the command statistics: number of executions, percentage and
+	 * latency of every type of command.
+	 * 
+	 * @param statistics
+	 *            The statistics snapshot
+	 * @return a String with the statistics
+	 */
+	private String statisticsToString(CommandStatistics.Snapshot statistics) {
+		if (statistics.getTotalExecutions() == 0)
+			return "There is no executed commands yet";
+
+		StringBuilder temp = new StringBuilder();
+		for (CommandType type : CommandType.values()) {
+			temp.append(type.getDisplayName()).append(": ")
+					.append(LINE_SEPARATOR);
+			temp.append("\t").append("Executions: ")
+					.append(statistics.getExecutions(type))
+					.append(LINE_SEPARATOR);
+			temp.append("\t").append("Percentage: ")
+					.append(statistics.getPercentage(type))
+					.append(LINE_SEPARATOR);
+			if (statistics.getExecutions(type) != 0) {
+				temp.append("\t").append("Latency (us): mean ")
+						.append(statistics.getMeanLatency(type))
+						.append(", p50 <= ")
+						.append(statistics.getLatencyPercentile(type, 50))
+						.append(", p99 <= ")
+						.append(statistics.getLatencyPercentile(type, 99))
+						.append(LINE_SEPARATOR);
+			}
+		}
+		temp.append("TOTAL COMMAND NUMBER: ")
+				.append(statistics.getTotalExecutions()).append(LINE_SEPARATOR);
+		return temp.toString();
+	}
+
 	/**
 	 * Returns a String with all the properties founded in the configuration
 	 * file
@@ -295,6 +333,16 @@ public class HelpCommand extends Command {
 		return false;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.HELP.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.HELP;
+	}
+
 	/**
 	 * Returns a String representation for this object: HelpCommand. This is
 	 * useful for debugging purposes.
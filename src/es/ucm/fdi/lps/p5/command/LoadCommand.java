@@ -1,15 +1,16 @@
 package es.ucm.fdi.lps.p5.command;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Scanner;
 
+import es.ucm.fdi.lps.p5.BlockInputStream;
 import es.ucm.fdi.lps.p5.Game;
-import es.ucm.fdi.lps.p5.Main;
+import es.ucm.fdi.lps.p5.GameLoader;
+import es.ucm.fdi.lps.p5.SaveCodec;
+import es.ucm.fdi.lps.p5.exception.InvalidGameDefinitionException;
 import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
 
 public class LoadCommand extends Command {
@@ -84,6 +85,11 @@ public class LoadCommand extends Command {
 
 	private String filePath;
 
+	/**
+	 * The game loaded, which replaces the running one
+	 */
+	private Game loadedGame;
+
 	/**
 	 * Constructs a Load command (as an specific type of Command). Initially
 	 * the command is unparsed and unexecuted. Default configuration is assumed
@@ -164,7 +170,20 @@ public class LoadCommand extends Command {
 	}
 	
 	/**
-	 * Executes the Load command, loading a game from the given file path.
+	 * Returns the game loaded by this command. The engine replaces the
+	 * running game by it (see Engine.getGame), reading the same input.
+	 * 
+	 * @return The game, null if the command has not loaded any game.
+	 */
+	public Game getLoadedGame() {
+		return loadedGame;
+	}
+
+	/**
+	 * Executes the Load command, loading a game from the given file path
+	 * (compressed or not), a key of the storage of saved games (see
+	 * GameLoader.getSessionStore), which replaces the running game (see
+	 * getLoadedGame).
 	 * 
 	 * @see Command#execute()
 	 */
@@ -176,25 +195,35 @@ public class LoadCommand extends Command {
 		executed = true;
 		
 		try {
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
-					filePath));
-			this.game = (Game) ois.readObject();
-			ois.close();
-			//Termino el juego original
-			game.end();
+			byte[] save = GameLoader.getSessionStore().get(filePath);
+			if (save == null)
+				throw new FileNotFoundException(filePath);
+			// Games serialized in blocks are validated while they are read
+			if (!BlockInputStream.isBlocks(save, save.length))
+				save = SaveCodec.uncompress(save);
+			Game loaded;
+			if (SaveCodec.isSave(save, save.length))
+				loaded = SaveCodec.restore(save, GameLoader.reload(game));
+			else
+				loaded = SaveCodec.readSerialized(save);
 			result = "";
-			//Creo un nuevo juego a partir del juego salvado
-			Main.setEngine(game);
+			// The engine replaces the original game by the saved one
+			loadedGame = loaded;
 			return true;
 		} catch (FileNotFoundException e) {
 			result = msgLoadCommandFailure + LINE_SEPARATOR;
 			return false;
 		} catch (IOException e) {
-			result = msgLoadCommandFailure + LINE_SEPARATOR;
+			// The reason, like the first corrupt block of the saved game
+			result = msgLoadCommandFailure + " Error: " + e.getMessage()
+					+ LINE_SEPARATOR;
 			return false;
 		} catch (ClassNotFoundException e) {
 			result = msgLoadCommandFailure + LINE_SEPARATOR;
 			return false;
+		} catch (InvalidGameDefinitionException e) {
+			result = msgLoadCommandFailure + LINE_SEPARATOR;
+			return false;
 		}
 	}
 	
@@ -233,6 +262,16 @@ public class LoadCommand extends Command {
 		return msgLoadCommandHelp;
 	}
 	
+	/**
+	 * Returns the type of this command: CommandType.LOAD.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.LOAD;
+	}
+
 	/**
 	 * Returns a String representation for this object: LoadCommand. This is
 	 * useful for debugging purposes.
@@ -5,11 +5,13 @@ import java.util.Properties;
 import java.util.Scanner;
 
 import es.ucm.fdi.lps.p5.Game;
+import es.ucm.fdi.lps.p5.LocationView;
 import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
 
 /**
  * Represents a Look command from the player that shows the description of the
- * player location.
+ * player location. It can be followed by a page number (e.g. "look 2") to
+ * show that page of the items when they are more than "limit.listPageSize".
  * 
  * <ul>
  * <li>It uses a command-specific property called "keyword.lookCommand" which
@@ -19,7 +21,7 @@ import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
  * <li>It uses a command-specific property called "keyword.lookCommand.alt"
  * which default value is "search".</li>
  * <li>It uses a command-specific property called "message.lookCommand.help"
- * which default value is "look|l|search".</li>
+ * which default value is "look|l|search [page]".</li>
  * </ul>
  */
 public class LookCommand extends Command {
@@ -68,7 +70,7 @@ public class LookCommand extends Command {
 	 * The LookCommand help message
 	 * <ul>
 	 * <li>This property is called "message.lookCommand.help" and its default
-	 * value is "look|l|search".</li>
+	 * value is "look|l|search [page]".</li>
 	 * </ul>
 	 */
 	private final String MESSAGE_LOOKCOMMAND_HELP = "message.lookCommand.help";
@@ -147,6 +149,23 @@ public class LookCommand extends Command {
 	private static final String FLAG_SHOWCONNECTIONSSTATE = "flag.showConnectionsState";
 	private boolean flagShowConnectionsState;
 
+	/**
+	 * Limit of items shown for a location (the name of the property). Longer
+	 * lists are paginated: the items of the other pages are not shown, only a
+	 * "more..." line with their number and the number of the page.
+	 * <ul>
+	 * <li>This property is called "limit.listPageSize" and its default value
+	 * is "0" (no limit). Negative values mean no limit too.</li>
+	 * </ul>
+	 */
+	private static final String LIMIT_LISTPAGESIZE = "limit.listPageSize";
+	private int limitListPageSize;
+
+	/**
+	 * The page of the items shown, from 1
+	 */
+	private int page = 1;
+
 	/**
 	 * Constructs a Look command (as an specific type of Command) that has
 	 * access to a given game. Initially the command is unparsed and unexecuted.
@@ -196,7 +215,7 @@ public class LookCommand extends Command {
 		keywordLookCommandAbbrev = "l";
 		keywordLookCommandAlt = "search";
 
-		msgLookCommandHelp = "look|l|search";
+		msgLookCommandHelp = "look|l|search [page]";
 
 		msgLookCommandLocationWithItems = "This location contains the following items: ";
 		msgLookCommandLocationWithoutItems = "This location has no items.";
@@ -205,6 +224,7 @@ public class LookCommand extends Command {
 		flagShowItemsWeight = true;
 		flagShowConnections = true;
 		flagShowConnectionsState = true;
+		limitListPageSize = 0;
 	}
 
 	/**
@@ -250,6 +270,10 @@ public class LookCommand extends Command {
 			else if (obj.toString().equalsIgnoreCase(FLAG_SHOWCONNECTIONSSTATE))
 				flagShowConnectionsState = Boolean.parseBoolean(config
 						.getProperty(obj.toString()));
+			else if (obj.toString().equalsIgnoreCase(LIMIT_LISTPAGESIZE))
+				// A negative size means no limit, like the default one
+				limitListPageSize = Math.max(0, Integer.parseInt(config
+						.getProperty(obj.toString())));
 		}
 	}
 
@@ -287,7 +311,8 @@ public class LookCommand extends Command {
 
 	/**
 	 * Parses a text line trying to identify a player invocation to this Look
-	 * command (e.g. "look").
+	 * command (e.g. "look" or "look 2"). A page that is not a positive number
+	 * is taken as the first one.
 	 * 
 	 * @see Command#parse(String)
 	 */
@@ -299,6 +324,9 @@ public class LookCommand extends Command {
 			if (firstCommand.equalsIgnoreCase(keywordLookCommand)
 					|| firstCommand.equalsIgnoreCase(keywordLookCommandAbbrev)
 					|| firstCommand.equalsIgnoreCase(keywordLookCommandAlt)) {
+				page = 1;
+				if (reader.hasNextInt())
+					page = Math.max(1, reader.nextInt());
 				parsed = true;
 				return true;
 			}
@@ -306,6 +334,16 @@ public class LookCommand extends Command {
 		return false;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.LOOK.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.LOOK;
+	}
+
 	/**
 	 * Returns a String representation for this object: LookCommand. This is
 	 * useful for debugging purposes.
@@ -322,27 +360,12 @@ public class LookCommand extends Command {
 	 * @return the string with the result
 	 */
 	private String lookOk() {
-		String temp = "";
-		if (flagLookCommandShowLocationItems) {
-			temp = game.reportLocationName() + LINE_SEPARATOR
-					+ game.reportLocationDescription() + LINE_SEPARATOR;
-
-			if (game.reportAllLocationItems().isEmpty()) {
-				temp += LINE_SEPARATOR + msgLookCommandLocationWithoutItems
-						+ LINE_SEPARATOR;
-			} else {
-				temp += LINE_SEPARATOR
-						+ msgLookCommandLocationWithItems
-						+ game.setToString(game.reportAllLocationItems(),
-								flagShowItemsValues, flagShowItemsWeight)
-						+ LINE_SEPARATOR;
-			}
-
-			if (flagShowConnections) {
-				temp += game.getCurrentLocation().showConnections(
-						flagShowConnectionsState);
-			}
-		}
-		return temp;
+		return game.reportLocationView(new LocationView(false,
+				flagLookCommandShowLocationItems, flagLookCommandShowLocationItems,
+				flagShowItemsValues, flagShowItemsWeight,
+				flagLookCommandShowLocationItems && flagShowConnections,
+				flagShowConnectionsState, limitListPageSize, page,
+				msgLookCommandLocationWithItems,
+				msgLookCommandLocationWithoutItems));
 	}
 }
@@ -229,8 +229,8 @@ public class OpenCommand extends Command {
 				if (game.getCurrentLocation().getObstacleStatus(dir)) {
 					if (!game.getCurrentLocation().getObstacle(dir)
 							.hasBoundedItems()) {
-						game.getCurrentLocation().getObstacle(dir)
-								.changeStatus();
+						game.toggleObstacle(game.getCurrentLocation()
+								.getObstacle(dir));
 						// result = "El obstculo ha sido desactivado" +
 						// LINE_SEPARATOR;
 						result = msgOpenCommandSuccess + LINE_SEPARATOR;
@@ -245,8 +245,8 @@ public class OpenCommand extends Command {
 										.contains(
 												game.getItemsFromInventory(
 														itemName).toArray()[0])) {
-									game.getCurrentLocation().getObstacle(dir)
-											.changeStatus();
+									game.toggleObstacle(game.getCurrentLocation()
+											.getObstacle(dir));
 									// result =
 									// "El obstculo ha sido desactivado gracias al item: "
 									// + itemName + LINE_SEPARATOR;
@@ -367,7 +367,7 @@ public class OpenCommand extends Command {
 
 		if (game.getCurrentLocation().hasObstacle(dir)) {
 			if (!game.getCurrentLocation().getObstacleStatus(dir)) {
-				game.getCurrentLocation().getObstacle(dir).changeStatus();
+				game.toggleObstacle(game.getCurrentLocation().getObstacle(dir));
 				result = msgOpenCommandUndoSuccess + LINE_SEPARATOR;
 				return true;
 			} else {
@@ -380,6 +380,16 @@ public class OpenCommand extends Command {
 		}
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.OPEN.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.OPEN;
+	}
+
 	/**
 	 * Returns a String representation for this object: OpenCommand. This is
 	 * useful for debugging purposes.
@@ -212,6 +212,16 @@ public class QuitCommand extends Command {
 			return false;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.QUIT.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.QUIT;
+	}
+
 	/**
 	 * Returns a String representation for this object: QuitCommand. This is
 	 * useful for debugging purposes.
@@ -1,14 +1,15 @@
 package es.ucm.fdi.lps.p5.command;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Scanner;
 
 import es.ucm.fdi.lps.p5.Game;
+import es.ucm.fdi.lps.p5.GameLoader;
+import es.ucm.fdi.lps.p5.SaveCodec;
 import es.ucm.fdi.lps.p5.exception.UnparsedCommandException;
 
 public class SaveCommand extends Command {
@@ -165,7 +166,12 @@ public class SaveCommand extends Command {
 	}
 		
 	/**
-	 * Executes the Save command, saving a game in the given file path.
+	 * Executes the Save command, saving a game in the given file path. Only
+	 * the state of the game is saved (see SaveCodec); games which definition
+	 * cannot be loaded again (or loaded lazily) are serialized whole,
+	 * compressed as the saves are and written in blocks with checksums (see
+	 * BlockOutputStream). The file path is a key of the storage of
+	 * saved games (see GameLoader.getSessionStore).
 	 * 
 	 * @see Command#execute()
 	 */
@@ -177,11 +183,12 @@ public class SaveCommand extends Command {
 		executed = true;
 		
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
-					filePath));
-//			oos.writeObject(new Integer(9));
-			oos.writeObject(game);
-			oos.close();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (SaveCodec.supports(game))
+				SaveCodec.write(game, out);
+			else
+				SaveCodec.writeSerialized(game, out);
+			GameLoader.getSessionStore().put(filePath, out.toByteArray());
 			result = msgSaveCommandSuccess + LINE_SEPARATOR;
 			return true;
 		} catch (FileNotFoundException e) {
@@ -227,6 +234,16 @@ public class SaveCommand extends Command {
 		return msgSaveCommandHelp;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.SAVE.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.SAVE;
+	}
+
 	/**
 	 * Returns a String representation for this object: SaveCommand. This is
 	 * useful for debugging purposes.
@@ -471,6 +471,16 @@ public class TakeCommand extends Command {
 
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.TAKE.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.TAKE;
+	}
+
 	/**
 	 * Returns a String representation for this object: TakeCommand[item]. This
 	 * is useful for debugging purposes.
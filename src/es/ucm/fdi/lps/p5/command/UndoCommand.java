@@ -218,6 +218,16 @@ public class UndoCommand extends Command {
 			return false;
 	}
 
+	/**
+	 * Returns the type of this command: CommandType.UNDO.
+	 * 
+	 * @see Command#getType()
+	 */
+	@Override
+	public CommandType getType() {
+		return CommandType.UNDO;
+	}
+
 	/**
 	 * Returns a String representation for this object: UndoCommand. This is
 	 * useful for debugging purposes.
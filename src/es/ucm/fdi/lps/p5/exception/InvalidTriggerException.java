@@ -0,0 +1,19 @@
+package es.ucm.fdi.lps.p5.exception;
+
+/**
+ * Represents an exception that occurs when the parser finds a trigger with a
+ * duplicate id or subscribed to an inexistent location, item or obstacle
+ */
+@SuppressWarnings("serial")
+public class InvalidTriggerException extends RuntimeException {
+
+	/**
+	 * Constructs the exception with an explanatory message.
+	 * 
+	 * @param message
+	 *            The error message.
+	 */
+	public InvalidTriggerException(String message) {
+		super(message);
+	}
+}